@@ -2,6 +2,10 @@ package com.radicalninja.pimidithing;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.view.KeyEvent;
+
+import com.radicalninja.pimidithing.midi.MidiCore;
+import com.radicalninja.pimidithing.midi.router.clock.TapTempo;
 
 public class MainActivity extends Activity {
 
@@ -20,4 +24,26 @@ public class MainActivity extends Activity {
     protected void onStop() {
         super.onStop();
     }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        // The Sense HAT joystick's center press doubles as a tap tempo button.
+        if (keyCode == KeyEvent.KEYCODE_DPAD_CENTER || keyCode == KeyEvent.KEYCODE_ENTER) {
+            if (event.getRepeatCount() == 0) {
+                final TapTempo tapTempo = getTapTempo();
+                if (null != tapTempo) {
+                    tapTempo.tap(System.nanoTime());
+                    return true;
+                }
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    private TapTempo getTapTempo() {
+        final MidiCore midiCore = App.getInstance().getMidiCore();
+        return (null != midiCore && null != midiCore.getRouter())
+                ? midiCore.getRouter().getTapTempo()
+                : null;
+    }
 }
@@ -0,0 +1,186 @@
+package com.radicalninja.pimidithing.midi;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Active Sensing (0xFE), both ways.
+ *
+ * Outputs that want it are sent 0xFE every SEND_INTERVAL_NANOS, so a device can tell the link is
+ * still up and silence its voices if we go away. Inputs are watched from the first 0xFE they
+ * send: if nothing at all arrives from one for longer than TIMEOUT_NANOS, the device (or its
+ * cable) is taken to be gone, the listener is told, and the input is no longer watched until it
+ * sends 0xFE again.
+ *
+ * All of this runs as one periodic task on the shared MidiScheduler; the only per-message cost
+ * is MidiInputController noting when it last received something.
+ */
+public class ActiveSensing {
+
+    public interface OnTimeoutListener {
+        void onTimeout(final MidiInputController input);
+    }
+
+    private static final String TAG = ActiveSensing.class.getCanonicalName();
+
+    public static final long SEND_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    public static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final byte[] ACTIVE_SENSING = { MidiMessage.MessageType.ACTIVE_SENSING.value };
+
+    private final MidiScheduler scheduler;
+    private final List<MidiOutputController> outputs = new CopyOnWriteArrayList<>();
+    private final Map<MidiInputController, Boolean> sensingInputs = new ConcurrentHashMap<>();
+
+    private volatile OnTimeoutListener listener;
+    // Tick state, guarded by this.
+    private boolean ticking = false;
+    private long nextTickAt;
+    private long nextSendAt;
+
+    public ActiveSensing(@NonNull final MidiScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void setOnTimeoutListener(@Nullable final OnTimeoutListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start sending Active Sensing to an output.
+     */
+    public void addOutput(@NonNull final MidiOutputController output) {
+        if (!outputs.contains(output)) {
+            outputs.add(output);
+        }
+        // Also picks up outputs that were already added before a stop().
+        startTicking();
+    }
+
+    /**
+     * Stop sending Active Sensing to an output, e.g. once it has been closed.
+     */
+    public void removeOutput(@NonNull final MidiOutputController output) {
+        outputs.remove(output);
+    }
+
+    /**
+     * Call when an input sends Active Sensing; the input is watched for a timeout from then on.
+     */
+    public void onActiveSense(@NonNull final MidiInputController input) {
+        if (null == sensingInputs.put(input, Boolean.TRUE)) {
+            Log.d(TAG, "Active Sensing started on " + input.getPortRecord().getNickname());
+            startTicking();
+        }
+    }
+
+    /**
+     * @return true if the input has sent Active Sensing and hasn't timed out since.
+     */
+    public boolean isSensing(@NonNull final MidiInputController input) {
+        return sensingInputs.containsKey(input);
+    }
+
+    /**
+     * Stop watching inputs for a timeout, e.g. when the router that acts on timeouts stops.
+     * Active Sensing is still sent to the outputs. Inputs are watched again once they next send
+     * Active Sensing.
+     */
+    public void stopWatching() {
+        sensingInputs.clear();
+    }
+
+    /**
+     * Stop everything. Adding an output or sensing an input starts again.
+     */
+    public synchronized void stop() {
+        ticking = false;
+        scheduler.cancel(tickTask);
+        sensingInputs.clear();
+    }
+
+    private synchronized void startTicking() {
+        if (ticking) {
+            return;
+        }
+        ticking = true;
+        final long now = System.nanoTime();
+        nextSendAt = now;
+        nextTickAt = now;
+        scheduler.schedule(tickTask, nextTickAt);
+    }
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.nanoTime();
+            final boolean send;
+            synchronized (ActiveSensing.this) {
+                if (!ticking) {
+                    return;
+                }
+                send = now - nextSendAt >= 0;
+                if (send) {
+                    nextSendAt += SEND_INTERVAL_NANOS;
+                    if (now - nextSendAt >= 0) {
+                        // Fell behind; don't make up for it with a burst.
+                        nextSendAt = now + SEND_INTERVAL_NANOS;
+                    }
+                }
+            }
+            if (send) {
+                sendToOutputs();
+            }
+            checkInputs(now);
+            synchronized (ActiveSensing.this) {
+                if (!ticking) {
+                    return;
+                }
+                if (outputs.isEmpty() && sensingInputs.isEmpty()) {
+                    ticking = false;
+                    return;
+                }
+                nextTickAt += TICK_NANOS;
+                if (now - nextTickAt >= 0) {
+                    nextTickAt = now + TICK_NANOS;
+                }
+                scheduler.schedule(tickTask, nextTickAt);
+            }
+        }
+    };
+
+    private void sendToOutputs() {
+        for (final MidiOutputController output : outputs) {
+            try {
+                output.send(ACTIVE_SENSING, 0, 1, 0);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending Active Sensing to "
+                        + output.getPortRecord().getNickname(), e);
+            }
+        }
+    }
+
+    private void checkInputs(final long now) {
+        for (final MidiInputController input : sensingInputs.keySet()) {
+            if (now - input.getLastMessageNanos() <= TIMEOUT_NANOS) {
+                continue;
+            }
+            sensingInputs.remove(input);
+            Log.w(TAG, "Active Sensing timed out on " + input.getPortRecord().getNickname());
+            final OnTimeoutListener listener = this.listener;
+            if (null != listener) {
+                listener.onTimeout(input);
+            }
+        }
+    }
+
+}
@@ -13,6 +13,10 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.github.mjdev.libaums.UsbMassStorageDevice;
+import com.radicalninja.pimidithing.midi.output.BandwidthShaper;
+import com.radicalninja.pimidithing.midi.output.ControlCoalescer;
+import com.radicalninja.pimidithing.midi.output.MpeCollapser;
+import com.radicalninja.pimidithing.midi.output.RunningStatusEncoder;
 import com.radicalninja.pimidithing.midi.router.MidiRouter;
 import com.radicalninja.pimidithing.midi.router.RouterConfig;
 import com.radicalninja.pimidithing.usb.MassStorageController;
@@ -25,6 +29,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class MidiCore implements MassStorageController.UsbMassStorageListener {
 
@@ -234,6 +240,15 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
             openControllers(inputs);
             final List<MidiOutputController> outputs = index.getOutputsForRecords(records);
             openControllers(outputs);
+            if (null != outputs) {
+                for (final MidiOutputController output : outputs) {
+                    final RouterConfig.Device config =
+                            deviceConfigs.get(output.getPortRecord().getNickname());
+                    if (null != config && config.isActiveSense()) {
+                        activeSensing.addOutput(output);
+                    }
+                }
+            }
         }
 
         <T extends MidiDeviceController> void closeControllers(final List<T> controllers) {
@@ -258,6 +273,11 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
             closeControllers(inputs);
             Log.w(TAG, "Inputs closed!");
             final List<MidiOutputController> outputs = index.getOutputsForRecords(records);
+            if (null != outputs) {
+                for (final MidiOutputController output : outputs) {
+                    activeSensing.removeOutput(output);
+                }
+            }
             closeControllers(outputs);
             Log.w(TAG, "Outputs closed!");
         }
@@ -272,10 +292,18 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
 
     private static final String CONFIG_FILENAME = "config.json";
     private static final String TAG = MidiCore.class.getCanonicalName();
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
 
     private final DeviceCallback deviceCallback = new DeviceCallback();
     private final DeviceIndex index = new DeviceIndex();
+    private final Map<String, RouterConfig.Device> deviceConfigs = new HashMap<>();
+    private final MidiScheduler scheduler = new MidiScheduler();
+    private final ActiveSensing activeSensing = new ActiveSensing(scheduler);
     private final MidiManager manager;
+    // Outputs with pipeline stages, whose summaries are logged as they change.
+    private final List<MidiOutputController> stagedOutputs = new CopyOnWriteArrayList<>();
+    // Last summary logged per output; only touched by the summary task.
+    private final Map<MidiOutputController, String> loggedSummaries = new HashMap<>();
 
     private boolean started = false;
     private MidiRouter router;
@@ -300,6 +328,7 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
         for (final Map.Entry<String, RouterConfig.Device> deviceEntry : devices.entrySet()) {
             final RouterConfig.Device device = deviceEntry.getValue();
             index.add(device.getName(), device.getPort(), deviceEntry.getKey());
+            deviceConfigs.put(deviceEntry.getKey(), device);
         }
         // Create the router
         router = new MidiRouter(config);
@@ -342,10 +371,26 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
         router.init(listenerWrapper, handler);
     }
 
+    public MidiRouter getRouter() {
+        return router;
+    }
+
+    public MidiScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ActiveSensing getActiveSensing() {
+        return activeSensing;
+    }
+
     public PortRecord getPortRecord(final String nickname) {
         return index.getRecord(nickname);
     }
 
+    public PortRecord getPortRecord(final RouterConfig.Device device) {
+        return index.findRecord(device);
+    }
+
     public List<PortRecord> getPortRecords(final List<String> nicknames) {
         final List<PortRecord> result = new ArrayList<>(nicknames.size());
         for (final String nickname : nicknames) {
@@ -430,6 +475,7 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
             }
         } else {
             final MidiInputController c = new MidiInputController(portRecord);
+            configureInput(c, deviceConfigs.get(portRecord.getNickname()));
             index.putInput(portRecord, c);
             c.open(listener, openHandler);
         }
@@ -454,11 +500,88 @@ public class MidiCore implements MassStorageController.UsbMassStorageListener {
             }
         } else {
             final MidiOutputController c = new MidiOutputController(portRecord);
+            configureOutput(c, deviceConfigs.get(portRecord.getNickname()));
             index.putOutput(portRecord, c);
             c.open(listener, openHandler);
         }
     }
 
+    /**
+     * Set up how an input reads what it receives from its device config.
+     */
+    protected void configureInput(@NonNull final MidiInputController input,
+                                  @Nullable final RouterConfig.Device device) {
+
+        input.setParameterAssembly(null != device && device.isAssembleParameters(), scheduler);
+    }
+
+    /**
+     * Set up an output's pipeline stages from its device config.
+     */
+    protected void configureOutput(@NonNull final MidiOutputController output,
+                                   @Nullable final RouterConfig.Device device) {
+
+        if (null == device) {
+            return;
+        }
+        final Integer mpeCollapse = device.getMpeCollapse();
+        if (null != mpeCollapse) {
+            output.addStage(new MpeCollapser(mpeCollapse - 1));
+        }
+        final RouterConfig.Coalesce coalesce = device.getCoalesce();
+        if (null != coalesce) {
+            final long windowNanos = (long) (coalesce.getWindow() * TimeUnit.MILLISECONDS.toNanos(1));
+            output.addStage(new ControlCoalescer(windowNanos, coalesce.getDelta()));
+        }
+        final RouterConfig.Bandwidth bandwidth = device.getBandwidth();
+        if (null != bandwidth) {
+            output.addStage(
+                    new BandwidthShaper(bandwidth.getBytesPerSecond(), bandwidth.getBuffer()));
+        }
+        if (device.isRunningStatus()) {
+            // Must come last; see RunningStatusEncoder.
+            output.addStage(new RunningStatusEncoder());
+        }
+        if (device.isActiveSense()) {
+            activeSensing.addOutput(output);
+        }
+        if (output.getPipeline().hasStages() && !stagedOutputs.contains(output)) {
+            if (stagedOutputs.isEmpty()) {
+                scheduler.schedule(summaryTask, System.nanoTime() + SUMMARY_INTERVAL_NANOS);
+            }
+            stagedOutputs.add(output);
+        }
+    }
+
+    /**
+     * @return What each output's pipeline stages have done so far, e.g. messages the bandwidth
+     *      shaper delayed or dropped and bytes saved by running status.
+     */
+    public List<String> getOutputSummaries() {
+        final List<String> summaries = new ArrayList<>(stagedOutputs.size());
+        for (final MidiOutputController output : stagedOutputs) {
+            final String summary = output.getPipeline().getSummary();
+            if (null != summary) {
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    private final Runnable summaryTask = new Runnable() {
+        @Override
+        public void run() {
+            for (final MidiOutputController output : stagedOutputs) {
+                final String summary = output.getPipeline().getSummary();
+                if (null != summary && !summary.equals(loggedSummaries.get(output))) {
+                    loggedSummaries.put(output, summary);
+                    Log.i(TAG, summary);
+                }
+            }
+            scheduler.schedule(this, System.nanoTime() + SUMMARY_INTERVAL_NANOS);
+        }
+    };
+
     @Override
     public void onStorageAttached(final UsbMassStorageDevice device) {
         // todo: init config sync
@@ -18,11 +18,32 @@ public class MidiInputController
         boolean onMessage(final MidiInputController input, final MidiMessage message);
     }
 
+    /**
+     * Sees every chunk of bytes as the port delivers it, before it becomes a MidiMessage. This
+     * includes chunks that can't become one, such as the middle of a SysEx split over several
+     * packets.
+     */
+    public interface RawListener {
+        void onBytes(final MidiInputController input,
+                     final byte[] data,
+                     final int offset,
+                     final int count,
+                     final long timestamp);
+    }
+
     private static final String TAG = MidiInputController.class.getCanonicalName();
 
     private final MidiInputReceiver receiver = new MidiInputReceiver(this);
 
     private MidiOutputPort sourcePort;
+    // When anything was last received; read by ActiveSensing.
+    private volatile long lastMessageNanos = 0;
+    // Locked while in use, as held MSBs expire on the scheduler thread; null leaves control
+    // changes as-is.
+    private volatile ParameterAssembler parameterAssembler = null;
+    private volatile MidiScheduler scheduler = null;
+    // An expireTask run is scheduled; guarded by the assembler.
+    private boolean expiryScheduled = false;
 
     public MidiInputController(final MidiCore.PortRecord portRecord) {
 
@@ -58,6 +79,29 @@ public class MidiInputController
         }
     }
 
+    /**
+     * @return When this input last received anything, on the System.nanoTime() time base, or 0.
+     */
+    public long getLastMessageNanos() {
+        return lastMessageNanos;
+    }
+
+    /**
+     * @param assemble - true to pass 14-bit controllers and RPN / NRPN changes on as
+     *                 ParameterMessages, false to pass every control change on by itself.
+     * @param scheduler - Runs the release of MSBs whose LSB never came.
+     */
+    public void setParameterAssembly(final boolean assemble,
+                                     @NonNull final MidiScheduler scheduler) {
+
+        this.scheduler = scheduler;
+        parameterAssembler = assemble ? new ParameterAssembler() : null;
+    }
+
+    public boolean isParameterAssembly() {
+        return null != parameterAssembler;
+    }
+
     public boolean addMessageListener(final MessageListener listener) {
         synchronized (receiver) {
             if (receiver.listeners.contains(listener)) {
@@ -75,10 +119,28 @@ public class MidiInputController
         }
     }
 
+    public boolean addRawListener(final RawListener listener) {
+        synchronized (receiver) {
+            if (receiver.rawListeners.contains(listener)) {
+                Log.d(TAG, "Attempted to add a duplicate RawListener. Skipping.");
+                return false;
+            }
+            receiver.rawListeners.add(listener);
+            return true;
+        }
+    }
+
+    public boolean removeRawListener(final RawListener listener) {
+        synchronized (receiver) {
+            return receiver.rawListeners.remove(listener);
+        }
+    }
+
     public static class MidiInputReceiver extends MidiReceiver {
 
         private final MidiInputController inputController;
         private final List<MessageListener> listeners = new ArrayList<>();
+        private final List<RawListener> rawListeners = new ArrayList<>();
 
         public MidiInputReceiver(final MidiInputController inputController) {
             this.inputController = inputController;
@@ -87,7 +149,80 @@ public class MidiInputController
         @Override
         public void onSend(byte[] data, int offset, int count, long timestamp) throws IOException {
 //            Log.d(TAG, String.format("offset: %d | count: %d", offset, count));
-            final MidiMessage message = new MidiMessage(data, offset, count, timestamp);
+            if (count <= 0) {
+                return;
+            }
+            inputController.lastMessageNanos = (timestamp > 0) ? timestamp : System.nanoTime();
+            synchronized (this) {
+                for (final RawListener listener : rawListeners) {
+                    listener.onBytes(inputController, data, offset, count, timestamp);
+                }
+            }
+            if (null == MidiMessage.MessageType.fromValue(data[offset])) {
+                // No status byte to make a MidiMessage of, e.g. the rest of a SysEx.
+                return;
+            }
+            final ParameterAssembler assembler = inputController.parameterAssembler;
+            final int status = data[offset] & 0xFF;
+            if (null == assembler || status >= 0xF0 || count < 2) {
+                dispatch(new MidiMessage(data, offset, count, timestamp));
+                return;
+            }
+            synchronized (assembler) {
+                final MidiMessage held = assembler.flush(data, offset);
+                if (null != held) {
+                    dispatch(held);
+                }
+                final MidiMessage message;
+                if (count == 3 && (status & 0xF0) == 0xB0) {
+                    message = assembler.onControlChange(data, offset, timestamp);
+                    if (null == message) {
+                        // Selected a parameter, or an MSB waiting for its LSB; it goes out later.
+                        scheduleExpiry(assembler);
+                        return;
+                    }
+                } else {
+                    message = new MidiMessage(data, offset, count, timestamp);
+                }
+                dispatch(message);
+            }
+        }
+
+        /**
+         * Make sure an MSB held by the assembler goes out by itself if its LSB never comes.
+         * Called with the assembler locked.
+         */
+        private void scheduleExpiry(final ParameterAssembler assembler) {
+            final long deadline = assembler.getDeadline();
+            final MidiScheduler scheduler = inputController.scheduler;
+            if (inputController.expiryScheduled || deadline == ParameterAssembler.NO_DEADLINE
+                    || null == scheduler) {
+                return;
+            }
+            inputController.expiryScheduled = true;
+            scheduler.schedule(expireTask, deadline);
+        }
+
+        private final Runnable expireTask = new Runnable() {
+            @Override
+            public void run() {
+                final ParameterAssembler assembler = inputController.parameterAssembler;
+                if (null == assembler) {
+                    inputController.expiryScheduled = false;
+                    return;
+                }
+                synchronized (assembler) {
+                    inputController.expiryScheduled = false;
+                    MidiMessage held;
+                    while (null != (held = assembler.expire(System.nanoTime()))) {
+                        dispatch(held);
+                    }
+                    scheduleExpiry(assembler);
+                }
+            }
+        };
+
+        private void dispatch(final MidiMessage message) {
             synchronized (this) {
                 for (final MessageListener listener : listeners) {
                     final boolean result = listener.onMessage(inputController, message);
@@ -37,6 +37,7 @@ public class MidiMessage {
         START(Set.EXTENDED, (byte) 0xFA),
         CONTINUE(Set.EXTENDED, (byte) 0xFB),
         STOP(Set.EXTENDED, (byte) 0xFC),
+        ACTIVE_SENSING(Set.EXTENDED, (byte) 0xFE),
         RESET(Set.EXTENDED, (byte) 0xFF);
 
         @Nullable
@@ -67,7 +68,8 @@ public class MidiMessage {
         };
 
         public static final MessageType[] extendedTypes = {
-                SYSEX, MTC, POSITION, SELECT, TUNE, SYSEX_END, CLOCK, START, CONTINUE, STOP, RESET
+                SYSEX, MTC, POSITION, SELECT, TUNE, SYSEX_END, CLOCK, START, CONTINUE, STOP,
+                ACTIVE_SENSING, RESET
         };
 
         public enum Set {
@@ -115,6 +117,7 @@ public class MidiMessage {
     public static final String PROPERTY_NAME_NUMBER = "number";
     public static final String PROPERTY_NAME_MTC_TYPE = "mtc_type";
     public static final String PROPERTY_NAME_SONG = "song";
+    public static final String PROPERTY_NAME_PARAMETER = "parameter";
 
     public static MidiMessage fromSysexFile(final File sysexFile) throws IOException {
         final byte[] fileBytes = Files.readAllBytes(sysexFile.toPath());
@@ -133,12 +136,12 @@ public class MidiMessage {
         return message;
     }
 
-    private final byte[] bytes;
+    protected final byte[] bytes;
     private final int offset;
     private final int count;
     private final long timestamp;
 
-    private final Map<String, PropertyHandler> properties = new HashMap<>();
+    protected final Map<String, PropertyHandler> properties = new HashMap<>();
 
     private int channel;
     private MessageType type;
@@ -176,12 +179,13 @@ public class MidiMessage {
     }
 
     public MidiMessage(MidiMessage other) {
-        this.bytes = other.bytes;
+        this.bytes = Arrays.copyOf(other.bytes, other.bytes.length);
         this.offset = other.offset;
         this.count = other.count;
         this.timestamp = other.timestamp;
         this.channel = other.channel;
         this.type = other.type;
+        setupPropertyHandlers();
     }
 
     protected PropertyHandler createBasicPropertyHandler(final int byteIndex) {
@@ -282,8 +286,7 @@ public class MidiMessage {
 
                     @Override
                     public void set(int value) {
-                        // TODO: Verify this!
-                        bytes[1] = (byte) ((value << 4) & 0x07);
+                        bytes[1] = (byte) (((value & 0x07) << 4) | (bytes[1] & 0x0F));
                     }
                 });
                 properties.put(PROPERTY_NAME_VALUE, new PropertyHandler() {
@@ -294,8 +297,7 @@ public class MidiMessage {
 
                     @Override
                     public void set(int value) {
-                        final PropertyHandler mtcType = properties.get(PROPERTY_NAME_MTC_TYPE);
-                        bytes[1] = (byte) ((mtcType.get() << 4) + value);
+                        bytes[1] = (byte) ((bytes[1] & 0x70) | (value & 0x0F));
                     }
                 });
                 break;
@@ -305,10 +307,50 @@ public class MidiMessage {
         }
     }
 
+    /**
+     * @return A copy of this message, of the same class.
+     */
+    public MidiMessage copy() {
+        return new MidiMessage(this);
+    }
+
     public byte[] getBytes() {
         return Arrays.copyOf(this.bytes, this.bytes.length);
     }
 
+    /**
+     * Copy the message's bytes into a buffer, without allocating.
+     * @return Number of bytes copied, or 0 if they don't fit.
+     */
+    public int readBytes(final byte[] buffer, final int offset) {
+        if (buffer.length - offset < bytes.length) {
+            return 0;
+        }
+        System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Overwrite the message with other bytes of the same length, such as a translated form of
+     * itself, without allocating a new message.
+     * @return false, leaving the message as it was, if the length differs or the bytes don't
+     *      start with a known status byte.
+     */
+    public boolean setBytes(final byte[] source, final int offset, final int count) {
+        final MessageType type = MessageType.fromValue(source[offset]);
+        if (count != bytes.length || null == type) {
+            return false;
+        }
+        System.arraycopy(source, offset, bytes, 0, count);
+        if (type != this.type) {
+            this.type = type;
+            parseBytes();
+        } else if (type.set == MessageType.Set.BASIC) {
+            channel = bytes[0] & 0xF;
+        }
+        return true;
+    }
+
     public int getChannel() {
         return (channel == -1) ? channel : channel + 1;
     }
@@ -320,7 +362,7 @@ public class MidiMessage {
     public void setChannel(@IntRange(from=1,to=16) final int channel) {
         if ((type.set == MessageType.Set.BASIC) && !(channel == (this.channel + 1))) {
             this.channel = channel - 1;
-            this.bytes[0] = (byte) ((type.value << 4) + channel);
+            this.bytes[0] = (byte) ((type.value << 4) + this.channel);
         } else if (type.set == MessageType.Set.EXTENDED) {
             this.channel = -1;
         }
@@ -2,18 +2,36 @@ package com.radicalninja.pimidithing.midi;
 
 import android.media.midi.MidiDevice;
 import android.media.midi.MidiInputPort;
+import android.media.midi.MidiReceiver;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.radicalninja.pimidithing.midi.output.OutputPipeline;
+import com.radicalninja.pimidithing.midi.output.OutputStage;
+
 import java.io.IOException;
 
 public class MidiOutputController extends MidiDeviceController<MidiOutputController, MidiInputPort> {
 
     private MidiInputPort sourcePort;
 
+    // The end of the output pipeline.
+    private final MidiReceiver portReceiver = new MidiReceiver() {
+        @Override
+        public void onSend(byte[] msg, int offset, int count, long timestamp) throws IOException {
+            final MidiInputPort port = sourcePort;
+            if (isOpen() && null != port) {
+                port.send(msg, offset, count, timestamp);
+            }
+        }
+    };
+
+    private final OutputPipeline pipeline;
+
     public MidiOutputController(final MidiCore.PortRecord portRecord) {
 
         super(portRecord);
+        pipeline = new OutputPipeline(portRecord.getNickname(), portReceiver);
     }
 
     @Override
@@ -30,18 +48,41 @@ public class MidiOutputController extends MidiDeviceController<MidiOutputControl
     @Override
     protected void setSourcePort(@NonNull MidiInputPort sourcePort) {
         this.sourcePort = sourcePort;
+        // The device knows nothing of what was sent before.
+        pipeline.reset();
     }
 
     @Override
     public void closeSourcePort() throws IOException {
+        pipeline.stop();
         sourcePort.flush();
         sourcePort.close();
     }
 
+    /**
+     * Add a processing stage between this output's senders and its port.
+     */
+    public void addStage(@NonNull final OutputStage stage) {
+        pipeline.addStage(stage);
+    }
+
+    public OutputPipeline getPipeline() {
+        return pipeline;
+    }
+
     public void send(final MidiMessage message) throws IOException {
+        send(message.getBytes(), message.getOffset(), message.getCount(), message.getTimestamp());
+    }
+
+    /**
+     * Send raw MIDI bytes without wrapping them in a MidiMessage. Used by time-critical senders,
+     * such as the clock, that reuse preallocated buffers.
+     */
+    public void send(final byte[] bytes, final int offset, final int count, final long timestamp)
+            throws IOException {
+
         if (isOpen()) { // TODO: replace with (null != sourcePort) ?? Can be nullified in onClose()
-            sourcePort.send(
-                    message.getBytes(), message.getOffset(), message.getCount(), message.getTimestamp());
+            pipeline.send(bytes, offset, count, timestamp);
         }
     }
 
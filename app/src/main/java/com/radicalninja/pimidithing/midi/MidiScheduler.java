@@ -0,0 +1,247 @@
+package com.radicalninja.pimidithing.midi;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.util.DeadlineTimer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends MIDI data to outputs at given System.nanoTime() timestamps.
+ *
+ * A single thread drains a time-ordered queue, waiting for each event with a DeadlineTimer.
+ * Events with the same timestamp leave in the order they were scheduled. Event objects are
+ * pooled, so steady traffic such as clock does not allocate.
+ *
+ * Scheduled byte arrays are sent as-is when due; callers must not modify them afterwards.
+ * Tasks may be scheduled too, for periodic work that should share this thread; they run on it,
+ * so they must be short.
+ */
+public class MidiScheduler {
+
+    private static final String TAG = MidiScheduler.class.getCanonicalName();
+    private static final String THREAD_NAME = "MidiScheduler";
+    private static final int POOL_LIMIT = 256;
+
+    private static class Event {
+        Runnable task;
+        MidiOutputController output;
+        byte[] bytes;
+        int offset;
+        int count;
+        long timestamp;
+        long sequence;
+    }
+
+    private static final Comparator<Event> EVENT_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            final int byTime = Long.compare(a.timestamp, b.timestamp);
+            return (byTime != 0) ? byTime : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private final PriorityQueue<Event> queue = new PriorityQueue<>(64, EVENT_ORDER);
+    private final ArrayDeque<Event> pool = new ArrayDeque<>();
+    private final DeadlineTimer timer = new DeadlineTimer();
+
+    private long sequence = 0;
+    private Thread thread;
+    private volatile boolean running = false;
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(schedulerRunnable, THREAD_NAME);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        timer.wake();
+        LockSupport.unpark(thread);
+        thread = null;
+        queue.clear();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Queue bytes to be sent to an output at the given time. Events already due are sent as soon
+     * as the scheduler thread gets to them.
+     * @param output - Destination output.
+     * @param bytes - Data to send. Must not be modified until it has been sent.
+     * @param offset - Offset of the message within bytes.
+     * @param count - Length of the message.
+     * @param timestamp - Send time on the System.nanoTime() time base.
+     */
+    public void schedule(@NonNull final MidiOutputController output,
+                         @NonNull final byte[] bytes,
+                         final int offset,
+                         final int count,
+                         final long timestamp) {
+
+        final boolean earliest;
+        final Thread owner;
+        synchronized (this) {
+            if (!running) {
+                start();
+            }
+            final Event event = (pool.isEmpty()) ? new Event() : pool.poll();
+            event.output = output;
+            event.bytes = bytes;
+            event.offset = offset;
+            event.count = count;
+            event.timestamp = timestamp;
+            event.sequence = sequence++;
+            queue.add(event);
+            earliest = queue.peek() == event;
+            owner = thread;
+        }
+        if (earliest) {
+            // The thread may be waiting on a later event; make it look again.
+            timer.wake();
+            LockSupport.unpark(owner);
+        }
+    }
+
+    /**
+     * Run a task on the scheduler thread at the given time.
+     * @param timestamp - Run time on the System.nanoTime() time base.
+     */
+    public void schedule(@NonNull final Runnable task, final long timestamp) {
+        final boolean earliest;
+        final Thread owner;
+        synchronized (this) {
+            if (!running) {
+                start();
+            }
+            final Event event = (pool.isEmpty()) ? new Event() : pool.poll();
+            event.task = task;
+            event.timestamp = timestamp;
+            event.sequence = sequence++;
+            queue.add(event);
+            earliest = queue.peek() == event;
+            owner = thread;
+        }
+        if (earliest) {
+            timer.wake();
+            LockSupport.unpark(owner);
+        }
+    }
+
+    /**
+     * Drop every pending run of the given task.
+     */
+    public synchronized void cancel(@NonNull final Runnable task) {
+        final Event[] events = queue.toArray(new Event[queue.size()]);
+        for (final Event event : events) {
+            if (event.task == task) {
+                queue.remove(event);
+                recycle(event);
+            }
+        }
+    }
+
+    /**
+     * Drop every pending event for the given output, e.g. when it is being closed.
+     */
+    public synchronized void cancel(@NonNull final MidiOutputController output) {
+        final Event[] events = queue.toArray(new Event[queue.size()]);
+        for (final Event event : events) {
+            if (event.output == output) {
+                queue.remove(event);
+                recycle(event);
+            }
+        }
+    }
+
+    private void recycle(final Event event) {
+        event.task = null;
+        event.output = null;
+        event.bytes = null;
+        if (pool.size() < POOL_LIMIT) {
+            pool.add(event);
+        }
+    }
+
+    private final Runnable schedulerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (running) {
+                final boolean pending;
+                long deadline = 0;
+                synchronized (MidiScheduler.this) {
+                    final Event next = queue.peek();
+                    pending = null != next;
+                    if (pending) {
+                        deadline = next.timestamp;
+                    }
+                }
+                if (!pending) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (!timer.awaitDeadline(deadline)) {
+                    continue;
+                }
+                sendDue();
+            }
+        }
+    };
+
+    private void sendDue() {
+        final long now = System.nanoTime();
+        while (true) {
+            final Runnable task;
+            final MidiOutputController output;
+            final byte[] bytes;
+            final int offset;
+            final int count;
+            final long timestamp;
+            synchronized (this) {
+                final Event next = queue.peek();
+                if (null == next || next.timestamp - now > 0) {
+                    return;
+                }
+                queue.poll();
+                task = next.task;
+                output = next.output;
+                bytes = next.bytes;
+                offset = next.offset;
+                count = next.count;
+                timestamp = next.timestamp;
+                recycle(next);
+            }
+            if (null != task) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A failing task must not take down the thread every other task relies on.
+                    Log.e(TAG, "Error running a scheduled task.", e);
+                }
+                continue;
+            }
+            try {
+                output.send(bytes, offset, count, timestamp);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending to " + output.getPortRecord().getNickname(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package com.radicalninja.pimidithing.midi;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Which channels make up the MPE (MIDI Polyphonic Expression) zones of a stream.
+ *
+ * The lower zone is managed from channel 1 and plays its notes on the channels just above it;
+ * the upper zone is managed from channel 16 and plays on the channels just below it. Each note
+ * gets a member channel of its own, so pitch bend, channel pressure and CC74 on a member channel
+ * belong to the note playing there.
+ *
+ * The layout can be set up front, and follows the MPE Configuration Message (RPN 6 sent on a
+ * manager channel) as control changes are passed to onControlChange(). The pitch bend range of
+ * each channel (RPN 0) is followed the same way: it starts at 2 semitones on manager channels and
+ * 48 on the others, and a range sent on a member channel applies to every member of its zone.
+ * Channel roles and ranges are kept in tables that are swapped whole when they change, so looking
+ * one up takes no locking.
+ */
+public class MpeLayout {
+
+    private static final String TAG = MpeLayout.class.getCanonicalName();
+
+    public static final int LOWER_MANAGER = 0;
+    public static final int UPPER_MANAGER = 15;
+    public static final int MAX_MEMBERS = 15;
+    public static final int MANAGER_BEND_CENTS = 200;
+    public static final int MEMBER_BEND_CENTS = 4800;
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final byte ROLE_NONE = 0;
+    private static final byte ROLE_MANAGER = 1;
+    private static final byte ROLE_MEMBER = 2;
+
+    private static final int CC_DATA_ENTRY = 6;
+    private static final int CC_DATA_ENTRY_LSB = 38;
+    private static final int CC_NRPN_LSB = 98;
+    private static final int CC_NRPN_MSB = 99;
+    private static final int CC_RPN_LSB = 100;
+    private static final int CC_RPN_MSB = 101;
+    private static final int RPN_NULL = 127;
+    private static final int RPN_MCM_MSB = 0;
+    private static final int RPN_MCM_LSB = 6;
+    private static final int RPN_BEND_RANGE = 0;
+    private static final int CENTS_PER_SEMITONE = 100;
+
+    // RPN selected on each channel; guarded by this.
+    private final int[] rpnMsb = new int[CHANNEL_COUNT];
+    private final int[] rpnLsb = new int[CHANNEL_COUNT];
+
+    private volatile byte[] roles = new byte[CHANNEL_COUNT];
+    // Pitch bend range of each channel, in cents.
+    private volatile int[] bendRanges = new int[CHANNEL_COUNT];
+    private volatile int lowerMembers = 0;
+    private volatile int upperMembers = 0;
+
+    public MpeLayout() {
+        this(0, 0);
+    }
+
+    /**
+     * @param lowerMembers - Member channels of the lower zone, or 0 for none.
+     * @param upperMembers - Member channels of the upper zone, or 0 for none.
+     */
+    public MpeLayout(final int lowerMembers, final int upperMembers) {
+        Arrays.fill(rpnMsb, RPN_NULL);
+        Arrays.fill(rpnLsb, RPN_NULL);
+        Arrays.fill(bendRanges, MEMBER_BEND_CENTS);
+        setZone(UPPER_MANAGER, upperMembers);
+        setZone(LOWER_MANAGER, lowerMembers);
+    }
+
+    /**
+     * @return true if either zone has member channels.
+     */
+    public boolean isEnabled() {
+        return lowerMembers > 0 || upperMembers > 0;
+    }
+
+    public int getLowerMembers() {
+        return lowerMembers;
+    }
+
+    public int getUpperMembers() {
+        return upperMembers;
+    }
+
+    /**
+     * @param channel - 0 - 15.
+     */
+    public boolean isMember(final int channel) {
+        return roles[channel] == ROLE_MEMBER;
+    }
+
+    /**
+     * @param channel - 0 - 15.
+     */
+    public boolean isManager(final int channel) {
+        return roles[channel] == ROLE_MANAGER;
+    }
+
+    /**
+     * @param channel - 0 - 15.
+     * @return Pitch bend range of the channel, in cents.
+     */
+    public int getBendRange(final int channel) {
+        return bendRanges[channel];
+    }
+
+    /**
+     * @param channel - 0 - 15.
+     * @return true if the controller is a data entry for the channel's pitch bend range.
+     */
+    public synchronized boolean isBendRangeEntry(final int channel, final int controller) {
+        return (controller == CC_DATA_ENTRY || controller == CC_DATA_ENTRY_LSB)
+                && rpnMsb[channel] == RPN_BEND_RANGE && rpnLsb[channel] == RPN_BEND_RANGE;
+    }
+
+    /**
+     * Set how many member channels a zone has. As with an MPE Configuration Message, a zone that
+     * now overlaps the other one shrinks the other one, and the bend ranges of the zone go back
+     * to their defaults.
+     * @param manager - LOWER_MANAGER or UPPER_MANAGER.
+     * @param members - Member channels, or 0 to turn the zone off.
+     */
+    public synchronized void setZone(final int manager, final int members) {
+        final int count = Math.max(0, Math.min(MAX_MEMBERS, members));
+        int lower = lowerMembers;
+        int upper = upperMembers;
+        if (manager == LOWER_MANAGER) {
+            lower = count;
+            if (lower + upper > MAX_MEMBERS - 1) {
+                upper = Math.max(0, MAX_MEMBERS - 1 - lower);
+            }
+        } else if (manager == UPPER_MANAGER) {
+            upper = count;
+            if (lower + upper > MAX_MEMBERS - 1) {
+                lower = Math.max(0, MAX_MEMBERS - 1 - upper);
+            }
+        } else {
+            throw new IllegalArgumentException("Not a manager channel: " + manager);
+        }
+        final byte[] roles = new byte[CHANNEL_COUNT];
+        if (lower > 0) {
+            roles[LOWER_MANAGER] = ROLE_MANAGER;
+            for (int channel = LOWER_MANAGER + 1; channel <= LOWER_MANAGER + lower; channel++) {
+                roles[channel] = ROLE_MEMBER;
+            }
+        }
+        if (upper > 0) {
+            roles[UPPER_MANAGER] = ROLE_MANAGER;
+            for (int channel = UPPER_MANAGER - upper; channel < UPPER_MANAGER; channel++) {
+                roles[channel] = ROLE_MEMBER;
+            }
+        }
+        final int first = (manager == LOWER_MANAGER) ? LOWER_MANAGER : UPPER_MANAGER - upper;
+        final int last = (manager == LOWER_MANAGER) ? LOWER_MANAGER + lower : UPPER_MANAGER;
+        final int[] bendRanges = this.bendRanges.clone();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if ((channel >= first && channel <= last) || roles[channel] != this.roles[channel]) {
+                bendRanges[channel] = (roles[channel] == ROLE_MANAGER)
+                        ? MANAGER_BEND_CENTS
+                        : MEMBER_BEND_CENTS;
+            }
+        }
+        lowerMembers = lower;
+        upperMembers = upper;
+        this.roles = roles;
+        this.bendRanges = bendRanges;
+    }
+
+    private void setBendRange(final int channel, final int cents) {
+        final int[] bendRanges = this.bendRanges.clone();
+        if (roles[channel] != ROLE_MEMBER) {
+            bendRanges[channel] = cents;
+        } else {
+            final boolean lower = channel <= LOWER_MANAGER + lowerMembers;
+            for (int member = 0; member < CHANNEL_COUNT; member++) {
+                if (roles[member] == ROLE_MEMBER
+                        && (member <= LOWER_MANAGER + lowerMembers) == lower) {
+                    bendRanges[member] = cents;
+                }
+            }
+        }
+        this.bendRanges = bendRanges;
+    }
+
+    /**
+     * Follow the RPN state of a channel, picking up MPE Configuration Messages and bend ranges.
+     * @param channel - 0 - 15.
+     * @return true if the control change was the data entry of an MPE Configuration Message.
+     */
+    public synchronized boolean onControlChange(final int channel, final int controller,
+                                                final int value) {
+
+        switch (controller) {
+            case CC_RPN_MSB:
+                rpnMsb[channel] = value;
+                return false;
+            case CC_RPN_LSB:
+                rpnLsb[channel] = value;
+                return false;
+            case CC_NRPN_MSB:
+            case CC_NRPN_LSB:
+                rpnMsb[channel] = RPN_NULL;
+                rpnLsb[channel] = RPN_NULL;
+                return false;
+            case CC_DATA_ENTRY_LSB:
+                if (isBendRangeEntry(channel, controller)) {
+                    final int semitones = bendRanges[channel] / CENTS_PER_SEMITONE;
+                    setBendRange(channel, semitones * CENTS_PER_SEMITONE
+                            + Math.min(value, CENTS_PER_SEMITONE - 1));
+                }
+                return false;
+            case CC_DATA_ENTRY:
+                if (isBendRangeEntry(channel, controller)) {
+                    // The cents, if any, follow on CC 38.
+                    setBendRange(channel, value * CENTS_PER_SEMITONE);
+                    return false;
+                }
+                if (rpnMsb[channel] != RPN_MCM_MSB || rpnLsb[channel] != RPN_MCM_LSB
+                        || (channel != LOWER_MANAGER && channel != UPPER_MANAGER)) {
+                    return false;
+                }
+                setZone(channel, value);
+                Log.d(TAG, String.format(Locale.US, "MPE zones: lower %d, upper %d member channels",
+                        lowerMembers, upperMembers));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+}
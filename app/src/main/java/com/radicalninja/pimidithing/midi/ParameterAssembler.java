@@ -0,0 +1,249 @@
+package com.radicalninja.pimidithing.midi;
+
+/**
+ * Puts the control changes of high resolution parameters arriving on an input back together, so
+ * filters and outputs deal with each parameter change as a whole instead of as unrelated 7-bit
+ * control changes.
+ *
+ * Each channel has its own state:
+ * <ul>
+ *     <li>A controller from 0 - 31 is taken as the MSB of a 14-bit controller once its LSB
+ *     (controller + 32) has been seen on the channel. Until then the controller passes through
+ *     as a plain control change.</li>
+ *     <li>RPN and NRPN numbers (101 / 100 and 99 / 98) only select the parameter and are not
+ *     passed on by themselves, except for the null parameter (127 / 127), which is passed on as
+ *     both of its control changes so receivers let go of the last parameter too. Data entry
+ *     (6 / 38) and increment / decrement (96 / 97) for the selected parameter give a
+ *     ParameterMessage carrying the parameter number with it.</li>
+ * </ul>
+ * Each change gives one ParameterMessage. An MSB (of a known pair, or a data entry on a channel
+ * that has sent a data entry LSB) is held until its LSB completes it; if anything else arrives on
+ * the channel first, or the LSB hasn't come within HOLD_NANOS, flush() / expire() hand the MSB on
+ * by itself, its LSB reset to 0 as the MIDI spec has it. An LSB on its own is a fine change and
+ * goes out with the last MSB.
+ *
+ * The state lives in fixed primitive tables. Only single channel messages are looked at. It is
+ * not thread safe; callers that expire held MSBs from another thread lock around it.
+ */
+public class ParameterAssembler {
+
+    // How long an MSB waits for its LSB. Senders put the pair back to back.
+    public static final long HOLD_NANOS = 10000000L;
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int PAIR_COUNT = ParameterMessage.CONTROLLER_COUNT;
+    private static final int NUMBER_NULL = 127;
+
+    private static final int SELECTED_NONE = 0;
+    private static final int SELECTED_RPN = 1;
+    private static final int SELECTED_NRPN = 2;
+
+    // Bit n set once controller n's LSB has been seen on the channel.
+    private final int[] pairs = new int[CHANNEL_COUNT];
+    // Bit n set once a data entry LSB has been seen on channel n.
+    private int dataPairs = 0;
+    private final int[] msbValues = new int[CHANNEL_COUNT * PAIR_COUNT];
+    private final int[] selected = new int[CHANNEL_COUNT];
+    private final int[] numberMsb = new int[CHANNEL_COUNT];
+    private final int[] numberLsb = new int[CHANNEL_COUNT];
+    private final int[] dataMsb = new int[CHANNEL_COUNT];
+    // MSB waiting for its LSB on each channel, and the controller number of that LSB.
+    private final ParameterMessage[] held = new ParameterMessage[CHANNEL_COUNT];
+    private final int[] heldLsb = new int[CHANNEL_COUNT];
+    // When each held MSB was held, on the System.nanoTime() time base.
+    private final long[] heldAt = new long[CHANNEL_COUNT];
+
+    public ParameterAssembler() {
+        reset();
+    }
+
+    /**
+     * Call with every channel message before it is passed on, or handed to onControlChange().
+     * @param data - Bytes holding a single channel message at offset.
+     * @return An MSB held for the message's channel that the message doesn't complete, to be
+     *      passed on first; or null.
+     */
+    public MidiMessage flush(final byte[] data, final int offset) {
+        final int channel = data[offset] & 0x0F;
+        final ParameterMessage message = held[channel];
+        if (null == message || completes(data, offset, channel)) {
+            return null;
+        }
+        held[channel] = null;
+        return message;
+    }
+
+    /**
+     * @return When expire() should next be called, on the System.nanoTime() time base, or
+     *      NO_DEADLINE if no MSB is held.
+     */
+    public long getDeadline() {
+        long deadline = NO_DEADLINE;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (null != held[channel]) {
+                deadline = Math.min(deadline, heldAt[channel] + HOLD_NANOS);
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * @param now - System.nanoTime().
+     * @return An MSB that waited HOLD_NANOS for its LSB, to be passed on by itself; or null.
+     *      Call again until null to get every one.
+     */
+    public MidiMessage expire(final long now) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            final ParameterMessage message = held[channel];
+            if (null != message && now - heldAt[channel] >= HOLD_NANOS) {
+                held[channel] = null;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param data - Bytes holding a single control change at offset.
+     * @return The message to pass on, or null if the control change only selected a parameter
+     *      or is an MSB held for its LSB.
+     */
+    public MidiMessage onControlChange(final byte[] data, final int offset, final long timestamp) {
+        final int channel = data[offset] & 0x0F;
+        final int controller = data[offset + 1] & 0x7F;
+        final int value = data[offset + 2] & 0x7F;
+        switch (controller) {
+            case ParameterMessage.CC_RPN_MSB:
+            case ParameterMessage.CC_NRPN_MSB:
+                select(channel, controller == ParameterMessage.CC_RPN_MSB);
+                numberMsb[channel] = value;
+                return checkNull(channel, timestamp);
+            case ParameterMessage.CC_RPN_LSB:
+            case ParameterMessage.CC_NRPN_LSB:
+                select(channel, controller == ParameterMessage.CC_RPN_LSB);
+                numberLsb[channel] = value;
+                return checkNull(channel, timestamp);
+            case ParameterMessage.CC_DATA_ENTRY:
+                if (selected[channel] == SELECTED_NONE) {
+                    break;
+                }
+                dataMsb[channel] = value;
+                final ParameterMessage entry = ParameterMessage.data(
+                        kindOf(channel), channel, numberOf(channel), value << 7, timestamp);
+                if ((dataPairs & (1 << channel)) == 0) {
+                    // Most senders never send the LSB; don't wait for one.
+                    return entry;
+                }
+                hold(channel, entry, ParameterMessage.CC_DATA_ENTRY_LSB);
+                return null;
+            case ParameterMessage.CC_DATA_ENTRY_LSB:
+                if (selected[channel] == SELECTED_NONE) {
+                    break;
+                }
+                dataPairs |= 1 << channel;
+                if (completes(data, offset, channel)) {
+                    return complete(channel, value);
+                }
+                return ParameterMessage.data(kindOf(channel), channel, numberOf(channel),
+                        (dataMsb[channel] << 7) | value, timestamp);
+            case ParameterMessage.CC_INCREMENT:
+            case ParameterMessage.CC_DECREMENT:
+                if (selected[channel] == SELECTED_NONE) {
+                    break;
+                }
+                return ParameterMessage.step(kindOf(channel), channel, numberOf(channel),
+                        controller == ParameterMessage.CC_INCREMENT, value, timestamp);
+            default:
+                if (controller < PAIR_COUNT) {
+                    msbValues[channel * PAIR_COUNT + controller] = value;
+                    if ((pairs[channel] & (1 << controller)) != 0) {
+                        hold(channel, ParameterMessage.controller(
+                                channel, controller, value << 7, timestamp),
+                                controller + ParameterMessage.CONTROLLER_LSB_OFFSET);
+                        return null;
+                    }
+                } else if (controller < PAIR_COUNT * 2) {
+                    final int msb = controller - ParameterMessage.CONTROLLER_LSB_OFFSET;
+                    pairs[channel] |= 1 << msb;
+                    if (completes(data, offset, channel)) {
+                        return complete(channel, value);
+                    }
+                    return ParameterMessage.controller(channel, msb,
+                            (msbValues[channel * PAIR_COUNT + msb] << 7) | value, timestamp);
+                }
+        }
+        return new MidiMessage(data, offset, 3, timestamp);
+    }
+
+    /**
+     * Forget everything learned, e.g. after the input reconnects.
+     */
+    public void reset() {
+        dataPairs = 0;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            pairs[channel] = 0;
+            selected[channel] = SELECTED_NONE;
+            numberMsb[channel] = NUMBER_NULL;
+            numberLsb[channel] = NUMBER_NULL;
+            dataMsb[channel] = 0;
+            held[channel] = null;
+        }
+    }
+
+    private void hold(final int channel, final ParameterMessage message, final int lsb) {
+        held[channel] = message;
+        heldLsb[channel] = lsb;
+        heldAt[channel] = System.nanoTime();
+    }
+
+    /**
+     * @return true if the control change at offset is the LSB the channel's held MSB waits for.
+     */
+    private boolean completes(final byte[] data, final int offset, final int channel) {
+        return null != held[channel]
+                && (data[offset] & 0xF0) == 0xB0
+                && (data[offset + 1] & 0x7F) == heldLsb[channel];
+    }
+
+    private ParameterMessage complete(final int channel, final int lsb) {
+        final ParameterMessage message = held[channel];
+        held[channel] = null;
+        message.setValue((message.getValue() & ~0x7F) | lsb);
+        return message;
+    }
+
+    private void select(final int channel, final boolean rpn) {
+        final int kind = rpn ? SELECTED_RPN : SELECTED_NRPN;
+        if (selected[channel] != kind) {
+            // Switching between RPN and NRPN; the other half of the number is yet to come.
+            selected[channel] = kind;
+            numberMsb[channel] = 0;
+            numberLsb[channel] = 0;
+        }
+    }
+
+    /**
+     * The null parameter (127 / 127) deselects, so data entry passes through again.
+     * @return Both control changes of the null parameter once it is complete, else null.
+     */
+    private MidiMessage checkNull(final int channel, final long timestamp) {
+        if (numberMsb[channel] != NUMBER_NULL || numberLsb[channel] != NUMBER_NULL) {
+            return null;
+        }
+        final ParameterMessage.Kind kind = kindOf(channel);
+        selected[channel] = SELECTED_NONE;
+        return ParameterMessage.nullParameter(kind, channel, timestamp);
+    }
+
+    private ParameterMessage.Kind kindOf(final int channel) {
+        return (selected[channel] == SELECTED_RPN)
+                ? ParameterMessage.Kind.RPN
+                : ParameterMessage.Kind.NRPN;
+    }
+
+    private int numberOf(final int channel) {
+        return (numberMsb[channel] << 7) | numberLsb[channel];
+    }
+
+}
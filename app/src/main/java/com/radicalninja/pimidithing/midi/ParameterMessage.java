@@ -0,0 +1,277 @@
+package com.radicalninja.pimidithing.midi;
+
+import android.support.annotation.IntRange;
+import android.support.annotation.NonNull;
+
+/**
+ * A high resolution parameter change, carried as the whole run of control changes that makes it
+ * up: a 14-bit controller (MSB and LSB pair), or an RPN / NRPN value or increment / decrement
+ * (parameter number followed by data entry), or the RPN / NRPN null parameter that deselects.
+ *
+ * Filters see one message with a 14-bit parameter number and value, and change it as a unit; the
+ * control changes are kept in order in the message bytes, so it is sent on in one piece. Its
+ * type is CC, and the "parameter" and "value" properties carry the full resolution numbers.
+ *
+ * Everything is read from and written to the bytes in place:
+ * <pre>
+ *   CONTROLLER     Bn msb# vMSB  Bn lsb# vLSB
+ *   RPN / NRPN     Bn 65|63 pMSB  Bn 64|62 pLSB  Bn 06 vMSB  Bn 26 vLSB
+ *   step           Bn 65|63 pMSB  Bn 64|62 pLSB  Bn 60|61 steps
+ *   null           Bn 65|63 7F    Bn 64|62 7F
+ * </pre>
+ */
+public class ParameterMessage extends MidiMessage {
+
+    public enum Kind {
+        CONTROLLER, RPN, NRPN
+    }
+
+    public static final int VALUE_MAX = 0x3FFF;
+    public static final int CONTROLLER_LSB_OFFSET = 32;
+    public static final int CONTROLLER_COUNT = 32;
+
+    static final int CC_DATA_ENTRY = 6;
+    static final int CC_DATA_ENTRY_LSB = 38;
+    static final int CC_INCREMENT = 96;
+    static final int CC_DECREMENT = 97;
+    static final int CC_NRPN_LSB = 98;
+    static final int CC_NRPN_MSB = 99;
+    static final int CC_RPN_LSB = 100;
+    static final int CC_RPN_MSB = 101;
+
+    private static final int LENGTH_CONTROLLER = 6;
+    private static final int LENGTH_STEP = 9;
+    private static final int LENGTH_DATA = 12;
+    private static final int NUMBER_NULL = VALUE_MAX;
+
+    /**
+     * @param channel - 0 - 15.
+     * @param controller - Controller number of the MSB, 0 - 31.
+     * @param value - 14-bit value.
+     */
+    public static ParameterMessage controller(final int channel, final int controller,
+                                              final int value, final long timestamp) {
+
+        final int status = 0xB0 | channel;
+        final byte[] bytes = {
+                (byte) status, (byte) controller, (byte) ((value >> 7) & 0x7F),
+                (byte) status, (byte) (controller + CONTROLLER_LSB_OFFSET), (byte) (value & 0x7F)
+        };
+        return new ParameterMessage(bytes, timestamp);
+    }
+
+    /**
+     * @param kind - RPN or NRPN.
+     * @param channel - 0 - 15.
+     * @param parameter - 14-bit parameter number.
+     * @param value - 14-bit value.
+     */
+    public static ParameterMessage data(@NonNull final Kind kind, final int channel,
+                                        final int parameter, final int value,
+                                        final long timestamp) {
+
+        final byte[] bytes = new byte[LENGTH_DATA];
+        writeSelect(bytes, kind, channel, parameter);
+        bytes[6] = (byte) (0xB0 | channel);
+        bytes[7] = CC_DATA_ENTRY;
+        bytes[8] = (byte) ((value >> 7) & 0x7F);
+        bytes[9] = (byte) (0xB0 | channel);
+        bytes[10] = CC_DATA_ENTRY_LSB;
+        bytes[11] = (byte) (value & 0x7F);
+        return new ParameterMessage(bytes, timestamp);
+    }
+
+    /**
+     * @param kind - RPN or NRPN.
+     * @param channel - 0 - 15.
+     * @param parameter - 14-bit parameter number.
+     * @param increment - true for data increment, false for data decrement.
+     * @param steps - Data byte of the increment / decrement, 0 - 127.
+     */
+    public static ParameterMessage step(@NonNull final Kind kind, final int channel,
+                                        final int parameter, final boolean increment,
+                                        final int steps, final long timestamp) {
+
+        final byte[] bytes = new byte[LENGTH_STEP];
+        writeSelect(bytes, kind, channel, parameter);
+        bytes[6] = (byte) (0xB0 | channel);
+        bytes[7] = (byte) (increment ? CC_INCREMENT : CC_DECREMENT);
+        bytes[8] = (byte) (steps & 0x7F);
+        return new ParameterMessage(bytes, timestamp);
+    }
+
+    /**
+     * @param kind - RPN or NRPN.
+     * @param channel - 0 - 15.
+     */
+    public static ParameterMessage nullParameter(@NonNull final Kind kind, final int channel,
+                                                 final long timestamp) {
+
+        final byte[] bytes = new byte[LENGTH_CONTROLLER];
+        writeSelect(bytes, kind, channel, NUMBER_NULL);
+        return new ParameterMessage(bytes, timestamp);
+    }
+
+    private static void writeSelect(final byte[] bytes, final Kind kind, final int channel,
+                                    final int parameter) {
+
+        if (kind == Kind.CONTROLLER) {
+            throw new IllegalArgumentException("Not an RPN or NRPN: " + kind);
+        }
+        final boolean rpn = kind == Kind.RPN;
+        bytes[0] = (byte) (0xB0 | channel);
+        bytes[1] = (byte) (rpn ? CC_RPN_MSB : CC_NRPN_MSB);
+        bytes[2] = (byte) ((parameter >> 7) & 0x7F);
+        bytes[3] = (byte) (0xB0 | channel);
+        bytes[4] = (byte) (rpn ? CC_RPN_LSB : CC_NRPN_LSB);
+        bytes[5] = (byte) (parameter & 0x7F);
+    }
+
+    private ParameterMessage(final byte[] bytes, final long timestamp) {
+        super(bytes, 0, bytes.length, timestamp);
+    }
+
+    public ParameterMessage(final ParameterMessage other) {
+        super(other);
+    }
+
+    @Override
+    public MidiMessage copy() {
+        return new ParameterMessage(this);
+    }
+
+    public Kind getKind() {
+        switch (bytes[1]) {
+            case CC_RPN_MSB:
+                return Kind.RPN;
+            case CC_NRPN_MSB:
+                return Kind.NRPN;
+            default:
+                return Kind.CONTROLLER;
+        }
+    }
+
+    /**
+     * @return true for the null parameter, which has neither a parameter number nor a value to
+     *      change.
+     */
+    public boolean isNull() {
+        return bytes.length == LENGTH_CONTROLLER && getKind() != Kind.CONTROLLER;
+    }
+
+    /**
+     * @return true for a data increment / decrement, whose value is its step count.
+     */
+    public boolean isStep() {
+        return bytes.length == LENGTH_STEP;
+    }
+
+    public boolean isIncrement() {
+        return isStep() && bytes[7] == CC_INCREMENT;
+    }
+
+    /**
+     * @return The MSB controller number for CONTROLLER, else the 14-bit parameter number.
+     */
+    public int getParameter() {
+        return isController()
+                ? bytes[1]
+                : (bytes[2] << 7) | bytes[5];
+    }
+
+    public void setParameter(final int parameter) {
+        if (isNull()) {
+            return;
+        }
+        if (isController()) {
+            final int controller = Math.max(0, Math.min(CONTROLLER_COUNT - 1, parameter));
+            bytes[1] = (byte) controller;
+            bytes[4] = (byte) (controller + CONTROLLER_LSB_OFFSET);
+        } else {
+            final int number = Math.max(0, Math.min(VALUE_MAX, parameter));
+            bytes[2] = (byte) (number >> 7);
+            bytes[5] = (byte) (number & 0x7F);
+        }
+    }
+
+    /**
+     * @return The 14-bit value, or the step count of an increment / decrement. 0 for the null
+     *      parameter.
+     */
+    public int getValue() {
+        if (isNull()) {
+            return 0;
+        }
+        switch (bytes.length) {
+            case LENGTH_CONTROLLER:
+                return (bytes[2] << 7) | bytes[5];
+            case LENGTH_STEP:
+                return bytes[8];
+            default:
+                return (bytes[8] << 7) | bytes[11];
+        }
+    }
+
+    public void setValue(final int value) {
+        if (isNull()) {
+            return;
+        }
+        final int clipped = Math.max(0, Math.min(isStep() ? 0x7F : VALUE_MAX, value));
+        switch (bytes.length) {
+            case LENGTH_CONTROLLER:
+                bytes[2] = (byte) (clipped >> 7);
+                bytes[5] = (byte) (clipped & 0x7F);
+                break;
+            case LENGTH_STEP:
+                bytes[8] = (byte) clipped;
+                break;
+            default:
+                bytes[8] = (byte) (clipped >> 7);
+                bytes[11] = (byte) (clipped & 0x7F);
+        }
+    }
+
+    @Override
+    public void setChannel(@IntRange(from=1,to=16) final int channel) {
+        super.setChannel(channel);
+        for (int i = 3; i < bytes.length; i += 3) {
+            bytes[i] = bytes[0];
+        }
+    }
+
+    private boolean isController() {
+        return bytes.length == LENGTH_CONTROLLER && getKind() == Kind.CONTROLLER;
+    }
+
+    @Override
+    protected void setupPropertyHandlers() {
+        properties.clear();
+        final PropertyHandler parameter = new PropertyHandler() {
+            @Override
+            public int get() {
+                return getParameter();
+            }
+
+            @Override
+            public void set(int value) {
+                setParameter(value);
+            }
+        };
+        properties.put(PROPERTY_NAME_PARAMETER, parameter);
+        if (isController()) {
+            properties.put(PROPERTY_NAME_CONTROLLER, parameter);
+        }
+        properties.put(PROPERTY_NAME_VALUE, new PropertyHandler() {
+            @Override
+            public int get() {
+                return getValue();
+            }
+
+            @Override
+            public void set(int value) {
+                setValue(value);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,384 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import com.radicalninja.pimidithing.util.ValueException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Paces an output to the speed of the link behind it, such as a USB to DIN interface with a
+ * 31.25 kbaud port and a small buffer.
+ *
+ * The link is modelled as a buffer that drains at a fixed byte rate. Bytes are passed on while
+ * they fit in what the buffer has free; the rest wait in queues (lanes) by priority: real-time,
+ * then note-offs, then note-ons, then other channel messages, then SysEx. When the link frees up,
+ * the highest lane goes first, so under load the least urgent data waits, in a predictable way,
+ * instead of overflowing the interface and being lost somewhere we can't see.
+ *
+ * Reordering is kept safe: a note-off whose note-on is still queued waits behind it, a note-off
+ * on a channel with other channel messages queued (a sustain pedal, pitch bend) waits behind
+ * those, and a note-on for a note whose note-off is waiting there follows it. Program changes
+ * and bank selects travel with the note-ons they set up, system common messages (timecode,
+ * song position) travel with the note-offs, and a SysEx that has started is finished before
+ * anything but real-time bytes is sent. SysEx is passed on in pieces that fit the buffer. A full
+ * lane drops new messages and counts them.
+ *
+ * Lanes are fixed-size rings (MessageRings) allocated up front. Queueing delay is measured for
+ * every message that had to wait.
+ */
+public class BandwidthShaper extends OutputStage {
+
+    // 31250 baud, 10 bits per byte.
+    public static final int DIN_BYTES_PER_SECOND = 3125;
+    public static final int DEFAULT_BUFFER_BYTES = 32;
+
+    public static final int LANE_REALTIME = 0;
+    public static final int LANE_NOTE_OFF = 1;
+    public static final int LANE_NOTE_ON = 2;
+    public static final int LANE_CONTROL = 3;
+    public static final int LANE_SYSEX = 4;
+    private static final int LANE_COUNT = 5;
+    private static final int LANE_NONE = -1;
+
+    private static final int LANE_BYTES = 2048;
+    private static final int LANE_ENTRIES = 512;
+    private static final int SYSEX_LANE_BYTES = 16384;
+    private static final int SYSEX_LANE_ENTRIES = 64;
+    private static final int MIN_BUFFER_BYTES = 3;
+    private static final int NOTE_COUNT = 128;
+
+    private static final byte STATUS_SYSEX_START = (byte) 0xF0;
+    private static final byte STATUS_SYSEX_END = (byte) 0xF7;
+    private static final byte[] SYSEX_END = { STATUS_SYSEX_END };
+
+    private final double nanosPerByte;
+    private final int bufferBytes;
+    private final MessageRing[] lanes = new MessageRing[LANE_COUNT];
+    private final long[] dropped = new long[LANE_COUNT];
+    private byte[] scratch;
+    // Note-ons waiting in the note-on lane, by channel and note.
+    private final byte[] queuedNoteOns = new byte[16 * NOTE_COUNT];
+    // Messages waiting in the control lane by channel, and the note-offs among them.
+    private final int[] queuedControls = new int[16];
+    private final byte[] queuedNoteOffs = new byte[16 * NOTE_COUNT];
+
+    // When the modelled link will have sent everything passed to it.
+    private long linkIdleAt = 0;
+    // A SysEx has been passed on but not finished.
+    private boolean outputInSysex = false;
+    // The bytes coming in are inside a SysEx.
+    private boolean inputInSysex = false;
+    // Part of the incoming SysEx was queued / had to be dropped.
+    private boolean sysexQueued = false;
+    private boolean sysexDropping = false;
+    private long deadline = NO_DEADLINE;
+
+    private volatile long delayedCount = 0;
+    private volatile long totalDelayNanos = 0;
+    private volatile long maxDelayNanos = 0;
+
+    /**
+     * @param bytesPerSecond - Speed of the link.
+     * @param bufferBytes - How many bytes the link can take before it has to send them.
+     */
+    public BandwidthShaper(final int bytesPerSecond, final int bufferBytes) {
+        if (bytesPerSecond < 1) {
+            throw new ValueException.BelowMinimumValueException("bytesPerSecond", 1);
+        }
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+        this.bufferBytes = Math.max(MIN_BUFFER_BYTES, bufferBytes);
+        this.scratch = new byte[this.bufferBytes];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            lanes[i] = (i == LANE_SYSEX)
+                    ? new MessageRing(SYSEX_LANE_BYTES, SYSEX_LANE_ENTRIES)
+                    : new MessageRing(LANE_BYTES, LANE_ENTRIES);
+        }
+    }
+
+    /**
+     * @return Messages dropped because their lane was full.
+     */
+    public long getDroppedCount(final int lane) {
+        return dropped[lane];
+    }
+
+    public long getDroppedCount() {
+        long total = 0;
+        for (final long count : dropped) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return Number of messages that had to wait for the link.
+     */
+    public long getDelayedCount() {
+        return delayedCount;
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    /**
+     * @return Average wait of the messages that had to wait for the link.
+     */
+    public long getAverageDelayNanos() {
+        final long count = delayedCount;
+        return (count > 0) ? totalDelayNanos / count : 0;
+    }
+
+    @Override
+    public String getSummary() {
+        final long delayed = delayedCount;
+        final long dropped = getDroppedCount();
+        if (delayed == 0 && dropped == 0) {
+            return null;
+        }
+        return String.format(Locale.US,
+                "%d messages waited for the link (average %.1f ms, longest %.1f ms), %d dropped",
+                delayed, getAverageDelayNanos() / 1e6, getMaxDelayNanos() / 1e6, dropped);
+    }
+
+    @Override
+    public void onSend(final byte[] msg, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        if (count <= 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final int lane = classify(msg, offset, count, now);
+        if (lane == LANE_NONE) {
+            // Data bytes outside a SysEx; nothing downstream could make sense of them.
+            dropped[LANE_CONTROL]++;
+        } else if (lane == LANE_SYSEX) {
+            offerSysex(msg, offset, count, timestamp, now);
+        } else if (!lanes[lane].offer(msg, offset, count, timestamp, now, 0)) {
+            dropped[lane]++;
+        } else if (count > 2) {
+            track(lane, msg[offset], msg[offset + 1], msg[offset + 2], 1);
+        } else {
+            track(lane, msg[offset], (byte) 0, (byte) 0, 1);
+        }
+        drain(now);
+    }
+
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public void onDeadline(final long now) throws IOException {
+        drain(now);
+    }
+
+    @Override
+    public void reset() {
+        for (final MessageRing lane : lanes) {
+            lane.clear();
+        }
+        Arrays.fill(queuedNoteOns, (byte) 0);
+        Arrays.fill(queuedControls, 0);
+        Arrays.fill(queuedNoteOffs, (byte) 0);
+        linkIdleAt = 0;
+        outputInSysex = false;
+        inputInSysex = false;
+        sysexQueued = false;
+        sysexDropping = false;
+        deadline = NO_DEADLINE;
+    }
+
+    private int classify(final byte[] msg, final int offset, final int count, final long now) {
+        final int status = msg[offset] & 0xFF;
+        if (status >= 0xF8) {
+            return LANE_REALTIME;
+        }
+        if (status < 0x80 || status == 0xF7) {
+            if (!inputInSysex) {
+                return LANE_NONE;
+            }
+            inputInSysex = msg[offset + count - 1] != STATUS_SYSEX_END;
+            return LANE_SYSEX;
+        }
+        if (inputInSysex) {
+            // Any other status byte ends an unfinished SysEx.
+            inputInSysex = false;
+            if (sysexQueued && !sysexDropping) {
+                offerSysexEnd(0, now);
+            }
+        }
+        if (status == 0xF0) {
+            inputInSysex = msg[offset + count - 1] != STATUS_SYSEX_END;
+            return LANE_SYSEX;
+        }
+        switch (status & 0xF0) {
+            case 0x80:
+                return noteOffLane(msg, offset);
+            case 0x90:
+                if (count > 2 && msg[offset + 2] == 0) {
+                    return noteOffLane(msg, offset);
+                }
+                // Overtaking a queued note-off for the same note would cut the new note short.
+                return (count > 1 && queuedNoteOffs[noteIndex(msg[offset], msg[offset + 1])] > 0)
+                        ? LANE_CONTROL
+                        : LANE_NOTE_ON;
+            case 0xC0:
+                return LANE_NOTE_ON;
+            case 0xB0:
+                // Bank select goes with the program change that follows it.
+                final int controller = msg[offset + 1];
+                return (controller == 0 || controller == 32) ? LANE_NOTE_ON : LANE_CONTROL;
+            case 0xA0:
+            case 0xD0:
+            case 0xE0:
+                return LANE_CONTROL;
+            default:
+                // System common.
+                return LANE_NOTE_OFF;
+        }
+    }
+
+    /**
+     * Queue part of a SysEx. Once part of one has been dropped, the rest is dropped too; if the
+     * start of it was already queued, it is ended early so the output isn't left inside it.
+     */
+    private void offerSysex(final byte[] msg, final int offset, final int count,
+                            final long timestamp, final long now) {
+
+        if (msg[offset] == STATUS_SYSEX_START) {
+            sysexQueued = false;
+            sysexDropping = false;
+        }
+        if (!sysexDropping && lanes[LANE_SYSEX].offer(msg, offset, count, timestamp, now, 0)) {
+            sysexQueued = true;
+            return;
+        }
+        dropped[LANE_SYSEX]++;
+        sysexDropping = inputInSysex;
+        if (!inputInSysex && sysexQueued) {
+            offerSysexEnd(timestamp, now);
+        }
+    }
+
+    private void offerSysexEnd(final long timestamp, final long now) {
+        // SYSEX_END is a single byte, which fits whenever an entry is free.
+        if (!lanes[LANE_SYSEX].offer(SYSEX_END, 0, 1, timestamp, now, 0)) {
+            dropped[LANE_SYSEX]++;
+        }
+    }
+
+    private int noteOffLane(final byte[] msg, final int offset) {
+        // Overtaking a queued note-on for the same note would leave it hanging.
+        if (queuedNoteOns[noteIndex(msg[offset], msg[offset + 1])] > 0) {
+            return LANE_NOTE_ON;
+        }
+        // Overtaking a queued sustain release or pitch bend would change how the note ends.
+        return (queuedControls[msg[offset] & 0x0F] > 0) ? LANE_CONTROL : LANE_NOTE_OFF;
+    }
+
+    /**
+     * Keep track of the note and channel messages waiting in the lanes the ordering rules
+     * depend on.
+     * @param delta - 1 when a message was queued, -1 when it was taken.
+     */
+    private void track(final int lane, final byte status, final byte note, final byte data2,
+                       final int delta) {
+
+        if (lane == LANE_NOTE_ON) {
+            if (isNoteOn(status, data2)) {
+                queuedNoteOns[noteIndex(status, note)] += delta;
+            }
+        } else if (lane == LANE_CONTROL) {
+            queuedControls[status & 0x0F] += delta;
+            if (isNoteOff(status, data2)) {
+                queuedNoteOffs[noteIndex(status, note)] += delta;
+            }
+        }
+    }
+
+    private void drain(final long now) throws IOException {
+        while (true) {
+            final int index = nextLane();
+            if (index < 0) {
+                deadline = NO_DEADLINE;
+                return;
+            }
+            final MessageRing lane = lanes[index];
+            // SysEx goes in pieces of at least half the buffer, rather than a byte at a time.
+            // Anything else is sent whole; one longer than the buffer (a parameter message on a
+            // small buffer) waits for the buffer to empty, or it could never go.
+            final int headLength = lane.headLength();
+            final int needed = (index == LANE_SYSEX)
+                    ? Math.min(headLength, Math.max(1, bufferBytes / 2))
+                    : Math.min(headLength, bufferBytes);
+            final long queuedNanos = Math.max(0, linkIdleAt - now);
+            final int free = bufferBytes - (int) Math.ceil(queuedNanos / nanosPerByte);
+            if (free < needed) {
+                // Wait until enough of the buffer has drained.
+                deadline = linkIdleAt - (long) ((bufferBytes - needed) * nanosPerByte) + 1;
+                return;
+            }
+            final int length = (index == LANE_SYSEX) ? Math.min(free, headLength) : headLength;
+            final byte status = lane.headByte(0);
+            final byte data2 = (length > 2) ? lane.headByte(2) : 0;
+            final byte note = (length > 1) ? lane.headByte(1) : 0;
+            final long timestamp = lane.headTimestamp();
+            final long queuedAt = lane.headQueuedAt();
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            final boolean finished = lane.take(scratch, length);
+            if (index == LANE_SYSEX) {
+                outputInSysex = scratch[length - 1] != STATUS_SYSEX_END;
+            } else {
+                track(index, status, note, data2, -1);
+            }
+            linkIdleAt = Math.max(linkIdleAt, now) + (long) (length * nanosPerByte);
+            if (finished && now > queuedAt) {
+                recordDelay(now - queuedAt);
+            }
+            getNext().send(scratch, 0, length, timestamp);
+        }
+    }
+
+    /**
+     * @return The lane to send from next, or -1 if nothing can be sent.
+     */
+    private int nextLane() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (lanes[i].isEmpty()) {
+                continue;
+            }
+            if (outputInSysex && i != LANE_REALTIME && i != LANE_SYSEX) {
+                continue;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private void recordDelay(final long delayNanos) {
+        delayedCount++;
+        totalDelayNanos += delayNanos;
+        if (delayNanos > maxDelayNanos) {
+            maxDelayNanos = delayNanos;
+        }
+    }
+
+    private static boolean isNoteOn(final byte status, final byte velocity) {
+        return (status & 0xF0) == 0x90 && velocity != 0;
+    }
+
+    private static boolean isNoteOff(final byte status, final byte velocity) {
+        return (status & 0xF0) == 0x80 || ((status & 0xF0) == 0x90 && velocity == 0);
+    }
+
+    private static int noteIndex(final byte status, final byte note) {
+        return (status & 0x0F) * NOTE_COUNT + (note & 0x7F);
+    }
+
+}
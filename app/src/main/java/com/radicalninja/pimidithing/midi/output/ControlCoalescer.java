@@ -0,0 +1,271 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import com.radicalninja.pimidithing.util.ValueException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Thins out control change, pitch bend and channel aftertouch streams so a knob sweep can't
+ * saturate a slow output.
+ *
+ * Each controller (per channel, with pitch bend and aftertouch counted as controllers) may send
+ * once per window. A value that moves at least minDelta from the last one sent goes straight
+ * away. Anything else is held, replacing whatever was held before, and sent when the window
+ * ends; the final value of a sweep is therefore always sent. Before any other message on the
+ * channel is sent, its held values are sent first, so the stream stays in order.
+ *
+ * Switch-like and sequence controllers (bank select, sustain and the other pedals, data entry
+ * and RPN / NRPN numbers, channel mode messages) are never thinned. Neither are 14-bit
+ * controllers: LSBs (32 - 63) always pass, and once a channel has sent an LSB its MSB passes
+ * too, so a pair is never split, reordered or mixed with another value.
+ *
+ * State is kept in fixed primitive tables; thinning a message allocates nothing. Only bytes
+ * holding exactly one message are looked at; anything else is passed through.
+ */
+public class ControlCoalescer extends OutputStage {
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int CONTROLLER_COUNT = 128;
+    private static final int SLOT_PITCH = 128;
+    private static final int SLOT_AFTERTOUCH = 129;
+    private static final int SLOTS_PER_CHANNEL = 130;
+    private static final int SLOT_COUNT = CHANNEL_COUNT * SLOTS_PER_CHANNEL;
+    private static final int NONE = -1;
+    private static final int LSB_FIRST = 32;
+    private static final int LSB_LAST = 63;
+
+    private static final boolean[] PASSTHROUGH_CONTROLLERS = new boolean[CONTROLLER_COUNT];
+    static {
+        final int[] controllers = { 0, 6, 32, 38, 98, 99, 100, 101 };
+        for (final int controller : controllers) {
+            PASSTHROUGH_CONTROLLERS[controller] = true;
+        }
+        // Pedals and switches.
+        for (int controller = 64; controller <= 69; controller++) {
+            PASSTHROUGH_CONTROLLERS[controller] = true;
+        }
+        // Data increment / decrement.
+        for (int controller = 96; controller <= 97; controller++) {
+            PASSTHROUGH_CONTROLLERS[controller] = true;
+        }
+        // Channel mode messages.
+        for (int controller = 120; controller < CONTROLLER_COUNT; controller++) {
+            PASSTHROUGH_CONTROLLERS[controller] = true;
+        }
+    }
+
+    private final long windowNanos;
+    private final int minDelta;
+
+    private final int[] sentValues = new int[SLOT_COUNT];
+    private final long[] sentTimes = new long[SLOT_COUNT];
+    private final int[] heldValues = new int[SLOT_COUNT];
+    // Slots holding a value, and where each slot is in that list.
+    private final int[] heldSlots = new int[SLOT_COUNT];
+    private final int[] heldIndex = new int[SLOT_COUNT];
+    private final byte[] scratch = new byte[3];
+    // Per channel, bit n is set once controller 32 + n was seen.
+    private final int[] pairs = new int[CHANNEL_COUNT];
+
+    private int heldCount = 0;
+    private long deadline = NO_DEADLINE;
+    private long coalescedCount = 0;
+
+    /**
+     * @param windowNanos - Shortest time between two values of the same controller.
+     * @param minDelta - Values that move at least this far (on the 0 - 127 scale) are sent
+     *                 without waiting for the window. 0 waits for the window regardless.
+     */
+    public ControlCoalescer(final long windowNanos, final int minDelta) {
+        if (windowNanos < 0) {
+            throw new ValueException.BelowMinimumValueException("windowNanos", 0L);
+        }
+        this.windowNanos = windowNanos;
+        this.minDelta = (minDelta > 0) ? minDelta : Integer.MAX_VALUE;
+        reset();
+    }
+
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+
+    /**
+     * @return Number of values dropped because a newer one replaced them.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    @Override
+    public void onSend(final byte[] msg, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        final int status = msg[offset] & 0xFF;
+        if (status >= 0xF0) {
+            getNext().send(msg, offset, count, timestamp);
+            return;
+        }
+        final int channel = status & 0x0F;
+        final int slot;
+        final int value;
+        final int delta;
+        switch (status & 0xF0) {
+            case 0xB0:
+                if (count != 3 || isPassthrough(channel, msg[offset + 1] & 0x7F)) {
+                    slot = NONE;
+                    value = 0;
+                } else {
+                    slot = channel * SLOTS_PER_CHANNEL + (msg[offset + 1] & 0x7F);
+                    value = msg[offset + 2] & 0x7F;
+                }
+                delta = minDelta;
+                break;
+            case 0xE0:
+                slot = (count == 3) ? channel * SLOTS_PER_CHANNEL + SLOT_PITCH : NONE;
+                value = (msg[offset + 1] & 0x7F) | ((msg[offset + 2] & 0x7F) << 7);
+                // minDelta is on the 7-bit scale.
+                delta = (minDelta == Integer.MAX_VALUE) ? minDelta : minDelta << 7;
+                break;
+            case 0xD0:
+                slot = (count == 2) ? channel * SLOTS_PER_CHANNEL + SLOT_AFTERTOUCH : NONE;
+                value = msg[offset + 1] & 0x7F;
+                delta = minDelta;
+                break;
+            default:
+                slot = NONE;
+                value = 0;
+                delta = 0;
+        }
+        if (slot == NONE) {
+            releaseChannel(channel);
+            getNext().send(msg, offset, count, timestamp);
+            return;
+        }
+        final long now = System.nanoTime();
+        final int sent = sentValues[slot];
+        if (value == sent && now - sentTimes[slot] < windowNanos) {
+            // Back where it was; neither this nor anything held needs sending.
+            if (heldIndex[slot] != NONE) {
+                unhold(slot);
+                coalescedCount++;
+            }
+            coalescedCount++;
+            return;
+        }
+        if (sent == NONE || now - sentTimes[slot] >= windowNanos || Math.abs(value - sent) >= delta) {
+            if (heldIndex[slot] != NONE) {
+                unhold(slot);
+                coalescedCount++;
+            }
+            sentValues[slot] = value;
+            sentTimes[slot] = now;
+            getNext().send(msg, offset, count, timestamp);
+            return;
+        }
+        if (heldIndex[slot] == NONE) {
+            heldIndex[slot] = heldCount;
+            heldSlots[heldCount++] = slot;
+            deadline = Math.min(deadline, sentTimes[slot] + windowNanos);
+        } else {
+            coalescedCount++;
+        }
+        heldValues[slot] = value;
+    }
+
+    @Override
+    public long getDeadline() {
+        return deadline;
+    }
+
+    @Override
+    public void onDeadline(final long now) throws IOException {
+        long next = NO_DEADLINE;
+        int i = 0;
+        while (i < heldCount) {
+            final int slot = heldSlots[i];
+            final long due = sentTimes[slot] + windowNanos;
+            if (due - now <= 0) {
+                // unhold() moves the last held slot into this index.
+                release(slot, now);
+            } else {
+                next = Math.min(next, due);
+                i++;
+            }
+        }
+        deadline = next;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(sentValues, NONE);
+        Arrays.fill(heldIndex, NONE);
+        Arrays.fill(pairs, 0);
+        heldCount = 0;
+        deadline = NO_DEADLINE;
+    }
+
+    private boolean isPassthrough(final int channel, final int controller) {
+        if (PASSTHROUGH_CONTROLLERS[controller]) {
+            return true;
+        }
+        if (controller >= LSB_FIRST && controller <= LSB_LAST) {
+            pairs[channel] |= 1 << (controller - LSB_FIRST);
+            return true;
+        }
+        return controller < LSB_FIRST && (pairs[channel] & (1 << controller)) != 0;
+    }
+
+    /**
+     * Send every value held for a channel.
+     */
+    private void releaseChannel(final int channel) throws IOException {
+        final int first = channel * SLOTS_PER_CHANNEL;
+        final int last = first + SLOTS_PER_CHANNEL;
+        final long now = System.nanoTime();
+        int i = 0;
+        while (i < heldCount) {
+            final int slot = heldSlots[i];
+            if (slot >= first && slot < last) {
+                release(slot, now);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void release(final int slot, final long now) throws IOException {
+        final int value = heldValues[slot];
+        final int channel = slot / SLOTS_PER_CHANNEL;
+        final int controller = slot % SLOTS_PER_CHANNEL;
+        unhold(slot);
+        sentValues[slot] = value;
+        sentTimes[slot] = now;
+        final int count;
+        if (controller == SLOT_PITCH) {
+            scratch[0] = (byte) (0xE0 | channel);
+            scratch[1] = (byte) (value & 0x7F);
+            scratch[2] = (byte) (value >> 7);
+            count = 3;
+        } else if (controller == SLOT_AFTERTOUCH) {
+            scratch[0] = (byte) (0xD0 | channel);
+            scratch[1] = (byte) value;
+            count = 2;
+        } else {
+            scratch[0] = (byte) (0xB0 | channel);
+            scratch[1] = (byte) controller;
+            scratch[2] = (byte) value;
+            count = 3;
+        }
+        getNext().send(scratch, 0, count, now);
+    }
+
+    private void unhold(final int slot) {
+        final int index = heldIndex[slot];
+        final int moved = heldSlots[--heldCount];
+        heldSlots[index] = moved;
+        heldIndex[moved] = index;
+        heldIndex[slot] = NONE;
+    }
+
+}
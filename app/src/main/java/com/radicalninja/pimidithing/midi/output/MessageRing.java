@@ -0,0 +1,114 @@
+package com.radicalninja.pimidithing.midi.output;
+
+/**
+ * A fixed-size ring of queued messages, allocated up front. Entries may be taken a piece at a
+ * time, for SysEx. Not thread safe; a ring belongs to the stage that fills and empties it.
+ */
+/* package */
+class MessageRing {
+
+    private final byte[] data;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final long[] queuedAt;
+    private final long[] tags;
+    private int dataHead = 0;
+    private int dataUsed = 0;
+    private int first = 0;
+    private int count = 0;
+
+    /* package */
+    MessageRing(final int bytes, final int entries) {
+        data = new byte[bytes];
+        lengths = new int[entries];
+        timestamps = new long[entries];
+        queuedAt = new long[entries];
+        tags = new long[entries];
+    }
+
+    /**
+     * @param tag - Anything the owner wants to keep with the entry.
+     * @return false if the ring had no room; nothing was queued.
+     */
+    /* package */
+    boolean offer(final byte[] msg, final int offset, final int length,
+                  final long timestamp, final long now, final long tag) {
+
+        if (count == lengths.length || dataUsed + length > data.length) {
+            return false;
+        }
+        final int position = (dataHead + dataUsed) % data.length;
+        final int firstPart = Math.min(length, data.length - position);
+        System.arraycopy(msg, offset, data, position, firstPart);
+        System.arraycopy(msg, offset + firstPart, data, 0, length - firstPart);
+        dataUsed += length;
+        final int entry = (first + count) % lengths.length;
+        lengths[entry] = length;
+        timestamps[entry] = timestamp;
+        queuedAt[entry] = now;
+        tags[entry] = tag;
+        count++;
+        return true;
+    }
+
+    /* package */
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /* package */
+    int size() {
+        return count;
+    }
+
+    /* package */
+    int headLength() {
+        return lengths[first];
+    }
+
+    /* package */
+    byte headByte(final int index) {
+        return data[(dataHead + index) % data.length];
+    }
+
+    /* package */
+    long headTimestamp() {
+        return timestamps[first];
+    }
+
+    /* package */
+    long headQueuedAt() {
+        return queuedAt[first];
+    }
+
+    /* package */
+    long headTag() {
+        return tags[first];
+    }
+
+    /**
+     * Copy up to length bytes of the head entry and remove them from the ring.
+     * @return true if that finished the entry.
+     */
+    /* package */
+    boolean take(final byte[] dest, final int length) {
+        final int firstPart = Math.min(length, data.length - dataHead);
+        System.arraycopy(data, dataHead, dest, 0, firstPart);
+        System.arraycopy(data, 0, dest, firstPart, length - firstPart);
+        dataHead = (dataHead + length) % data.length;
+        dataUsed -= length;
+        lengths[first] -= length;
+        if (lengths[first] > 0) {
+            return false;
+        }
+        first = (first + 1) % lengths.length;
+        count--;
+        return true;
+    }
+
+    /* package */
+    void clear() {
+        dataHead = dataUsed = first = count = 0;
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import com.radicalninja.pimidithing.midi.MpeLayout;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Turns an MPE stream into plain MIDI on one channel, for outputs whose devices don't speak MPE.
+ *
+ * Notes from every channel are moved to the output channel; a note played on two channels at
+ * once is only ended when both have let go of it. Channel pressure on a member channel becomes
+ * poly aftertouch for the note playing there. Pitch bend and CC74 are per note in MPE and can't
+ * be kept apart on one channel, so the most recent note wins: a member channel's values are sent
+ * while it holds the newest note (or while no note is held), and are caught up when a note
+ * starts on it. When the newest note ends, the channel with the newest of the notes still held
+ * takes over and is caught up the same way. Manager channel messages apply to the whole zone
+ * and are always sent. MPE Configuration Messages are left out.
+ *
+ * Member channels bend over their own range (48 semitones unless set otherwise), so their pitch
+ * bend is rescaled to the output channel's range, which follows the bend ranges (RPN 0) sent on
+ * manager channels and is 2 semitones until one is. Bend ranges sent on member channels are
+ * followed and left out, as the output has no member channels for them to apply to.
+ *
+ * The zone layout is taken from the Configuration Messages passing through; until one is seen,
+ * every channel is treated as a member channel. A run of control changes on one channel, such as
+ * a 14-bit controller or RPN change, is moved to the output channel whole (or left out whole if
+ * it is a Configuration Message). Other bytes not holding exactly one channel message are passed
+ * through. State is kept in fixed primitive tables.
+ */
+public class MpeCollapser extends OutputStage {
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int NOTE_COUNT = 128;
+    private static final int NONE = -1;
+    private static final int BEND_CENTER = 0x2000;
+    private static final int BEND_MAX = 0x3FFF;
+    private static final int CC_TIMBRE = 74;
+
+    private final int channel;
+    private final MpeLayout layout = new MpeLayout();
+
+    // Channels holding each note on the output channel.
+    private final int[] noteCounts = new int[NOTE_COUNT];
+    // Newest note still held on each channel, or NONE.
+    private final int[] channelNotes = new int[CHANNEL_COUNT];
+    // When each channel's newest note started, as a count of note-ons.
+    private final long[] channelOrder = new long[CHANNEL_COUNT];
+    // Last pitch bend and CC74 received on each channel; CC74 is NONE until one arrives.
+    private final int[] bends = new int[CHANNEL_COUNT];
+    private final int[] timbres = new int[CHANNEL_COUNT];
+    private final byte[] scratch = new byte[3];
+    // For runs of control changes; grown as needed.
+    private byte[] runScratch = new byte[12];
+
+    // Channel of the newest note still held, or NONE.
+    private int current;
+    private long noteOnCount;
+    private int sentBend;
+    private int sentTimbre;
+    // Pitch bend range of the output channel, in cents.
+    private int outputBendRange;
+
+    /**
+     * @param channel - Output channel, 0 - 15.
+     */
+    public MpeCollapser(final int channel) {
+        if (channel < 0 || channel >= CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        }
+        this.channel = channel;
+        reset();
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void onSend(final byte[] msg, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        final int status = msg[offset] & 0xFF;
+        if ((status & 0xF0) == 0xB0 && count > 3 && count % 3 == 0) {
+            onControlChanges(msg, offset, count, timestamp);
+            return;
+        }
+        if (status < 0x80 || status >= 0xF0 || count != expectedLength(status)) {
+            getNext().send(msg, offset, count, timestamp);
+            return;
+        }
+        final int source = status & 0x0F;
+        final int data1 = msg[offset + 1] & 0x7F;
+        final int data2 = (count > 2) ? msg[offset + 2] & 0x7F : 0;
+        switch (status & 0xF0) {
+            case 0x90:
+                if (data2 > 0) {
+                    noteOn(source, data1, data2, timestamp);
+                    return;
+                }
+                // Velocity 0 is a note-off.
+            case 0x80:
+                noteOff(source, data1, data2, status & 0xF0, timestamp);
+                return;
+            case 0xD0:
+                if (isManager(source)) {
+                    send(0xD0, data1, 0, 2, timestamp);
+                } else if (channelNotes[source] != NONE) {
+                    send(0xA0, channelNotes[source], data1, 3, timestamp);
+                }
+                return;
+            case 0xE0:
+                bends[source] = data1 | (data2 << 7);
+                if (isManager(source) || follows(source)) {
+                    sendBend(outputBend(source), timestamp);
+                }
+                return;
+            case 0xB0:
+                final boolean bendRange = layout.isBendRangeEntry(source, data1);
+                if (layout.onControlChange(source, data1, data2)
+                        || (bendRange && !followBendRange(source))) {
+                    return;
+                }
+                if (data1 == CC_TIMBRE && !isManager(source)) {
+                    timbres[source] = data2;
+                    if (follows(source)) {
+                        sendTimbre(data2, timestamp);
+                    }
+                    return;
+                }
+                send(0xB0, data1, data2, 3, timestamp);
+                return;
+            default:
+                send(status & 0xF0, data1, data2, count, timestamp);
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(noteCounts, 0);
+        Arrays.fill(channelNotes, NONE);
+        Arrays.fill(channelOrder, 0);
+        Arrays.fill(bends, BEND_CENTER);
+        Arrays.fill(timbres, NONE);
+        current = NONE;
+        noteOnCount = 0;
+        sentBend = BEND_CENTER;
+        sentTimbre = NONE;
+        outputBendRange = MpeLayout.MANAGER_BEND_CENTS;
+    }
+
+    private void onControlChanges(final byte[] msg, final int offset, final int count,
+                                  final long timestamp) throws IOException {
+
+        boolean configuration = false;
+        boolean bendRange = false;
+        for (int i = offset; i < offset + count; i += 3) {
+            if ((msg[i] & 0xF0) != 0xB0) {
+                getNext().send(msg, offset, count, timestamp);
+                return;
+            }
+            bendRange |= layout.isBendRangeEntry(msg[i] & 0x0F, msg[i + 1] & 0x7F);
+            configuration |= layout.onControlChange(
+                    msg[i] & 0x0F, msg[i + 1] & 0x7F, msg[i + 2] & 0x7F);
+        }
+        if (configuration || (bendRange && !followBendRange(msg[offset] & 0x0F))) {
+            return;
+        }
+        if (runScratch.length < count) {
+            runScratch = new byte[count];
+        }
+        System.arraycopy(msg, offset, runScratch, 0, count);
+        for (int i = 0; i < count; i += 3) {
+            runScratch[i] = (byte) (0xB0 | channel);
+        }
+        getNext().send(runScratch, 0, count, timestamp);
+    }
+
+    private void noteOn(final int source, final int note, final int velocity,
+                        final long timestamp) throws IOException {
+
+        if (source != current) {
+            catchUp(source, timestamp);
+        }
+        current = source;
+        channelNotes[source] = note;
+        channelOrder[source] = ++noteOnCount;
+        noteCounts[note]++;
+        send(0x90, note, velocity, 3, timestamp);
+    }
+
+    private void noteOff(final int source, final int note, final int velocity, final int type,
+                         final long timestamp) throws IOException {
+
+        boolean lead = false;
+        if (channelNotes[source] == note) {
+            channelNotes[source] = NONE;
+            if (current == source) {
+                current = newestChannel();
+                lead = current != NONE;
+            }
+        }
+        if (noteCounts[note] > 1) {
+            // Still held on another channel.
+            noteCounts[note]--;
+        } else {
+            noteCounts[note] = 0;
+            send(type, note, velocity, 3, timestamp);
+        }
+        if (lead) {
+            // After the note-off, so the note that ended doesn't bend in its release.
+            catchUp(current, timestamp);
+        }
+    }
+
+    /**
+     * @return The channel holding the newest of the notes still held, or NONE.
+     */
+    private int newestChannel() {
+        int newest = NONE;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (channelNotes[i] != NONE
+                    && (newest == NONE || channelOrder[i] > channelOrder[newest])) {
+                newest = i;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Catch the output up with the expression of the channel that now leads.
+     */
+    private void catchUp(final int source, final long timestamp) throws IOException {
+        if (isManager(source)) {
+            return;
+        }
+        final int bend = outputBend(source);
+        if (bend != sentBend) {
+            sendBend(bend, timestamp);
+        }
+        if (timbres[source] != NONE && timbres[source] != sentTimbre) {
+            sendTimbre(timbres[source], timestamp);
+        }
+    }
+
+    private boolean isManager(final int source) {
+        return layout.isManager(source);
+    }
+
+    /**
+     * @return true if a member channel's bend and CC74 should be sent as they arrive.
+     */
+    private boolean follows(final int source) {
+        return current == NONE || current == source;
+    }
+
+    /**
+     * Note a bend range the layout has just taken in.
+     * @return true if it should be passed on, as it is the output channel's range now.
+     */
+    private boolean followBendRange(final int source) {
+        if (!isManager(source)) {
+            return false;
+        }
+        outputBendRange = layout.getBendRange(source);
+        return true;
+    }
+
+    /**
+     * @return The channel's last pitch bend, rescaled from its range to the output's.
+     */
+    private int outputBend(final int source) {
+        final int range = layout.getBendRange(source);
+        if (range == outputBendRange) {
+            return bends[source];
+        }
+        if (outputBendRange == 0) {
+            return BEND_CENTER;
+        }
+        final long bend =
+                BEND_CENTER + (long) (bends[source] - BEND_CENTER) * range / outputBendRange;
+        return (int) Math.max(0, Math.min(BEND_MAX, bend));
+    }
+
+    private void sendBend(final int value, final long timestamp) throws IOException {
+        sentBend = value;
+        send(0xE0, value & 0x7F, value >> 7, 3, timestamp);
+    }
+
+    private void sendTimbre(final int value, final long timestamp) throws IOException {
+        sentTimbre = value;
+        send(0xB0, CC_TIMBRE, value, 3, timestamp);
+    }
+
+    private void send(final int type, final int data1, final int data2, final int count,
+                      final long timestamp) throws IOException {
+
+        scratch[0] = (byte) (type | channel);
+        scratch[1] = (byte) data1;
+        scratch[2] = (byte) data2;
+        getNext().send(scratch, 0, count, timestamp);
+    }
+
+    private static int expectedLength(final int status) {
+        switch (status & 0xF0) {
+            case 0xC0:
+            case 0xD0:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+}
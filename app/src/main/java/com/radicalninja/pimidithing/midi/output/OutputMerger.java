@@ -0,0 +1,297 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import android.media.midi.MidiReceiver;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Merges the messages of every producer (input callback, clock, scheduler...) sending to one
+ * output into a single stream.
+ *
+ * Producers add their messages to a bounded lock-free queue and never wait on each other; bytes
+ * are copied into preallocated slots, so callers may reuse their buffers straight away. A single
+ * consumer at a time takes the messages out in order and passes them on.
+ *
+ * Once a producer has started a SysEx, it owns the output until it sends the end of it. Messages
+ * from other producers are held back, in order, until then; real-time bytes are the only thing
+ * let through in the middle. A producer is identified by its thread, so one thread must finish
+ * its SysEx before sending anything else to the same output. If the owner goes quiet for longer
+ * than the SysEx timeout, or so much is held back that it can't be kept, the SysEx is ended
+ * early and the rest of it is dropped when it turns up.
+ */
+public class OutputMerger {
+
+    private static final String TAG = OutputMerger.class.getCanonicalName();
+
+    public static final long DEFAULT_SYSEX_TIMEOUT_NANOS = 2000000000L;   // 2s
+
+    private static final int QUEUE_SLOTS = 1024;
+    private static final int SLOT_BYTES = 16;
+    private static final int HELD_BYTES = 8192;
+    private static final int HELD_ENTRIES = 1024;
+    private static final long NO_PRODUCER = -1;
+
+    private static final byte STATUS_SYSEX_START = (byte) 0xF0;
+    private static final byte STATUS_SYSEX_END = (byte) 0xF7;
+    private static final byte[] SYSEX_END = { STATUS_SYSEX_END };
+
+    private final long sysexTimeoutNanos;
+
+    // The queue. A slot's sequence says whose turn it is: equal to a position, the slot is free
+    // for the producer that claims that position; one past it, the slot is ready for the consumer.
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLongArray sequences = new AtomicLongArray(QUEUE_SLOTS);
+    private final byte[][] slotData = new byte[QUEUE_SLOTS][];
+    private final int[] slotLengths = new int[QUEUE_SLOTS];
+    private final long[] slotTimestamps = new long[QUEUE_SLOTS];
+    private final long[] slotProducers = new long[QUEUE_SLOTS];
+    // Written only by the consumer; read by producers checking for work left behind.
+    private volatile long head = 0;
+
+    // Consumer state.
+    private final MessageRing held = new MessageRing(HELD_BYTES, HELD_ENTRIES);
+    private byte[] scratch = new byte[SLOT_BYTES];
+    private long sysexOwner = NO_PRODUCER;
+    private long sysexActiveAt = 0;
+    // Producer whose SysEx was ended early; the rest of it is dropped.
+    private long sysexAbandoned = NO_PRODUCER;
+    // Going through the held messages, and whether this pass has had to hold any again.
+    private boolean releasing = false;
+    private boolean releaseAgain = false;
+    private boolean heldAgain = false;
+
+    private volatile long heldCount = 0;
+    private volatile long abortedCount = 0;
+
+    public OutputMerger() {
+        this(DEFAULT_SYSEX_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param sysexTimeoutNanos - How long a SysEx may go without its next piece before it is
+     *                          ended so the other producers can carry on.
+     */
+    public OutputMerger(final long sysexTimeoutNanos) {
+        this.sysexTimeoutNanos = sysexTimeoutNanos;
+        for (int i = 0; i < QUEUE_SLOTS; i++) {
+            sequences.set(i, i);
+            slotData[i] = new byte[SLOT_BYTES];
+        }
+    }
+
+    /**
+     * @return Messages that had to wait for another producer's SysEx.
+     */
+    public long getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * @return SysEx messages ended early.
+     */
+    public long getAbortedCount() {
+        return abortedCount;
+    }
+
+    /**
+     * Queue a message. May be called from any thread. If the queue is full, this waits for the
+     * consumer to make room rather than lose the message.
+     */
+    public void offer(final byte[] msg, final int offset, final int count, final long timestamp) {
+        long position = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (position & (QUEUE_SLOTS - 1));
+            final long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Full.
+                Thread.yield();
+                position = tail.get();
+            } else {
+                // Another producer took this position.
+                position = tail.get();
+            }
+        }
+        // The slot is ours until its sequence is published.
+        if (slotData[slot].length < count) {
+            slotData[slot] = new byte[count];
+        }
+        System.arraycopy(msg, offset, slotData[slot], 0, count);
+        slotLengths[slot] = count;
+        slotTimestamps[slot] = timestamp;
+        slotProducers[slot] = Thread.currentThread().getId();
+        sequences.set(slot, position + 1);
+    }
+
+    /**
+     * @return true if nothing is ready in the queue. Messages being held back don't count.
+     */
+    public boolean isEmpty() {
+        final int slot = (int) (head & (QUEUE_SLOTS - 1));
+        return sequences.get(slot) != head + 1;
+    }
+
+    /**
+     * Pass everything in the queue on to the receiver. Only one thread may drain at a time.
+     */
+    /* package */
+    void drain(final MidiReceiver receiver, final long now) {
+        while (true) {
+            final int slot = (int) (head & (QUEUE_SLOTS - 1));
+            if (sequences.get(slot) != head + 1) {
+                return;
+            }
+            final byte[] data = slotData[slot];
+            final int length = slotLengths[slot];
+            final long timestamp = slotTimestamps[slot];
+            final long producer = slotProducers[slot];
+            handle(receiver, data, length, timestamp, producer, now);
+            // Handed back only once handled, so the bytes aren't overwritten under us.
+            sequences.set(slot, head + QUEUE_SLOTS);
+            head++;
+        }
+    }
+
+    /**
+     * @return When the SysEx in progress times out, or NO_DEADLINE.
+     */
+    /* package */
+    long getDeadline() {
+        return (sysexOwner != NO_PRODUCER && !held.isEmpty())
+                ? sysexActiveAt + sysexTimeoutNanos
+                : OutputStage.NO_DEADLINE;
+    }
+
+    /* package */
+    void onDeadline(final MidiReceiver receiver, final long now) {
+        if (getDeadline() - now <= 0) {
+            Log.w(TAG, "SysEx timed out; ending it early.");
+            abortSysex(receiver, now);
+        }
+    }
+
+    /**
+     * Forget the SysEx in progress and pass on whatever was held back for it.
+     */
+    /* package */
+    void reset(final MidiReceiver receiver) {
+        sysexOwner = NO_PRODUCER;
+        sysexAbandoned = NO_PRODUCER;
+        releaseHeld(receiver, System.nanoTime());
+    }
+
+    private void handle(final MidiReceiver receiver, final byte[] data, final int length,
+                        final long timestamp, final long producer, final long now) {
+
+        if (length <= 0) {
+            return;
+        }
+        final byte status = data[0];
+        if (length == 1 && (status & 0xFF) >= 0xF8) {
+            pass(receiver, data, length, timestamp);
+            return;
+        }
+        final boolean continuation = (status & 0x80) == 0 || status == STATUS_SYSEX_END;
+        if (producer == sysexAbandoned) {
+            if (continuation) {
+                if (endsSysex(data, length)) {
+                    sysexAbandoned = NO_PRODUCER;
+                }
+                return;
+            }
+            sysexAbandoned = NO_PRODUCER;
+        }
+        // While releasing, once one message has gone back to wait, the rest must wait behind it.
+        if (producer != sysexOwner && (sysexOwner != NO_PRODUCER || (releasing && heldAgain))) {
+            if (held.offer(data, 0, length, timestamp, now, producer)) {
+                if (releasing) {
+                    heldAgain = true;
+                } else {
+                    heldCount++;
+                }
+                return;
+            }
+            Log.w(TAG, "Too much waiting on a SysEx; ending it early.");
+            abortSysex(receiver, now);
+        }
+        pass(receiver, data, length, timestamp);
+        if (sysexOwner == NO_PRODUCER) {
+            if (status == STATUS_SYSEX_START && !endsSysex(data, length)) {
+                sysexOwner = producer;
+                sysexActiveAt = now;
+            }
+        } else if (!continuation || endsSysex(data, length)) {
+            // Finished, or cut short by the owner's own next message.
+            sysexOwner = NO_PRODUCER;
+            releaseHeld(receiver, now);
+        } else {
+            sysexActiveAt = now;
+        }
+    }
+
+    private void abortSysex(final MidiReceiver receiver, final long now) {
+        pass(receiver, SYSEX_END, 1, 0);
+        abortedCount++;
+        sysexAbandoned = sysexOwner;
+        sysexOwner = NO_PRODUCER;
+        releaseHeld(receiver, now);
+    }
+
+    /**
+     * Go through what was held back, in order. It may start another SysEx, in which case the
+     * messages from other producers go back to wait, still in order, and are gone through again
+     * once that one is finished.
+     */
+    private void releaseHeld(final MidiReceiver receiver, final long now) {
+        if (releasing) {
+            releaseAgain = true;
+            return;
+        }
+        releasing = true;
+        do {
+            releaseAgain = false;
+            heldAgain = false;
+            // Each message is passed on or put back at the end, so one pass turns the ring once.
+            final int count = held.size();
+            for (int i = 0; i < count; i++) {
+                final int length = held.headLength();
+                final long timestamp = held.headTimestamp();
+                final long producer = held.headTag();
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                held.take(scratch, length);
+                handle(receiver, scratch, length, timestamp, producer, now);
+            }
+        } while (releaseAgain && !held.isEmpty());
+        releasing = false;
+    }
+
+    private void pass(final MidiReceiver receiver, final byte[] data, final int length,
+                      final long timestamp) {
+
+        try {
+            receiver.send(data, 0, length, timestamp);
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending merged message", e);
+        }
+    }
+
+    private static boolean endsSysex(final byte[] data, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (data[i] == STATUS_SYSEX_END) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import android.media.midi.MidiReceiver;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.util.DeadlineTimer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The chain of OutputStages between an output's senders and its port.
+ *
+ * Every sender's messages go through an OutputMerger first, so a SysEx from one sender is never
+ * split by another's notes. Senders don't block each other: whoever finds the pipeline idle
+ * passes along everything queued so far, its own messages and anyone else's, while the others
+ * just queue theirs and return. Without stages, real-time bytes skip the queue and go straight
+ * to the port. A pipeline thread serves deadlines (values held back, queued bytes, a stalled
+ * SysEx) as they come due.
+ */
+public class OutputPipeline {
+
+    private static final String TAG = OutputPipeline.class.getCanonicalName();
+    private static final String THREAD_NAME = "OutputPipeline-%s";
+
+    private final String name;
+    private final MidiReceiver port;
+    private final List<OutputStage> stages = new ArrayList<>();
+    private final OutputMerger merger = new OutputMerger();
+    private final DeadlineTimer timer = new DeadlineTimer();
+    // Held by whichever thread is passing messages down the chain.
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+
+    private volatile MidiReceiver head;
+    // Earliest deadline of the merger and the stages, and the one the thread is waiting for.
+    private volatile long deadline = OutputStage.NO_DEADLINE;
+    private volatile long waitingFor = OutputStage.NO_DEADLINE;
+    private volatile boolean running = false;
+    private volatile Thread thread;
+
+    /**
+     * @param name - Used to name the pipeline thread.
+     * @param port - Where the bytes go once they have passed through every stage.
+     */
+    public OutputPipeline(@NonNull final String name, @NonNull final MidiReceiver port) {
+        this.name = name;
+        this.port = port;
+        this.head = port;
+    }
+
+    /**
+     * Add a stage to the end of the chain, just before the port.
+     */
+    public void addStage(@NonNull final OutputStage stage) {
+        acquire();
+        try {
+            if (!stages.isEmpty()) {
+                stages.get(stages.size() - 1).setNext(stage);
+            }
+            stage.setNext(port);
+            stages.add(stage);
+            head = stages.get(0);
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    public List<OutputStage> getStages() {
+        acquire();
+        try {
+            return new ArrayList<>(stages);
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    /**
+     * @return The summaries of every stage that has one, joined, or null if none has.
+     */
+    @Nullable
+    public String getSummary() {
+        StringBuilder builder = null;
+        for (final OutputStage stage : getStages()) {
+            final String summary = stage.getSummary();
+            if (null == summary) {
+                continue;
+            }
+            if (null == builder) {
+                builder = new StringBuilder(name).append(": ");
+            } else {
+                builder.append("; ");
+            }
+            builder.append(summary);
+        }
+        return (null != builder) ? builder.toString() : null;
+    }
+
+    public boolean hasStages() {
+        return head != port;
+    }
+
+    public OutputMerger getMerger() {
+        return merger;
+    }
+
+    public void send(final byte[] bytes, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        if (count == 1 && (bytes[offset] & 0xFF) >= 0xF8 && !hasStages()) {
+            // Real-time bytes may go anywhere, even into the middle of a SysEx.
+            port.send(bytes, offset, count, timestamp);
+            return;
+        }
+        merger.offer(bytes, offset, count, timestamp);
+        drain(false);
+    }
+
+    /**
+     * Reset every stage, e.g. after the output has reconnected. Anything held back for a SysEx
+     * is passed on.
+     */
+    public void reset() {
+        acquire();
+        try {
+            for (final OutputStage stage : stages) {
+                stage.reset();
+            }
+            merger.reset(head);
+            deadline = nextDeadline();
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(pipelineRunnable, String.format(THREAD_NAME, name));
+        thread.start();
+    }
+
+    /**
+     * Stop the pipeline thread. Data still held back by the stages stays there until the
+     * pipeline is used again.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        timer.wake();
+        LockSupport.unpark(thread);
+        thread = null;
+        final String summary = getSummary();
+        if (null != summary) {
+            Log.i(TAG, summary);
+        }
+    }
+
+    /**
+     * Pass on whatever is queued and serve any deadlines that are due.
+     * @param wait - Wait for the thread passing messages on, if there is one, to finish. If
+     *             false, that thread is left to pick up what was queued.
+     */
+    private void drain(final boolean wait) {
+        do {
+            if (wait) {
+                acquire();
+            } else if (!busy.compareAndSet(false, true)) {
+                return;
+            }
+            final long next;
+            try {
+                final long now = System.nanoTime();
+                merger.drain(head, now);
+                serveDeadlines(now);
+                next = nextDeadline();
+                deadline = next;
+            } finally {
+                busy.set(false);
+            }
+            if (next != OutputStage.NO_DEADLINE) {
+                if (!running) {
+                    start();
+                }
+                if (next < waitingFor) {
+                    // The thread is waiting on a later deadline, or none at all; make it look again.
+                    timer.wake();
+                    LockSupport.unpark(thread);
+                }
+            }
+            // Anything queued after the merger was drained, while we were still busy, is ours.
+        } while (!merger.isEmpty());
+    }
+
+    private void serveDeadlines(final long now) {
+        merger.onDeadline(head, now);
+        for (int i = 0; i < stages.size(); i++) {
+            final OutputStage stage = stages.get(i);
+            if (stage.getDeadline() - now <= 0) {
+                try {
+                    stage.onDeadline(now);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending to " + name, e);
+                }
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        long next = merger.getDeadline();
+        for (int i = 0; i < stages.size(); i++) {
+            next = Math.min(next, stages.get(i).getDeadline());
+        }
+        return next;
+    }
+
+    private void acquire() {
+        while (!busy.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+    }
+
+    private final Runnable pipelineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (running) {
+                final long next = deadline;
+                waitingFor = next;
+                if (deadline != next) {
+                    // Changed while we were looking; whoever changed it may not have seen us.
+                    continue;
+                }
+                if (next == OutputStage.NO_DEADLINE) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (timer.awaitDeadline(next)) {
+                    drain(true);
+                }
+            }
+            waitingFor = OutputStage.NO_DEADLINE;
+        }
+    };
+
+}
@@ -0,0 +1,65 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import android.media.midi.MidiReceiver;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * One step of an OutputPipeline. A stage receives the bytes bound for an output and passes them,
+ * possibly changed, held back or reordered, on to the next receiver.
+ *
+ * Stages that hold data back report when they next need attention through getDeadline(); the
+ * pipeline then calls onDeadline() from its own thread. A pipeline never calls into its stages
+ * from two threads at once, so stages need no locking of their own.
+ */
+public abstract class OutputStage extends MidiReceiver {
+
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private MidiReceiver next;
+
+    /* package */
+    void setNext(@NonNull final MidiReceiver next) {
+        this.next = next;
+    }
+
+    protected MidiReceiver getNext() {
+        return next;
+    }
+
+    /**
+     * @return When onDeadline() should next be called, on the System.nanoTime() time base, or
+     *      NO_DEADLINE if nothing is waiting.
+     */
+    public long getDeadline() {
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Called once the time returned by getDeadline() has passed.
+     * @param now - The current System.nanoTime().
+     */
+    public void onDeadline(final long now) throws IOException {
+        // Nothing held back by default.
+    }
+
+    /**
+     * Forget anything known about the output's stream, e.g. after it reconnects. Data still held
+     * back is dropped.
+     */
+    public void reset() {
+        // Stateless by default.
+    }
+
+    /**
+     * @return A short account of what the stage has done so far, for the log, or null if there
+     *      is nothing to tell.
+     */
+    @Nullable
+    public String getSummary() {
+        return null;
+    }
+
+}
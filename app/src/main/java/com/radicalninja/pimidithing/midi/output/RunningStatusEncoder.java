@@ -0,0 +1,162 @@
+package com.radicalninja.pimidithing.midi.output;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Leaves out repeated status bytes (running status), cutting up to a third of the bytes of dense
+ * note and control streams on slow outputs.
+ *
+ * Note-offs that carry no release velocity (0 or 64) are sent as note-ons with velocity 0 when
+ * a note-on status is running, so a run of notes shares one status byte.
+ *
+ * Real-time bytes may be sent anywhere and leave the running status alone. SysEx and system
+ * common messages cancel it, so the next channel message carries its status again; so does
+ * reset(), called when the output reconnects, since the device may have lost track.
+ *
+ * This must be the last stage of a pipeline: anything after it that reorders, drops or inserts
+ * messages would break the running status it assumes.
+ */
+public class RunningStatusEncoder extends OutputStage {
+
+    private static final int NO_STATUS = 0;
+    private static final int VELOCITY_DEFAULT = 64;
+
+    private int runningStatus = NO_STATUS;
+    private byte[] scratch = new byte[16];
+
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * @return Bytes left out of the stream so far.
+     */
+    public long getBytesSaved() {
+        return bytesIn - bytesOut;
+    }
+
+    @Override
+    public String getSummary() {
+        final long in = bytesIn;
+        if (in == 0) {
+            return null;
+        }
+        final long saved = in - bytesOut;
+        return String.format(Locale.US, "running status saved %d of %d bytes (%.1f%%)",
+                saved, in, saved * 100d / in);
+    }
+
+    @Override
+    public void onSend(final byte[] msg, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        if (count <= 0) {
+            return;
+        }
+        if ((msg[offset] & 0x80) == 0) {
+            // The rest of a SysEx; running status was cancelled when it started.
+            pass(msg, offset, count, timestamp);
+            return;
+        }
+        if (scratch.length < count) {
+            scratch = new byte[count];
+        }
+        final int end = offset + count;
+        int in = offset;
+        int out = 0;
+        while (in < end) {
+            final int status = msg[in] & 0xFF;
+            if (status < 0x80) {
+                // Stray data; nothing to compress.
+                scratch[out++] = msg[in++];
+                continue;
+            }
+            if (status >= 0xF8) {
+                scratch[out++] = msg[in++];
+                continue;
+            }
+            final int length = messageLength(msg, in, end);
+            if (status >= 0xF0 || in + length > end) {
+                // SysEx, system common, or a message cut short; sent whole.
+                System.arraycopy(msg, in, scratch, out, Math.min(length, end - in));
+                out += Math.min(length, end - in);
+                in += length;
+                runningStatus = NO_STATUS;
+                continue;
+            }
+            int outStatus = status;
+            int velocity = (length > 2) ? msg[in + 2] : 0;
+            if ((status & 0xF0) == 0x80 && runningStatus == (0x90 | (status & 0x0F))
+                    && (velocity == 0 || velocity == VELOCITY_DEFAULT)) {
+                outStatus = runningStatus;
+                velocity = 0;
+            }
+            if (outStatus != runningStatus) {
+                scratch[out++] = (byte) outStatus;
+                runningStatus = outStatus;
+            }
+            scratch[out++] = msg[in + 1];
+            if (length > 2) {
+                scratch[out++] = (byte) velocity;
+            }
+            in += length;
+        }
+        bytesIn += count;
+        bytesOut += out;
+        getNext().send(scratch, 0, out, timestamp);
+    }
+
+    @Override
+    public void reset() {
+        runningStatus = NO_STATUS;
+    }
+
+    private void pass(final byte[] msg, final int offset, final int count, final long timestamp)
+            throws IOException {
+
+        bytesIn += count;
+        bytesOut += count;
+        getNext().send(msg, offset, count, timestamp);
+    }
+
+    /**
+     * @return Length of the message starting at index, including its status byte.
+     */
+    private static int messageLength(final byte[] msg, final int index, final int end) {
+        final int status = msg[index] & 0xFF;
+        switch (status & 0xF0) {
+            case 0xC0:
+            case 0xD0:
+                return 2;
+            case 0xF0:
+                break;
+            default:
+                return 3;
+        }
+        switch (status) {
+            case 0xF0:
+                for (int i = index + 1; i < end; i++) {
+                    if (msg[i] == (byte) 0xF7) {
+                        return i - index + 1;
+                    }
+                }
+                return end - index;
+            case 0xF1:
+            case 0xF3:
+                return 2;
+            case 0xF2:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+}
@@ -12,18 +12,42 @@ import com.radicalninja.pimidithing.midi.MidiCore;
 import com.radicalninja.pimidithing.midi.MidiDeviceController;
 import com.radicalninja.pimidithing.midi.MidiInputController;
 import com.radicalninja.pimidithing.midi.MidiOutputController;
+import com.radicalninja.pimidithing.midi.MpeLayout;
+import com.radicalninja.pimidithing.midi.router.clock.AnalogClock;
+import com.radicalninja.pimidithing.midi.router.clock.ClockTempoTracker;
+import com.radicalninja.pimidithing.midi.router.clock.ClockTick;
+import com.radicalninja.pimidithing.midi.router.clock.DigitalClock;
+import com.radicalninja.pimidithing.midi.router.clock.MtcChaser;
+import com.radicalninja.pimidithing.midi.router.clock.MtcGenerator;
+import com.radicalninja.pimidithing.midi.router.clock.MtcRate;
+import com.radicalninja.pimidithing.midi.router.clock.TapTempo;
+import com.radicalninja.pimidithing.midi.router.clock.Transport;
+import com.radicalninja.pimidithing.midi.router.clock.analog.AudioTrackSink;
+import com.radicalninja.pimidithing.midi.router.clock.analog.SyncPulseRenderer;
 import com.radicalninja.pimidithing.midi.router.filter.BaseFilter;
 import com.radicalninja.pimidithing.midi.router.filter.ChannelFilter;
+import com.radicalninja.pimidithing.midi.router.filter.ControlChangeFilter;
 import com.radicalninja.pimidithing.midi.router.filter.ChordFilter;
 import com.radicalninja.pimidithing.midi.router.filter.MessageTypeFilter;
+import com.radicalninja.pimidithing.midi.router.filter.ScaleFilter;
 import com.radicalninja.pimidithing.midi.router.filter.TransposeFilter;
 import com.radicalninja.pimidithing.midi.router.filter.VelocityFilter;
+import com.radicalninja.pimidithing.midi.router.filter.VoiceFilter;
+import com.radicalninja.pimidithing.midi.smf.MidiFilePlayer;
+import com.radicalninja.pimidithing.midi.smf.MidiFileRecorder;
+import com.radicalninja.pimidithing.midi.sysex.PatchLibrary;
+import com.radicalninja.pimidithing.midi.sysex.SysexCapture;
+import com.radicalninja.pimidithing.midi.sysex.SysexSender;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /* package */
 class Configurator {
@@ -35,11 +59,14 @@ class Configurator {
 
     private static final String TAG = Configurator.class.getCanonicalName();
 
+    private static final String FILTER_CC = "cc";
     private static final String FILTER_CHANNEL = "channels";
     private static final String FILTER_CHORD = "chord";
     private static final String FILTER_MESSAGE = "messageType";
+    private static final String FILTER_SCALE = "scale";
     private static final String FILTER_TRANSPOSE = "transpose";
     private static final String FILTER_VELOCITY = "velocity";
+    private static final String FILTER_VOICE = "voice";
 
     private final MidiCore midiCore = App.getInstance().getMidiCore();
     private final MidiRouter midiRouter;
@@ -79,6 +106,9 @@ class Configurator {
             for (final Map.Entry<String, JsonObject> filterConfig : filterConfigs.entrySet()) {
                 final BaseFilter filter;
                 switch (filterConfig.getKey()) {
+                    case FILTER_CC:
+                        filter = new ControlChangeFilter(filterConfig.getValue());
+                        break;
                     case FILTER_CHANNEL:
                         filter = new ChannelFilter(filterConfig.getValue());
                         break;
@@ -88,12 +118,18 @@ class Configurator {
                     case FILTER_MESSAGE:
                         filter = new MessageTypeFilter(filterConfig.getValue());
                         break;
+                    case FILTER_SCALE:
+                        filter = new ScaleFilter(filterConfig.getValue());
+                        break;
                     case FILTER_TRANSPOSE:
                         filter = new TransposeFilter(filterConfig.getValue());
                         break;
                     case FILTER_VELOCITY:
                         filter = new VelocityFilter(filterConfig.getValue());
                         break;
+                    case FILTER_VOICE:
+                        filter = new VoiceFilter(filterConfig.getValue());
+                        break;
                     default:
                         continue;
                 }
@@ -102,6 +138,184 @@ class Configurator {
             return result;
         }
 
+        void collectPlayers(final List<RouterConfig.Playback> playbackConfigs,
+                            final Transport transport,
+                            final RouterMapping mapping) {
+
+            if (null == playbackConfigs) {
+                return;
+            }
+            for (final RouterConfig.Playback playbackConfig : playbackConfigs) {
+                final File file = new File(playbackConfig.getPath());
+                if (!file.isFile()) {
+                    Log.w(TAG, "Skipping missing MIDI file: " + file.getPath());
+                    continue;
+                }
+                final MidiFilePlayer player = new MidiFilePlayer(
+                        file, playbackConfig.isLoop(), playbackConfig.isClockSync());
+                if (player.isClockSync()) {
+                    transport.addListener(player.getTransportListener());
+                }
+                mapping.addPlayer(player, playbackConfig.isAutoplay());
+            }
+        }
+
+        MidiFileRecorder createRecorder(final RouterConfig.Record recordConfig) {
+            if (null == recordConfig) {
+                return null;
+            }
+            final File file = new File(recordConfig.getPath());
+            final File directory = file.getAbsoluteFile().getParentFile();
+            if (null != directory && !directory.isDirectory() && !directory.mkdirs()) {
+                Log.w(TAG, "Unable to create recording directory: " + directory.getPath());
+                return null;
+            }
+            final long segmentNanos =
+                    TimeUnit.MINUTES.toNanos(recordConfig.getSegmentMinutes());
+            return new MidiFileRecorder(file, segmentNanos);
+        }
+
+        DigitalClock createDigitalClock(final RouterConfig.Clock clockConfig,
+                                        final Set<MidiOutputController> outputControllers) {
+
+            final double bpm = (null != clockConfig.getBpm())
+                    ? clockConfig.getBpm()
+                    : DigitalClock.DEFAULT_BPM;
+            final int ppqn = (null != clockConfig.getPpqn())
+                    ? clockConfig.getPpqn()
+                    : ClockTick.DEFAULT_PPQN;
+            final int patternLength = (null != clockConfig.getPatternLength())
+                    ? clockConfig.getPatternLength()
+                    : ClockTick.DEFAULT_PATTERN_LENGTH;
+            final DigitalClock clock =
+                    new DigitalClock(midiCore.getScheduler(), bpm, ppqn, patternLength);
+            final Map<String, Double> offsetConfigs = clockConfig.getOffsets();
+            final Map<MidiOutputController, Long> outputs = new HashMap<>();
+            for (final MidiOutputController output : outputControllers) {
+                final Double offsetMillis = (null != offsetConfigs)
+                        ? offsetConfigs.get(output.getPortRecord().getNickname())
+                        : null;
+                final long offsetNanos = (null != offsetMillis)
+                        ? (long) (offsetMillis * TimeUnit.MILLISECONDS.toNanos(1))
+                        : 0;
+                outputs.put(output, offsetNanos);
+            }
+            clock.setOutputs(outputs);
+            return clock;
+        }
+
+        TapTempo createTapTempo(final RouterConfig.Tap tapConfig, final DigitalClock clock) {
+            if (null == tapConfig) {
+                // Joystick taps only.
+                return new TapTempo(clock, TapTempo.TYPE_NOTE, -1, TapTempo.ANY_CHANNEL);
+            }
+            final int type = (tapConfig.isCc()) ? TapTempo.TYPE_CC : TapTempo.TYPE_NOTE;
+            return new TapTempo(clock, type, tapConfig.getNumber(), tapConfig.getChannel());
+        }
+
+        AnalogClock createAnalogClock(final RouterConfig.Analog analogConfig,
+                                      final DigitalClock clock) {
+
+            final int sampleRate = (null != analogConfig.getSampleRate())
+                    ? analogConfig.getSampleRate()
+                    : AnalogClock.DEFAULT_SAMPLE_RATE;
+            final long pulseWidthNanos =
+                    (long) (analogConfig.getPulseWidth() * TimeUnit.MILLISECONDS.toNanos(1));
+            final int polarity = (analogConfig.isNegative())
+                    ? SyncPulseRenderer.POLARITY_NEGATIVE
+                    : SyncPulseRenderer.POLARITY_POSITIVE;
+            return new AnalogClock(clock, new AudioTrackSink(sampleRate, 1),
+                    analogConfig.getDivisor(), pulseWidthNanos, analogConfig.getVolume(), polarity);
+        }
+
+        ZoneMap createZoneMap(final List<RouterConfig.Zone> zoneConfigs,
+                              final Set<MidiOutputController> outputControllers) {
+
+            final MidiOutputController[] allOutputs =
+                    outputControllers.toArray(new MidiOutputController[outputControllers.size()]);
+            final List<ZoneMap.Zone> zones = new ArrayList<>(zoneConfigs.size());
+            for (final RouterConfig.Zone zoneConfig : zoneConfigs) {
+                final List<MidiOutputController> outputs = new ArrayList<>();
+                for (final MidiOutputController output : outputControllers) {
+                    if (zoneConfig.getOutputs().isEmpty() || zoneConfig.getOutputs().contains(
+                            output.getPortRecord().getNickname())) {
+                        outputs.add(output);
+                    }
+                }
+                zones.add(new ZoneMap.Zone(outputs.toArray(new MidiOutputController[outputs.size()]),
+                        zoneConfig.getChannel(), zoneConfig.getOutputChannel(),
+                        zoneConfig.getLowNote(), zoneConfig.getHighNote(),
+                        zoneConfig.getLowVelocity(), zoneConfig.getHighVelocity(),
+                        zoneConfig.getTranspose()));
+            }
+            return new ZoneMap(zones, allOutputs);
+        }
+
+        void sendSysex(final RouterConfig.Sysex sysexConfig,
+                       @Nullable final RouterConfig.Device device,
+                       final SysexSender sysexSender,
+                       final CountDownWorkerThread.Latcher latcher,
+                       final Handler callbackHandler) throws InterruptedException {
+
+            final File file = new File(sysexConfig.getPath());
+            if (!file.isFile()) {
+                Log.w(TAG, "SysEx file not found: " + file.getPath());
+                return;
+            }
+            final List<String> outputNames = new ArrayList<>(1);
+            outputNames.add(sysexConfig.getOutput());
+            final Set<MidiOutputController> outputs = openOutputs(
+                    collectRecords(outputNames), latcher, getUnlatcher(), callbackHandler);
+            final RouterConfig.SysexPacing pacing = (null != device) ? device.getSysexPacing() : null;
+            final long delayNanos = (null != pacing)
+                    ? (long) (pacing.getDelay() * TimeUnit.MILLISECONDS.toNanos(1))
+                    : 0;
+            final int bytesPerSecond = (null != pacing) ? pacing.getBytesPerSecond() : 0;
+            for (final MidiOutputController output : outputs) {
+                sysexSender.send(file, output, delayNanos, bytesPerSecond);
+            }
+        }
+
+        @Nullable
+        SysexCapture createSysexCapture(final RouterConfig.Capture captureConfig) {
+            try {
+                return new SysexCapture(PatchLibrary.open(new File(captureConfig.getPath())));
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open patch library " + captureConfig.getPath(), e);
+                return null;
+            }
+        }
+
+        List<MidiCore.PortRecord> collectDeviceRecords(final List<RouterConfig.Device> devices) {
+            if (null == devices) {
+                return new ArrayList<>();
+            }
+            final List<MidiCore.PortRecord> result = new ArrayList<>(devices.size());
+            for (final RouterConfig.Device device : devices) {
+                final MidiCore.PortRecord portRecord = midiCore.getPortRecord(device);
+                if (null != portRecord) {
+                    result.add(portRecord);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return true if every named device is configured as speaking MIDI 2.0.
+         */
+        boolean isUmp(final RouterConfig config, final List<String> deviceNicknames) {
+            if (null == deviceNicknames || deviceNicknames.isEmpty()) {
+                return false;
+            }
+            for (final String deviceNickname : deviceNicknames) {
+                final RouterConfig.Device device = config.getDevice(deviceNickname);
+                if (null == device || !device.isUmp()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         @Override
         public void run(CountDownWorkerThread.Latcher latcher) {
             final RouterConfig config = getData();
@@ -111,6 +325,7 @@ class Configurator {
             }
             try {
                 final Handler callbackHandler = new Handler(getSubtaskLooper());
+                final Transport transport = midiRouter.getTransport();
                 // Iterate over mappings.
                 final Map<String, RouterConfig.Mapping> mappings = config.getMappings();
                 for (final Map.Entry<String, RouterConfig.Mapping> mappingEntry : mappings.entrySet()) {
@@ -120,6 +335,9 @@ class Configurator {
                     final List<MidiCore.PortRecord> inputRecords = collectRecords(mappingConfig.getInputs());
                     final Set<MidiInputController> inputControllers =
                             openInputs(inputRecords, latcher, getUnlatcher(), callbackHandler);
+                    for (final MidiInputController input : inputControllers) {
+                        input.addMessageListener(transport.getMessageListener());
+                    }
                     // - Outputs
                     final List<MidiCore.PortRecord> outputRecords = collectRecords(mappingConfig.getOutputs());
                     final Set<MidiOutputController> outputControllers =
@@ -131,10 +349,143 @@ class Configurator {
                     final RouterMapping mapping =
                             new RouterMapping(mappingName, inputControllers, outputControllers);
                     mapping.addFilters(filters);
+                    if (isUmp(config, mappingConfig.getInputs())
+                            && isUmp(config, mappingConfig.getOutputs())) {
+                        mapping.setUmp(true);
+                    }
+                    final RouterConfig.Listen listen = mappingConfig.getListen();
+                    mapping.setForwardActiveSense(null != listen && listen.isActiveSense());
+                    final RouterConfig.Mpe mpeConfig = mappingConfig.getMpe();
+                    if (null != mpeConfig) {
+                        mapping.setMpeLayout(
+                                new MpeLayout(mpeConfig.getLower(), mpeConfig.getUpper()));
+                    }
+                    // - Zones
+                    final List<RouterConfig.Zone> zoneConfigs = mappingConfig.getZones();
+                    if (null != zoneConfigs && !zoneConfigs.isEmpty()) {
+                        mapping.setZoneMap(createZoneMap(zoneConfigs, outputControllers));
+                    }
+                    // - MIDI file playback
+                    collectPlayers(mappingConfig.getPlayback(), transport, mapping);
+                    // - Recording
+                    final MidiFileRecorder recorder = createRecorder(mappingConfig.getRecord());
+                    if (null != recorder) {
+                        mapping.addRecorder(recorder);
+                    }
                     midiRouter.addMapping(mapping);
                 }
-                // Clock - TODO: Revisit when digital and analog clocks are implemented.
-                // Sysex -TODO: Revisit when sysex is fully implemented.
+                // Clock
+                final RouterConfig.Clock clockConfig = config.getClock();
+                final List<MidiCore.PortRecord> clockOutputRecords =
+                        collectDeviceRecords(clockConfig.getOutputs());
+                if (!clockOutputRecords.isEmpty()) {
+                    final Set<MidiOutputController> clockOutputs = openOutputs(
+                            clockOutputRecords, latcher, getUnlatcher(), callbackHandler);
+                    final DigitalClock digitalClock = createDigitalClock(clockConfig, clockOutputs);
+                    midiRouter.setDigitalClock(digitalClock);
+                    transport.setInternalClock(digitalClock);
+                    if (clockConfig.isTapEnabled()) {
+                        final RouterConfig.Tap tapConfig = clockConfig.getTap();
+                        final TapTempo tapTempo = createTapTempo(tapConfig, digitalClock);
+                        if (null != tapConfig) {
+                            final List<String> tapInputs = new ArrayList<>(1);
+                            tapInputs.add(tapConfig.getInput());
+                            final Set<MidiInputController> tapControllers = openInputs(
+                                    collectRecords(tapInputs), latcher, getUnlatcher(), callbackHandler);
+                            for (final MidiInputController input : tapControllers) {
+                                input.addMessageListener(tapTempo.getMessageListener());
+                            }
+                        }
+                        midiRouter.setTapTempo(tapTempo);
+                    }
+                }
+                final RouterConfig.Transport transportConfig = clockConfig.getTransport();
+                if (null != transportConfig) {
+                    final List<MidiCore.PortRecord> transportOutputRecords =
+                            collectDeviceRecords(transportConfig.getOutputs());
+                    if (!transportOutputRecords.isEmpty()) {
+                        transport.setOutputs(openOutputs(
+                                transportOutputRecords, latcher, getUnlatcher(), callbackHandler));
+                    }
+                }
+                final RouterConfig.Mtc mtcConfig = clockConfig.getMtc();
+                if (null != mtcConfig) {
+                    final MtcRate rate = MtcRate.fromFps(mtcConfig.getFps());
+                    if (null == rate) {
+                        Log.w(TAG, "Unsupported timecode frame rate: " + mtcConfig.getFps());
+                    } else {
+                        final List<MidiCore.PortRecord> mtcOutputRecords =
+                                collectDeviceRecords(mtcConfig.getOutputs());
+                        final DigitalClock digitalClock = midiRouter.getDigitalClock();
+                        if (!mtcOutputRecords.isEmpty() && null != digitalClock) {
+                            final Set<MidiOutputController> mtcOutputs = openOutputs(
+                                    mtcOutputRecords, latcher, getUnlatcher(), callbackHandler);
+                            final MtcGenerator generator = new MtcGenerator(digitalClock, rate);
+                            generator.setOutputs(mtcOutputs);
+                            transport.addClockListener(generator);
+                            midiRouter.setMtcGenerator(generator);
+                        }
+                        final List<MidiCore.PortRecord> mtcInputRecords =
+                                collectDeviceRecords(mtcConfig.getInputs());
+                        if (!mtcInputRecords.isEmpty()) {
+                            final Set<MidiInputController> mtcInputs = openInputs(
+                                    mtcInputRecords, latcher, getUnlatcher(), callbackHandler);
+                            final MtcChaser chaser = new MtcChaser();
+                            for (final MidiInputController input : mtcInputs) {
+                                input.addMessageListener(chaser.getMessageListener());
+                            }
+                            midiRouter.setMtcChaser(chaser);
+                        }
+                    }
+                }
+                final List<MidiCore.PortRecord> clockInputRecords =
+                        collectDeviceRecords(clockConfig.getInputs());
+                if (!clockInputRecords.isEmpty()) {
+                    final Set<MidiInputController> clockInputs = openInputs(
+                            clockInputRecords, latcher, getUnlatcher(), callbackHandler);
+                    for (final MidiInputController input : clockInputs) {
+                        input.addMessageListener(transport.getMessageListener());
+                        final ClockTempoTracker tracker = new ClockTempoTracker();
+                        input.addMessageListener(tracker.getMessageListener());
+                        midiRouter.addTempoTracker(input.getPortRecord().getNickname(), tracker);
+                    }
+                }
+                // Analog clock
+                final RouterConfig.Analog analogConfig = clockConfig.getAnalog();
+                final DigitalClock analogSource = midiRouter.getDigitalClock();
+                if (null != analogConfig && null != analogSource) {
+                    final AnalogClock analogClock = createAnalogClock(analogConfig, analogSource);
+                    transport.addClockListener(analogClock);
+                    analogClock.start();
+                    midiRouter.setAnalogClock(analogClock);
+                }
+                // Sysex
+                final List<RouterConfig.Sysex> sysexConfigs = config.getSysex();
+                if (!sysexConfigs.isEmpty()) {
+                    final SysexSender sysexSender = new SysexSender();
+                    for (final RouterConfig.Sysex sysexConfig : sysexConfigs) {
+                        sendSysex(sysexConfig, config.getDevice(sysexConfig.getOutput()),
+                                sysexSender, latcher, callbackHandler);
+                    }
+                    midiRouter.setSysexSender(sysexSender);
+                }
+                final RouterConfig.Capture captureConfig = config.getCapture();
+                if (null != captureConfig) {
+                    final List<MidiCore.PortRecord> captureInputRecords =
+                            collectDeviceRecords(captureConfig.getInputs());
+                    final SysexCapture capture = createSysexCapture(captureConfig);
+                    if (!captureInputRecords.isEmpty() && null != capture) {
+                        final Set<MidiInputController> captureInputs = openInputs(
+                                captureInputRecords, latcher, getUnlatcher(), callbackHandler);
+                        for (final MidiInputController input : captureInputs) {
+                            input.addRawListener(capture.getRawListener());
+                        }
+                        capture.start();
+                        midiRouter.setSysexCapture(capture);
+                    }
+                }
+                // Active Sensing; outputs are added to it as they are configured.
+                midiRouter.setActiveSensing(midiCore.getActiveSensing());
                 // Options -TODO: Revisit when options are implemented.
 //                final RouterConfig.Options options = config.getOptions();
                 // TODO: set setting for options.hotplug, options.syncConfigToUsb, options.verbose
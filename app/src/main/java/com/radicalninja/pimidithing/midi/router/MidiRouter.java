@@ -3,13 +3,28 @@ package com.radicalninja.pimidithing.midi.router;
 import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.radicalninja.pimidithing.midi.ActiveSensing;
 import com.radicalninja.pimidithing.midi.MidiInputController;
 import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.router.clock.AnalogClock;
+import com.radicalninja.pimidithing.midi.router.clock.ClockTempoTracker;
+import com.radicalninja.pimidithing.midi.router.clock.DigitalClock;
+import com.radicalninja.pimidithing.midi.router.clock.MtcChaser;
+import com.radicalninja.pimidithing.midi.router.clock.MtcGenerator;
+import com.radicalninja.pimidithing.midi.router.clock.TapTempo;
+import com.radicalninja.pimidithing.midi.router.clock.Transport;
+import com.radicalninja.pimidithing.midi.smf.MidiFilePlayer;
+import com.radicalninja.pimidithing.midi.sysex.SysexCapture;
+import com.radicalninja.pimidithing.midi.sysex.SysexSender;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MidiRouter {
 
@@ -18,11 +33,23 @@ public class MidiRouter {
         void onRouterError(final String message, @Nullable final Throwable error);
     }
 
+    private static final String TAG = MidiRouter.class.getCanonicalName();
+
     private final List<RouterMapping> mappings = new ArrayList<>();
+    private final Map<String, ClockTempoTracker> tempoTrackers = new ConcurrentHashMap<>();
 
     private boolean started = false;
     private boolean paused = false;
     private RouterConfig config;
+    private DigitalClock digitalClock;
+    private TapTempo tapTempo;
+    private MtcGenerator mtcGenerator;
+    private MtcChaser mtcChaser;
+    private AnalogClock analogClock;
+    private SysexSender sysexSender;
+    private SysexCapture sysexCapture;
+    private ActiveSensing activeSensing;
+    private final Transport transport = new Transport();
 
     public MidiRouter(final RouterConfig config) {
         setConfig(config);
@@ -44,6 +71,10 @@ public class MidiRouter {
                     @Override
                     public void onFinish() {
                         started = true;
+                        for (final RouterMapping mapping : mappings) {
+                            mapping.startRecording();
+                            mapping.startPlayback();
+                        }
                         final Runnable callback = new Runnable() {
                             @Override
                             public void run() {
@@ -60,6 +91,10 @@ public class MidiRouter {
     RouterMapping.MappingMessageListener onMessage = new RouterMapping.MappingMessageListener() {
         @Override
         public boolean onMessage(MidiInputController input, MidiMessage message, RouterMapping mapping) {
+            if (message.getType() == MidiMessage.MessageType.ACTIVE_SENSING) {
+                onActiveSense(input, message, mapping);
+                return false;
+            }
             if (paused || !started) {
                 return false;
             }
@@ -76,10 +111,180 @@ public class MidiRouter {
         }
     };
 
+    private void onActiveSense(@Nullable final MidiInputController input,
+                               final MidiMessage message, final RouterMapping mapping) {
+
+        final ActiveSensing activeSensing = this.activeSensing;
+        if (null != input && null != activeSensing) {
+            activeSensing.onActiveSense(input);
+        }
+        if (paused || !started || !mapping.isForwardActiveSense()) {
+            return;
+        }
+        try {
+            mapping.broadcast(message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final ActiveSensing.OnTimeoutListener onSensingTimeout =
+            new ActiveSensing.OnTimeoutListener() {
+                @Override
+                public void onTimeout(MidiInputController input) {
+                    for (final RouterMapping mapping : mappings) {
+                        if (!mapping.hasInput(input)) {
+                            continue;
+                        }
+                        try {
+                            mapping.allNotesOff();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error sending all notes off after an input timed out.", e);
+                        }
+                    }
+                }
+            };
+
     public boolean started() {
         return started;
     }
 
+    /**
+     * @return The internal clock, or null if no clock outputs are configured.
+     */
+    @Nullable
+    public DigitalClock getDigitalClock() {
+        return digitalClock;
+    }
+
+    /* package */
+    void setDigitalClock(@Nullable final DigitalClock digitalClock) {
+        this.digitalClock = digitalClock;
+    }
+
+    /**
+     * @return The tap tempo engine, or null if tapping is disabled or there is no clock.
+     */
+    @Nullable
+    public TapTempo getTapTempo() {
+        return tapTempo;
+    }
+
+    /* package */
+    void setTapTempo(@Nullable final TapTempo tapTempo) {
+        this.tapTempo = tapTempo;
+    }
+
+    /**
+     * @return The transport shared by everything that follows the clock.
+     */
+    @NonNull
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return The timecode generator, or null if no timecode outputs are configured.
+     */
+    @Nullable
+    public MtcGenerator getMtcGenerator() {
+        return mtcGenerator;
+    }
+
+    /* package */
+    void setMtcGenerator(@Nullable final MtcGenerator mtcGenerator) {
+        this.mtcGenerator = mtcGenerator;
+    }
+
+    /**
+     * @return The timecode chaser, or null if no timecode inputs are configured.
+     */
+    @Nullable
+    public MtcChaser getMtcChaser() {
+        return mtcChaser;
+    }
+
+    /* package */
+    void setMtcChaser(@Nullable final MtcChaser mtcChaser) {
+        this.mtcChaser = mtcChaser;
+    }
+
+    /**
+     * @return The analog sync output, or null if it is not configured.
+     */
+    @Nullable
+    public AnalogClock getAnalogClock() {
+        return analogClock;
+    }
+
+    /* package */
+    void setAnalogClock(@Nullable final AnalogClock analogClock) {
+        this.analogClock = analogClock;
+    }
+
+    /**
+     * @return The SysEx file sender, or null if no SysEx files are configured.
+     */
+    @Nullable
+    public SysexSender getSysexSender() {
+        return sysexSender;
+    }
+
+    /* package */
+    void setSysexSender(@Nullable final SysexSender sysexSender) {
+        this.sysexSender = sysexSender;
+    }
+
+    /**
+     * @return The SysEx dump capture, or null if it is not configured.
+     */
+    @Nullable
+    public SysexCapture getSysexCapture() {
+        return sysexCapture;
+    }
+
+    /* package */
+    void setSysexCapture(@Nullable final SysexCapture sysexCapture) {
+        this.sysexCapture = sysexCapture;
+    }
+
+    /**
+     * @return Active Sensing, or null if it is not set up.
+     */
+    @Nullable
+    public ActiveSensing getActiveSensing() {
+        return activeSensing;
+    }
+
+    /* package */
+    void setActiveSensing(@Nullable final ActiveSensing activeSensing) {
+        if (null != this.activeSensing) {
+            this.activeSensing.setOnTimeoutListener(null);
+        }
+        this.activeSensing = activeSensing;
+        if (null != activeSensing) {
+            activeSensing.setOnTimeoutListener(onSensingTimeout);
+        }
+    }
+
+    /**
+     * @param nickname - Nickname of a clock input.
+     * @return The tempo tracker for that input, or null if it is not a configured clock input.
+     */
+    @Nullable
+    public ClockTempoTracker getTempoTracker(final String nickname) {
+        return tempoTrackers.get(nickname);
+    }
+
+    public Map<String, ClockTempoTracker> getTempoTrackers() {
+        return Collections.unmodifiableMap(tempoTrackers);
+    }
+
+    /* package */
+    void addTempoTracker(final String nickname, final ClockTempoTracker tracker) {
+        tempoTrackers.put(nickname, tracker);
+    }
+
     void pause() {
         paused = true;
     }
@@ -93,7 +298,36 @@ public class MidiRouter {
     }
 
     void stop() {
-        // TODO:
+        // TODO: Deactivate mappings and close controllers.
+        for (final RouterMapping mapping : mappings) {
+            for (final MidiFilePlayer player : mapping.getPlayers()) {
+                transport.removeListener(player.getTransportListener());
+            }
+            mapping.stopPlayback();
+            mapping.stopRecording();
+        }
+        if (null != digitalClock) {
+            digitalClock.shutdown();
+        }
+        if (null != mtcGenerator) {
+            transport.removeClockListener(mtcGenerator);
+            mtcGenerator.shutdown();
+        }
+        if (null != analogClock) {
+            transport.removeClockListener(analogClock);
+            analogClock.shutdown();
+        }
+        if (null != sysexSender) {
+            sysexSender.stop();
+        }
+        if (null != sysexCapture) {
+            sysexCapture.stop();
+        }
+        if (null != activeSensing) {
+            // Shared with MidiCore, which keeps sending Active Sensing to its outputs.
+            activeSensing.stopWatching();
+        }
+        transport.setInternalClock(null);
     }
 
     /* package */
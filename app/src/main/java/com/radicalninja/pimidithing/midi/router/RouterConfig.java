@@ -8,6 +8,8 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 import com.radicalninja.pimidithing.App;
+import com.radicalninja.pimidithing.midi.MpeLayout;
+import com.radicalninja.pimidithing.midi.output.BandwidthShaper;
 import com.radicalninja.pimidithing.util.FileUtils;
 import com.radicalninja.pimidithing.util.JsonUtils;
 
@@ -24,24 +26,66 @@ public class RouterConfig {
     private static final String JSON_KEY_DEVICES = "devices";
     private static final String JSON_KEY_NAME = "name";
     private static final String JSON_KEY_PORT = "port";
+    private static final String JSON_KEY_COALESCE = "coalesce";
+    private static final String JSON_KEY_WINDOW = "window";
+    private static final String JSON_KEY_DELTA = "delta";
+    private static final String JSON_KEY_BANDWIDTH = "bandwidth";
+    private static final String JSON_KEY_BYTES_PER_SECOND = "bytesPerSecond";
+    private static final String JSON_KEY_BUFFER = "buffer";
+    private static final String JSON_KEY_RUNNING_STATUS = "runningStatus";
+    private static final String JSON_KEY_DELAY = "delay";
+    private static final String JSON_KEY_ACTIVE_SENSE = "activeSense";
+    private static final String JSON_KEY_MPE_COLLAPSE = "mpeCollapse";
+    private static final String JSON_KEY_ASSEMBLE_PARAMETERS = "assembleParameters";
+    private static final String JSON_KEY_UMP = "ump";
 
     private static final String JSON_KEY_MAPPINGS = "mappings";
     private static final String JSON_KEY_INPUTS = "inputs";
     private static final String JSON_KEY_OUTPUTS = "outputs";
     private static final String JSON_KEY_FILTERS = "filters";
     private static final String JSON_KEY_LISTEN = "listen";
+    private static final String JSON_KEY_PLAYBACK = "playback";
+    private static final String JSON_KEY_LOOP = "loop";
+    private static final String JSON_KEY_CLOCK_SYNC = "clockSync";
+    private static final String JSON_KEY_AUTOPLAY = "autoplay";
+    private static final String JSON_KEY_RECORD = "record";
+    private static final String JSON_KEY_SEGMENT_MINUTES = "segmentMinutes";
+    private static final String JSON_KEY_ZONES = "zones";
+    private static final String JSON_KEY_OUTPUT_CHANNEL = "outputChannel";
+    private static final String JSON_KEY_NOTES = "notes";
+    private static final String JSON_KEY_VELOCITY = "velocity";
+    private static final String JSON_KEY_TRANSPOSE = "transpose";
+    private static final String JSON_KEY_MPE = "mpe";
+    private static final String JSON_KEY_LOWER = "lower";
+    private static final String JSON_KEY_UPPER = "upper";
 
     private static final String JSON_KEY_CLOCK = "clock";
     private static final String JSON_KEY_BPM = "bpm";
     private static final String JSON_KEY_PPQN = "ppqn";
     private static final String JSON_KEY_PATTERN_LENGTH = "patternLength";
     private static final String JSON_KEY_TAP_ENABLED = "tapEnabled";
+    private static final String JSON_KEY_OFFSETS = "offsets";
+    private static final String JSON_KEY_TAP = "tap";
+    private static final String JSON_KEY_MTC = "mtc";
+    private static final String JSON_KEY_FPS = "fps";
+    private static final String JSON_KEY_TRANSPORT = "transport";
+    private static final String JSON_KEY_INPUT = "input";
+    private static final String JSON_KEY_NUMBER = "number";
+    private static final String JSON_KEY_CHANNEL = "channel";
+    private static final String TAP_TYPE_NOTE = "note";
+    private static final String TAP_TYPE_CC = "cc";
     private static final String JSON_KEY_ANALOG = "analog";
     private static final String JSON_KEY_VOLUME = "volume";
+    private static final String JSON_KEY_DIVISOR = "divisor";
+    private static final String JSON_KEY_PULSE_WIDTH = "pulseWidth";
+    private static final String JSON_KEY_POLARITY = "polarity";
+    private static final String JSON_KEY_SAMPLE_RATE = "sampleRate";
+    private static final String POLARITY_NEGATIVE = "negative";
 
     private static final String JSON_KEY_SYSEX = "sysex";
     private static final String JSON_KEY_PATH = "path";
     private static final String JSON_KEY_OUTPUT = "output";
+    private static final String JSON_KEY_CAPTURE = "capture";
 
     private static final String JSON_KEY_OPTIONS = "options";
     private static final String JSON_KEY_LED = "led";
@@ -55,6 +99,7 @@ public class RouterConfig {
     private final Map<String, Mapping> mappings = new HashMap<>();
     private final Clock clock = new Clock();
     private final List<Sysex> sysex = new ArrayList<>();
+    private Capture capture;
     private final Options options = new Options();
 
     public static RouterConfig fromPath(final String path) throws IOException {
@@ -95,6 +140,13 @@ public class RouterConfig {
         return sysex;
     }
 
+    /**
+     * @return Where to capture SysEx dumps from, or null to not capture them.
+     */
+    public Capture getCapture() {
+        return capture;
+    }
+
     public Options getOptions() {
         return options;
     }
@@ -102,6 +154,14 @@ public class RouterConfig {
     public static class Device {
         private String name;
         private Integer port;
+        private Coalesce coalesce;
+        private Bandwidth bandwidth;
+        private boolean runningStatus;
+        private SysexPacing sysexPacing;
+        private boolean activeSense;
+        private Integer mpeCollapse;
+        private boolean assembleParameters;
+        private boolean ump;
 
         public String getName() {
             return name;
@@ -110,6 +170,118 @@ public class RouterConfig {
         public Integer getPort() {
             return port;
         }
+
+        /**
+         * @return Control change thinning for this output, or null to send every value.
+         */
+        public Coalesce getCoalesce() {
+            return coalesce;
+        }
+
+        /**
+         * @return Speed of the link behind this output, or null to send as fast as possible.
+         */
+        public Bandwidth getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * @return true to leave repeated status bytes out of what is sent to this output.
+         */
+        public boolean isRunningStatus() {
+            return runningStatus;
+        }
+
+        /**
+         * @return How to pace SysEx files sent to this output, or null to send them at full speed.
+         */
+        public SysexPacing getSysexPacing() {
+            return sysexPacing;
+        }
+
+        /**
+         * @return true to send Active Sensing to this output.
+         */
+        public boolean isActiveSense() {
+            return activeSense;
+        }
+
+        /**
+         * @return Channel (1 - 16) to fold MPE down to for this output, or null to send MPE as is.
+         */
+        public Integer getMpeCollapse() {
+            return mpeCollapse;
+        }
+
+        /**
+         * @return true to read 14-bit controllers and RPN / NRPN changes from this input as whole
+         * parameter changes.
+         */
+        public boolean isAssembleParameters() {
+            return assembleParameters;
+        }
+
+        /**
+         * @return true if the device speaks MIDI 2.0, so mappings between such devices can filter
+         * in UMP space.
+         */
+        public boolean isUmp() {
+            return ump;
+        }
+    }
+
+    public static class Coalesce {
+        private double window;
+        private int delta;
+
+        /**
+         * @return Shortest time between two values of a controller, in milliseconds.
+         */
+        public double getWindow() {
+            return window;
+        }
+
+        /**
+         * @return Change that is sent without waiting for the window, or 0 to always wait.
+         */
+        public int getDelta() {
+            return delta;
+        }
+    }
+
+    public static class Bandwidth {
+        private int bytesPerSecond;
+        private int buffer;
+
+        public int getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return How many bytes the link can take at once.
+         */
+        public int getBuffer() {
+            return buffer;
+        }
+    }
+
+    public static class SysexPacing {
+        private double delay;
+        private int bytesPerSecond;
+
+        /**
+         * @return Gap after each SysEx message, in milliseconds.
+         */
+        public double getDelay() {
+            return delay;
+        }
+
+        /**
+         * @return Fastest rate to send SysEx at, or 0 for no limit.
+         */
+        public int getBytesPerSecond() {
+            return bytesPerSecond;
+        }
     }
 
     public static class Listen {
@@ -125,16 +297,59 @@ public class RouterConfig {
             return sysex;
         }
 
+        /**
+         * @return true to pass Active Sensing from the mapping's inputs on to its outputs.
+         */
         public boolean isActiveSense() {
             return activeSense;
         }
     }
 
+    public static class Playback {
+        private String path;
+        private boolean loop;
+        private boolean clockSync;
+        private boolean autoplay;
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isLoop() {
+            return loop;
+        }
+
+        public boolean isClockSync() {
+            return clockSync;
+        }
+
+        public boolean isAutoplay() {
+            return autoplay;
+        }
+    }
+
+    public static class Record {
+        private String path;
+        private int segmentMinutes;
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getSegmentMinutes() {
+            return segmentMinutes;
+        }
+    }
+
     public static class Mapping {
         private List<String> inputs;
         private List<String> outputs;
         private Map<String, JsonObject> filters;
         private Listen listen;
+        private List<Playback> playback;
+        private Record record;
+        private List<Zone> zones;
+        private Mpe mpe;
 
         public List<String> getInputs() {
             return inputs;
@@ -151,6 +366,99 @@ public class RouterConfig {
         public Listen getListen() {
             return listen;
         }
+
+        public List<Playback> getPlayback() {
+            return playback;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+
+        /**
+         * @return Keyboard zones to route to, or null to broadcast to every output.
+         */
+        public List<Zone> getZones() {
+            return zones;
+        }
+
+        /**
+         * @return MPE zones of the inputs, or null if they aren't MPE.
+         */
+        public Mpe getMpe() {
+            return mpe;
+        }
+    }
+
+    public static class Mpe {
+        private int lower;
+        private int upper;
+
+        /**
+         * @return Member channels of the lower zone until the inputs configure it, or 0 for none.
+         */
+        public int getLower() {
+            return lower;
+        }
+
+        /**
+         * @return Member channels of the upper zone until the inputs configure it, or 0 for none.
+         */
+        public int getUpper() {
+            return upper;
+        }
+    }
+
+    public static class Zone {
+        private List<String> outputs;
+        private int channel;
+        private int outputChannel;
+        private int lowNote;
+        private int highNote;
+        private int lowVelocity;
+        private int highVelocity;
+        private int transpose;
+
+        /**
+         * @return Nicknames of the mapping outputs this zone plays on; empty for all of them.
+         */
+        public List<String> getOutputs() {
+            return outputs;
+        }
+
+        /**
+         * @return Input channel, 1 - 16, or 0 for any.
+         */
+        public int getChannel() {
+            return channel;
+        }
+
+        /**
+         * @return Output channel, 1 - 16, or 0 to keep the input channel.
+         */
+        public int getOutputChannel() {
+            return outputChannel;
+        }
+
+        public int getLowNote() {
+            return lowNote;
+        }
+
+        public int getHighNote() {
+            return highNote;
+        }
+
+        public int getLowVelocity() {
+            return lowVelocity;
+        }
+
+        public int getHighVelocity() {
+            return highVelocity;
+        }
+
+        public int getTranspose() {
+            return transpose;
+        }
     }
 
     public static class Clock {
@@ -158,8 +466,13 @@ public class RouterConfig {
         private List<Device> outputs;
         private Integer bpm;
         private Integer ppqn;
+        private Integer patternLength;
         private boolean tapEnabled;
-        private JsonObject analog;  // TODO
+        private Map<String, Double> offsets;
+        private Tap tap;
+        private Mtc mtc;
+        private Transport transport;
+        private Analog analog;
 
         public List<Device> getInputs() {
             return inputs;
@@ -177,15 +490,146 @@ public class RouterConfig {
             return ppqn;
         }
 
+        public Integer getPatternLength() {
+            return patternLength;
+        }
+
         public boolean isTapEnabled() {
             return tapEnabled;
         }
 
-        public JsonObject getAnalog() {
+        /**
+         * @return Output nicknames mapped to their clock offset in milliseconds. Negative values
+         *      send clock earlier to that output, positive values later.
+         */
+        public Map<String, Double> getOffsets() {
+            return offsets;
+        }
+
+        public Tap getTap() {
+            return tap;
+        }
+
+        public Mtc getMtc() {
+            return mtc;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public Analog getAnalog() {
             return analog;
         }
     }
 
+    public static class Tap {
+        private String input;
+        private boolean cc;
+        private int number;
+        private int channel;
+
+        public String getInput() {
+            return input;
+        }
+
+        /**
+         * @return true if taps are CC messages, false if they are notes.
+         */
+        public boolean isCc() {
+            return cc;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return Channel to listen on (1 - 16), or 0 for any channel.
+         */
+        public int getChannel() {
+            return channel;
+        }
+    }
+
+    public static class Mtc {
+        private double fps;
+        private List<Device> inputs;
+        private List<Device> outputs;
+
+        /**
+         * @return Frame rate for generated timecode: 24, 25, 29.97 (drop-frame) or 30.
+         */
+        public double getFps() {
+            return fps;
+        }
+
+        /**
+         * @return Inputs to chase timecode from.
+         */
+        public List<Device> getInputs() {
+            return inputs;
+        }
+
+        /**
+         * @return Outputs to send timecode generated from the internal clock to.
+         */
+        public List<Device> getOutputs() {
+            return outputs;
+        }
+    }
+
+    public static class Analog {
+        private int volume;
+        private int divisor;
+        private double pulseWidth;
+        private boolean negative;
+        private Integer sampleRate;
+
+        /**
+         * @return Pulse level, 0 - 100.
+         */
+        public int getVolume() {
+            return volume;
+        }
+
+        /**
+         * @return Clock pulses per analog pulse.
+         */
+        public int getDivisor() {
+            return divisor;
+        }
+
+        /**
+         * @return Pulse width in milliseconds.
+         */
+        public double getPulseWidth() {
+            return pulseWidth;
+        }
+
+        /**
+         * @return true if pulses go negative instead of positive.
+         */
+        public boolean isNegative() {
+            return negative;
+        }
+
+        public Integer getSampleRate() {
+            return sampleRate;
+        }
+    }
+
+    public static class Transport {
+        private List<Device> outputs;
+
+        /**
+         * @return Outputs to forward transport changes from inputs to.
+         */
+        public List<Device> getOutputs() {
+            return outputs;
+        }
+    }
+
     public static class Sysex {
         private String path;
         private String output;
@@ -199,6 +643,22 @@ public class RouterConfig {
         }
     }
 
+    public static class Capture {
+        private String path;
+        private List<Device> inputs;
+
+        /**
+         * @return Directory of the patch library dumps are stored in.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public List<Device> getInputs() {
+            return inputs;
+        }
+    }
+
     public static class Options {
         private boolean hotplug;
         private boolean syncConfigToUsb;
@@ -257,6 +717,275 @@ public class RouterConfig {
             return result;
         }
 
+        public Capture parseCaptureJson(final JsonElement captureJson,
+                                        final Map<String, Device> devicePool,
+                                        final JsonDeserializationContext context) {
+
+            if (null == captureJson || !captureJson.isJsonObject()) {
+                return null;
+            }
+            final JsonObject captureObject = captureJson.getAsJsonObject();
+            final String path = JsonUtils.getString(captureObject, JSON_KEY_PATH);
+            if (null == path) {
+                return null;
+            }
+            final Capture capture = new Capture();
+            capture.path = path;
+            capture.inputs = fetchDevices(captureObject.get(JSON_KEY_INPUTS), devicePool, context);
+            return capture;
+        }
+
+        public Listen parseListenJson(final JsonElement listenJson) {
+            final Listen listen = new Listen();
+            if (null == listenJson || !listenJson.isJsonObject()) {
+                return listen;
+            }
+            listen.clock = JsonUtils.getBoolean(listenJson, JSON_KEY_CLOCK);
+            listen.sysex = JsonUtils.getBoolean(listenJson, JSON_KEY_SYSEX);
+            listen.activeSense = JsonUtils.getBoolean(listenJson, JSON_KEY_ACTIVE_SENSE);
+            return listen;
+        }
+
+        public List<Playback> parsePlaybackJson(final JsonElement playbackJson) {
+            final List<Playback> result = new ArrayList<>();
+            if (null != playbackJson && playbackJson.isJsonArray()) {
+                for (final JsonElement playbackItemJson : playbackJson.getAsJsonArray()) {
+                    if (playbackItemJson.isJsonObject()) {
+                        final JsonObject playbackItemObject = playbackItemJson.getAsJsonObject();
+                        final String path = JsonUtils.getString(playbackItemObject, JSON_KEY_PATH);
+                        if (null != path) {
+                            final Playback playback = new Playback();
+                            playback.path = path;
+                            playback.loop = JsonUtils.getBoolean(playbackItemObject, JSON_KEY_LOOP);
+                            playback.clockSync =
+                                    JsonUtils.getBoolean(playbackItemObject, JSON_KEY_CLOCK_SYNC);
+                            playback.autoplay =
+                                    JsonUtils.getBoolean(playbackItemObject, JSON_KEY_AUTOPLAY);
+                            result.add(playback);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        public Map<String, Double> parseOffsetsJson(final JsonElement offsetsJson) {
+            final Map<String, Double> result = new HashMap<>();
+            if (null != offsetsJson && offsetsJson.isJsonObject()) {
+                for (final Map.Entry<String, JsonElement> entry
+                        : offsetsJson.getAsJsonObject().entrySet()) {
+                    final JsonElement value = entry.getValue();
+                    if (null != value && value.isJsonPrimitive()
+                            && value.getAsJsonPrimitive().isNumber()) {
+                        result.put(entry.getKey(), value.getAsDouble());
+                    }
+                }
+            }
+            return result;
+        }
+
+        public Tap parseTapJson(final JsonElement tapJson) {
+            if (null == tapJson || !tapJson.isJsonObject()) {
+                return null;
+            }
+            final JsonObject tapObject = tapJson.getAsJsonObject();
+            final String input = JsonUtils.getString(tapObject, JSON_KEY_INPUT);
+            final String type = JsonUtils.getString(tapObject, JSON_KEY_TYPE, TAP_TYPE_NOTE);
+            final Integer number = JsonUtils.getInteger(tapObject, JSON_KEY_NUMBER);
+            if (null == input || null == number) {
+                return null;
+            }
+            final Tap tap = new Tap();
+            tap.input = input;
+            tap.cc = TAP_TYPE_CC.equalsIgnoreCase(type);
+            tap.number = number;
+            final Integer channel = JsonUtils.getInteger(tapObject, JSON_KEY_CHANNEL);
+            tap.channel = (null != channel) ? channel : 0;
+            return tap;
+        }
+
+        public Mtc parseMtcJson(final JsonElement mtcJson,
+                                final Map<String, Device> devicePool,
+                                final JsonDeserializationContext context) {
+
+            if (null == mtcJson || !mtcJson.isJsonObject()) {
+                return null;
+            }
+            final JsonObject mtcObject = mtcJson.getAsJsonObject();
+            final Mtc mtc = new Mtc();
+            final JsonElement fpsJson = mtcObject.get(JSON_KEY_FPS);
+            mtc.fps = (null != fpsJson && fpsJson.isJsonPrimitive()) ? fpsJson.getAsDouble() : 30;
+            mtc.inputs = fetchDevices(mtcObject.get(JSON_KEY_INPUTS), devicePool, context);
+            mtc.outputs = fetchDevices(mtcObject.get(JSON_KEY_OUTPUTS), devicePool, context);
+            return mtc;
+        }
+
+        public Coalesce parseCoalesceJson(final JsonElement coalesceJson) {
+            if (null == coalesceJson || !coalesceJson.isJsonObject()) {
+                return null;
+            }
+            final Coalesce coalesce = new Coalesce();
+            final Double window = JsonUtils.getDouble(coalesceJson, JSON_KEY_WINDOW);
+            coalesce.window = (null != window) ? Math.max(0, window) : 10;
+            final Integer delta = JsonUtils.getInteger(coalesceJson, JSON_KEY_DELTA);
+            coalesce.delta = (null != delta) ? Math.max(0, delta) : 0;
+            return coalesce;
+        }
+
+        public Bandwidth parseBandwidthJson(final JsonElement bandwidthJson) {
+            if (null == bandwidthJson || !bandwidthJson.isJsonObject()) {
+                return null;
+            }
+            final Bandwidth bandwidth = new Bandwidth();
+            final Integer bytesPerSecond =
+                    JsonUtils.getInteger(bandwidthJson, JSON_KEY_BYTES_PER_SECOND);
+            bandwidth.bytesPerSecond = (null != bytesPerSecond)
+                    ? Math.max(1, bytesPerSecond)
+                    : BandwidthShaper.DIN_BYTES_PER_SECOND;
+            final Integer buffer = JsonUtils.getInteger(bandwidthJson, JSON_KEY_BUFFER);
+            bandwidth.buffer = (null != buffer) ? buffer : BandwidthShaper.DEFAULT_BUFFER_BYTES;
+            return bandwidth;
+        }
+
+        public SysexPacing parseSysexPacingJson(final JsonElement pacingJson) {
+            if (null == pacingJson || !pacingJson.isJsonObject()) {
+                return null;
+            }
+            final SysexPacing pacing = new SysexPacing();
+            final Double delay = JsonUtils.getDouble(pacingJson, JSON_KEY_DELAY);
+            pacing.delay = (null != delay) ? Math.max(0, delay) : 0;
+            final Integer bytesPerSecond =
+                    JsonUtils.getInteger(pacingJson, JSON_KEY_BYTES_PER_SECOND);
+            pacing.bytesPerSecond = (null != bytesPerSecond) ? Math.max(0, bytesPerSecond) : 0;
+            return pacing;
+        }
+
+        public Analog parseAnalogJson(final JsonElement analogJson) {
+            if (null == analogJson || !analogJson.isJsonObject()) {
+                return null;
+            }
+            final Analog analog = new Analog();
+            final Integer volume = JsonUtils.getInteger(analogJson, JSON_KEY_VOLUME);
+            analog.volume = (null != volume) ? Math.max(0, Math.min(100, volume)) : 100;
+            final Integer divisor = JsonUtils.getInteger(analogJson, JSON_KEY_DIVISOR);
+            analog.divisor = (null != divisor) ? Math.max(1, divisor) : 1;
+            final Double pulseWidth = JsonUtils.getDouble(analogJson, JSON_KEY_PULSE_WIDTH);
+            analog.pulseWidth = (null != pulseWidth) ? pulseWidth : 5;
+            analog.negative = POLARITY_NEGATIVE.equalsIgnoreCase(
+                    JsonUtils.getString(analogJson, JSON_KEY_POLARITY));
+            analog.sampleRate = JsonUtils.getInteger(analogJson, JSON_KEY_SAMPLE_RATE);
+            return analog;
+        }
+
+        public Transport parseTransportJson(final JsonElement transportJson,
+                                            final Map<String, Device> devicePool,
+                                            final JsonDeserializationContext context) {
+
+            if (null == transportJson || !transportJson.isJsonObject()) {
+                return null;
+            }
+            final Transport transport = new Transport();
+            transport.outputs = fetchDevices(
+                    transportJson.getAsJsonObject().get(JSON_KEY_OUTPUTS), devicePool, context);
+            return transport;
+        }
+
+        public List<Zone> parseZonesJson(final JsonElement zonesJson,
+                                         final JsonDeserializationContext context) {
+
+            if (null == zonesJson || !zonesJson.isJsonArray()) {
+                return null;
+            }
+            final List<Zone> zones = new ArrayList<>();
+            for (final JsonElement zoneJson : zonesJson.getAsJsonArray()) {
+                if (!zoneJson.isJsonObject()) {
+                    continue;
+                }
+                final JsonObject zoneObject = zoneJson.getAsJsonObject();
+                final Zone zone = new Zone();
+                final List<String> outputs =
+                        JsonUtils.getAsList(zoneObject.get(JSON_KEY_OUTPUTS), String.class, context);
+                zone.outputs = (null != outputs) ? outputs : new ArrayList<String>();
+                final Integer channel = JsonUtils.getInteger(zoneObject, JSON_KEY_CHANNEL);
+                zone.channel = (null != channel) ? Math.max(0, Math.min(16, channel)) : 0;
+                final Integer outputChannel = JsonUtils.getInteger(zoneObject, JSON_KEY_OUTPUT_CHANNEL);
+                zone.outputChannel =
+                        (null != outputChannel) ? Math.max(0, Math.min(16, outputChannel)) : 0;
+                final int[] notes = parseRange(zoneObject.get(JSON_KEY_NOTES), 0, 127);
+                zone.lowNote = notes[0];
+                zone.highNote = notes[1];
+                final int[] velocity = parseRange(zoneObject.get(JSON_KEY_VELOCITY), 1, 127);
+                zone.lowVelocity = velocity[0];
+                zone.highVelocity = velocity[1];
+                final Integer transpose = JsonUtils.getInteger(zoneObject, JSON_KEY_TRANSPOSE);
+                zone.transpose = (null != transpose) ? transpose : 0;
+                zones.add(zone);
+            }
+            return zones;
+        }
+
+        /**
+         * @return MPE settings from either an object with lower / upper member channel counts, or
+         *      true to wait for the inputs to configure their zones. Null if MPE is off.
+         */
+        public Mpe parseMpeJson(final JsonElement mpeJson) {
+            if (null == mpeJson) {
+                return null;
+            }
+            if (mpeJson.isJsonPrimitive()) {
+                try {
+                    return mpeJson.getAsBoolean() ? new Mpe() : null;
+                } catch (ClassCastException | IllegalStateException e) {
+                    return null;
+                }
+            }
+            if (!mpeJson.isJsonObject()) {
+                return null;
+            }
+            final Mpe mpe = new Mpe();
+            final Integer lower = JsonUtils.getInteger(mpeJson, JSON_KEY_LOWER);
+            mpe.lower = (null != lower) ? Math.max(0, Math.min(MpeLayout.MAX_MEMBERS, lower)) : 0;
+            final Integer upper = JsonUtils.getInteger(mpeJson, JSON_KEY_UPPER);
+            mpe.upper = (null != upper) ? Math.max(0, Math.min(MpeLayout.MAX_MEMBERS, upper)) : 0;
+            return mpe;
+        }
+
+        /**
+         * @return [low, high] from a two item array, clipped to min - max. Defaults to the full range.
+         */
+        private int[] parseRange(final JsonElement rangeJson, final int min, final int max) {
+            final int[] range = { min, max };
+            if (null != rangeJson && rangeJson.isJsonArray() && rangeJson.getAsJsonArray().size() == 2) {
+                try {
+                    final int low = rangeJson.getAsJsonArray().get(0).getAsInt();
+                    final int high = rangeJson.getAsJsonArray().get(1).getAsInt();
+                    range[0] = Math.max(min, Math.min(low, high));
+                    range[1] = Math.min(max, Math.max(low, high));
+                } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+                    // Keep the full range.
+                }
+            }
+            return range;
+        }
+
+        public Record parseRecordJson(final JsonElement recordJson) {
+            if (null == recordJson || !recordJson.isJsonObject()) {
+                return null;
+            }
+            final JsonObject recordObject = recordJson.getAsJsonObject();
+            final String path = JsonUtils.getString(recordObject, JSON_KEY_PATH);
+            if (null == path) {
+                return null;
+            }
+            final Record record = new Record();
+            record.path = path;
+            final JsonElement segmentJson = recordObject.get(JSON_KEY_SEGMENT_MINUTES);
+            if (null != segmentJson && segmentJson.isJsonPrimitive()) {
+                record.segmentMinutes = Math.max(0, segmentJson.getAsInt());
+            }
+            return record;
+        }
+
         @Override
         public RouterConfig deserialize(
                 JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
@@ -273,6 +1002,22 @@ public class RouterConfig {
                     final JsonObject _deviceConfig = element.getValue().getAsJsonObject();
                     device.name = _deviceConfig.get(JSON_KEY_NAME).getAsString();
                     device.port = _deviceConfig.get(JSON_KEY_PORT).getAsInt();
+                    device.coalesce = parseCoalesceJson(_deviceConfig.get(JSON_KEY_COALESCE));
+                    device.bandwidth = parseBandwidthJson(_deviceConfig.get(JSON_KEY_BANDWIDTH));
+                    device.runningStatus =
+                            JsonUtils.getBoolean(_deviceConfig, JSON_KEY_RUNNING_STATUS);
+                    device.sysexPacing = parseSysexPacingJson(_deviceConfig.get(JSON_KEY_SYSEX));
+                    device.activeSense =
+                            JsonUtils.getBoolean(_deviceConfig, JSON_KEY_ACTIVE_SENSE);
+                    final Integer mpeCollapse =
+                            JsonUtils.getInteger(_deviceConfig, JSON_KEY_MPE_COLLAPSE);
+                    device.mpeCollapse =
+                            (null != mpeCollapse && mpeCollapse >= 1 && mpeCollapse <= 16)
+                                    ? mpeCollapse
+                                    : null;
+                    device.assembleParameters =
+                            JsonUtils.getBoolean(_deviceConfig, JSON_KEY_ASSEMBLE_PARAMETERS);
+                    device.ump = JsonUtils.getBoolean(_deviceConfig, JSON_KEY_UMP);
                     config.devices.put(element.getKey(), device);
                 }
             }
@@ -288,19 +1033,38 @@ public class RouterConfig {
                     mapping.inputs = JsonUtils.getAsList(mappingJson.get(JSON_KEY_INPUTS), String.class, context);
                     mapping.outputs = JsonUtils.getAsList(mappingJson.get(JSON_KEY_OUTPUTS), String.class, context);
                     mapping.filters = JsonUtils.getAllObjects(mappingJson.get(JSON_KEY_FILTERS));
-                    // todo: listen
+                    mapping.playback = parsePlaybackJson(mappingJson.get(JSON_KEY_PLAYBACK));
+                    mapping.record = parseRecordJson(mappingJson.get(JSON_KEY_RECORD));
+                    mapping.zones = parseZonesJson(mappingJson.get(JSON_KEY_ZONES), context);
+                    mapping.listen = parseListenJson(mappingJson.get(JSON_KEY_LISTEN));
+                    mapping.mpe = parseMpeJson(mappingJson.get(JSON_KEY_MPE));
                     config.mappings.put(element.getKey(), mapping);
                 }
             }
             // Parse Clock
-            if (_json.has(JSON_KEY_CLOCK)) {
-                // todo
+            final JsonObject clockJson = JsonUtils.getObject(_json, JSON_KEY_CLOCK);
+            if (null != clockJson) {
+                final Clock clock = config.clock;
+                clock.inputs = fetchDevices(clockJson.get(JSON_KEY_INPUTS), config.devices, context);
+                clock.outputs = fetchDevices(clockJson.get(JSON_KEY_OUTPUTS), config.devices, context);
+                clock.bpm = JsonUtils.getInteger(clockJson, JSON_KEY_BPM);
+                clock.ppqn = JsonUtils.getInteger(clockJson, JSON_KEY_PPQN);
+                clock.patternLength = JsonUtils.getInteger(clockJson, JSON_KEY_PATTERN_LENGTH);
+                clock.tapEnabled = JsonUtils.getBoolean(clockJson, JSON_KEY_TAP_ENABLED);
+                clock.offsets = parseOffsetsJson(clockJson.get(JSON_KEY_OFFSETS));
+                clock.tap = parseTapJson(clockJson.get(JSON_KEY_TAP));
+                clock.mtc = parseMtcJson(clockJson.get(JSON_KEY_MTC), config.devices, context);
+                clock.transport = parseTransportJson(
+                        clockJson.get(JSON_KEY_TRANSPORT), config.devices, context);
+                clock.analog = parseAnalogJson(clockJson.get(JSON_KEY_ANALOG));
             }
             // Parse Sysex
             if (_json.has(JSON_KEY_SYSEX)) {
                 final List<Sysex> parsedSysex = parseSysexJson(_json.get(JSON_KEY_SYSEX));
                 config.sysex.addAll(parsedSysex);
             }
+            // Parse capture
+            config.capture = parseCaptureJson(_json.get(JSON_KEY_CAPTURE), config.devices, context);
             // Parse options
             if (_json.has(JSON_KEY_OPTIONS)) {
                 config.options.hotplug = JsonUtils.getBoolean(_json, JSON_KEY_OPTIONS);
@@ -1,32 +1,62 @@
 package com.radicalninja.pimidithing.midi.router;
 
+import android.support.annotation.Nullable;
+import android.util.Log;
+
 import com.radicalninja.pimidithing.midi.MidiInputController;
 import com.radicalninja.pimidithing.midi.MidiMessage;
 import com.radicalninja.pimidithing.midi.MidiOutputController;
+import com.radicalninja.pimidithing.midi.MpeLayout;
+import com.radicalninja.pimidithing.midi.ParameterMessage;
 import com.radicalninja.pimidithing.midi.router.filter.BaseFilter;
+import com.radicalninja.pimidithing.midi.smf.MidiFilePlayer;
+import com.radicalninja.pimidithing.midi.smf.MidiFileRecorder;
+import com.radicalninja.pimidithing.midi.ump.Ump;
+import com.radicalninja.pimidithing.midi.ump.UmpTranslator;
 import com.radicalninja.pimidithing.util.ArrayUtils;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 /* package */
 class RouterMapping {
 
+    private static final String TAG = RouterMapping.class.getCanonicalName();
+
+    private static final byte CC_SUSTAIN = 64;
+    private static final byte CC_ALL_NOTES_OFF = 123;
+
     /* package */
     interface MappingMessageListener {
-        boolean onMessage(final MidiInputController input,
+        /**
+         * @param input - The input the message arrived on, or null for messages produced by a
+         *              MidiFilePlayer.
+         */
+        boolean onMessage(@Nullable final MidiInputController input,
                           final MidiMessage message, final RouterMapping mapping);
     }
 
     private final List<MidiInputController> inputs = new ArrayList<>();
     private final List<MidiOutputController> outputs = new ArrayList<>();
+    private final List<MidiFilePlayer> players = new ArrayList<>();
+    private final List<MidiFilePlayer> autoplayPlayers = new ArrayList<>();
+    private final List<MidiFileRecorder> recorders = new ArrayList<>();
     private final List<BaseFilter> filters = new ArrayList<>();
     private final String name;
 
+    private ZoneMap zoneMap;
+    private MpeLayout mpeLayout;
     private boolean activated = false;
+    private boolean forwardActiveSense = false;
+    private boolean ump = false;
+    // Packet and MIDI 1.0 scratch space for filtering in UMP space; guarded by this.
+    private final int[] umpWords = new int[Ump.MAX_WORDS];
+    private final byte[] umpBytes = new byte[12];
     private MidiInputController.MessageListener midiMessageListener;
+    private MidiFilePlayer.MessageListener playerMessageListener;
 
     /* package */
     RouterMapping(final String name, final Set<MidiInputController> inputs,
@@ -62,8 +92,132 @@ class RouterMapping {
         }
     }
 
+    /**
+     * @param zoneMap - Zones to route to, or null to broadcast to every output.
+     */
+    /* package */
+    void setZoneMap(@Nullable final ZoneMap zoneMap) {
+        this.zoneMap = zoneMap;
+        if (null != zoneMap) {
+            zoneMap.setMpeLayout(mpeLayout);
+        }
+    }
+
+    /**
+     * @param mpeLayout - MPE zones of the inputs, or null if they aren't MPE.
+     */
+    /* package */
+    void setMpeLayout(@Nullable final MpeLayout mpeLayout) {
+        this.mpeLayout = mpeLayout;
+        if (null != zoneMap) {
+            zoneMap.setMpeLayout(mpeLayout);
+        }
+    }
+
+    /* package */
+    void setForwardActiveSense(final boolean forwardActiveSense) {
+        this.forwardActiveSense = forwardActiveSense;
+    }
+
+    /**
+     * @return true if Active Sensing from the inputs should be passed on to the outputs.
+     */
+    /* package */
+    boolean isForwardActiveSense() {
+        return forwardActiveSense;
+    }
+
+    /**
+     * Run the filters on Universal MIDI Packets instead of MidiMessages, so values keep MIDI 2.0
+     * resolution from one filter to the next. Only takes effect if every filter supports it.
+     * @return true if the filters now run in UMP space.
+     */
+    /* package */
+    boolean setUmp(final boolean ump) {
+        if (ump) {
+            for (final BaseFilter filter : filters) {
+                if (!filter.supportsUmp()) {
+                    Log.w(TAG, String.format(Locale.US,
+                            "Mapping %s: %s can't filter UMP; filtering MIDI 1.0 messages instead.",
+                            name, filter.getClass().getSimpleName()));
+                    this.ump = false;
+                    return false;
+                }
+            }
+        }
+        this.ump = ump;
+        return ump;
+    }
+
+    /* package */
+    boolean isUmp() {
+        return ump;
+    }
+
+    /* package */
+    boolean hasInput(final MidiInputController input) {
+        return inputs.contains(input);
+    }
+
+    /* package */
+    void addPlayer(final MidiFilePlayer player, final boolean autoplay) {
+        if (!players.contains(player)) {
+            players.add(player);
+            if (autoplay) {
+                autoplayPlayers.add(player);
+            }
+            if (activated) {
+                player.addMessageListener(playerMessageListener);
+            }
+        }
+    }
+
+    /* package */
+    List<MidiFilePlayer> getPlayers() {
+        return players;
+    }
+
+    /* package */
+    void startPlayback() {
+        for (final MidiFilePlayer player : autoplayPlayers) {
+            player.start();
+        }
+    }
+
+    /* package */
+    void stopPlayback() {
+        for (final MidiFilePlayer player : players) {
+            player.stop();
+        }
+    }
+
+    /* package */
+    void addRecorder(final MidiFileRecorder recorder) {
+        if (!recorders.contains(recorder)) {
+            recorders.add(recorder);
+        }
+    }
+
+    /* package */
+    void startRecording() {
+        for (final MidiFileRecorder recorder : recorders) {
+            recorder.start();
+        }
+    }
+
+    /* package */
+    void stopRecording() {
+        for (final MidiFileRecorder recorder : recorders) {
+            recorder.close();
+        }
+    }
+
     /* package */
     RouterResult process(final MidiMessage message) {
+        return ump ? processUmp(message) : processMessage(message);
+    }
+
+    private RouterResult processMessage(final MidiMessage message) {
         MidiMessage[] messages = new MidiMessage[]{message};
         for (final BaseFilter filter : filters) {
             final List<MidiMessage> next = new ArrayList<>(messages.length);
@@ -80,6 +234,38 @@ class RouterMapping {
         return new RouterResult(messages);
     }
 
+    /**
+     * Translate the message to a packet, run it through the filters in place and translate the
+     * result back for the outputs. Plain messages are written back into the message itself;
+     * ParameterMessages are made anew.
+     */
+    private synchronized RouterResult processUmp(final MidiMessage message) {
+        final int length = message.readBytes(umpBytes, 0);
+        if (length == 0 || UmpTranslator.fromMidi1(umpBytes, 0, length, 0, umpWords, 0) == 0) {
+            // No UMP form, e.g. SysEx.
+            return processMessage(message);
+        }
+        for (final BaseFilter filter : filters) {
+            if (!filter.processUmp(umpWords, 0)) {
+                return RouterResult.failed();
+            }
+        }
+        // 14-bit controllers go back out as 14-bit pairs.
+        final boolean highResolution = message instanceof ParameterMessage;
+        if (!highResolution) {
+            final int count = UmpTranslator.toMidi1(umpWords, 0, umpBytes, 0);
+            if (count == 0) {
+                return RouterResult.failed();
+            }
+            if (message.setBytes(umpBytes, 0, count)) {
+                return new RouterResult(message);
+            }
+        }
+        final MidiMessage result = UmpTranslator.toMessage(
+                umpWords, 0, highResolution, umpBytes, message.getTimestamp());
+        return (null != result) ? new RouterResult(result) : RouterResult.failed();
+    }
+
     /* package */
     boolean activate(final MappingMessageListener mappingMessageListener) {
         if (activated || null == mappingMessageListener) {
@@ -96,6 +282,15 @@ class RouterMapping {
         for (final MidiInputController input : inputs) {
             input.addMessageListener(midiMessageListener);
         }
+        playerMessageListener = new MidiFilePlayer.MessageListener() {
+            @Override
+            public boolean onMessage(MidiFilePlayer player, MidiMessage message) {
+                return mappingMessageListener.onMessage(null, message, RouterMapping.this);
+            }
+        };
+        for (final MidiFilePlayer player : players) {
+            player.addMessageListener(playerMessageListener);
+        }
         return true;
     }
 
@@ -108,24 +303,62 @@ class RouterMapping {
         for (final MidiInputController input : inputs) {
             input.removeMessageListener(midiMessageListener);
         }
+        for (final MidiFilePlayer player : players) {
+            player.removeMessageListener(playerMessageListener);
+        }
         midiMessageListener = null;
+        playerMessageListener = null;
         return true;
     }
 
     /* package */
     void broadcast(final MidiMessage[] messages) throws IOException {
         for (final MidiMessage message : messages) {
-            for (final MidiOutputController output : outputs) {
-                output.send(message);
-            }
+            broadcast(message);
         }
     }
 
     /* package */
     void broadcast(final MidiMessage message) throws IOException {
+        for (final MidiFileRecorder recorder : recorders) {
+            recorder.record(message);
+        }
+        final MpeLayout mpeLayout = this.mpeLayout;
+        if (null != mpeLayout && message.getType() == MidiMessage.MessageType.CC) {
+            // Look at each control change, as a ParameterMessage holds several.
+            final byte[] bytes = message.getBytes();
+            for (int i = 0; i + 2 < bytes.length; i += 3) {
+                mpeLayout.onControlChange(
+                        bytes[i] & 0x0F, bytes[i + 1] & 0x7F, bytes[i + 2] & 0x7F);
+            }
+        }
+        final ZoneMap zoneMap = this.zoneMap;
+        if (null != zoneMap) {
+            zoneMap.route(message);
+            return;
+        }
         for (final MidiOutputController output : outputs) {
             output.send(message);
         }
     }
 
+    /**
+     * Release the sustain pedal and end every note on every channel of every output, for when an
+     * input has gone away in the middle of playing.
+     */
+    /* package */
+    void allNotesOff() throws IOException {
+        final byte[] bytes = new byte[3];
+        for (final MidiOutputController output : outputs) {
+            for (int channel = 0; channel < 16; channel++) {
+                bytes[0] = (byte) (0xB0 | channel);
+                bytes[1] = CC_SUSTAIN;
+                bytes[2] = 0;
+                output.send(bytes, 0, bytes.length, 0);
+                bytes[1] = CC_ALL_NOTES_OFF;
+                output.send(bytes, 0, bytes.length, 0);
+            }
+        }
+    }
+
 }
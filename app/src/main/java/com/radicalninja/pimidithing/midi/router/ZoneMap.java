@@ -0,0 +1,321 @@
+package com.radicalninja.pimidithing.midi.router;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.MpeLayout;
+import com.radicalninja.pimidithing.midi.MidiOutputController;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes a mapping's messages to keyboard zones instead of broadcasting them to every output.
+ *
+ * A zone is a note range, optionally limited to an input channel and a velocity range, that
+ * plays on its own outputs and channel with its own transpose. Zones may overlap to layer sounds;
+ * velocity ranges switch between zones outright, without crossfading.
+ *
+ * The zones are compiled into a routing table indexed by input channel and note. Each entry
+ * holds, for every velocity, the zones to play. Entries with the same zones share their arrays,
+ * so the table stays small and routing a note costs the same however many zones there are. A
+ * note-off goes to the zones its note-on went to, whatever its own velocity. Other channel
+ * messages go once to each output and channel that a zone on their channel plays on. System
+ * messages go to every output of the mapping.
+ *
+ * With an MPE layout set, channel messages on a member channel, such as its pitch bend, pressure
+ * and CC74, belong to the note playing there; they go only to the zones that note went to.
+ * Between notes, such as expression sent just before a note-on, they are routed like any other
+ * channel message rather than following a note that has ended.
+ */
+/* package */
+class ZoneMap {
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int NOTE_COUNT = 128;
+    private static final int NOTE_MAX = 127;
+    private static final Zone[] NO_ZONES = new Zone[0];
+
+    /* package */
+    static class Zone {
+        final MidiOutputController[] outputs;
+        // 1 - 16, or 0 for any.
+        final int channel;
+        // 1 - 16, or 0 to keep the input channel.
+        final int outputChannel;
+        final int lowNote;
+        final int highNote;
+        final int lowVelocity;
+        final int highVelocity;
+        final int transpose;
+
+        /**
+         * @param outputs - Outputs this zone plays on.
+         * @param channel - Input channel (1 - 16) the zone listens to, or 0 for any.
+         * @param outputChannel - Channel (1 - 16) to play on, or 0 to keep the input channel.
+         * @param lowNote - Lowest note of the zone, inclusive.
+         * @param highNote - Highest note of the zone, inclusive.
+         * @param lowVelocity - Lowest note-on velocity that plays the zone, inclusive.
+         * @param highVelocity - Highest note-on velocity that plays the zone, inclusive.
+         * @param transpose - Semitones to add to each note.
+         */
+        Zone(@NonNull final MidiOutputController[] outputs,
+             final int channel,
+             final int outputChannel,
+             final int lowNote,
+             final int highNote,
+             final int lowVelocity,
+             final int highVelocity,
+             final int transpose) {
+
+            this.outputs = outputs;
+            this.channel = channel;
+            this.outputChannel = outputChannel;
+            this.lowNote = lowNote;
+            this.highNote = highNote;
+            this.lowVelocity = lowVelocity;
+            this.highVelocity = highVelocity;
+            this.transpose = transpose;
+        }
+
+        boolean listensTo(final int channel) {
+            return this.channel == 0 || this.channel == channel;
+        }
+
+        boolean plays(final int note) {
+            final int transposed = note + transpose;
+            return note >= lowNote && note <= highNote && transposed >= 0 && transposed <= NOTE_MAX;
+        }
+
+        boolean playsVelocity(final int velocity) {
+            return velocity >= lowVelocity && velocity <= highVelocity;
+        }
+    }
+
+    /**
+     * The zones for one channel and note.
+     */
+    private static class Slot {
+        // Zones for each note-on velocity.
+        final Zone[][] byVelocity = new Zone[NOTE_COUNT][];
+        // Every zone the note can play, for note-offs without a matching note-on.
+        Zone[] all;
+    }
+
+    private final MidiOutputController[] allOutputs;
+    private final Slot[][] table = new Slot[CHANNEL_COUNT][NOTE_COUNT];
+    // Distinct output / channel pairs to send other channel messages to, by input channel.
+    private final MidiOutputController[][] channelOutputs = new MidiOutputController[CHANNEL_COUNT][];
+    private final int[][] channelChannels = new int[CHANNEL_COUNT][];
+
+    // Zones each held note was played on; guarded by this.
+    private final Zone[][][] held = new Zone[CHANNEL_COUNT][NOTE_COUNT][];
+    // Zones the last note-on of each channel was played on, for MPE member channels; cleared
+    // once the channel has no notes held.
+    private final Zone[][] channelZones = new Zone[CHANNEL_COUNT][];
+    private final int[] heldCounts = new int[CHANNEL_COUNT];
+    private final byte[] scratch = new byte[3];
+
+    private MpeLayout mpeLayout;
+
+    /**
+     * @param zones - Zones in priority order.
+     * @param allOutputs - Every output of the mapping, for system messages.
+     */
+    /* package */
+    ZoneMap(@NonNull final List<Zone> zones, @NonNull final MidiOutputController[] allOutputs) {
+        this.allOutputs = allOutputs;
+        compile(zones.toArray(new Zone[zones.size()]));
+    }
+
+    /**
+     * @param mpeLayout - MPE zones of the mapping's input, or null if it isn't MPE.
+     */
+    /* package */
+    synchronized void setMpeLayout(@Nullable final MpeLayout mpeLayout) {
+        this.mpeLayout = mpeLayout;
+    }
+
+    private void compile(final Zone[] zones) {
+        final Map<BitSet, Zone[]> zoneSets = new HashMap<>();
+        final Map<BitSet, Slot> slots = new HashMap<>();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            for (int note = 0; note < NOTE_COUNT; note++) {
+                final BitSet candidates = new BitSet(zones.length);
+                for (int i = 0; i < zones.length; i++) {
+                    if (zones[i].listensTo(channel + 1) && zones[i].plays(note)) {
+                        candidates.set(i);
+                    }
+                }
+                Slot slot = slots.get(candidates);
+                if (null == slot) {
+                    slot = new Slot();
+                    slot.all = intern(candidates, zones, zoneSets);
+                    for (int velocity = 1; velocity < NOTE_COUNT; velocity++) {
+                        final BitSet playing = new BitSet(zones.length);
+                        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                            if (zones[i].playsVelocity(velocity)) {
+                                playing.set(i);
+                            }
+                        }
+                        slot.byVelocity[velocity] = intern(playing, zones, zoneSets);
+                    }
+                    slot.byVelocity[0] = slot.all;
+                    slots.put(candidates, slot);
+                }
+                table[channel][note] = slot;
+            }
+            compileChannel(channel, zones);
+        }
+    }
+
+    private void compileChannel(final int channel, final Zone[] zones) {
+        final List<MidiOutputController> outputs = new ArrayList<>();
+        final List<Integer> channels = new ArrayList<>();
+        for (final Zone zone : zones) {
+            if (!zone.listensTo(channel + 1)) {
+                continue;
+            }
+            final int outputChannel = (zone.outputChannel > 0) ? zone.outputChannel : channel + 1;
+            for (final MidiOutputController output : zone.outputs) {
+                boolean duplicate = false;
+                for (int i = 0; i < outputs.size(); i++) {
+                    if (outputs.get(i) == output && channels.get(i) == outputChannel) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (!duplicate) {
+                    outputs.add(output);
+                    channels.add(outputChannel);
+                }
+            }
+        }
+        channelOutputs[channel] = outputs.toArray(new MidiOutputController[outputs.size()]);
+        channelChannels[channel] = new int[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            channelChannels[channel][i] = channels.get(i);
+        }
+    }
+
+    private static Zone[] intern(final BitSet set, final Zone[] zones, final Map<BitSet, Zone[]> cache) {
+        if (set.isEmpty()) {
+            return NO_ZONES;
+        }
+        Zone[] result = cache.get(set);
+        if (null == result) {
+            result = new Zone[set.cardinality()];
+            int n = 0;
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                result[n++] = zones[i];
+            }
+            cache.put(set, result);
+        }
+        return result;
+    }
+
+    /**
+     * Send a message to the zones it belongs to.
+     */
+    /* package */
+    synchronized void route(final MidiMessage message) throws IOException {
+        final byte[] bytes = message.getBytes();
+        final long timestamp = message.getTimestamp();
+        if (message.getType().set != MidiMessage.MessageType.Set.BASIC) {
+            for (final MidiOutputController output : allOutputs) {
+                output.send(bytes, 0, bytes.length, timestamp);
+            }
+            return;
+        }
+        final int channel = bytes[0] & 0x0F;
+        final int note = bytes[1] & 0x7F;
+        final Zone[] zones;
+        switch (message.getType()) {
+            case NOTEON:
+                final int velocity = bytes[2] & 0x7F;
+                if (velocity > 0) {
+                    zones = table[channel][note].byVelocity[velocity];
+                    if (null == held[channel][note]) {
+                        heldCounts[channel]++;
+                    }
+                    held[channel][note] = zones;
+                    channelZones[channel] = zones;
+                    break;
+                }
+                // Velocity 0 is a note-off.
+            case NOTEOFF:
+                if (null != held[channel][note]) {
+                    zones = held[channel][note];
+                    held[channel][note] = null;
+                    if (--heldCounts[channel] == 0) {
+                        channelZones[channel] = null;
+                    }
+                } else {
+                    zones = table[channel][note].all;
+                }
+                break;
+            case POLY_AFTERTOUCH:
+                zones = (null != held[channel][note]) ? held[channel][note] : table[channel][note].all;
+                break;
+            default:
+                final MpeLayout mpeLayout = this.mpeLayout;
+                if (null != mpeLayout && null != channelZones[channel]
+                        && mpeLayout.isMember(channel)) {
+                    sendToZones(bytes, channelZones[channel], channel, timestamp);
+                } else {
+                    sendToChannels(bytes, channel, timestamp);
+                }
+                return;
+        }
+        for (final Zone zone : zones) {
+            final int outputChannel = (zone.outputChannel > 0) ? zone.outputChannel - 1 : channel;
+            scratch[0] = (byte) ((bytes[0] & 0xF0) | outputChannel);
+            scratch[1] = (byte) (note + zone.transpose);
+            scratch[2] = bytes[2];
+            for (final MidiOutputController output : zone.outputs) {
+                output.send(scratch, 0, 3, timestamp);
+            }
+        }
+    }
+
+    private void sendToZones(final byte[] bytes, final Zone[] zones, final int channel,
+                             final long timestamp) throws IOException {
+
+        for (final Zone zone : zones) {
+            final int outputChannel = (zone.outputChannel > 0) ? zone.outputChannel - 1 : channel;
+            setChannel(bytes, outputChannel);
+            for (final MidiOutputController output : zone.outputs) {
+                output.send(bytes, 0, bytes.length, timestamp);
+            }
+        }
+    }
+
+    private void sendToChannels(final byte[] bytes, final int channel, final long timestamp)
+            throws IOException {
+
+        final MidiOutputController[] outputs = channelOutputs[channel];
+        final int[] channels = channelChannels[channel];
+        for (int i = 0; i < outputs.length; i++) {
+            setChannel(bytes, channels[i] - 1);
+            outputs[i].send(bytes, 0, bytes.length, timestamp);
+        }
+    }
+
+    /**
+     * Rewrite the channel of every status byte, for messages such as a ParameterMessage that
+     * are made of several channel messages.
+     */
+    private static void setChannel(final byte[] bytes, final int channel) {
+        for (int i = 0; i < bytes.length; i++) {
+            if ((bytes[i] & 0x80) != 0) {
+                bytes[i] = (byte) ((bytes[i] & 0xF0) | channel);
+            }
+        }
+    }
+
+}
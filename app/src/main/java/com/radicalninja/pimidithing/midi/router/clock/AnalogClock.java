@@ -1,7 +1,241 @@
 package com.radicalninja.pimidithing.midi.router.clock;
 
-public class AnalogClock {
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
 
-    // TODO: Stubbed!!
+import com.radicalninja.pimidithing.midi.router.clock.analog.AudioSink;
+import com.radicalninja.pimidithing.midi.router.clock.analog.SyncPulseRenderer;
+import com.radicalninja.pimidithing.util.ValueException;
+
+import java.io.IOException;
+
+/**
+ * Analog sync output: audio-rate pulses for modular and other analog gear, following the
+ * DigitalClock.
+ *
+ * The clock's pulses land on a fixed timeline (anchor + n * period), so the next pulses can be
+ * predicted from the last tick and the tempo. Audio is rendered ahead of time by the sink's
+ * latency, with each pulse placed on the sample nearest its predicted time; ticks that don't land
+ * where predicted (a tempo change) move the anchor. Pulses that fall inside audio already
+ * rendered (the first pulse after START, when the sink's latency is longer than the clock's lead)
+ * are sent as soon as possible.
+ *
+ * The audio stream runs continuously, silent while the clock is stopped.
+ */
+public class AnalogClock implements ClockListener, SyncPulseRenderer.Timeline {
+
+    private static final String TAG = AnalogClock.class.getCanonicalName();
+    private static final String THREAD_NAME = "AnalogClock";
+
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+    public static final long DEFAULT_PULSE_WIDTH_NANOS = 5000000L;  // 5ms
+
+    private static final int BLOCK_FRAMES = 128;
+    // Ticks within this of their prediction leave the anchor alone.
+    private static final long ANCHOR_TOLERANCE_NANOS = 1000L;
+    // Presentation time updates are smoothed unless they move further than this.
+    private static final double ORIGIN_SNAP_NANOS = 1000000d;
+    private static final double ORIGIN_SMOOTHING = 0.05;
+
+    /**
+     * Where the clock's timeline was last pinned. Immutable; replaced on transport and tempo
+     * changes.
+     */
+    private static class Anchor {
+        final long nanos;
+        final int position;
+        final double periodNanos;
+        // No pulses at or after this time.
+        final long endNanos;
+
+        Anchor(final long nanos, final int position, final double periodNanos, final long endNanos) {
+            this.nanos = nanos;
+            this.position = position;
+            this.periodNanos = periodNanos;
+            this.endNanos = endNanos;
+        }
+    }
+
+    private final DigitalClock clock;
+    private final AudioSink sink;
+    private final SyncPulseRenderer renderer;
+    private final int divisor;
+    private final short[] buffer;
+
+    private volatile Anchor anchor = null;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    /**
+     * @param clock - Clock to follow.
+     * @param sink - Where the audio goes.
+     * @param divisor - Send a pulse on every divisor'th clock pulse.
+     * @param pulseWidthNanos - How long each pulse stays high.
+     * @param volume - Pulse level, 0 - 100.
+     * @param polarity - SyncPulseRenderer.POLARITY_POSITIVE or POLARITY_NEGATIVE.
+     */
+    public AnalogClock(@NonNull final DigitalClock clock,
+                       @NonNull final AudioSink sink,
+                       final int divisor,
+                       final long pulseWidthNanos,
+                       final int volume,
+                       final int polarity) {
+
+        if (divisor < 1) {
+            throw new ValueException.BelowMinimumValueException("divisor", 1);
+        }
+        this.clock = clock;
+        this.sink = sink;
+        this.divisor = divisor;
+        this.renderer = new SyncPulseRenderer(sink.getSampleRate(), sink.getChannelCount(),
+                pulseWidthNanos, volume / 100d, polarity);
+        this.buffer = new short[BLOCK_FRAMES * sink.getChannelCount()];
+    }
+
+    public int getDivisor() {
+        return divisor;
+    }
+
+    /**
+     * @return Number of pulses that could not be placed on time.
+     */
+    public long getLatePulses() {
+        return renderer.getLatePulses();
+    }
+
+    public synchronized void start() {
+        if (null != thread) {
+            return;
+        }
+        running = true;
+        thread = new Thread(renderRunnable, THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Stop rendering and close the sink.
+     */
+    public synchronized void shutdown() {
+        running = false;
+        if (null == thread) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the render thread to finish.", e);
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void onClockStart(final long timestamp) {
+        anchor = new Anchor(timestamp + DigitalClock.START_LEAD_NANOS, 0, period(), Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onClockStop(final long timestamp) {
+        final Anchor current = anchor;
+        if (null != current) {
+            anchor = new Anchor(current.nanos, current.position, current.periodNanos, timestamp);
+        }
+    }
+
+    @Override
+    public void onClockContinue(final int position, final long timestamp) {
+        anchor = new Anchor(
+                timestamp + DigitalClock.START_LEAD_NANOS, position, period(), Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onSongPosition(final int position, final long timestamp) {
+        // Only sent while stopped; CONTINUE will anchor at the new position.
+    }
+
+    @Override
+    public void onClockTick(final ClockTick tick, final long timestamp) {
+        final Anchor current = anchor;
+        final double period = period();
+        if (null != current && current.endNanos == Long.MAX_VALUE
+                && current.periodNanos == period) {
+            final long predicted = current.nanos
+                    + Math.round((tick.getPosition() - current.position) * current.periodNanos);
+            if (Math.abs(predicted - timestamp) <= ANCHOR_TOLERANCE_NANOS) {
+                return;
+            }
+        }
+        anchor = new Anchor(timestamp, tick.getPosition(), period, Long.MAX_VALUE);
+    }
+
+    @Override
+    public long nextPulseNanos(final long after) {
+        final Anchor current = anchor;
+        if (null == current) {
+            return Long.MAX_VALUE;
+        }
+        long pulse = current.position;
+        if (after >= current.nanos) {
+            pulse += (long) Math.floor((after - current.nanos) / current.periodNanos) + 1;
+        }
+        // Round up to the next pulse that is sent to the analog output.
+        pulse = ((pulse + divisor - 1) / divisor) * divisor;
+        long nanos = timeOf(current, pulse);
+        while (nanos <= after) {
+            pulse += divisor;
+            nanos = timeOf(current, pulse);
+        }
+        return (nanos < current.endNanos) ? nanos : Long.MAX_VALUE;
+    }
+
+    private static long timeOf(final Anchor anchor, final long pulse) {
+        return anchor.nanos + Math.round((pulse - anchor.position) * anchor.periodNanos);
+    }
+
+    private double period() {
+        return 60000000000d / (clock.getBpm() * clock.getPpqn());
+    }
+
+    private void updateOrigin() {
+        final long frame = renderer.getFramePosition();
+        final long presentation = sink.getPresentationNanos(frame);
+        if (presentation < 0) {
+            // Until the sink knows, assume the next block is heard straight away.
+            if (0 == frame) {
+                renderer.setOrigin(System.nanoTime());
+            }
+            return;
+        }
+        final double measured = presentation - frame * 1e9 / renderer.getSampleRate();
+        final double origin = renderer.getOrigin();
+        if (0 == frame || Math.abs(measured - origin) > ORIGIN_SNAP_NANOS) {
+            renderer.setOrigin(measured);
+        } else {
+            renderer.setOrigin(origin + (measured - origin) * ORIGIN_SMOOTHING);
+        }
+    }
+
+    private final Runnable renderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            try {
+                while (running) {
+                    updateOrigin();
+                    renderer.render(buffer, BLOCK_FRAMES, AnalogClock.this);
+                    sink.write(buffer, 0, buffer.length);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing analog clock audio.", e);
+            } finally {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing the audio sink.", e);
+                }
+            }
+        }
+    };
 
 }
@@ -0,0 +1,224 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how closely a DigitalClock hits its pulse deadlines.
+ *
+ * Attach it as a ClockListener while the clock is running. For each pulse it records the
+ * lateness (time the listener ran minus the scheduled deadline) and the inter-tick deviation
+ * (measured interval between pulses minus the nominal period). Samples go into preallocated
+ * arrays so measuring does not disturb the clock thread with allocations.
+ */
+public class ClockJitterBenchmark implements ClockListener {
+
+    private static final long[] HISTOGRAM_BOUNDS_NANOS = {
+            10000L, 25000L, 50000L, 100000L, 250000L, 500000L, 1000000L, Long.MAX_VALUE
+    };
+
+    public static class Report {
+
+        private final String name;
+        private final int count;
+        private final double mean;
+        private final double stdDev;
+        private final long min;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final int[] histogram;
+
+        Report(final String name, final long[] samples, final int count) {
+            this.name = name;
+            this.count = count;
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (final long sample : sorted) {
+                sum += sample;
+            }
+            mean = (count > 0) ? sum / count : 0;
+            double squares = 0;
+            for (final long sample : sorted) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            stdDev = (count > 1) ? Math.sqrt(squares / (count - 1)) : 0;
+            min = (count > 0) ? sorted[0] : 0;
+            max = (count > 0) ? sorted[count - 1] : 0;
+            p50 = percentile(sorted, 0.5);
+            p90 = percentile(sorted, 0.9);
+            p99 = percentile(sorted, 0.99);
+            p999 = percentile(sorted, 0.999);
+            histogram = new int[HISTOGRAM_BOUNDS_NANOS.length];
+            for (final long sample : sorted) {
+                final long magnitude = Math.abs(sample);
+                for (int i = 0; i < HISTOGRAM_BOUNDS_NANOS.length; i++) {
+                    if (magnitude < HISTOGRAM_BOUNDS_NANOS[i]) {
+                        histogram[i]++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static long percentile(final long[] sorted, final double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getStdDev() {
+            return stdDev;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        /**
+         * @return Sample counts by absolute value, bucketed as <10us, <25us, <50us, <100us,
+         *      <250us, <500us, <1ms and >=1ms.
+         */
+        public int[] getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s (us) n=%d mean=%.1f sd=%.1f min=%.1f max=%.1f p50=%.1f p90=%.1f " +
+                            "p99=%.1f p99.9=%.1f histogram=%s",
+                    name, count, mean / 1000d, stdDev / 1000d, min / 1000d, max / 1000d,
+                    p50 / 1000d, p90 / 1000d, p99 / 1000d, p999 / 1000d,
+                    Arrays.toString(histogram));
+        }
+    }
+
+    private final long[] lateness;
+    private final long[] deviation;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final double periodNanos;
+    private final long lookahead;
+
+    private int latenessCount = 0;
+    private int deviationCount = 0;
+    private long lastActual = 0;
+
+    /**
+     * @param clock - Clock being measured; used for its nominal period.
+     * @param samples - Number of pulses to measure.
+     */
+    public ClockJitterBenchmark(@NonNull final DigitalClock clock, final int samples) {
+        this.lateness = new long[samples];
+        this.deviation = new long[samples];
+        this.periodNanos = 60000000000d / (clock.getBpm() * clock.getPpqn());
+        this.lookahead = clock.getLookahead();
+    }
+
+    /**
+     * Attach to the clock, start it if needed and block until enough pulses were measured.
+     * A clock started here is shut down again once the measurement ends.
+     * @param clock - Clock being measured.
+     * @param timeoutMillis - Maximum time to wait for all samples.
+     * @return Two reports: lateness, then inter-tick deviation.
+     */
+    public Report[] run(@NonNull final DigitalClock clock, final long timeoutMillis)
+            throws InterruptedException {
+
+        clock.addListener(this);
+        final boolean started = !clock.isRunning();
+        if (started) {
+            clock.start();
+        }
+        try {
+            done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            clock.removeListener(this);
+            if (started) {
+                clock.shutdown();
+            }
+        }
+        return getReports();
+    }
+
+    public synchronized Report[] getReports() {
+        return new Report[] {
+                new Report("Lateness", lateness, latenessCount),
+                new Report("Inter-tick deviation", deviation, deviationCount)
+        };
+    }
+
+    @Override
+    public void onClockStart(final long timestamp) {
+        lastActual = 0;
+    }
+
+    @Override
+    public void onClockStop(final long timestamp) {
+        lastActual = 0;
+    }
+
+    @Override
+    public void onClockContinue(final int position, final long timestamp) {
+        lastActual = 0;
+    }
+
+    @Override
+    public void onSongPosition(final int position, final long timestamp) {
+        // Not measured.
+    }
+
+    @Override
+    public synchronized void onClockTick(final ClockTick tick, final long timestamp) {
+        final long actual = System.nanoTime();
+        if (latenessCount < lateness.length) {
+            // The clock thread wakes early by the lookahead given to offset outputs.
+            lateness[latenessCount++] = actual - (timestamp - lookahead);
+        }
+        if (lastActual > 0 && deviationCount < deviation.length) {
+            deviation[deviationCount++] = (long) ((actual - lastActual) - periodNanos);
+        }
+        lastActual = actual;
+        if (deviationCount == deviation.length) {
+            done.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+/**
+ * Receives transport and timing events from a DigitalClock. Callbacks run on the clock's own
+ * thread right after the matching MIDI message has been sent, so implementations must return
+ * quickly and must not block.
+ *
+ * Timestamps are the scheduled time of the event on the System.nanoTime() time base. When outputs
+ * have negative offsets, callbacks arrive ahead of their timestamp by DigitalClock.getLookahead().
+ */
+public interface ClockListener {
+
+    void onClockStart(final long timestamp);
+
+    void onClockStop(final long timestamp);
+
+    /**
+     * @param position - Pulse the clock resumes from.
+     */
+    void onClockContinue(final int position, final long timestamp);
+
+    /**
+     * @param position - New position in clock pulses.
+     */
+    void onSongPosition(final int position, final long timestamp);
+
+    /**
+     * @param tick - The clock's cursor, positioned on this pulse. It is reused for the next pulse,
+     *      so copy what you need rather than keeping a reference.
+     */
+    void onClockTick(final ClockTick tick, final long timestamp);
+
+}
@@ -3,17 +3,89 @@ package com.radicalninja.pimidithing.midi.router.clock;
 import android.app.IntentService;
 import android.content.Intent;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.radicalninja.pimidithing.App;
+import com.radicalninja.pimidithing.midi.MidiCore;
+
+/**
+ * Handles transport requests for the router's DigitalClock, e.g. from adb:
+ *  adb shell am startservice -a com.radicalninja.pimidithing.clock.START \
+ *      com.radicalninja.pimidithing/.midi.router.clock.ClockService
+ */
 public class ClockService extends IntentService {
 
+    public static final String ACTION_START = "com.radicalninja.pimidithing.clock.START";
+    public static final String ACTION_STOP = "com.radicalninja.pimidithing.clock.STOP";
+    public static final String ACTION_CONTINUE = "com.radicalninja.pimidithing.clock.CONTINUE";
+    public static final String ACTION_SONG_POSITION =
+            "com.radicalninja.pimidithing.clock.SONG_POSITION";
+    public static final String ACTION_TEMPO = "com.radicalninja.pimidithing.clock.TEMPO";
+    public static final String ACTION_BENCHMARK = "com.radicalninja.pimidithing.clock.BENCHMARK";
+
+    public static final String EXTRA_POSITION = "position";
+    public static final String EXTRA_BPM = "bpm";
+    public static final String EXTRA_SAMPLES = "samples";
+
+    private static final String TAG = ClockService.class.getCanonicalName();
+    private static final String NAME = "ClockService";
+    private static final int DEFAULT_BENCHMARK_SAMPLES = 10000;
+
+    public ClockService() {
+        this(NAME);
+    }
+
     public ClockService(String name) {
         super(name);
     }
 
     @Override
     protected void onHandleIntent(@Nullable Intent intent) {
-        // TODO: Stubbed!!
-        // TODO: Operate DigitalClock/AnalogClock here?
+        if (null == intent || null == intent.getAction()) {
+            return;
+        }
+        final MidiCore midiCore = App.getInstance().getMidiCore();
+        final DigitalClock clock = (null != midiCore && null != midiCore.getRouter())
+                ? midiCore.getRouter().getDigitalClock()
+                : null;
+        if (null == clock) {
+            Log.w(TAG, "No clock is configured. Ignoring " + intent.getAction());
+            return;
+        }
+        switch (intent.getAction()) {
+            case ACTION_START:
+                clock.start();
+                break;
+            case ACTION_STOP:
+                clock.stop();
+                break;
+            case ACTION_CONTINUE:
+                clock.continueClock();
+                break;
+            case ACTION_SONG_POSITION:
+                clock.setSongPosition(intent.getIntExtra(EXTRA_POSITION, 0));
+                break;
+            case ACTION_TEMPO:
+                clock.setBpm(intent.getFloatExtra(EXTRA_BPM, (float) clock.getBpm()));
+                break;
+            case ACTION_BENCHMARK:
+                runBenchmark(clock, intent.getIntExtra(EXTRA_SAMPLES, DEFAULT_BENCHMARK_SAMPLES));
+                break;
+        }
+    }
+
+    private void runBenchmark(final DigitalClock clock, final int samples) {
+        final ClockJitterBenchmark benchmark = new ClockJitterBenchmark(clock, samples);
+        // Allow twice the expected duration before giving up.
+        final double periodMillis = 60000d / (clock.getBpm() * clock.getPpqn());
+        final long timeoutMillis = (long) (samples * periodMillis * 2) + 1000L;
+        try {
+            for (final ClockJitterBenchmark.Report report : benchmark.run(clock, timeoutMillis)) {
+                Log.i(TAG, report.toString());
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Clock benchmark was interrupted.", e);
+        }
     }
 
 }
@@ -0,0 +1,284 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import com.radicalninja.pimidithing.midi.MidiInputController;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.util.ValueException;
+
+/**
+ * Estimates the tempo of MIDI clock arriving on an input.
+ *
+ * Pulse timestamps are fitted with a least-squares line over a sliding window, so the period
+ * estimate averages out transport jitter instead of following each interval. A sample far from
+ * the fitted line is held back as a suspected outlier; if several in a row fall off the line in
+ * the same direction the tempo has changed, and the window restarts from the change so the new
+ * tempo is picked up within a few pulses.
+ *
+ * Clock events are expected from a single thread (the input's receiver). The current estimate
+ * is published through volatile fields and can be read from any thread without locking.
+ */
+public class ClockTempoTracker {
+
+    public static final int DEFAULT_PPQN = ClockTick.DEFAULT_PPQN;
+
+    // Two beats at 24 ppqn.
+    private static final int WINDOW_SIZE = 48;
+    // Samples needed before an estimate is published.
+    private static final int MIN_SAMPLES = 3;
+    // Consecutive same-direction outliers that indicate a tempo change.
+    private static final int CHANGE_CONFIRMATIONS = 3;
+    // Residual bounds, relative to the current period and to the fit's RMS residual.
+    private static final double OUTLIER_PERIOD_FRACTION = 0.2;
+    private static final double OUTLIER_RMS_FACTOR = 4;
+    // A gap this many periods long means the clock stopped and came back.
+    private static final int DROPOUT_PERIODS = 4;
+    private static final long MIN_TIMEOUT_NANOS = 150000000L;    // 150ms
+
+    private final int ppqn;
+
+    // Window of (pulse index, timestamp) samples.
+    private final long[] pulses = new long[WINDOW_SIZE];
+    private final long[] timestamps = new long[WINDOW_SIZE];
+    private int head = 0;
+    private int count = 0;
+
+    // Samples held back as suspected outliers.
+    private final long[] suspectPulses = new long[CHANGE_CONFIRMATIONS];
+    private final long[] suspectTimestamps = new long[CHANGE_CONFIRMATIONS];
+    private int suspectCount = 0;
+    private int suspectDirection = 0;
+
+    private long pulse = 0;
+    private double period = 0;
+    // The fitted line passes through (originPulse, originNanos + intercept).
+    private long originPulse = 0;
+    private long originNanos = 0;
+    private double intercept = 0;
+    private double rmsResidual = 0;
+
+    // Published state.
+    private volatile long periodBits = Double.doubleToRawLongBits(0);
+    private volatile long lastClockNanos = 0;
+    private volatile boolean running = false;
+
+    private final MidiInputController.MessageListener messageListener =
+            new MidiInputController.MessageListener() {
+                @Override
+                public boolean onMessage(MidiInputController input, MidiMessage message) {
+                    final long timestamp = (message.getTimestamp() > 0)
+                            ? message.getTimestamp()
+                            : System.nanoTime();
+                    switch (message.getType()) {
+                        case CLOCK:
+                            onClock(timestamp);
+                            break;
+                        case START:
+                            onStart(timestamp);
+                            break;
+                        case CONTINUE:
+                            onContinue(timestamp);
+                            break;
+                        case STOP:
+                            onStop(timestamp);
+                            break;
+                    }
+                    return false;
+                }
+            };
+
+    public ClockTempoTracker() {
+        this(DEFAULT_PPQN);
+    }
+
+    public ClockTempoTracker(final int ppqn) {
+        if (ppqn < 1) {
+            throw new ValueException.BelowMinimumValueException("ppqn", 1);
+        }
+        this.ppqn = ppqn;
+    }
+
+    /**
+     * @return A listener to attach to the input whose clock should be tracked.
+     */
+    public MidiInputController.MessageListener getMessageListener() {
+        return messageListener;
+    }
+
+    /**
+     * @return The estimated tempo, or 0 if no clock is being received.
+     */
+    public double getBpm() {
+        return getBpm(System.nanoTime());
+    }
+
+    /**
+     * @param now - Current time on the System.nanoTime() time base.
+     * @return The estimated tempo, or 0 if no clock has been received recently.
+     */
+    public double getBpm(final long now) {
+        final double period = Double.longBitsToDouble(periodBits);
+        if (period <= 0 || !isClockPresent(now, period)) {
+            return 0;
+        }
+        return 60000000000d / (period * ppqn);
+    }
+
+    /**
+     * @return true if clock pulses are still arriving.
+     */
+    public boolean isClockPresent(final long now) {
+        return isClockPresent(now, Double.longBitsToDouble(periodBits));
+    }
+
+    /**
+     * @return true between a START / CONTINUE and the following STOP.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void onClock(final long timestamp) {
+        final long last = lastClockNanos;
+        if (last > 0 && period > 0 && timestamp - last > DROPOUT_PERIODS * period) {
+            // The clock went away and came back; the old phase is meaningless.
+            reset();
+        }
+        lastClockNanos = timestamp;
+        final long current = pulse++;
+        if (count >= MIN_SAMPLES) {
+            final double residual =
+                    (timestamp - originNanos) - (intercept + (current - originPulse) * period);
+            final double limit = Math.max(
+                    OUTLIER_PERIOD_FRACTION * period, OUTLIER_RMS_FACTOR * rmsResidual);
+            if (Math.abs(residual) > limit) {
+                onOutlier(current, timestamp, (residual > 0) ? 1 : -1);
+                return;
+            }
+        }
+        // Back on the line; whatever was held back was just jitter.
+        suspectCount = 0;
+        suspectDirection = 0;
+        add(current, timestamp);
+        fit();
+    }
+
+    public void onStart(final long timestamp) {
+        reset();
+        running = true;
+    }
+
+    public void onContinue(final long timestamp) {
+        running = true;
+    }
+
+    public void onStop(final long timestamp) {
+        running = false;
+    }
+
+    private void onOutlier(final long pulse, final long timestamp, final int direction) {
+        if (direction != suspectDirection) {
+            suspectCount = 0;
+            suspectDirection = direction;
+        }
+        suspectPulses[suspectCount] = pulse;
+        suspectTimestamps[suspectCount] = timestamp;
+        suspectCount++;
+        if (suspectCount < CHANGE_CONFIRMATIONS) {
+            return;
+        }
+        // Tempo change: restart the window from the last sample on the old line.
+        final int lastIndex = (head + WINDOW_SIZE - 1) % WINDOW_SIZE;
+        final long lastPulse = pulses[lastIndex];
+        final long lastTimestamp = timestamps[lastIndex];
+        head = 0;
+        count = 0;
+        add(lastPulse, lastTimestamp);
+        for (int i = 0; i < suspectCount; i++) {
+            add(suspectPulses[i], suspectTimestamps[i]);
+        }
+        suspectCount = 0;
+        suspectDirection = 0;
+        fit();
+    }
+
+    private void add(final long pulse, final long timestamp) {
+        pulses[head] = pulse;
+        timestamps[head] = timestamp;
+        head = (head + 1) % WINDOW_SIZE;
+        if (count < WINDOW_SIZE) {
+            count++;
+        }
+    }
+
+    /**
+     * Least-squares fit of timestamp against pulse index over the window. Values are taken
+     * relative to the oldest sample to keep the sums well within double precision.
+     */
+    private void fit() {
+        if (count < 2) {
+            return;
+        }
+        final int first = (head + WINDOW_SIZE - count) % WINDOW_SIZE;
+        final long x0 = pulses[first];
+        final long y0 = timestamps[first];
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 0; i < count; i++) {
+            final int index = (first + i) % WINDOW_SIZE;
+            sumX += pulses[index] - x0;
+            sumY += timestamps[index] - y0;
+        }
+        final double meanX = sumX / count;
+        final double meanY = sumY / count;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < count; i++) {
+            final int index = (first + i) % WINDOW_SIZE;
+            final double dx = (pulses[index] - x0) - meanX;
+            sxx += dx * dx;
+            sxy += dx * ((timestamps[index] - y0) - meanY);
+        }
+        if (sxx <= 0) {
+            return;
+        }
+        final double slope = sxy / sxx;
+        if (slope <= 0) {
+            return;
+        }
+        period = slope;
+        originPulse = x0;
+        originNanos = y0;
+        intercept = meanY - (slope * meanX);
+        double squares = 0;
+        for (int i = 0; i < count; i++) {
+            final int index = (first + i) % WINDOW_SIZE;
+            final double residual =
+                    (timestamps[index] - y0) - (intercept + (pulses[index] - x0) * slope);
+            squares += residual * residual;
+        }
+        rmsResidual = Math.sqrt(squares / count);
+        if (count >= MIN_SAMPLES) {
+            periodBits = Double.doubleToRawLongBits(period);
+        }
+    }
+
+    private void reset() {
+        head = 0;
+        count = 0;
+        suspectCount = 0;
+        suspectDirection = 0;
+        pulse = 0;
+        period = 0;
+        intercept = 0;
+        rmsResidual = 0;
+    }
+
+    private boolean isClockPresent(final long now, final double period) {
+        final long last = lastClockNanos;
+        if (last == 0) {
+            return false;
+        }
+        final long timeout = Math.max(MIN_TIMEOUT_NANOS, (long) (DROPOUT_PERIODS * period));
+        return now - last <= timeout;
+    }
+
+}
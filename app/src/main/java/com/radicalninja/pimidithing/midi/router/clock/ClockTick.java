@@ -1,14 +1,123 @@
 package com.radicalninja.pimidithing.midi.router.clock;
 
+import com.radicalninja.pimidithing.util.ValueException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A position on the clock, expressed in musical divisions.
+ *
+ * ClockTick is a reusable cursor: a clock keeps one instance and moves it with setPosition() or
+ * advance() on every pulse. Division boundaries for a given ppqn / pattern length are computed
+ * once and shared, so boundary checks are a table lookup and step numbers a single division,
+ * with no allocation per pulse. Divisions that do not land on whole pulses (e.g. sixteenths at
+ * a ppqn not divisible by 4) fall on the first pulse at or after the exact boundary.
+ */
 public class ClockTick {
 
     public static final int DEFAULT_PPQN = 24;
     public static final int DEFAULT_PATTERN_LENGTH = 16;
 
-    private final int position;
+    /**
+     * Note divisions, as a length of quarters / parts quarter notes.
+     */
+    public enum Division {
+        WHOLE(4, 1),
+        HALF(2, 1),
+        QUARTER(1, 1),
+        EIGHTH(1, 2),
+        SIXTEENTH(1, 4),
+        THIRTY_SECOND(1, 8),
+        HALF_TRIPLET(4, 3),
+        QUARTER_TRIPLET(2, 3),
+        EIGHTH_TRIPLET(1, 3),
+        SIXTEENTH_TRIPLET(1, 6),
+        DOTTED_HALF(3, 1),
+        DOTTED_QUARTER(3, 2),
+        DOTTED_EIGHTH(3, 4),
+        DOTTED_SIXTEENTH(3, 8);
+
+        public final int quarters;
+        public final int parts;
+        public final int mask;
+
+        Division(final int quarters, final int parts) {
+            this.quarters = quarters;
+            this.parts = parts;
+            this.mask = 1 << ordinal();
+        }
+
+        /**
+         * @return Which step of this division the given pulse falls in.
+         */
+        int step(final long pulse, final int ppqn) {
+            return (int) ((pulse * parts) / ((long) ppqn * quarters));
+        }
+    }
+
+    // Every division's boundaries repeat after this many quarter notes.
+    private static final int GRID_CYCLE_QUARTERS = 12;
+
+    private static final Map<Long, Timing> TIMINGS = new HashMap<>();
+
+    /**
+     * Boundary masks for one ppqn / pattern length. Immutable once built.
+     */
+    private static class Timing {
+        final int ppqn;
+        final int patternLength;
+        final int patternPulses;
+        // Bit n set if Division n starts on that pulse; indexed by position % gridMasks.length.
+        final int[] gridMasks;
+        // As above, counted from the start of the pattern.
+        final int[] patternMasks;
+
+        Timing(final int ppqn, final int patternLength) {
+            this.ppqn = ppqn;
+            this.patternLength = patternLength;
+            this.patternPulses = ppqn * patternLength;
+            this.gridMasks = buildMasks(ppqn, ppqn * GRID_CYCLE_QUARTERS);
+            this.patternMasks = buildMasks(ppqn, patternPulses);
+        }
+
+        private static int[] buildMasks(final int ppqn, final int length) {
+            final int[] masks = new int[length];
+            for (final Division division : Division.values()) {
+                int previous = -1;
+                for (int pulse = 0; pulse < length; pulse++) {
+                    final int step = division.step(pulse, ppqn);
+                    if (step != previous) {
+                        masks[pulse] |= division.mask;
+                        previous = step;
+                    }
+                }
+            }
+            return masks;
+        }
+    }
+
+    private static Timing getTiming(final int ppqn, final int patternLength) {
+        final long key = ((long) ppqn << 32) | patternLength;
+        synchronized (TIMINGS) {
+            Timing timing = TIMINGS.get(key);
+            if (null == timing) {
+                timing = new Timing(ppqn, patternLength);
+                TIMINGS.put(key, timing);
+            }
+            return timing;
+        }
+    }
+
+    private final Timing timing;
     private final int ppqn;
     private final int patternLength;
 
+    private int position;
+    private int patternPulse;
+    private int gridMask;
+    private int patternMask;
+
     /**
      * Create a ClockTick with a PPQN of 24 and Pattern Length of 16 quarternotes.
      * @param position - Position in the sequence.
@@ -33,9 +142,103 @@ public class ClockTick {
      * @param patternLength - Number of quarternotes per pattern.
      */
     public ClockTick(final int position, final int ppqn, final int patternLength) {
-        this.position = position;
+        if (ppqn < 1) {
+            throw new ValueException.BelowMinimumValueException("ppqn", 1);
+        }
+        if (patternLength < 1) {
+            throw new ValueException.BelowMinimumValueException("patternLength", 1);
+        }
+        this.timing = getTiming(ppqn, patternLength);
         this.ppqn = ppqn;
         this.patternLength = patternLength;
+        setPosition(position);
+    }
+
+    /**
+     * Move the cursor to a new position.
+     * @param position - Position in the sequence, in pulses.
+     */
+    public void setPosition(final int position) {
+        this.position = Math.max(0, position);
+        this.patternPulse = this.position % timing.patternPulses;
+        this.gridMask = timing.gridMasks[this.position % timing.gridMasks.length];
+        this.patternMask = timing.patternMasks[patternPulse];
+    }
+
+    /**
+     * Move the cursor forward by one pulse.
+     */
+    public void advance() {
+        setPosition(position + 1);
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public int getPpqn() {
+        return ppqn;
+    }
+
+    public int getPatternLength() {
+        return patternLength;
+    }
+
+    /**
+     * @return Number of whole patterns played before this position.
+     */
+    public int getPattern() {
+        return position / timing.patternPulses;
+    }
+
+    /**
+     * @return Position within the current pattern, in pulses.
+     */
+    public int getPatternPulse() {
+        return patternPulse;
+    }
+
+    /**
+     * @return true if a step of the given division starts on this pulse.
+     */
+    public boolean isBoundary(final Division division) {
+        return (gridMask & division.mask) != 0;
+    }
+
+    /**
+     * @return true if a step of the given division, counted from the start of the pattern,
+     *      starts on this pulse. Every division has a boundary at the top of the pattern.
+     */
+    public boolean isPatternBoundary(final Division division) {
+        return (patternMask & division.mask) != 0;
+    }
+
+    /**
+     * @return Bitmask of every Division (by Division.mask) with a boundary on this pulse.
+     */
+    public int getBoundaryMask() {
+        return gridMask;
+    }
+
+    /**
+     * @return Bitmask of every Division (by Division.mask) with a pattern boundary on this pulse.
+     */
+    public int getPatternBoundaryMask() {
+        return patternMask;
+    }
+
+    /**
+     * @return Number of complete steps of the given division since the start of the sequence.
+     */
+    public int getCount(final Division division) {
+        return division.step(position, ppqn);
+    }
+
+    /**
+     * @return Which step of the current pattern this pulse falls in, counting from 0.
+     */
+    public int getPatternStep(final Division division) {
+        return division.step(patternPulse, ppqn);
     }
 
     public int getPulse() {
@@ -43,68 +246,63 @@ public class ClockTick {
     }
 
     public int getWholeNote() {
-        return position / (ppqn * 4);
+        return getCount(Division.WHOLE);
     }
 
     public boolean isWholeNote() {
-        return (position % (ppqn * 4)) == 0;
+        return isBoundary(Division.WHOLE);
     }
 
     public int getPatternWholeNote() {
-        // TODO!! Use patternLength here
-        return 0;
+        return getPatternStep(Division.WHOLE);
     }
 
     public int getHalfNote() {
-        return position / (ppqn * 2);
+        return getCount(Division.HALF);
     }
 
     public boolean isHalfNote() {
-        return (position % (ppqn * 2)) == 0;
+        return isBoundary(Division.HALF);
     }
 
     public int getPatternHalfNote() {
-        // TODO!! Use patternLength here
-        return 0;
+        return getPatternStep(Division.HALF);
     }
 
     public int getQuarterNote() {
-        return position / ppqn;
+        return getCount(Division.QUARTER);
     }
 
     public boolean isQuarterNote() {
-        return (position % ppqn) == 0;
+        return isBoundary(Division.QUARTER);
     }
 
     public int getPatternQuarterNote() {
-        // TODO!! Use patternLength here
-        return 0;
+        return getPatternStep(Division.QUARTER);
     }
 
     public int getEighthNote() {
-        return position / (ppqn / 2);
+        return getCount(Division.EIGHTH);
     }
 
     public boolean isEighthNote() {
-        return (position % (ppqn / 2)) == 0;
+        return isBoundary(Division.EIGHTH);
     }
 
     public int getPatternEighthNote() {
-        // TODO!! Use patternLength here
-        return 0;
+        return getPatternStep(Division.EIGHTH);
     }
 
     public int getSixteenthNote() {
-        return position / (ppqn / 4);
+        return getCount(Division.SIXTEENTH);
     }
 
     public boolean isSixteenthNote() {
-        return (position % (ppqn / 4)) == 0;
+        return isBoundary(Division.SIXTEENTH);
     }
 
     public int getPatternSixteenthNote() {
-        // TODO!! Use patternLength here
-        return 0;
+        return getPatternStep(Division.SIXTEENTH);
     }
 
 }
@@ -1,7 +1,408 @@
 package com.radicalninja.pimidithing.midi.router.clock;
 
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.MidiOutputController;
+import com.radicalninja.pimidithing.midi.MidiScheduler;
+import com.radicalninja.pimidithing.util.DeadlineTimer;
+import com.radicalninja.pimidithing.util.ValueException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Internal MIDI clock master.
+ *
+ * Pulses are sent at bpm * ppqn / 60 Hz. Each pulse's deadline is computed from a fixed anchor
+ * (anchor + n * period) rather than from the previous pulse, so scheduling error never
+ * accumulates. Waiting is done by a DeadlineTimer, which parks and then spins for the final
+ * stretch to keep jitter low.
+ *
+ * Transport commands may be issued from any thread; they are queued and carried out on the
+ * clock thread so that every message leaves in order.
+ *
+ * Each output can have its own offset to compensate for how long a device takes to respond to
+ * clock. The clock thread runs ahead of the master phase by the largest negative offset; outputs
+ * that are not the earliest get their messages through the MidiScheduler, so every device lands
+ * on the same beat.
+ */
 public class DigitalClock {
 
-    // TODO: Stubbed!!
+    public static final double DEFAULT_BPM = 120;
+    public static final double MIN_BPM = 20;
+    public static final double MAX_BPM = 300;
+
+    private static final String TAG = DigitalClock.class.getCanonicalName();
+    private static final String THREAD_NAME = "DigitalClock";
+
+    // Delay between START / CONTINUE and the first pulse.
+    /* package */
+    static final long START_LEAD_NANOS = 1000000L;
+    private static final int SIXTEENTHS_PER_QUARTER_NOTE = 4;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000L;
+
+    private static final byte[] MESSAGE_CLOCK = { MidiMessage.MessageType.CLOCK.value };
+    private static final byte[] MESSAGE_START = { MidiMessage.MessageType.START.value };
+    private static final byte[] MESSAGE_CONTINUE = { MidiMessage.MessageType.CONTINUE.value };
+    private static final byte[] MESSAGE_STOP = { MidiMessage.MessageType.STOP.value };
+
+    private enum CommandType {
+        START, STOP, CONTINUE, POSITION, TEMPO, SHUTDOWN
+    }
+
+    private static class Distribution {
+        final MidiOutputController[] outputs;
+        final long[] offsets;
+        // How far ahead of the master phase the earliest output is sent.
+        final long lookahead;
+
+        Distribution(final MidiOutputController[] outputs, final long[] offsets) {
+            this.outputs = outputs;
+            this.offsets = offsets;
+            long earliest = 0;
+            for (final long offset : offsets) {
+                earliest = Math.min(earliest, offset);
+            }
+            this.lookahead = -earliest;
+        }
+    }
+
+    private static class Command {
+        final CommandType type;
+        final double value;
+
+        Command(final CommandType type, final double value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    private final DeadlineTimer timer = new DeadlineTimer();
+    private final MidiScheduler scheduler;
+    // Reused for every pulse; only touched by the clock thread.
+    private final ClockTick tick;
+    private final int ppqn;
+    private final int patternLength;
+
+    private volatile Distribution distribution =
+            new Distribution(new MidiOutputController[0], new long[0]);
+    private volatile ClockListener[] listeners = new ClockListener[0];
+    private volatile double bpm;
+    private volatile boolean running = false;
+    private volatile int position = 0;
+
+    private Thread thread;
+    private double periodNanos;
+    private long anchorNanos;
+    private int anchorPosition;
+    private long lastDeadline;
+
+    /**
+     * @param scheduler - Scheduler used to send late to outputs with offsets.
+     * @param bpm - Initial tempo.
+     * @param ppqn - Clock resolution in Pulses Per Quarter Note.
+     * @param patternLength - Number of quarternotes per pattern.
+     */
+    public DigitalClock(@NonNull final MidiScheduler scheduler,
+                        final double bpm,
+                        final int ppqn,
+                        final int patternLength) {
+
+        if (ppqn < 1) {
+            throw new ValueException.BelowMinimumValueException("ppqn", 1);
+        }
+        if (patternLength < 1) {
+            throw new ValueException.BelowMinimumValueException("patternLength", 1);
+        }
+        this.scheduler = scheduler;
+        this.ppqn = ppqn;
+        this.patternLength = patternLength;
+        this.tick = new ClockTick(0, ppqn, patternLength);
+        this.bpm = clipBpm(bpm);
+        this.periodNanos = calculatePeriod(this.bpm);
+    }
+
+    public int getPpqn() {
+        return ppqn;
+    }
+
+    public int getPatternLength() {
+        return patternLength;
+    }
+
+    public double getBpm() {
+        return bpm;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The pulse that will be sent next.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return How far ahead of each pulse's nominal time the clock thread wakes, in nanoseconds.
+     */
+    public long getLookahead() {
+        return distribution.lookahead;
+    }
+
+    public void setOutputs(@NonNull final Collection<MidiOutputController> outputs) {
+        distribution = new Distribution(
+                outputs.toArray(new MidiOutputController[outputs.size()]), new long[outputs.size()]);
+    }
+
+    /**
+     * @param offsets - Outputs mapped to their offset in nanoseconds. Negative values send
+     *      ahead of the master phase, positive values behind it.
+     */
+    public void setOutputs(@NonNull final Map<MidiOutputController, Long> offsets) {
+        final MidiOutputController[] outputs = new MidiOutputController[offsets.size()];
+        final long[] offsetNanos = new long[offsets.size()];
+        int i = 0;
+        for (final Map.Entry<MidiOutputController, Long> entry : offsets.entrySet()) {
+            outputs[i] = entry.getKey();
+            offsetNanos[i++] = (null != entry.getValue()) ? entry.getValue() : 0;
+        }
+        distribution = new Distribution(outputs, offsetNanos);
+    }
+
+    public synchronized boolean addListener(@NonNull final ClockListener listener) {
+        for (final ClockListener existing : listeners) {
+            if (existing == listener) {
+                return false;
+            }
+        }
+        final ClockListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+        return true;
+    }
+
+    public synchronized boolean removeListener(@NonNull final ClockListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                final ClockListener[] updated = new ClockListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                listeners = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send START and begin pulsing from the top of the song.
+     */
+    public void start() {
+        queue(CommandType.START, 0);
+    }
+
+    /**
+     * Send STOP. The current position is kept for continueClock().
+     */
+    public void stop() {
+        queue(CommandType.STOP, 0);
+    }
+
+    /**
+     * Send CONTINUE and resume pulsing from the current position.
+     */
+    public void continueClock() {
+        queue(CommandType.CONTINUE, 0);
+    }
+
+    /**
+     * Move to a new song position and send a Song Position Pointer. Ignored while running, as
+     * receivers only honour SPP while stopped.
+     * @param beats - Position in MIDI beats (sixteenth notes), 0 - 16383.
+     */
+    public void setSongPosition(final int beats) {
+        queue(CommandType.POSITION, beats);
+    }
+
+    public void setBpm(final double bpm) {
+        this.bpm = clipBpm(bpm);
+        queue(CommandType.TEMPO, this.bpm);
+    }
+
+    /**
+     * Send STOP if running and end the clock thread. The clock may be started again afterwards.
+     */
+    public synchronized void shutdown() {
+        if (null == thread) {
+            return;
+        }
+        queue(CommandType.SHUTDOWN, 0);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the clock thread to finish.", e);
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private synchronized void queue(final CommandType type, final double value) {
+        commands.add(new Command(type, value));
+        if (null == thread) {
+            thread = new Thread(clockRunnable, THREAD_NAME);
+            thread.start();
+        }
+        timer.wake();
+        LockSupport.unpark(thread);
+    }
+
+    private final Runnable clockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (true) {
+                Command command;
+                while (null != (command = commands.poll())) {
+                    if (command.type == CommandType.SHUTDOWN) {
+                        if (running) {
+                            running = false;
+                            sendToOutputs(MESSAGE_STOP, System.nanoTime() + getLookahead());
+                        }
+                        return;
+                    }
+                    execute(command);
+                }
+                if (!running) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                final int pulse = position;
+                final long deadline =
+                        anchorNanos + (long) ((pulse - anchorPosition) * periodNanos);
+                if (!timer.awaitDeadline(deadline - getLookahead())) {
+                    // Woken for a command; handle it and recompute the deadline.
+                    continue;
+                }
+                sendToOutputs(MESSAGE_CLOCK, deadline);
+                tick.setPosition(pulse);
+                for (final ClockListener listener : listeners) {
+                    listener.onClockTick(tick, deadline);
+                }
+                lastDeadline = deadline;
+                position = pulse + 1;
+            }
+        }
+    };
+
+    private void execute(final Command command) {
+        // Transport is placed on the master phase, which runs behind the earliest output.
+        final long now = System.nanoTime() + getLookahead();
+        switch (command.type) {
+            case START:
+                position = 0;
+                sendToOutputs(MESSAGE_START, now);
+                anchor(now + START_LEAD_NANOS, 0);
+                running = true;
+                for (final ClockListener listener : listeners) {
+                    listener.onClockStart(now);
+                }
+                break;
+            case STOP:
+                if (!running) {
+                    break;
+                }
+                running = false;
+                sendToOutputs(MESSAGE_STOP, now);
+                for (final ClockListener listener : listeners) {
+                    listener.onClockStop(now);
+                }
+                break;
+            case CONTINUE:
+                if (running) {
+                    break;
+                }
+                sendToOutputs(MESSAGE_CONTINUE, now);
+                anchor(now + START_LEAD_NANOS, position);
+                running = true;
+                for (final ClockListener listener : listeners) {
+                    listener.onClockContinue(position, now);
+                }
+                break;
+            case POSITION:
+                if (running) {
+                    Log.w(TAG, "Ignoring song position change while the clock is running.");
+                    break;
+                }
+                final int beats = Math.max(0, Math.min(0x3FFF, (int) command.value));
+                position = (beats * ppqn) / SIXTEENTHS_PER_QUARTER_NOTE;
+                // A new array each time, as scheduled sends keep a reference to it.
+                final byte[] songPosition = {
+                        MidiMessage.MessageType.POSITION.value,
+                        (byte) (beats & 0x7F),
+                        (byte) ((beats >> 7) & 0x7F)
+                };
+                sendToOutputs(songPosition, now);
+                for (final ClockListener listener : listeners) {
+                    listener.onSongPosition(position, now);
+                }
+                break;
+            case TEMPO:
+                final double period = calculatePeriod(command.value);
+                if (running && position > 0) {
+                    // Re-anchor on the last pulse so the next one lands one new period after
+                    // it, with no gap. After a big jump in tempo that can already be overdue;
+                    // then the next pulse is due now rather than a burst of catch-up pulses.
+                    anchor(Math.max(lastDeadline, now - (long) period), position - 1);
+                }
+                periodNanos = period;
+                break;
+        }
+    }
+
+    private void anchor(final long nanos, final int pulse) {
+        anchorNanos = nanos;
+        anchorPosition = pulse;
+    }
+
+    /**
+     * @param timestamp - Master phase time of the message; each output's offset is added to it.
+     */
+    private void sendToOutputs(final byte[] message, final long timestamp) {
+        final Distribution distribution = this.distribution;
+        for (int i = 0; i < distribution.outputs.length; i++) {
+            final MidiOutputController output = distribution.outputs[i];
+            final long offset = distribution.offsets[i];
+            final long sendTime = timestamp + offset;
+            if (offset + distribution.lookahead == 0) {
+                // The earliest output(s): the clock thread is already on time for these.
+                try {
+                    output.send(message, 0, message.length, sendTime);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending clock to " + output.getPortRecord().getNickname(), e);
+                }
+            } else {
+                scheduler.schedule(output, message, 0, message.length, sendTime);
+            }
+        }
+    }
+
+    private double calculatePeriod(final double bpm) {
+        return 60000000000d / (bpm * ppqn);
+    }
+
+    private static double clipBpm(final double bpm) {
+        return Math.max(MIN_BPM, Math.min(MAX_BPM, bpm));
+    }
 
 }
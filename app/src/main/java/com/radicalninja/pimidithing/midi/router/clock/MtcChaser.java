@@ -0,0 +1,204 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import com.radicalninja.pimidithing.midi.MidiInputController;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+
+/**
+ * Follows incoming MIDI Time Code.
+ *
+ * Quarter frames are collected until all eight pieces have arrived in sequence, at which point
+ * the full timecode is decoded and the chaser locks. Between complete messages each quarter
+ * frame moves the position by a quarter of a frame. The order of the pieces gives the
+ * direction, so rewinding is followed as well. Full Frame messages locate without playing, and
+ * a gap in quarter frames stops the position where it last was.
+ *
+ * Messages are expected from a single thread (the input's receiver). The position is published
+ * as an immutable snapshot through a volatile field, so any thread may read it without locking.
+ */
+public class MtcChaser {
+
+    private static final int PIECES = 8;
+    private static final int ALL_PIECES = 0xFF;
+    private static final int QUARTERS_PER_FRAME = 4;
+    // Longer than a few quarter frames at the slowest rate, shorter than a human would notice.
+    private static final long DROPOUT_NANOS = 100000000L;    // 100ms
+    private static final int FULL_FRAME_LENGTH = 10;
+
+    private static class Snapshot {
+        final boolean locked;
+        final boolean running;
+        final int direction;
+        final MtcRate rate;
+        // Position in quarter frames since 00:00:00:00, as of timestamp.
+        final long quarters;
+        final long timestamp;
+
+        Snapshot(final boolean locked, final boolean running, final int direction,
+                 final MtcRate rate, final long quarters, final long timestamp) {
+
+            this.locked = locked;
+            this.running = running;
+            this.direction = direction;
+            this.rate = rate;
+            this.quarters = quarters;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(false, false, 0, MtcRate.FPS_30, 0, 0);
+
+    // Receiver state.
+    private final int[] nibbles = new int[PIECES];
+    private int received = 0;
+    private int lastPiece = -1;
+    private int direction = 0;
+    private long lastQuarterFrameNanos = 0;
+
+    private final MidiInputController.MessageListener messageListener =
+            new MidiInputController.MessageListener() {
+                @Override
+                public boolean onMessage(MidiInputController input, MidiMessage message) {
+                    final long timestamp = (message.getTimestamp() > 0)
+                            ? message.getTimestamp()
+                            : System.nanoTime();
+                    switch (message.getType()) {
+                        case MTC:
+                            onQuarterFrame(message.getBytes()[1], timestamp);
+                            break;
+                        case SYSEX:
+                            onSysex(message.getBytes(), timestamp);
+                            break;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * @return A listener to attach to the input carrying timecode.
+     */
+    public MidiInputController.MessageListener getMessageListener() {
+        return messageListener;
+    }
+
+    /**
+     * @return true once a complete timecode has been received.
+     */
+    public boolean isLocked() {
+        return snapshot.locked;
+    }
+
+    /**
+     * @return true while quarter frames are arriving.
+     */
+    public boolean isRunning(final long now) {
+        final Snapshot current = snapshot;
+        return current.running && now - current.timestamp <= DROPOUT_NANOS;
+    }
+
+    /**
+     * @return 1 when running forwards, -1 when running backwards, 0 when stopped or unknown.
+     */
+    public int getDirection() {
+        return snapshot.direction;
+    }
+
+    public MtcRate getRate() {
+        return snapshot.rate;
+    }
+
+    /**
+     * @param now - Current time on the System.nanoTime() time base.
+     * @return The position in nanoseconds since 00:00:00:00, extrapolated to now.
+     */
+    public long getPositionNanos(final long now) {
+        final Snapshot current = snapshot;
+        final double quarterNanos = current.rate.getNanosPerFrame() / QUARTERS_PER_FRAME;
+        final long base = (long) (current.quarters * quarterNanos);
+        if (!current.running) {
+            return base;
+        }
+        // Extrapolate up to the dropout limit, then hold.
+        final long elapsed = Math.max(0, Math.min(DROPOUT_NANOS, now - current.timestamp));
+        return Math.max(0, base + current.direction * elapsed);
+    }
+
+    /**
+     * @param now - Current time on the System.nanoTime() time base.
+     * @return The current frame number since 00:00:00:00.
+     */
+    public long getFrame(final long now) {
+        return (long) (getPositionNanos(now) / snapshot.rate.getNanosPerFrame());
+    }
+
+    /**
+     * @param now - Current time on the System.nanoTime() time base.
+     * @param out - Receives hours, minutes, seconds and frames; at least 4 long.
+     */
+    public void getTimecode(final long now, final int[] out) {
+        snapshot.rate.toTimecode(getFrame(now), out);
+    }
+
+    public void onQuarterFrame(final byte data, final long timestamp) {
+        final int piece = (data >> 4) & 0x07;
+        final int value = data & 0x0F;
+        if (lastQuarterFrameNanos > 0 && timestamp - lastQuarterFrameNanos > DROPOUT_NANOS) {
+            // Timecode went away; start collecting from scratch.
+            received = 0;
+            lastPiece = -1;
+            direction = 0;
+        }
+        lastQuarterFrameNanos = timestamp;
+        if (lastPiece >= 0) {
+            final int step;
+            if (piece == ((lastPiece + 1) & 0x07)) {
+                step = 1;
+            } else if (piece == ((lastPiece + PIECES - 1) & 0x07)) {
+                step = -1;
+            } else {
+                step = 0;
+            }
+            if (step != direction) {
+                // Direction changed or pieces were lost; the collected pieces don't belong together.
+                received = 0;
+                direction = step;
+            }
+        }
+        lastPiece = piece;
+        nibbles[piece] = value;
+        received |= 1 << piece;
+
+        final Snapshot current = snapshot;
+        final boolean complete = received == ALL_PIECES
+                && ((direction > 0 && piece == 7) || (direction < 0 && piece == 0));
+        if (complete) {
+            received = 0;
+            final MtcRate rate = MtcRate.fromCode((nibbles[7] >> 1) & 0x03);
+            final long frame = rate.toFrames(
+                    nibbles[6] | ((nibbles[7] & 0x01) << 4),
+                    nibbles[4] | ((nibbles[5] & 0x03) << 4),
+                    nibbles[2] | ((nibbles[3] & 0x03) << 4),
+                    nibbles[0] | ((nibbles[1] & 0x01) << 4));
+            // The timecode is that of piece 0; going forwards, piece 7 is 7 quarters later.
+            final long quarters = (frame * QUARTERS_PER_FRAME) + ((direction > 0) ? 7 : 0);
+            snapshot = new Snapshot(true, true, direction, rate, quarters, timestamp);
+        } else if (current.locked && direction != 0) {
+            snapshot = new Snapshot(true, true, direction, current.rate,
+                    Math.max(0, current.quarters + direction), timestamp);
+        }
+    }
+
+    public void onSysex(final byte[] bytes, final long timestamp) {
+        // F0 7F <device> 01 01 hh mm ss ff F7
+        if (bytes.length < FULL_FRAME_LENGTH || bytes[1] != 0x7F || bytes[3] != 0x01
+                || bytes[4] != 0x01) {
+            return;
+        }
+        final MtcRate rate = MtcRate.fromCode((bytes[5] >> 5) & 0x03);
+        final long frame = rate.toFrames(bytes[5] & 0x1F, bytes[6], bytes[7], bytes[8]);
+        received = 0;
+        lastPiece = -1;
+        direction = 0;
+        snapshot = new Snapshot(true, false, 0, rate, frame * QUARTERS_PER_FRAME, timestamp);
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.MidiOutputController;
+import com.radicalninja.pimidithing.util.DeadlineTimer;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates MIDI Time Code following the DigitalClock's transport.
+ *
+ * Quarter frames are sent four times per frame on absolute deadlines (anchor + n * period), so
+ * timecode does not drift against the clock. A Full Frame message is sent whenever the position
+ * is located: on START, CONTINUE and song position changes. Song positions are converted to
+ * time at the clock's current tempo.
+ */
+public class MtcGenerator implements ClockListener {
+
+    private static final String TAG = MtcGenerator.class.getCanonicalName();
+    private static final String THREAD_NAME = "MtcGenerator";
+
+    private static final int PIECES = 8;
+    private static final int QUARTERS_PER_FRAME = 4;
+
+    // F0 7F <device> 01 01 hh mm ss ff F7
+    private static final byte DEVICE_ALL = 0x7F;
+    private static final int FULL_FRAME_LENGTH = 10;
+
+    private final MtcRate rate;
+    private final DigitalClock clock;
+    private final DeadlineTimer timer = new DeadlineTimer();
+    private final double quarterFrameNanos;
+
+    // Only touched by the generator thread.
+    private final byte[] quarterFrame = { MidiMessage.MessageType.MTC.value, 0 };
+    private final int[] timecode = new int[4];
+    // Guarded by this.
+    private final byte[] fullFrame = new byte[FULL_FRAME_LENGTH];
+
+    private volatile MidiOutputController[] outputs = new MidiOutputController[0];
+    private volatile boolean running = false;
+    private volatile Thread thread;
+
+    // Transport state handed over from the clock thread.
+    private volatile long startFrame = 0;
+    private volatile long anchorNanos = 0;
+    private volatile boolean locate = false;
+
+    public MtcGenerator(@NonNull final DigitalClock clock, @NonNull final MtcRate rate) {
+        this.clock = clock;
+        this.rate = rate;
+        this.quarterFrameNanos = rate.getNanosPerFrame() / QUARTERS_PER_FRAME;
+    }
+
+    public MtcRate getRate() {
+        return rate;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setOutputs(@NonNull final Collection<MidiOutputController> outputs) {
+        this.outputs = outputs.toArray(new MidiOutputController[outputs.size()]);
+    }
+
+    @Override
+    public void onClockStart(final long timestamp) {
+        startFrame = 0;
+        begin(timestamp);
+    }
+
+    @Override
+    public void onClockStop(final long timestamp) {
+        halt();
+    }
+
+    @Override
+    public void onClockContinue(final int position, final long timestamp) {
+        startFrame = framesAt(position);
+        begin(timestamp);
+    }
+
+    @Override
+    public void onSongPosition(final int position, final long timestamp) {
+        startFrame = framesAt(position);
+        sendFullFrame(startFrame);
+    }
+
+    @Override
+    public void onClockTick(final ClockTick tick, final long timestamp) {
+        // Timecode runs on its own deadlines.
+    }
+
+    public synchronized void shutdown() {
+        halt();
+    }
+
+    private long framesAt(final int position) {
+        final double seconds = (position / (double) clock.getPpqn()) * 60d / clock.getBpm();
+        return (long) (seconds * 1000000000d / rate.getNanosPerFrame());
+    }
+
+    private synchronized void begin(final long timestamp) {
+        // Quarter frame 0 lands on the first clock pulse, which trails the transport message.
+        // The anchor is published before the flag, and the generator reads the flag first.
+        anchorNanos = timestamp + DigitalClock.START_LEAD_NANOS;
+        locate = true;
+        running = true;
+        if (null == thread) {
+            thread = new Thread(generatorRunnable, THREAD_NAME);
+            thread.start();
+        } else {
+            timer.wake();
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void halt() {
+        running = false;
+        final Thread current = thread;
+        thread = null;
+        if (null != current) {
+            timer.wake();
+            LockSupport.unpark(current);
+        }
+    }
+
+    private boolean isActive() {
+        return running && thread == Thread.currentThread();
+    }
+
+    private final Runnable generatorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            long anchor = 0;
+            long frame = 0;
+            long quarter = 0;
+            while (isActive()) {
+                if (locate) {
+                    // (Re)started: quarter frame 0 of startFrame lands on the anchor.
+                    locate = false;
+                    anchor = anchorNanos;
+                    frame = startFrame;
+                    quarter = 0;
+                    sendFullFrame(frame);
+                }
+                final long deadline = anchor + (long) (quarter * quarterFrameNanos);
+                if (!timer.awaitDeadline(deadline)) {
+                    continue;
+                }
+                final int piece = (int) (quarter % PIECES);
+                // A complete message spans two frames and carries the first frame's timecode.
+                if (piece == 0) {
+                    rate.toTimecode(frame + (quarter / QUARTERS_PER_FRAME), timecode);
+                }
+                quarterFrame[1] = (byte) ((piece << 4) | nibble(piece));
+                send(quarterFrame, deadline);
+                quarter++;
+            }
+        }
+    };
+
+    private int nibble(final int piece) {
+        switch (piece) {
+            case 0:
+                return timecode[3] & 0x0F;
+            case 1:
+                return (timecode[3] >> 4) & 0x01;
+            case 2:
+                return timecode[2] & 0x0F;
+            case 3:
+                return (timecode[2] >> 4) & 0x03;
+            case 4:
+                return timecode[1] & 0x0F;
+            case 5:
+                return (timecode[1] >> 4) & 0x03;
+            case 6:
+                return timecode[0] & 0x0F;
+            default:
+                return ((timecode[0] >> 4) & 0x01) | (rate.code << 1);
+        }
+    }
+
+    private synchronized void sendFullFrame(final long frame) {
+        final int[] fullTimecode = new int[4];
+        rate.toTimecode(frame, fullTimecode);
+        fullFrame[0] = MidiMessage.BYTE_SYSEX_START;
+        fullFrame[1] = DEVICE_ALL;
+        fullFrame[2] = DEVICE_ALL;
+        fullFrame[3] = 0x01;
+        fullFrame[4] = 0x01;
+        fullFrame[5] = (byte) ((rate.code << 5) | fullTimecode[0]);
+        fullFrame[6] = (byte) fullTimecode[1];
+        fullFrame[7] = (byte) fullTimecode[2];
+        fullFrame[8] = (byte) fullTimecode[3];
+        fullFrame[9] = MidiMessage.BYTE_SYSEX_END;
+        send(fullFrame, System.nanoTime());
+    }
+
+    private void send(final byte[] message, final long timestamp) {
+        for (final MidiOutputController output : outputs) {
+            try {
+                output.send(message, 0, message.length, timestamp);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending timecode to " + output.getPortRecord().getNickname(), e);
+            }
+        }
+    }
+
+}
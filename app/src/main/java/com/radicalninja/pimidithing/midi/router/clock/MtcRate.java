@@ -0,0 +1,91 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+/**
+ * MIDI Time Code frame rates, with conversion between a running frame count and timecode.
+ */
+public enum MtcRate {
+
+    FPS_24(0, 24, 1, false),
+    FPS_25(1, 25, 1, false),
+    FPS_29_97_DROP(2, 30000, 1001, true),
+    FPS_30(3, 30, 1, false);
+
+    // Drop-frame constants for 29.97: two frame numbers skipped each minute except every tenth.
+    private static final int DROP_FRAMES_PER_10_MINUTES = 17982;
+    private static final int DROP_FRAMES_PER_MINUTE = 1798;
+
+    /** Rate code carried in quarter frame piece 7 and full frame messages. */
+    public final int code;
+    /** Nominal frames per second used for counting (30 for 29.97 drop-frame). */
+    public final int nominalFps;
+    public final boolean dropFrame;
+    private final double nanosPerFrame;
+
+    MtcRate(final int code, final int numerator, final int denominator, final boolean dropFrame) {
+        this.code = code;
+        this.nominalFps = (numerator + denominator - 1) / denominator;
+        this.dropFrame = dropFrame;
+        this.nanosPerFrame = (1000000000d * denominator) / numerator;
+    }
+
+    public static MtcRate fromCode(final int code) {
+        for (final MtcRate rate : values()) {
+            if (rate.code == code) {
+                return rate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param fps - Frames per second as written in the config: 24, 25, 29.97 or 30.
+     * @return The matching rate, or null.
+     */
+    public static MtcRate fromFps(final double fps) {
+        if (Math.abs(fps - 29.97) < 0.01) {
+            return FPS_29_97_DROP;
+        }
+        for (final MtcRate rate : values()) {
+            if (!rate.dropFrame && rate.nominalFps == fps) {
+                return rate;
+            }
+        }
+        return null;
+    }
+
+    public double getNanosPerFrame() {
+        return nanosPerFrame;
+    }
+
+    /**
+     * @return The frame count of a timecode.
+     */
+    public long toFrames(final int hours, final int minutes, final int seconds, final int frames) {
+        final long nominal = (((hours * 60L + minutes) * 60L) + seconds) * nominalFps + frames;
+        if (!dropFrame) {
+            return nominal;
+        }
+        final long totalMinutes = hours * 60L + minutes;
+        return nominal - 2 * (totalMinutes - totalMinutes / 10);
+    }
+
+    /**
+     * Convert a frame count into timecode, wrapping at 24 hours.
+     * @param frameCount - Frames since 00:00:00:00.
+     * @param out - Receives hours, minutes, seconds and frames; at least 4 long.
+     */
+    public void toTimecode(long frameCount, final int[] out) {
+        if (dropFrame) {
+            final long tens = frameCount / DROP_FRAMES_PER_10_MINUTES;
+            final long remainder = frameCount % DROP_FRAMES_PER_10_MINUTES;
+            frameCount += 18 * tens + 2 * ((remainder - 2) / DROP_FRAMES_PER_MINUTE);
+        }
+        final long framesPerHour = nominalFps * 3600L;
+        frameCount %= framesPerHour * 24;
+        out[0] = (int) (frameCount / framesPerHour);
+        out[1] = (int) ((frameCount / (nominalFps * 60L)) % 60);
+        out[2] = (int) ((frameCount / nominalFps) % 60);
+        out[3] = (int) (frameCount % nominalFps);
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiInputController;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sets the DigitalClock's tempo from taps.
+ *
+ * The tempo is taken from a rolling window of the most recent inter-tap intervals. Intervals
+ * more than a set fraction away from the window's median (a double or missed tap) are ignored,
+ * and the rest are averaged. The clock re-anchors on its last pulse when the tempo changes, so a
+ * running clock is retuned without a burst of pulses or a gap.
+ *
+ * Taps can come from a MIDI note or CC (see getMessageListener()) or be fed directly, e.g. from
+ * the Sense HAT joystick.
+ */
+public class TapTempo {
+
+    public static final int TYPE_NOTE = 0;
+    public static final int TYPE_CC = 1;
+    public static final int ANY_CHANNEL = 0;
+
+    private static final String TAG = TapTempo.class.getCanonicalName();
+
+    private static final int MAX_INTERVALS = 8;
+    private static final int MIN_INTERVALS = 2;
+    // A pause this long starts a new tap sequence.
+    private static final long TAP_TIMEOUT_NANOS = 2000000000L;   // 2s
+    private static final double OUTLIER_FRACTION = 0.2;
+
+    private final DigitalClock clock;
+    private final int type;
+    private final int number;
+    private final int channel;
+
+    private final long[] intervals = new long[MAX_INTERVALS];
+    private final long[] sorted = new long[MAX_INTERVALS];
+    private int head = 0;
+    private int count = 0;
+    private long lastTap = 0;
+
+    private final MidiInputController.MessageListener messageListener =
+            new MidiInputController.MessageListener() {
+                @Override
+                public boolean onMessage(MidiInputController input, MidiMessage message) {
+                    if (isTrigger(message)) {
+                        tap((message.getTimestamp() > 0)
+                                ? message.getTimestamp()
+                                : System.nanoTime());
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * @param clock - Clock to retune.
+     * @param type - TYPE_NOTE or TYPE_CC.
+     * @param number - Note or controller number that counts as a tap.
+     * @param channel - Channel to listen on (1 - 16), or ANY_CHANNEL.
+     */
+    public TapTempo(@NonNull final DigitalClock clock,
+                    final int type,
+                    final int number,
+                    final int channel) {
+
+        this.clock = clock;
+        this.type = type;
+        this.number = number;
+        this.channel = channel;
+    }
+
+    /**
+     * @return A listener to attach to the input carrying the tap trigger.
+     */
+    public MidiInputController.MessageListener getMessageListener() {
+        return messageListener;
+    }
+
+    /**
+     * Register a tap.
+     * @param timestamp - Time of the tap on the System.nanoTime() time base.
+     */
+    public synchronized void tap(final long timestamp) {
+        final long interval = timestamp - lastTap;
+        lastTap = timestamp;
+        if (interval <= 0 || interval > TAP_TIMEOUT_NANOS) {
+            head = 0;
+            count = 0;
+            return;
+        }
+        intervals[head] = interval;
+        head = (head + 1) % MAX_INTERVALS;
+        if (count < MAX_INTERVALS) {
+            count++;
+        }
+        final double average = averageInterval();
+        if (average > 0) {
+            final double bpm = 60000000000d / average;
+            Log.d(TAG, String.format(Locale.US, "Tapped tempo: %.2f bpm", bpm));
+            clock.setBpm(bpm);
+        }
+    }
+
+    /**
+     * @return The mean of the intervals close to the median, or 0 if there are too few.
+     */
+    private double averageInterval() {
+        if (count < MIN_INTERVALS) {
+            return 0;
+        }
+        System.arraycopy(intervals, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        final double median = ((count & 1) == 1)
+                ? sorted[count / 2]
+                : (sorted[count / 2 - 1] + sorted[count / 2]) / 2d;
+        final double tolerance = median * OUTLIER_FRACTION;
+        long sum = 0;
+        int inliers = 0;
+        for (int i = 0; i < count; i++) {
+            if (Math.abs(sorted[i] - median) <= tolerance) {
+                sum += sorted[i];
+                inliers++;
+            }
+        }
+        return (inliers >= MIN_INTERVALS) ? sum / (double) inliers : 0;
+    }
+
+    private boolean isTrigger(final MidiMessage message) {
+        if (channel != ANY_CHANNEL && message.getChannel() != channel) {
+            return false;
+        }
+        final byte[] bytes = message.getBytes();
+        if (bytes.length < 3 || (bytes[1] & 0x7F) != number) {
+            return false;
+        }
+        switch (message.getType()) {
+            case NOTEON:
+                return type == TYPE_NOTE && bytes[2] != 0;
+            case CC:
+                // Buttons send a high value on press and 0 on release.
+                return type == TYPE_CC && bytes[2] != 0;
+            default:
+                return false;
+        }
+    }
+
+}
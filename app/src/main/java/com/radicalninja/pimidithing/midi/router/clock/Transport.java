@@ -0,0 +1,438 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiInputController;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.MidiOutputController;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The router's shared transport: whether the music is stopped, playing or paused, and where it is.
+ *
+ * Transport messages (START, STOP, CONTINUE, POSITION and CLOCK) are collected from every input
+ * and from the internal clock. Whichever source last started or continued playback is the master;
+ * only its clock advances the position, and while it plays, STOP and POSITION from other sources
+ * are ignored. This keeps two sequencers sending clock at once from double counting.
+ *
+ * The position is kept in MIDI clocks (24 per quarter note) and reported in MIDI beats (16th
+ * notes, 6 clocks each) as used by Song Position Pointer. State and position are packed into one
+ * volatile field, so they can be read together from any thread without locking.
+ *
+ * Changes that came from an input are republished to the transport outputs. The internal clock
+ * already sends transport to its own outputs, so its changes are not. When the position jumps
+ * during playback, outputs are sent STOP, POSITION and CONTINUE, since most devices ignore a
+ * Song Position Pointer while running.
+ *
+ * Whatever follows the music subscribes here rather than to the inputs or the clock directly:
+ * Listeners hear every change and each MIDI clock from the master, and ClockListeners (the
+ * timecode generator and analog clock) hear the internal clock's events only while it is the
+ * master, and are stopped when an input takes over.
+ */
+public class Transport implements ClockListener {
+
+    private static final String TAG = Transport.class.getCanonicalName();
+
+    public enum State {
+        STOPPED, PLAYING, PAUSED
+    }
+
+    public interface Listener {
+        /**
+         * @param state - The new state.
+         * @param beats - Position in MIDI beats (16th notes).
+         */
+        void onTransportChanged(final Transport transport,
+                                final State state,
+                                final int beats,
+                                final long timestamp);
+
+        /**
+         * Called when the position is set by a Song Position Pointer or jumps during playback.
+         * @param beats - New position in MIDI beats (16th notes).
+         */
+        void onTransportLocated(final Transport transport, final int beats, final long timestamp);
+
+        /**
+         * Called for each MIDI clock (24 per quarter note) the master advances by while playing.
+         */
+        void onTransportClock(final Transport transport, final long timestamp);
+    }
+
+    public static final int CLOCKS_PER_QUARTER_NOTE = 24;
+    public static final int CLOCKS_PER_BEAT = 6;
+    private static final int MAX_BEATS = 0x3FFF;
+
+    private static final int STATE_BITS = 2;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+    private static final State[] STATES = State.values();
+
+    private static final byte[] MESSAGE_START = { MidiMessage.MessageType.START.value };
+    private static final byte[] MESSAGE_STOP = { MidiMessage.MessageType.STOP.value };
+    private static final byte[] MESSAGE_CONTINUE = { MidiMessage.MessageType.CONTINUE.value };
+
+    // Stands in for the internal clock as a source.
+    private final Object internalSource = new Object();
+
+    private volatile MidiOutputController[] outputs = new MidiOutputController[0];
+    private volatile Listener[] listeners = new Listener[0];
+    private volatile ClockListener[] clockListeners = new ClockListener[0];
+
+    // Position in MIDI clocks << STATE_BITS | State ordinal.
+    private volatile long packed = pack(State.STOPPED, 0);
+
+    // Guarded by this.
+    private Object master;
+    private long clocks;
+    private State state = State.STOPPED;
+    private DigitalClock internalClock;
+    private int internalPpqn = CLOCKS_PER_QUARTER_NOTE;
+
+    private final MidiInputController.MessageListener messageListener =
+            new MidiInputController.MessageListener() {
+                @Override
+                public boolean onMessage(MidiInputController input, MidiMessage message) {
+                    final long timestamp = (message.getTimestamp() > 0)
+                            ? message.getTimestamp()
+                            : System.nanoTime();
+                    switch (message.getType()) {
+                        case CLOCK:
+                            onClock(input, timestamp);
+                            break;
+                        case START:
+                            onStart(input, timestamp);
+                            break;
+                        case STOP:
+                            onStop(input, timestamp);
+                            break;
+                        case CONTINUE:
+                            onContinue(input, timestamp);
+                            break;
+                        case POSITION:
+                            onPosition(input, message.getProperty(MidiMessage.PROPERTY_NAME_VALUE),
+                                    timestamp);
+                            break;
+                    }
+                    return false;
+                }
+            };
+
+    private static long pack(final State state, final long clocks) {
+        return (clocks << STATE_BITS) | state.ordinal();
+    }
+
+    /**
+     * @return A listener to attach to any input that may carry transport messages.
+     */
+    public MidiInputController.MessageListener getMessageListener() {
+        return messageListener;
+    }
+
+    public State getState() {
+        return STATES[(int) (packed & STATE_MASK)];
+    }
+
+    public boolean isPlaying() {
+        return getState() == State.PLAYING;
+    }
+
+    /**
+     * @return Position in MIDI clocks (24 per quarter note).
+     */
+    public long getClocks() {
+        return packed >>> STATE_BITS;
+    }
+
+    /**
+     * @return Position in MIDI beats (16th notes), as used by Song Position Pointer.
+     */
+    public int getBeats() {
+        return (int) Math.min(MAX_BEATS, getClocks() / CLOCKS_PER_BEAT);
+    }
+
+    /**
+     * @param outputs - Outputs to republish transport changes from inputs to.
+     */
+    public void setOutputs(@NonNull final Collection<MidiOutputController> outputs) {
+        this.outputs = outputs.toArray(new MidiOutputController[outputs.size()]);
+    }
+
+    /**
+     * Follow the internal clock. Its pulses are converted to MIDI clocks at its own ppqn.
+     * @param clock - The internal clock, or null to stop following it.
+     */
+    public synchronized void setInternalClock(@Nullable final DigitalClock clock) {
+        if (null != internalClock) {
+            internalClock.removeListener(this);
+        }
+        internalClock = clock;
+        if (null != clock) {
+            internalPpqn = clock.getPpqn();
+            clock.addListener(this);
+        }
+    }
+
+    public synchronized void addListener(@NonNull final Listener listener) {
+        final Listener[] current = listeners;
+        for (final Listener existing : current) {
+            if (existing == listener) {
+                return;
+            }
+        }
+        final Listener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(@NonNull final Listener listener) {
+        final Listener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                final Listener[] updated = new Listener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param listener - Follows the internal clock while it is the master.
+     */
+    public synchronized void addClockListener(@NonNull final ClockListener listener) {
+        final ClockListener[] current = clockListeners;
+        for (final ClockListener existing : current) {
+            if (existing == listener) {
+                return;
+            }
+        }
+        final ClockListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        clockListeners = updated;
+    }
+
+    public synchronized void removeClockListener(@NonNull final ClockListener listener) {
+        final ClockListener[] current = clockListeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                final ClockListener[] updated = new ClockListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                clockListeners = updated;
+                return;
+            }
+        }
+    }
+
+    public synchronized void onStart(final Object source, final long timestamp) {
+        releaseInternal(source, timestamp);
+        master = source;
+        clocks = 0;
+        setState(State.PLAYING, timestamp);
+        if (source != internalSource) {
+            publish(MESSAGE_START, timestamp);
+        }
+    }
+
+    /**
+     * @return true if playback stopped.
+     */
+    public synchronized boolean onStop(final Object source, final long timestamp) {
+        if (state != State.PLAYING || source != master) {
+            return false;
+        }
+        setState((clocks > 0) ? State.PAUSED : State.STOPPED, timestamp);
+        if (source != internalSource) {
+            publish(MESSAGE_STOP, timestamp);
+        }
+        return true;
+    }
+
+    public synchronized void onContinue(final Object source, final long timestamp) {
+        if (state == State.PLAYING && source == master) {
+            return;
+        }
+        releaseInternal(source, timestamp);
+        master = source;
+        setState(State.PLAYING, timestamp);
+        if (source != internalSource) {
+            // Followers may not have seen where we are; tell them before resuming.
+            publish(songPosition(getBeats()), timestamp);
+            publish(MESSAGE_CONTINUE, timestamp);
+        }
+    }
+
+    /**
+     * @param beats - New position in MIDI beats (16th notes).
+     * @return true if the position was taken.
+     */
+    public synchronized boolean onPosition(final Object source,
+                                           final int beats,
+                                           final long timestamp) {
+
+        if (state == State.PLAYING && source != master) {
+            return false;
+        }
+        locate((long) Math.max(0, Math.min(MAX_BEATS, beats)) * CLOCKS_PER_BEAT, timestamp,
+                source != internalSource);
+        return true;
+    }
+
+    public void onClock(final Object source, final long timestamp) {
+        synchronized (this) {
+            if (state != State.PLAYING || source != master) {
+                return;
+            }
+            clocks++;
+            packed = pack(state, clocks);
+        }
+        notifyClock(1, timestamp);
+    }
+
+    @Override
+    public void onClockStart(final long timestamp) {
+        onStart(internalSource, timestamp);
+        for (final ClockListener listener : clockListeners) {
+            listener.onClockStart(timestamp);
+        }
+    }
+
+    @Override
+    public void onClockStop(final long timestamp) {
+        if (!onStop(internalSource, timestamp)) {
+            // An input is the master; clock listeners were stopped when it took over.
+            return;
+        }
+        for (final ClockListener listener : clockListeners) {
+            listener.onClockStop(timestamp);
+        }
+    }
+
+    @Override
+    public void onClockContinue(final int position, final long timestamp) {
+        synchronized (this) {
+            clocks = toClocks(position, internalPpqn);
+            onContinue(internalSource, timestamp);
+        }
+        for (final ClockListener listener : clockListeners) {
+            listener.onClockContinue(position, timestamp);
+        }
+    }
+
+    @Override
+    public void onSongPosition(final int position, final long timestamp) {
+        final int beats = (int) Math.min(MAX_BEATS,
+                toClocks(position, internalPpqn) / CLOCKS_PER_BEAT);
+        if (!onPosition(internalSource, beats, timestamp)) {
+            return;
+        }
+        for (final ClockListener listener : clockListeners) {
+            listener.onSongPosition(position, timestamp);
+        }
+    }
+
+    @Override
+    public void onClockTick(final ClockTick tick, final long timestamp) {
+        final long advanced;
+        synchronized (this) {
+            if (state != State.PLAYING || master != internalSource) {
+                return;
+            }
+            // Like an external clock, each pulse counts once it has been sent.
+            final long expected = toClocks(tick.getPosition() + 1, internalPpqn);
+            if (Math.abs(expected - clocks) > CLOCKS_PER_BEAT) {
+                locate(expected, timestamp, false);
+                advanced = 0;
+            } else {
+                advanced = expected - clocks;
+                clocks = expected;
+                packed = pack(state, clocks);
+            }
+        }
+        for (final ClockListener listener : clockListeners) {
+            listener.onClockTick(tick, timestamp);
+        }
+        notifyClock(advanced, timestamp);
+    }
+
+    private void notifyClock(final long count, final long timestamp) {
+        if (count <= 0) {
+            return;
+        }
+        final Listener[] current = listeners;
+        for (long i = 0; i < count; i++) {
+            for (final Listener listener : current) {
+                listener.onTransportClock(this, timestamp);
+            }
+        }
+    }
+
+    // Called with this held. An input taking over stops whatever follows the internal clock.
+    private void releaseInternal(final Object source, final long timestamp) {
+        if (source == internalSource || master != internalSource || state != State.PLAYING) {
+            return;
+        }
+        for (final ClockListener listener : clockListeners) {
+            listener.onClockStop(timestamp);
+        }
+    }
+
+    private static long toClocks(final long pulses, final int ppqn) {
+        return (pulses * CLOCKS_PER_QUARTER_NOTE) / ppqn;
+    }
+
+    // Called with this held.
+    private void locate(final long newClocks, final long timestamp, final boolean republish) {
+        clocks = newClocks;
+        packed = pack(state, clocks);
+        final int beats = getBeats();
+        for (final Listener listener : listeners) {
+            listener.onTransportLocated(this, beats, timestamp);
+        }
+        if (!republish) {
+            return;
+        }
+        if (state == State.PLAYING) {
+            publish(MESSAGE_STOP, timestamp);
+            publish(songPosition(beats), timestamp);
+            publish(MESSAGE_CONTINUE, timestamp);
+        } else {
+            publish(songPosition(beats), timestamp);
+        }
+    }
+
+    // Called with this held.
+    private void setState(final State newState, final long timestamp) {
+        state = newState;
+        packed = pack(state, clocks);
+        final int beats = getBeats();
+        for (final Listener listener : listeners) {
+            listener.onTransportChanged(this, newState, beats, timestamp);
+        }
+    }
+
+    private static byte[] songPosition(final int beats) {
+        return new byte[] {
+                MidiMessage.MessageType.POSITION.value,
+                (byte) (beats & 0x7F),
+                (byte) ((beats >> 7) & 0x7F)
+        };
+    }
+
+    private void publish(final byte[] message, final long timestamp) {
+        for (final MidiOutputController output : outputs) {
+            try {
+                output.send(message, 0, message.length, timestamp);
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending transport to " + output.getPortRecord().getNickname(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for rendered 16-bit PCM audio.
+ */
+public interface AudioSink extends Closeable {
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    /**
+     * Write interleaved samples. Real-time sinks block until there is room, which paces rendering.
+     * @param samples - Interleaved 16-bit samples.
+     * @param offset - Index of the first sample to write.
+     * @param count - Number of samples (not frames) to write.
+     */
+    void write(final short[] samples, final int offset, final int count) throws IOException;
+
+    /**
+     * @param frame - Frame index since the sink was opened.
+     * @return When that frame is (or will be) heard, on the System.nanoTime() time base, or -1
+     *      if the sink can't tell yet.
+     */
+    long getPresentationNanos(final long frame);
+
+}
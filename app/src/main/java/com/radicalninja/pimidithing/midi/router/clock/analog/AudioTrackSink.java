@@ -0,0 +1,101 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+
+import java.io.IOException;
+
+/**
+ * Plays audio through an AudioTrack in low latency streaming mode.
+ *
+ * Presentation times come from AudioTrack.getTimestamp(), which ties a frame position to the
+ * moment it left the DAC. Until the track has produced a timestamp, frames are estimated to be
+ * heard one buffer after they were written.
+ */
+public class AudioTrackSink implements AudioSink {
+
+    private static final int BUFFER_MULTIPLIER = 2;
+
+    private final AudioTrack track;
+    private final int sampleRate;
+    private final int channelCount;
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+
+    private long framesWritten = 0;
+    private long lastWriteNanos = 0;
+    private boolean playing = false;
+
+    public AudioTrackSink(final int sampleRate, final int channelCount) {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        final int channelMask = (channelCount == 1)
+                ? AudioFormat.CHANNEL_OUT_MONO
+                : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBufferSize = AudioTrack.getMinBufferSize(
+                sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .setFlags(AudioAttributes.FLAG_LOW_LATENCY)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .setSampleRate(sampleRate)
+                        .setChannelMask(channelMask)
+                        .build())
+                .setBufferSizeInBytes(minBufferSize * BUFFER_MULTIPLIER)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                .build();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public void write(final short[] samples, final int offset, final int count) throws IOException {
+        if (!playing) {
+            track.play();
+            playing = true;
+        }
+        final int result = track.write(samples, offset, count, AudioTrack.WRITE_BLOCKING);
+        if (result < 0) {
+            throw new IOException("AudioTrack write failed: " + result);
+        }
+        framesWritten += result / channelCount;
+        lastWriteNanos = System.nanoTime();
+    }
+
+    @Override
+    public long getPresentationNanos(final long frame) {
+        if (track.getTimestamp(timestamp)) {
+            return timestamp.nanoTime
+                    + (long) ((frame - timestamp.framePosition) * 1000000000d / sampleRate);
+        }
+        if (0 == lastWriteNanos) {
+            return -1;
+        }
+        // Everything written so far is queued ahead of the next frame.
+        final long queued = track.getBufferSizeInFrames() + (frame - framesWritten);
+        return lastWriteNanos + (long) (queued * 1000000000d / sampleRate);
+    }
+
+    @Override
+    public void close() {
+        if (playing) {
+            track.stop();
+        }
+        track.release();
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures the timing of sync pulses in rendered audio.
+ *
+ * Pulse starts are found where the first channel crosses half of the given level, and each
+ * expected pulse time is matched with the nearest start. This is meant for checking a renderer
+ * offline against the timeline that drove it, e.g. with audio written by WavFileSink.
+ */
+public class SyncPulseAnalyzer {
+
+    /**
+     * 16-bit PCM audio read from a WAV file.
+     */
+    public static class Wav {
+        public final int sampleRate;
+        public final int channelCount;
+        public final short[] samples;
+
+        Wav(final int sampleRate, final int channelCount, final short[] samples) {
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+            this.samples = samples;
+        }
+    }
+
+    public static class Report {
+        public final int expected;
+        public final int found;
+        public final int missed;
+        public final int extra;
+        public final double meanErrorNanos;
+        public final double rmsErrorNanos;
+        public final long maxErrorNanos;
+
+        Report(final int expected, final int found, final int missed, final int extra,
+               final double meanErrorNanos, final double rmsErrorNanos, final long maxErrorNanos) {
+
+            this.expected = expected;
+            this.found = found;
+            this.missed = missed;
+            this.extra = extra;
+            this.meanErrorNanos = meanErrorNanos;
+            this.rmsErrorNanos = rmsErrorNanos;
+            this.maxErrorNanos = maxErrorNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "pulses: %d expected, %d found, %d missed, %d extra | "
+                            + "error (us): mean %.2f, rms %.2f, max %.2f",
+                    expected, found, missed, extra, meanErrorNanos / 1000d,
+                    rmsErrorNanos / 1000d, maxErrorNanos / 1000d);
+        }
+    }
+
+    /**
+     * @param level - Pulse level the renderer used, signed by polarity.
+     * @return Frame index of every pulse start.
+     */
+    public static long[] findPulses(@NonNull final short[] samples,
+                                    final int channelCount,
+                                    final int level) {
+
+        final int threshold = Math.abs(level) / 2;
+        final int sign = (level < 0) ? -1 : 1;
+        long[] pulses = new long[64];
+        int count = 0;
+        boolean high = false;
+        for (int i = 0; i < samples.length; i += channelCount) {
+            final boolean now = samples[i] * sign > threshold;
+            if (now && !high) {
+                if (count == pulses.length) {
+                    pulses = Arrays.copyOf(pulses, count * 2);
+                }
+                pulses[count++] = i / channelCount;
+            }
+            high = now;
+        }
+        return Arrays.copyOf(pulses, count);
+    }
+
+    /**
+     * @param pulses - Pulse start frames, as found by findPulses().
+     * @param originNanos - When frame 0 is heard.
+     * @param expectedNanos - Expected pulse times, ascending.
+     */
+    public static Report measure(@NonNull final long[] pulses,
+                                 final int sampleRate,
+                                 final long originNanos,
+                                 @NonNull final long[] expectedNanos) {
+
+        final double nanosPerFrame = 1e9 / sampleRate;
+        // A pulse counts as a match within half the shortest expected interval.
+        long tolerance = Long.MAX_VALUE;
+        for (int i = 1; i < expectedNanos.length; i++) {
+            tolerance = Math.min(tolerance, (expectedNanos[i] - expectedNanos[i - 1]) / 2);
+        }
+        int found = 0;
+        int cursor = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        long max = 0;
+        for (final long expected : expectedNanos) {
+            while (cursor < pulses.length - 1 && Math.abs(timeOf(pulses[cursor + 1],
+                    originNanos, nanosPerFrame) - expected) <= Math.abs(timeOf(pulses[cursor],
+                    originNanos, nanosPerFrame) - expected)) {
+                cursor++;
+            }
+            if (cursor >= pulses.length) {
+                continue;
+            }
+            final long error = timeOf(pulses[cursor], originNanos, nanosPerFrame) - expected;
+            if (Math.abs(error) > tolerance) {
+                continue;
+            }
+            found++;
+            sum += error;
+            sumSquares += (double) error * error;
+            max = Math.max(max, Math.abs(error));
+        }
+        final double mean = (found > 0) ? sum / found : 0;
+        final double rms = (found > 0) ? Math.sqrt(sumSquares / found) : 0;
+        return new Report(expectedNanos.length, found, expectedNanos.length - found,
+                Math.max(0, pulses.length - found), mean, rms, max);
+    }
+
+    private static long timeOf(final long frame, final long originNanos, final double nanosPerFrame) {
+        return originNanos + Math.round(frame * nanosPerFrame);
+    }
+
+    /**
+     * Read a 16-bit PCM WAV file.
+     */
+    public static Wav readWav(@NonNull final File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            final byte[] id = new byte[4];
+            in.readFully(id);
+            if (!"RIFF".equals(new String(id, "US-ASCII"))) {
+                throw new IOException("Not a RIFF file: " + file.getPath());
+            }
+            readIntLE(in);
+            in.readFully(id);
+            if (!"WAVE".equals(new String(id, "US-ASCII"))) {
+                throw new IOException("Not a WAVE file: " + file.getPath());
+            }
+            int sampleRate = 0;
+            int channelCount = 0;
+            while (true) {
+                try {
+                    in.readFully(id);
+                } catch (EOFException e) {
+                    throw new IOException("No data chunk in " + file.getPath());
+                }
+                final String chunk = new String(id, "US-ASCII");
+                final int length = readIntLE(in);
+                if ("fmt ".equals(chunk)) {
+                    final int format = readShortLE(in);
+                    channelCount = readShortLE(in);
+                    sampleRate = readIntLE(in);
+                    readIntLE(in);
+                    readShortLE(in);
+                    final int bits = readShortLE(in);
+                    if (format != 1 || bits != 16) {
+                        throw new IOException("Only 16-bit PCM is supported: " + file.getPath());
+                    }
+                    in.skipBytes(length - 16);
+                } else if ("data".equals(chunk)) {
+                    final short[] samples = new short[length / 2];
+                    for (int i = 0; i < samples.length; i++) {
+                        samples[i] = (short) readShortLE(in);
+                    }
+                    return new Wav(sampleRate, channelCount, samples);
+                } else {
+                    in.skipBytes(length);
+                }
+            }
+        }
+    }
+
+    private static int readIntLE(final DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShortLE(final DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort());
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Renders sync pulses into 16-bit PCM buffers.
+ *
+ * Pulse times come from a Timeline in nanoseconds and are converted to frames through the
+ * renderer's origin (the time frame 0 is heard), so each pulse starts on the sample nearest its
+ * exact time regardless of how the audio is split into buffers. A pulse that runs past the end of
+ * a buffer continues at the start of the next. A pulse whose time has already been rendered is
+ * placed at the start of the next buffer instead; several such pulses are merged into one so a
+ * late timeline never produces a burst.
+ */
+public class SyncPulseRenderer {
+
+    public static final int POLARITY_POSITIVE = 1;
+    public static final int POLARITY_NEGATIVE = -1;
+
+    /**
+     * Source of pulse times.
+     */
+    public interface Timeline {
+        /**
+         * @param after - Time of the last pulse rendered.
+         * @return The time of the first pulse after it, or Long.MAX_VALUE if none is known yet.
+         */
+        long nextPulseNanos(final long after);
+    }
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final int widthFrames;
+    private final short level;
+
+    private long frame = 0;
+    private double originNanos = 0;
+    private long lastPulseNanos = Long.MIN_VALUE;
+    private long pulseEndFrame = 0;
+    private long latePulses = 0;
+
+    /**
+     * @param pulseWidthNanos - How long each pulse stays high.
+     * @param amplitude - Pulse level from 0 to 1 of full scale.
+     * @param polarity - POLARITY_POSITIVE or POLARITY_NEGATIVE.
+     */
+    public SyncPulseRenderer(final int sampleRate,
+                             final int channelCount,
+                             final long pulseWidthNanos,
+                             final double amplitude,
+                             final int polarity) {
+
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.widthFrames = Math.max(1, (int) Math.round(pulseWidthNanos * sampleRate / 1e9));
+        final double clipped = Math.max(0, Math.min(1, amplitude));
+        this.level = (short) (Math.round(clipped * Short.MAX_VALUE) * polarity);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * @return The next frame to be rendered.
+     */
+    public long getFramePosition() {
+        return frame;
+    }
+
+    /**
+     * @return Number of pulses that were rendered later than their time.
+     */
+    public long getLatePulses() {
+        return latePulses;
+    }
+
+    /**
+     * @param originNanos - When frame 0 is heard, on the timeline's time base.
+     */
+    public void setOrigin(final double originNanos) {
+        this.originNanos = originNanos;
+    }
+
+    public double getOrigin() {
+        return originNanos;
+    }
+
+    public long framesToNanos(final long frames) {
+        return (long) (originNanos + frames * 1e9 / sampleRate);
+    }
+
+    public long nanosToFrames(final long nanos) {
+        return Math.round((nanos - originNanos) * sampleRate / 1e9);
+    }
+
+    /**
+     * Render the next block of audio.
+     * @param buffer - Receives frames * channel count interleaved samples.
+     * @param frames - Number of frames to render.
+     */
+    public void render(@NonNull final short[] buffer, final int frames, @NonNull final Timeline timeline) {
+        final long blockStart = frame;
+        final long blockEnd = frame + frames;
+        Arrays.fill(buffer, 0, frames * channelCount, (short) 0);
+        if (pulseEndFrame > blockStart) {
+            fill(buffer, 0, (int) (Math.min(pulseEndFrame, blockEnd) - blockStart));
+        }
+        boolean late = false;
+        while (true) {
+            final long pulseNanos = timeline.nextPulseNanos(lastPulseNanos);
+            if (pulseNanos == Long.MAX_VALUE) {
+                break;
+            }
+            long start = nanosToFrames(pulseNanos);
+            if (start >= blockEnd) {
+                // Not due yet; ask again next block, in case the timeline moves.
+                break;
+            }
+            lastPulseNanos = pulseNanos;
+            if (start < blockStart) {
+                latePulses++;
+                if (late) {
+                    continue;
+                }
+                late = true;
+                start = blockStart;
+            }
+            final long end = start + widthFrames;
+            fill(buffer, (int) (start - blockStart), (int) (Math.min(end, blockEnd) - blockStart));
+            pulseEndFrame = Math.max(pulseEndFrame, end);
+        }
+        frame = blockEnd;
+    }
+
+    private void fill(final short[] buffer, final int fromFrame, final int toFrame) {
+        Arrays.fill(buffer, fromFrame * channelCount, toFrame * channelCount, level);
+    }
+
+}
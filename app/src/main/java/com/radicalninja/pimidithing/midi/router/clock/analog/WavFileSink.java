@@ -0,0 +1,113 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes audio to a 16-bit PCM WAV file instead of playing it.
+ *
+ * Nothing paces the writes, so rendering runs as fast as it can. Frame 0 is taken to be heard at
+ * the origin given to the constructor, which lets a renderer be driven offline with a synthetic
+ * timeline and the result checked with SyncPulseAnalyzer.
+ */
+public class WavFileSink implements AudioSink {
+
+    private static final int HEADER_LENGTH = 44;
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final RandomAccessFile file;
+    private final int sampleRate;
+    private final int channelCount;
+    private final long originNanos;
+    private final byte[] buffer = new byte[4096];
+    private long dataLength = 0;
+
+    /**
+     * @param file - File to write; replaced if it exists.
+     * @param originNanos - Time at which frame 0 is considered heard.
+     */
+    public WavFileSink(@NonNull final File file,
+                       final int sampleRate,
+                       final int channelCount,
+                       final long originNanos) throws IOException {
+
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.originNanos = originNanos;
+        writeHeader();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public void write(final short[] samples, final int offset, final int count) throws IOException {
+        int written = 0;
+        while (written < count) {
+            final int chunk = Math.min(count - written, buffer.length / BYTES_PER_SAMPLE);
+            for (int i = 0; i < chunk; i++) {
+                final short sample = samples[offset + written + i];
+                buffer[i * 2] = (byte) (sample & 0xFF);
+                buffer[i * 2 + 1] = (byte) ((sample >> 8) & 0xFF);
+            }
+            file.write(buffer, 0, chunk * BYTES_PER_SAMPLE);
+            written += chunk;
+        }
+        dataLength += (long) count * BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public long getPresentationNanos(final long frame) {
+        return originNanos + (long) (frame * 1000000000d / sampleRate);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeHeader();
+        file.close();
+    }
+
+    private void writeHeader() throws IOException {
+        final int blockAlign = channelCount * BYTES_PER_SAMPLE;
+        file.seek(0);
+        file.writeBytes("RIFF");
+        writeIntLE((int) (HEADER_LENGTH - 8 + dataLength));
+        file.writeBytes("WAVE");
+        file.writeBytes("fmt ");
+        writeIntLE(16);
+        writeShortLE(1);    // PCM
+        writeShortLE(channelCount);
+        writeIntLE(sampleRate);
+        writeIntLE(sampleRate * blockAlign);
+        writeShortLE(blockAlign);
+        writeShortLE(BYTES_PER_SAMPLE * 8);
+        file.writeBytes("data");
+        writeIntLE((int) dataLength);
+        file.seek(HEADER_LENGTH + dataLength);
+    }
+
+    private void writeIntLE(final int value) throws IOException {
+        file.write(value & 0xFF);
+        file.write((value >> 8) & 0xFF);
+        file.write((value >> 16) & 0xFF);
+        file.write((value >> 24) & 0xFF);
+    }
+
+    private void writeShortLE(final int value) throws IOException {
+        file.write(value & 0xFF);
+        file.write((value >> 8) & 0xFF);
+    }
+
+}
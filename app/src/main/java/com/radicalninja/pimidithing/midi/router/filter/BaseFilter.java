@@ -16,6 +16,23 @@ public abstract class BaseFilter {
     /* package */
     abstract RouterResult onProcess(final MidiMessage message);
 
+    /**
+     * Process a Universal MIDI Packet in place; only called if supportsUmp() returns true.
+     * @param words - Packet words; the packet at offset may be rewritten.
+     * @return false to drop the packet.
+     */
+    /* package */
+    boolean onProcessUmp(final int[] words, final int offset) {
+        return true;
+    }
+
+    /**
+     * @return true if this filter can work on Universal MIDI Packets through processUmp().
+     */
+    public boolean supportsUmp() {
+        return false;
+    }
+
     public abstract void onSettings(final JsonObject settings);
     public abstract JsonObject getSettings();
 
@@ -40,7 +57,11 @@ public abstract class BaseFilter {
     }
 
     public RouterResult process(final MidiMessage message) {
-        return null;
+        return paused ? new RouterResult(message) : onProcess(message);
+    }
+
+    public boolean processUmp(final int[] words, final int offset) {
+        return paused || onProcessUmp(words, offset);
     }
 
 }
@@ -6,6 +6,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.radicalninja.pimidithing.midi.MidiMessage;
 import com.radicalninja.pimidithing.midi.router.RouterResult;
+import com.radicalninja.pimidithing.midi.ump.Ump;
 import com.radicalninja.pimidithing.util.NumberArray;
 import com.radicalninja.pimidithing.util.NumberMap;
 
@@ -97,14 +98,8 @@ public class ChannelFilter extends BaseFilter {
     @Override
     RouterResult onProcess(MidiMessage message) {
         final int channel = message.getChannel();
-        if (!whitelist.isEmpty()) {
-            if (!whitelist.has(channel)) {
-                return RouterResult.failed();
-            }
-        } else if (!blacklist.isEmpty()) {
-            if (blacklist.has(channel)) {
-                return RouterResult.failed();
-            }
+        if (isBlocked(channel)) {
+            return RouterResult.failed();
         }
         final int mapping = map.get(channel, -1);
         if (mapping > 0) {
@@ -113,4 +108,32 @@ public class ChannelFilter extends BaseFilter {
         return new RouterResult(message);
     }
 
+    @Override
+    boolean onProcessUmp(int[] words, int offset) {
+        if (!Ump.isChannelVoice(words[offset])) {
+            return true;
+        }
+        final int channel = Ump.getChannel(words[offset]) + 1;
+        if (isBlocked(channel)) {
+            return false;
+        }
+        final int mapping = map.get(channel, -1);
+        if (mapping > 0) {
+            words[offset] = Ump.setChannel(words[offset], mapping - 1);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean supportsUmp() {
+        return true;
+    }
+
+    private boolean isBlocked(final int channel) {
+        if (!whitelist.isEmpty()) {
+            return !whitelist.has(channel);
+        }
+        return !blacklist.isEmpty() && blacklist.has(channel);
+    }
+
 }
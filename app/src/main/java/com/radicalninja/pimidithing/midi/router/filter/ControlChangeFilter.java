@@ -0,0 +1,443 @@
+package com.radicalninja.pimidithing.midi.router.filter;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.ParameterMessage;
+import com.radicalninja.pimidithing.midi.router.RouterResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remaps and reshapes control changes. Pitch bend and channel aftertouch can be used as
+ * controllers too, so a mod wheel can drive pitch bend or aftertouch can drive a filter cutoff.
+ *
+ * Each rule maps a source (a controller number, "pitch" or "aftertouch") to a target of the same
+ * kinds. The source value is clamped to the input range, spread over 0 - 1, optionally inverted,
+ * shaped with a response curve and then spread over the output range. Rules are compiled into a
+ * 128 entry table per source whenever the settings change, so each message costs one lookup per
+ * rule. Pitch bend is looked up by its most significant 7 bits, and pitch bend targets are
+ * written with 14-bit resolution, 64 being the center.
+ *
+ * 14-bit controllers (a ParameterMessage of kind CONTROLLER) are mapped by their MSB controller
+ * number and keep their full resolution: the value is looked up by its top 7 bits and the low 7
+ * bits interpolate to the next table entry. A controller target from 0 - 31 is written as a
+ * 14-bit pair, other targets get the top 7 bits. RPN and NRPN changes pass through.
+ *
+ * Messages from sources with no rule pass through untouched. A source may have several rules,
+ * in which case one message is sent for each.
+ *
+ * Settings: "map" is an object keyed by source; each value is a rule or a list of rules. A rule
+ * has "to" (defaults to the source), "in" and "out" ranges as [low, high] pairs from 0 - 127,
+ * "invert", and the ResponseCurve settings.
+ */
+public class ControlChangeFilter extends BaseFilter {
+
+    private static final String KEY_MAP = "map";
+    private static final String KEY_TO = "to";
+    private static final String KEY_IN = "in";
+    private static final String KEY_OUT = "out";
+    private static final String KEY_INVERT = "invert";
+
+    private static final String NAME_PITCH = "pitch";
+    private static final String NAME_AFTERTOUCH = "aftertouch";
+
+    private static final int VALUE_MAX = 127;
+    private static final int VALUE_CENTER = 64;
+    private static final int PITCH_CENTER = 8192;
+    private static final int PITCH_MAX = 16383;
+
+    // Sources and targets: 0 - 127 are controller numbers.
+    public static final int SOURCE_PITCH = 128;
+    public static final int SOURCE_AFTERTOUCH = 129;
+    private static final int SOURCE_COUNT = 130;
+
+    /**
+     * A single source to target mapping.
+     */
+    public static class Rule {
+
+        private final int source;
+        private final int target;
+        private final int inLow;
+        private final int inHigh;
+        private final int outLow;
+        private final int outHigh;
+        private final boolean invert;
+        private final ResponseCurve curve;
+
+        /**
+         * @param source - Controller number, SOURCE_PITCH or SOURCE_AFTERTOUCH.
+         * @param target - Controller number, SOURCE_PITCH or SOURCE_AFTERTOUCH.
+         * @param inLow - Lowest input value; lower values are clamped to it.
+         * @param inHigh - Highest input value; higher values are clamped to it.
+         * @param outLow - Output value for the lowest input.
+         * @param outHigh - Output value for the highest input.
+         * @param invert - Whether to flip the input range before shaping it.
+         * @param curve - Response curve to shape the value with.
+         */
+        public Rule(final int source,
+                    final int target,
+                    final int inLow,
+                    final int inHigh,
+                    final int outLow,
+                    final int outHigh,
+                    final boolean invert,
+                    @NonNull final ResponseCurve curve) {
+
+            this.source = source;
+            this.target = target;
+            this.inLow = clip(Math.min(inLow, inHigh));
+            this.inHigh = clip(Math.max(inLow, inHigh));
+            this.outLow = clip(outLow);
+            this.outHigh = clip(outHigh);
+            this.invert = invert;
+            this.curve = curve;
+        }
+
+        public int getSource() {
+            return source;
+        }
+
+        public int getTarget() {
+            return target;
+        }
+
+        public boolean isInverted() {
+            return invert;
+        }
+
+        public ResponseCurve getCurve() {
+            return curve;
+        }
+
+        /**
+         * @return Output value for each 7-bit input value, in the target's resolution.
+         */
+        int[] buildTable() {
+            final int[] table = new int[VALUE_MAX + 1];
+            for (int value = 0; value <= VALUE_MAX; value++) {
+                final int clamped = Math.max(inLow, Math.min(inHigh, value));
+                double x = (inHigh == inLow) ? 0 : (clamped - inLow) / (double) (inHigh - inLow);
+                if (invert) {
+                    x = 1 - x;
+                }
+                final double out = outLow + curve.apply(x) * (outHigh - outLow);
+                table[value] = (target == SOURCE_PITCH) ? toPitch(out) : (int) Math.round(out);
+            }
+            return table;
+        }
+
+        JsonObject toJson() {
+            final JsonObject json = new JsonObject();
+            if (target < SOURCE_PITCH) {
+                json.addProperty(KEY_TO, target);
+            } else {
+                json.addProperty(KEY_TO, nameOf(target));
+            }
+            json.add(KEY_IN, range(inLow, inHigh));
+            json.add(KEY_OUT, range(outLow, outHigh));
+            json.addProperty(KEY_INVERT, invert);
+            curve.writeSettings(json);
+            return json;
+        }
+
+        private static JsonArray range(final int low, final int high) {
+            final JsonArray json = new JsonArray(2);
+            json.add(low);
+            json.add(high);
+            return json;
+        }
+
+    }
+
+    /**
+     * A compiled rule.
+     */
+    private static class Route {
+        final int target;
+        final int[] table;
+
+        Route(final int target, final int[] table) {
+            this.target = target;
+            this.table = table;
+        }
+    }
+
+    private List<Rule> rules;
+    // Routes for each source, or null for sources that pass through. Replaced as a whole.
+    private volatile Route[][] routes;
+
+    public ControlChangeFilter(JsonObject settings) {
+        super(settings);
+    }
+
+    @Override
+    public void onSettings(JsonObject settings) {
+        final List<Rule> rules = new ArrayList<>();
+        final JsonElement mapJson = settings.get(KEY_MAP);
+        if (null != mapJson && mapJson.isJsonObject()) {
+            for (final Map.Entry<String, JsonElement> entry : mapJson.getAsJsonObject().entrySet()) {
+                final int source = parseSource(entry.getKey());
+                if (source < 0) {
+                    continue;
+                }
+                final JsonElement value = entry.getValue();
+                if (value.isJsonArray()) {
+                    for (final JsonElement item : value.getAsJsonArray()) {
+                        if (item.isJsonObject()) {
+                            addRule(rules, source, item.getAsJsonObject());
+                        }
+                    }
+                } else if (value.isJsonObject()) {
+                    addRule(rules, source, value.getAsJsonObject());
+                } else if (value.isJsonPrimitive()) {
+                    // Shorthand for a plain remap: { "1": 74 }
+                    final int target = parseSource(value.getAsString());
+                    if (target >= 0) {
+                        rules.add(new Rule(source, target, 0, VALUE_MAX, 0, VALUE_MAX, false,
+                                ResponseCurve.LINEAR));
+                    }
+                }
+            }
+        }
+        setRules(rules);
+    }
+
+    @Override
+    public JsonObject getSettings() {
+        final JsonObject map = new JsonObject();
+        for (final Rule rule : rules) {
+            final String source = nameOf(rule.source);
+            final JsonElement existing = map.get(source);
+            if (null == existing) {
+                map.add(source, rule.toJson());
+            } else if (existing.isJsonArray()) {
+                existing.getAsJsonArray().add(rule.toJson());
+            } else {
+                final JsonArray list = new JsonArray();
+                list.add(existing);
+                list.add(rule.toJson());
+                map.add(source, list);
+            }
+        }
+        final JsonObject json = new JsonObject();
+        json.add(KEY_MAP, map);
+        return json;
+    }
+
+    @Override
+    RouterResult onProcess(final MidiMessage message) {
+        if (message instanceof ParameterMessage) {
+            return onParameter((ParameterMessage) message);
+        }
+        final int source;
+        final int value;
+        switch (message.getType()) {
+            case CC:
+                source = message.getProperty(MidiMessage.PROPERTY_NAME_CONTROLLER);
+                value = message.getProperty(MidiMessage.PROPERTY_NAME_VALUE);
+                break;
+            case PITCH:
+                source = SOURCE_PITCH;
+                value = message.getProperty(MidiMessage.PROPERTY_NAME_VALUE) >> 7;
+                break;
+            case CHANNEL_AFTERTOUCH:
+                source = SOURCE_AFTERTOUCH;
+                value = message.getProperty(MidiMessage.PROPERTY_NAME_PRESSURE);
+                break;
+            default:
+                return new RouterResult(message);
+        }
+        final Route[] sourceRoutes = routes[source];
+        if (null == sourceRoutes) {
+            return new RouterResult(message);
+        }
+        if (sourceRoutes.length == 1 && sourceRoutes[0].target == source && source < SOURCE_PITCH) {
+            // Same controller; rewrite the value in place.
+            message.setProperty(MidiMessage.PROPERTY_NAME_VALUE, sourceRoutes[0].table[value]);
+            return new RouterResult(message);
+        }
+        final int channel = message.getChannel() - 1;
+        final MidiMessage[] results = new MidiMessage[sourceRoutes.length];
+        for (int i = 0; i < sourceRoutes.length; i++) {
+            final Route route = sourceRoutes[i];
+            results[i] = createMessage(
+                    route.target, channel, route.table[value], message.getTimestamp());
+        }
+        return new RouterResult(results);
+    }
+
+    private RouterResult onParameter(final ParameterMessage message) {
+        if (message.getKind() != ParameterMessage.Kind.CONTROLLER) {
+            return new RouterResult(message);
+        }
+        final int source = message.getParameter();
+        final Route[] sourceRoutes = routes[source];
+        if (null == sourceRoutes) {
+            return new RouterResult(message);
+        }
+        final int value = message.getValue();
+        if (sourceRoutes.length == 1 && sourceRoutes[0].target == source) {
+            message.setValue(interpolate(sourceRoutes[0], value));
+            return new RouterResult(message);
+        }
+        final int channel = message.getChannel() - 1;
+        final MidiMessage[] results = new MidiMessage[sourceRoutes.length];
+        for (int i = 0; i < sourceRoutes.length; i++) {
+            final Route route = sourceRoutes[i];
+            final int out = interpolate(route, value);
+            if (route.target < ParameterMessage.CONTROLLER_COUNT) {
+                results[i] = ParameterMessage.controller(
+                        channel, route.target, out, message.getTimestamp());
+            } else {
+                results[i] = createMessage(route.target, channel,
+                        (route.target == SOURCE_PITCH) ? out : out >> 7, message.getTimestamp());
+            }
+        }
+        return new RouterResult(results);
+    }
+
+    /**
+     * Look a 14-bit value up in a route's table, interpolating between entries with its low 7
+     * bits; the last entry is extended from the two before it.
+     * @return 14-bit result.
+     */
+    private static int interpolate(final Route route, final int value) {
+        final int high = value >> 7;
+        final int low = value & 0x7F;
+        final int[] table = route.table;
+        final int from = table[high];
+        final int to = (high < VALUE_MAX)
+                ? table[high + 1]
+                : 2 * table[VALUE_MAX] - table[VALUE_MAX - 1];
+        final int out = (route.target == SOURCE_PITCH)
+                ? from + (to - from) * low / (VALUE_MAX + 1)
+                : from * (VALUE_MAX + 1) + (to - from) * low;
+        return Math.max(0, Math.min(ParameterMessage.VALUE_MAX, out));
+    }
+
+    public List<Rule> getRules() {
+        return new ArrayList<>(rules);
+    }
+
+    public void setRules(@NonNull final List<Rule> rules) {
+        final Route[][] routes = new Route[SOURCE_COUNT][];
+        for (final Rule rule : rules) {
+            final Route route = new Route(rule.target, rule.buildTable());
+            final Route[] existing = routes[rule.source];
+            if (null == existing) {
+                routes[rule.source] = new Route[]{ route };
+            } else {
+                final Route[] grown = new Route[existing.length + 1];
+                System.arraycopy(existing, 0, grown, 0, existing.length);
+                grown[existing.length] = route;
+                routes[rule.source] = grown;
+            }
+        }
+        this.rules = new ArrayList<>(rules);
+        this.routes = routes;
+    }
+
+    private static MidiMessage createMessage(final int target,
+                                             final int channel,
+                                             final int value,
+                                             final long timestamp) {
+
+        final byte[] bytes;
+        switch (target) {
+            case SOURCE_PITCH:
+                bytes = new byte[]{ (byte) (0xE0 | channel), (byte) (value & 0x7F), (byte) (value >> 7) };
+                break;
+            case SOURCE_AFTERTOUCH:
+                bytes = new byte[]{ (byte) (0xD0 | channel), (byte) value };
+                break;
+            default:
+                bytes = new byte[]{ (byte) (0xB0 | channel), (byte) target, (byte) value };
+        }
+        return new MidiMessage(bytes, 0, bytes.length, timestamp);
+    }
+
+    private static void addRule(final List<Rule> rules, final int source, final JsonObject json) {
+        final JsonElement toJson = json.get(KEY_TO);
+        final int target = (null != toJson && toJson.isJsonPrimitive())
+                ? parseSource(toJson.getAsString())
+                : source;
+        if (target < 0) {
+            return;
+        }
+        final int[] in = parseRange(json.get(KEY_IN));
+        final int[] out = parseRange(json.get(KEY_OUT));
+        final JsonElement invertJson = json.get(KEY_INVERT);
+        final boolean invert = null != invertJson && invertJson.isJsonPrimitive()
+                && invertJson.getAsBoolean();
+        rules.add(new Rule(source, target, in[0], in[1], out[0], out[1], invert,
+                ResponseCurve.fromSettings(json)));
+    }
+
+    /**
+     * @return [low, high], or the full range when the setting is missing or invalid.
+     */
+    private static int[] parseRange(final JsonElement json) {
+        if (null != json && json.isJsonArray() && json.getAsJsonArray().size() == 2) {
+            try {
+                final JsonArray pair = json.getAsJsonArray();
+                return new int[]{ pair.get(0).getAsInt(), pair.get(1).getAsInt() };
+            } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+                // Fall back to the full range.
+            }
+        }
+        return new int[]{ 0, VALUE_MAX };
+    }
+
+    /**
+     * @return Controller number, SOURCE_PITCH, SOURCE_AFTERTOUCH, or -1 if invalid.
+     */
+    private static int parseSource(final String name) {
+        final String source = name.trim().toLowerCase(Locale.US);
+        if (NAME_PITCH.equals(source)) {
+            return SOURCE_PITCH;
+        } else if (NAME_AFTERTOUCH.equals(source)) {
+            return SOURCE_AFTERTOUCH;
+        }
+        try {
+            final int controller = Integer.parseInt(source);
+            return (controller >= 0 && controller <= VALUE_MAX) ? controller : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String nameOf(final int source) {
+        switch (source) {
+            case SOURCE_PITCH:
+                return NAME_PITCH;
+            case SOURCE_AFTERTOUCH:
+                return NAME_AFTERTOUCH;
+            default:
+                return String.valueOf(source);
+        }
+    }
+
+    /**
+     * Scale a 0 - 127 value to 14-bit pitch bend, keeping 64 at the center.
+     */
+    private static int toPitch(final double value) {
+        final double pitch = (value <= VALUE_CENTER)
+                ? value * PITCH_CENTER / VALUE_CENTER
+                : PITCH_CENTER
+                        + (value - VALUE_CENTER) * (PITCH_MAX - PITCH_CENTER) / (VALUE_MAX - VALUE_CENTER);
+        return (int) Math.max(0, Math.min(PITCH_MAX, Math.round(pitch)));
+    }
+
+    private static int clip(final int value) {
+        return Math.max(0, Math.min(VALUE_MAX, value));
+    }
+
+}
@@ -8,6 +8,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.radicalninja.pimidithing.midi.MidiMessage;
 import com.radicalninja.pimidithing.midi.router.RouterResult;
+import com.radicalninja.pimidithing.midi.ump.Ump;
 import com.radicalninja.pimidithing.util.NumberArray;
 
 public class MessageTypeFilter extends BaseFilter {
@@ -78,16 +79,27 @@ public class MessageTypeFilter extends BaseFilter {
 
     @Override
     RouterResult onProcess(MidiMessage message) {
+        return isBlocked(message.getType().value)
+                ? RouterResult.failed()
+                : new RouterResult(message);
+    }
+
+    @Override
+    boolean onProcessUmp(int[] words, int offset) {
+        final int type = Ump.getMidi1Type(words[offset]);
+        return type < 0 || !isBlocked((byte) type);
+    }
+
+    @Override
+    public boolean supportsUmp() {
+        return true;
+    }
+
+    private boolean isBlocked(final byte type) {
         if (!whitelist.isEmpty()) {
-            if (whitelist.has(message.getType().value)) {
-                return RouterResult.failed();
-            }
-        } else if (!blacklist.isEmpty()) {
-            if (blacklist.has(message.getType().value)) {
-                return RouterResult.failed();
-            }
+            return whitelist.has(type);
         }
-        return new RouterResult(message);
+        return !blacklist.isEmpty() && blacklist.has(type);
     }
 
 }
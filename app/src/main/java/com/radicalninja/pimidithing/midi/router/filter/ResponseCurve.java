@@ -0,0 +1,201 @@
+package com.radicalninja.pimidithing.midi.router.filter;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A response curve mapping 0 - 1 onto 0 - 1, shared by filters that reshape 7-bit values.
+ *
+ * Curves are only evaluated while a filter builds its lookup table, never per message.
+ *
+ * Settings: "curve" is one of linear, exponential, logarithmic, s_curve or points. "amount" sets
+ * how strongly the exponential, logarithmic and s_curve shapes bend (1 is linear). "points" is a
+ * list of [in, out] pairs from 0 - 127, joined by straight lines.
+ */
+public class ResponseCurve {
+
+    public static final String KEY_CURVE = "curve";
+    public static final String KEY_AMOUNT = "amount";
+    public static final String KEY_POINTS = "points";
+
+    public static final double DEFAULT_AMOUNT = 2;
+
+    private static final int VALUE_MAX = 127;
+
+    public enum Shape {
+
+        LINEAR, EXPONENTIAL, LOGARITHMIC, S_CURVE, POINTS;
+
+        @Override
+        public String toString() {
+            return super.toString().toLowerCase();
+        }
+
+    }
+
+    public static final ResponseCurve LINEAR = new ResponseCurve(Shape.LINEAR, 1, null);
+
+    private final Shape shape;
+    private final double amount;
+    // Sorted by input; [i][0] in, [i][1] out, both 0 - 127.
+    private final int[][] points;
+
+    private ResponseCurve(final Shape shape, final double amount, final int[][] points) {
+        this.shape = shape;
+        this.amount = amount;
+        this.points = points;
+    }
+
+    public static ResponseCurve create(@NonNull final Shape shape, final double amount) {
+        return new ResponseCurve(shape, (amount > 0) ? amount : DEFAULT_AMOUNT, null);
+    }
+
+    /**
+     * @param points - [in, out] pairs from 0 - 127, in any order.
+     */
+    public static ResponseCurve fromPoints(@NonNull final int[][] points) {
+        if (points.length == 0) {
+            return LINEAR;
+        }
+        final int[][] sorted = new int[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            sorted[i] = new int[]{ clip(points[i][0]), clip(points[i][1]) };
+        }
+        Arrays.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        return new ResponseCurve(Shape.POINTS, 1, sorted);
+    }
+
+    /**
+     * Read a curve from a filter's settings. Missing or invalid settings give a linear curve.
+     */
+    public static ResponseCurve fromSettings(@NonNull final JsonObject settings) {
+        final JsonElement curveJson = settings.get(KEY_CURVE);
+        final JsonElement pointsJson = settings.get(KEY_POINTS);
+        final JsonElement amountJson = settings.get(KEY_AMOUNT);
+        final double amount = (null != amountJson && amountJson.isJsonPrimitive())
+                ? amountJson.getAsDouble()
+                : DEFAULT_AMOUNT;
+        if (null != pointsJson && pointsJson.isJsonArray()) {
+            return fromPoints(parsePoints(pointsJson.getAsJsonArray()));
+        }
+        if (null == curveJson || !curveJson.isJsonPrimitive()) {
+            return LINEAR;
+        }
+        try {
+            final Shape shape = Shape.valueOf(curveJson.getAsString().toUpperCase());
+            return (shape == Shape.POINTS || shape == Shape.LINEAR) ? LINEAR : create(shape, amount);
+        } catch (IllegalArgumentException e) {
+            return LINEAR;
+        }
+    }
+
+    /**
+     * Write this curve into a filter's settings, in the form fromSettings() reads.
+     */
+    public void writeSettings(@NonNull final JsonObject settings) {
+        settings.addProperty(KEY_CURVE, shape.toString());
+        switch (shape) {
+            case LINEAR:
+                break;
+            case POINTS:
+                final JsonArray pointsJson = new JsonArray(points.length);
+                for (final int[] point : points) {
+                    final JsonArray pointJson = new JsonArray(2);
+                    pointJson.add(point[0]);
+                    pointJson.add(point[1]);
+                    pointsJson.add(pointJson);
+                }
+                settings.add(KEY_POINTS, pointsJson);
+                break;
+            default:
+                settings.addProperty(KEY_AMOUNT, amount);
+        }
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    /**
+     * @param x - Input from 0 to 1.
+     * @return Output from 0 to 1.
+     */
+    public double apply(final double x) {
+        final double in = Math.max(0, Math.min(1, x));
+        switch (shape) {
+            case EXPONENTIAL:
+                return Math.pow(in, amount);
+            case LOGARITHMIC:
+                return 1 - Math.pow(1 - in, amount);
+            case S_CURVE:
+                return (in < 0.5)
+                        ? 0.5 * Math.pow(2 * in, amount)
+                        : 1 - 0.5 * Math.pow(2 - 2 * in, amount);
+            case POINTS:
+                return interpolate(in * VALUE_MAX) / VALUE_MAX;
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * @param value - Input from 0 - 127.
+     * @return Output from 0 - 127.
+     */
+    public int apply(final int value) {
+        return (int) Math.round(apply(value / (double) VALUE_MAX) * VALUE_MAX);
+    }
+
+    private double interpolate(final double in) {
+        if (in <= points[0][0]) {
+            return points[0][1];
+        }
+        for (int i = 1; i < points.length; i++) {
+            final int[] a = points[i - 1];
+            final int[] b = points[i];
+            if (in <= b[0]) {
+                return (b[0] == a[0])
+                        ? b[1]
+                        : a[1] + (b[1] - a[1]) * (in - a[0]) / (b[0] - a[0]);
+            }
+        }
+        return points[points.length - 1][1];
+    }
+
+    private static int[][] parsePoints(final JsonArray json) {
+        final int[][] result = new int[json.size()][];
+        int count = 0;
+        for (final JsonElement item : json) {
+            if (item.isJsonArray() && item.getAsJsonArray().size() == 2) {
+                try {
+                    final JsonArray pair = item.getAsJsonArray();
+                    final int[] point = { pair.get(0).getAsInt(), pair.get(1).getAsInt() };
+                    result[count++] = point;
+                } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+                    // Skip malformed points.
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int clip(final int value) {
+        return Math.max(0, Math.min(VALUE_MAX, value));
+    }
+
+}
@@ -0,0 +1,317 @@
+package com.radicalninja.pimidithing.midi.router.filter;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.router.RouterResult;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Snaps notes to a scale.
+ *
+ * The scale, root and strategy are compiled into a 128 entry note table whenever the settings
+ * change, so quantizing a note is a single array lookup. Each note-on remembers the pitch it was
+ * sent as; its note-off (and any poly aftertouch in between) goes to that same pitch even if the
+ * settings have changed since. When two held notes land on the same pitch, the pitch is only
+ * released when the last of them is.
+ */
+public class ScaleFilter extends BaseFilter {
+
+    private static final String KEY_SCALE = "scale";
+    private static final String KEY_NOTES = "notes";
+    private static final String KEY_ROOT = "root";
+    private static final String KEY_STRATEGY = "strategy";
+
+    private static final String SCALE_CUSTOM = "CUSTOM";
+    private static final int NOTE_COUNT = 128;
+    private static final int CHANNEL_COUNT = 16;
+    private static final int OCTAVE = 12;
+    private static final String[] NOTE_NAMES =
+            { "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+
+    public enum Strategy {
+
+        NEAREST, UP, DOWN;
+
+        @Override
+        public String toString() {
+            return super.toString().toLowerCase();
+        }
+
+    }
+
+    static final Map<String, int[]> scales = new HashMap<>(16);
+    static {
+        scales.put("CHROMATIC", new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+        scales.put("MAJOR", new int[]{0, 2, 4, 5, 7, 9, 11});
+        scales.put("MINOR", new int[]{0, 2, 3, 5, 7, 8, 10});
+        scales.put("HARMONIC_MINOR", new int[]{0, 2, 3, 5, 7, 8, 11});
+        scales.put("MELODIC_MINOR", new int[]{0, 2, 3, 5, 7, 9, 11});
+        scales.put("IONIAN", new int[]{0, 2, 4, 5, 7, 9, 11});
+        scales.put("DORIAN", new int[]{0, 2, 3, 5, 7, 9, 10});
+        scales.put("PHRYGIAN", new int[]{0, 1, 3, 5, 7, 8, 10});
+        scales.put("LYDIAN", new int[]{0, 2, 4, 6, 7, 9, 11});
+        scales.put("MIXOLYDIAN", new int[]{0, 2, 4, 5, 7, 9, 10});
+        scales.put("AEOLIAN", new int[]{0, 2, 3, 5, 7, 8, 10});
+        scales.put("LOCRIAN", new int[]{0, 1, 3, 5, 6, 8, 10});
+        scales.put("MAJOR_PENTATONIC", new int[]{0, 2, 4, 7, 9});
+        scales.put("MINOR_PENTATONIC", new int[]{0, 3, 5, 7, 10});
+        scales.put("BLUES", new int[]{0, 3, 5, 6, 7, 10});
+        scales.put("WHOLE_TONE", new int[]{0, 2, 4, 6, 8, 10});
+    }
+
+    private String scaleName;
+    private int[] pitchClasses;
+    private int root;
+    private Strategy strategy;
+
+    // Replaced as a whole when the settings change.
+    private volatile int[] table;
+
+    // Pitch each held note was sent as, plus one (0 when not held); by channel and input note.
+    private final byte[][] held = new byte[CHANNEL_COUNT][NOTE_COUNT];
+    // Number of held input notes sounding on each output pitch.
+    private final byte[][] sounding = new byte[CHANNEL_COUNT][NOTE_COUNT];
+
+    public ScaleFilter(JsonObject settings) {
+        super(settings);
+    }
+
+    @Override
+    public void onSettings(JsonObject settings) {
+        final JsonElement notesJson = settings.get(KEY_NOTES);
+        final JsonElement scaleJson = settings.get(KEY_SCALE);
+        String scaleName = null;
+        int[] pitchClasses = null;
+        if (null != notesJson && notesJson.isJsonArray()) {
+            pitchClasses = parsePitchClasses(notesJson.getAsJsonArray());
+            scaleName = SCALE_CUSTOM;
+        } else if (null != scaleJson && scaleJson.isJsonPrimitive()) {
+            scaleName = scaleJson.getAsString().toUpperCase();
+            pitchClasses = scales.get(scaleName);
+        }
+        if (null == pitchClasses || pitchClasses.length == 0) {
+            scaleName = "CHROMATIC";
+            pitchClasses = scales.get(scaleName);
+        }
+
+        final JsonElement rootJson = settings.get(KEY_ROOT);
+        final int root = (null != rootJson && rootJson.isJsonPrimitive())
+                ? parseRoot(rootJson.getAsString())
+                : 0;
+
+        final JsonElement strategyJson = settings.get(KEY_STRATEGY);
+        Strategy strategy = Strategy.NEAREST;
+        if (null != strategyJson && strategyJson.isJsonPrimitive()) {
+            try {
+                strategy = Strategy.valueOf(strategyJson.getAsString().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                strategy = Strategy.NEAREST;
+            }
+        }
+        setScale(scaleName, pitchClasses, root, strategy);
+    }
+
+    @Override
+    public JsonObject getSettings() {
+        final JsonObject json = new JsonObject();
+        if (SCALE_CUSTOM.equals(scaleName)) {
+            final JsonArray notes = new JsonArray(pitchClasses.length);
+            for (final int pitchClass : pitchClasses) {
+                notes.add(pitchClass);
+            }
+            json.add(KEY_NOTES, notes);
+        } else {
+            json.addProperty(KEY_SCALE, scaleName.toLowerCase());
+        }
+        json.addProperty(KEY_ROOT, NOTE_NAMES[root]);
+        json.addProperty(KEY_STRATEGY, strategy.toString());
+        return json;
+    }
+
+    @Override
+    RouterResult onProcess(MidiMessage message) {
+        final MidiMessage.MessageType type = message.getType();
+        if (type != MidiMessage.MessageType.NOTEON
+                && type != MidiMessage.MessageType.NOTEOFF
+                && type != MidiMessage.MessageType.POLY_AFTERTOUCH) {
+            return new RouterResult(message);
+        }
+        final int channel = message.getChannel() - 1;
+        final int note = message.getProperty(MidiMessage.PROPERTY_NAME_NOTE);
+        final byte[] heldNotes = held[channel];
+        final byte[] soundingNotes = sounding[channel];
+        final boolean noteOn = type == MidiMessage.MessageType.NOTEON
+                && message.getProperty(MidiMessage.PROPERTY_NAME_VELOCITY) > 0;
+        final boolean noteOff = !noteOn && type != MidiMessage.MessageType.POLY_AFTERTOUCH;
+        final int quantized;
+        MidiMessage released = null;
+        if (noteOn) {
+            quantized = table[note];
+            if (heldNotes[note] != 0) {
+                // Retriggered without a note-off; release the old pitch first. If the scale has
+                // changed since, the old pitch needs its own note-off or it would hang.
+                final int previous = heldNotes[note] - 1;
+                if (--soundingNotes[previous] == 0 && previous != quantized) {
+                    released = noteOff(channel, previous, message.getTimestamp());
+                }
+            }
+            heldNotes[note] = (byte) (quantized + 1);
+            soundingNotes[quantized]++;
+        } else if (heldNotes[note] != 0) {
+            quantized = heldNotes[note] - 1;
+            if (noteOff) {
+                heldNotes[note] = 0;
+                if (--soundingNotes[quantized] > 0) {
+                    // Another held note still sounds on this pitch.
+                    return RouterResult.failed();
+                }
+            }
+        } else {
+            quantized = table[note];
+        }
+        if (quantized != note) {
+            message.setProperty(MidiMessage.PROPERTY_NAME_NOTE, quantized);
+        }
+        return (null == released)
+                ? new RouterResult(message)
+                : new RouterResult(new MidiMessage[]{ released, message });
+    }
+
+    private static MidiMessage noteOff(final int channel, final int note, final long timestamp) {
+        final byte[] bytes = { (byte) (0x80 | channel), (byte) note, 0 };
+        return new MidiMessage(bytes, 0, bytes.length, timestamp);
+    }
+
+    public String getScaleName() {
+        return scaleName;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @param scaleName - Name reported by getSettings().
+     * @param pitchClasses - Scale degrees in semitones above the root, 0 - 11.
+     * @param root - Root pitch class, 0 (C) - 11 (B).
+     */
+    void setScale(final String scaleName,
+                  final int[] pitchClasses,
+                  final int root,
+                  final Strategy strategy) {
+
+        this.scaleName = scaleName;
+        this.pitchClasses = pitchClasses;
+        this.root = ((root % OCTAVE) + OCTAVE) % OCTAVE;
+        this.strategy = strategy;
+        this.table = buildTable(pitchClasses, this.root, strategy);
+    }
+
+    private static int[] buildTable(final int[] pitchClasses, final int root, final Strategy strategy) {
+        final boolean[] inScale = new boolean[NOTE_COUNT];
+        for (int note = 0; note < NOTE_COUNT; note++) {
+            final int degree = (((note - root) % OCTAVE) + OCTAVE) % OCTAVE;
+            for (final int pitchClass : pitchClasses) {
+                if (pitchClass == degree) {
+                    inScale[note] = true;
+                    break;
+                }
+            }
+        }
+        final int[] table = new int[NOTE_COUNT];
+        for (int note = 0; note < NOTE_COUNT; note++) {
+            final int below = find(inScale, note, -1);
+            final int above = find(inScale, note, 1);
+            final int result;
+            switch (strategy) {
+                case UP:
+                    result = (above >= 0) ? above : below;
+                    break;
+                case DOWN:
+                    result = (below >= 0) ? below : above;
+                    break;
+                default:
+                    if (below < 0) {
+                        result = above;
+                    } else if (above < 0) {
+                        result = below;
+                    } else {
+                        // Ties go down.
+                        result = (above - note < note - below) ? above : below;
+                    }
+            }
+            table[note] = (result >= 0) ? result : note;
+        }
+        return table;
+    }
+
+    private static int find(final boolean[] inScale, final int from, final int direction) {
+        for (int note = from; note >= 0 && note < NOTE_COUNT; note += direction) {
+            if (inScale[note]) {
+                return note;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] parsePitchClasses(final JsonArray json) {
+        final boolean[] present = new boolean[OCTAVE];
+        int count = 0;
+        for (final JsonElement item : json) {
+            try {
+                if (item.isJsonPrimitive()) {
+                    final int pitchClass = ((item.getAsInt() % OCTAVE) + OCTAVE) % OCTAVE;
+                    if (!present[pitchClass]) {
+                        present[pitchClass] = true;
+                        count++;
+                    }
+                }
+            } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+                // Skip anything that isn't a number.
+            }
+        }
+        final int[] result = new int[count];
+        int i = 0;
+        for (int pitchClass = 0; pitchClass < OCTAVE; pitchClass++) {
+            if (present[pitchClass]) {
+                result[i++] = pitchClass;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param root - A note name ("C", "F#", "Bb") or a pitch class number.
+     */
+    private static int parseRoot(final String root) {
+        final String name = root.trim().toUpperCase(Locale.US);
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            // Not a number; try a note name.
+        }
+        for (int i = 0; i < NOTE_NAMES.length; i++) {
+            if (NOTE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        if (name.length() == 2 && name.charAt(1) == 'B') {
+            for (int i = 0; i < NOTE_NAMES.length; i++) {
+                if (NOTE_NAMES[i].equals(name.substring(0, 1))) {
+                    return i - 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+}
@@ -6,6 +6,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.radicalninja.pimidithing.midi.MidiMessage;
 import com.radicalninja.pimidithing.midi.router.RouterResult;
+import com.radicalninja.pimidithing.midi.ump.Ump;
 import com.radicalninja.pimidithing.util.MathUtils;
 
 public class TransposeFilter extends BaseFilter {
@@ -50,6 +51,21 @@ public class TransposeFilter extends BaseFilter {
         return new RouterResult(message);
     }
 
+    @Override
+    boolean onProcessUmp(int[] words, int offset) {
+        if (Ump.hasNote(words[offset])) {
+            final int note = Ump.getIndex1(words[offset]);
+            final int _note = MathUtils.clipToRange(note + (step * NOTE_STEP), NOTE_MIN, NOTE_MAX);
+            words[offset] = Ump.setIndex1(words[offset], _note);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean supportsUmp() {
+        return true;
+    }
+
     void setStep(@IntRange(from=-10, to=10) final int step) {
         if (step > 10 || step < -10) {
             this.step = 0;
@@ -4,8 +4,22 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.radicalninja.pimidithing.midi.MidiMessage;
 import com.radicalninja.pimidithing.midi.router.RouterResult;
+import com.radicalninja.pimidithing.midi.ump.Ump;
 import com.radicalninja.pimidithing.util.MathUtils;
 
+/**
+ * Reshapes note-on velocities with a response curve, then limits them to a range.
+ *
+ * The curve and mode are compiled into a 128 entry table whenever a setting changes, so each
+ * message costs one lookup. Note-on messages with a velocity of 0 are note-offs and, like
+ * NOTEOFF messages, are passed through untouched so notes are never left hanging.
+ *
+ * Modes: CLIP clamps the curved velocity into min - max. DROP drops notes whose velocity is
+ * outside min - max. SCALED spreads the curved velocity over min - max.
+ *
+ * MIDI 2.0 note-ons keep their 16-bit velocity: it is looked up by its top 7 bits, and the rest
+ * interpolates to the next table entry.
+ */
 public class VelocityFilter extends BaseFilter {
 
     public static final int MIN_VELOCITY = 0;
@@ -14,6 +28,10 @@ public class VelocityFilter extends BaseFilter {
     private static final String KEY_MIN = "min";
     private static final String KEY_MAX = "max";
     private static final String KEY_MODE = "mode";
+    // Older configs named the mode "type".
+    private static final String KEY_MODE_LEGACY = "type";
+
+    private static final int DROPPED = -1;
 
     public enum Mode {
 
@@ -26,27 +44,16 @@ public class VelocityFilter extends BaseFilter {
 
     }
 
-    interface VelocityListener {
-        /**
-         *
-         * @param velocity The given message's current value for the Velocity property.
-         * @return the new value for the Velocity property, or -1 if the message should be dropped.
-         */
-        int transformVelocity(final int velocity);
-    }
-
+    // Assigned from onSettings(), which runs before field initializers; keep these uninitialized.
     private Mode mode;
-    private VelocityListener listener;
-
-    private int min = MIN_VELOCITY;
-    private int max = MAX_VELOCITY;
-
-    private boolean readyToUpdateScale = false;
-    private float scale;
+    private ResponseCurve curve;
+    private int min;
+    private int max;
+    // Output velocity for each input velocity, or DROPPED.
+    private volatile int[] table;
 
     public VelocityFilter(JsonObject settings) {
         super(settings);
-        setMode(Mode.CLIP);
     }
 
     @Override
@@ -54,23 +61,29 @@ public class VelocityFilter extends BaseFilter {
         final JsonElement jsonMin = settings.get(KEY_MIN);
         final int _min = (null != jsonMin && jsonMin.isJsonPrimitive())
                 ? jsonMin.getAsInt() : MIN_VELOCITY;
-        setMin(_min);
 
         final JsonElement jsonMax = settings.get(KEY_MAX);
         final int _max = (null != jsonMax && jsonMax.isJsonPrimitive())
                 ? jsonMax.getAsInt() : MAX_VELOCITY;
-        setMax(_max);
 
-        final JsonElement jsonMode = settings.get(KEY_MODE);
+        JsonElement jsonMode = settings.get(KEY_MODE);
+        if (null == jsonMode) {
+            jsonMode = settings.get(KEY_MODE_LEGACY);
+        }
+        Mode _mode = Mode.CLIP;
         if (null != jsonMode && jsonMode.isJsonPrimitive()) {
-            Mode _mode;
             try {
                 _mode = Mode.valueOf(jsonMode.getAsString().toUpperCase());
             } catch (IllegalArgumentException e) {
                 _mode = Mode.CLIP;
             }
-            setMode(_mode);
         }
+
+        this.min = MathUtils.clipToRange(_min, MIN_VELOCITY, MAX_VELOCITY);
+        this.max = MathUtils.clipToRange(_max, this.min, MAX_VELOCITY);
+        this.mode = _mode;
+        this.curve = ResponseCurve.fromSettings(settings);
+        updateTable();
     }
 
     @Override
@@ -79,81 +92,132 @@ public class VelocityFilter extends BaseFilter {
         json.addProperty(KEY_MIN, min);
         json.addProperty(KEY_MAX, max);
         json.addProperty(KEY_MODE, mode.toString());
+        curve.writeSettings(json);
         return json;
     }
 
     @Override
     RouterResult onProcess(final MidiMessage message) {
-        if (!message.hasProperty(MidiMessage.PROPERTY_NAME_VELOCITY)) {
+        if (message.getType() != MidiMessage.MessageType.NOTEON) {
             return new RouterResult(message);
         }
         final int velocity = message.getProperty(MidiMessage.PROPERTY_NAME_VELOCITY);
-        final int processed = listener.transformVelocity(velocity);
-        if (processed == -1) {
+        if (velocity <= 0) {
+            return new RouterResult(message);
+        }
+        final int processed = table[velocity];
+        if (processed == DROPPED) {
             return RouterResult.failed();
         }
-        message.setProperty(MidiMessage.PROPERTY_NAME_VELOCITY, processed);
+        if (processed != velocity) {
+            message.setProperty(MidiMessage.PROPERTY_NAME_VELOCITY, processed);
+        }
         return new RouterResult(message);
     }
 
-    public void setMin(int min) {
-        if (this.min == min) {
-            return;
+    @Override
+    boolean onProcessUmp(int[] words, int offset) {
+        final int word = words[offset];
+        if (Ump.getStatus(word) != Ump.NOTE_ON) {
+            return true;
         }
-        this.min = MathUtils.clipToRange(min, MIN_VELOCITY, MAX_VELOCITY);
-        if (this.mode == Mode.SCALED && readyToUpdateScale) {
-            updateScale();
+        final int[] table = this.table;
+        switch (Ump.getMessageType(word)) {
+            case Ump.MT_MIDI1_CHANNEL_VOICE:
+                final int velocity = Ump.getIndex2(word) & 0x7F;
+                if (velocity == 0) {
+                    return true;
+                }
+                if (table[velocity] == DROPPED) {
+                    return false;
+                }
+                words[offset] = Ump.setIndex2(word, table[velocity]);
+                return true;
+            case Ump.MT_MIDI2_CHANNEL_VOICE:
+                final int velocity16 = words[offset + 1] >>> 16;
+                // A MIDI 2.0 note-on may have a velocity of 0; it is still a note.
+                final int high = Math.max(1, Ump.scaleDown(velocity16, 16, 7));
+                if (table[high] == DROPPED) {
+                    return false;
+                }
+                final int from = Ump.scaleUp(table[high], 7, 16);
+                final int next = (high < MAX_VELOCITY) ? table[high + 1] : DROPPED;
+                final int to = (next == DROPPED) ? from : Ump.scaleUp(next, 7, 16);
+                // Interpolate on what the velocity has beyond its 7-bit value, so one that was
+                // scaled up from 7 bits gives exactly its table entry.
+                final int base = Ump.scaleUp(high, 7, 16);
+                final int span = (high < MAX_VELOCITY) ? Ump.scaleUp(high + 1, 7, 16) - base : 1;
+                final int remainder = Math.max(0, Math.min(span, velocity16 - base));
+                final int processed = from + (to - from) * remainder / span;
+                words[offset + 1] = (processed << 16) | (words[offset + 1] & 0xFFFF);
+                return true;
+            default:
+                return true;
         }
     }
 
+    @Override
+    public boolean supportsUmp() {
+        return true;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ResponseCurve getCurve() {
+        return curve;
+    }
+
+    public void setMin(int min) {
+        this.min = MathUtils.clipToRange(min, MIN_VELOCITY, MAX_VELOCITY);
+        this.max = Math.max(this.min, this.max);
+        updateTable();
+    }
+
     public void setMax(int max) {
-        if (this.max == max) {
-            return;
-        }
         this.max = MathUtils.clipToRange(max, this.min, MAX_VELOCITY);
-        if (this.mode == Mode.SCALED && readyToUpdateScale) {
-            updateScale();
-        }
+        updateTable();
     }
 
     public void setMode(Mode mode) {
-        if (this.mode == mode) {
-            return;
-        }
-        switch (mode) {
-            case SCALED:
-                readyToUpdateScale = true;
-                listener = new VelocityListener() {
-                    @Override
-                    public int transformVelocity(int velocity) {
-                        return Math.round(velocity * scale) + min;
-                    }
-                };
-                break;
-            case DROP:
-                listener = new VelocityListener() {
-                    @Override
-                    public int transformVelocity(int velocity) {
-                        return MathUtils.withinRange(velocity, min, max) ? velocity : -1;
-                    }
-                };
-                break;
-            default:
-                mode = Mode.CLIP;
-                // fall through
-            case CLIP:
-                listener = new VelocityListener() {
-                    @Override
-                    public int transformVelocity(int velocity) {
-                        return MathUtils.clipToRange(velocity, min, max);
-                    }
-                };
-        }
-        this.mode = mode;
+        this.mode = (null != mode) ? mode : Mode.CLIP;
+        updateTable();
     }
 
-    protected void updateScale() {
-        scale = (max - min + 1) / 128;
+    public void setCurve(final ResponseCurve curve) {
+        this.curve = (null != curve) ? curve : ResponseCurve.LINEAR;
+        updateTable();
+    }
+
+    protected void updateTable() {
+        final int[] table = new int[MAX_VELOCITY + 1];
+        for (int velocity = 1; velocity <= MAX_VELOCITY; velocity++) {
+            final int curved = curve.apply(velocity);
+            final int result;
+            switch (mode) {
+                case DROP:
+                    result = MathUtils.withinRange(velocity, min, max) ? curved : DROPPED;
+                    break;
+                case SCALED:
+                    result = min + (int) Math.round(
+                            curve.apply(velocity / (double) MAX_VELOCITY) * (max - min));
+                    break;
+                default:
+                    result = MathUtils.clipToRange(curved, min, max);
+            }
+            // A velocity of 0 would turn the note-on into a note-off.
+            table[velocity] = (result == DROPPED) ? DROPPED : Math.max(1, result);
+        }
+        this.table = table;
     }
 
 }
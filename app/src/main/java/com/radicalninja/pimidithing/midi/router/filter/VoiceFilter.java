@@ -0,0 +1,337 @@
+package com.radicalninja.pimidithing.midi.router.filter;
+
+import android.util.Log;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.router.RouterResult;
+import com.radicalninja.pimidithing.util.JsonUtils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Plays a group of mono or duophonic synths as one polyphonic instrument.
+ *
+ * Each voice is a channel; list a channel once for each note its synth can play at a time. Every
+ * note-on is given a voice and moved to that voice's channel, and the note-off (and poly
+ * aftertouch) for it follows to the same voice. Zones on the mapping can then send each channel
+ * to its own output. Other channel messages, such as pitch bend and mod wheel, go to every voice
+ * channel; system messages pass through.
+ *
+ * Free voices are chosen by policy: ROUND_ROBIN takes the next free voice after the last one
+ * used, LRU takes the voice that has been free the longest, and LOWEST takes the first free
+ * voice in the list. With no voice free, the voice holding the oldest note is stolen (a note-off
+ * is sent for that note first) unless stealing is turned off, in which case the new note is
+ * dropped.
+ *
+ * The allocator is a set of primitive arrays: a bit mask of free voices, and free and playing
+ * voice lists kept in order as linked lists of voice indices. Note-on and note-off take constant
+ * time and allocate nothing beyond the messages the filter chain passes along.
+ */
+public class VoiceFilter extends BaseFilter {
+
+    private static final String TAG = VoiceFilter.class.getCanonicalName();
+
+    private static final String KEY_VOICES = "voices";
+    private static final String KEY_POLICY = "policy";
+    private static final String KEY_STEAL = "steal";
+
+    public static final String POLICY_ROUND_ROBIN = "ROUND_ROBIN";
+    public static final String POLICY_LRU = "LRU";
+    public static final String POLICY_LOWEST = "LOWEST";
+
+    public static final int MAX_VOICES = 64;
+
+    private static final int CHANNEL_COUNT = 16;
+    private static final int NOTE_COUNT = 128;
+    private static final int NONE = -1;
+
+    private static final int ROUND_ROBIN = 0;
+    private static final int LRU = 1;
+    private static final int LOWEST = 2;
+
+    private int policy;
+    private boolean steal;
+    private int voiceCount;
+
+    // Per voice: output channel (0 - 15), and the input channel * 128 + note it plays, or NONE.
+    private int[] voiceChannels;
+    private int[] voiceKeys;
+    // Links for whichever list the voice is in.
+    private int[] prev;
+    private int[] next;
+    // Free voices, longest free first.
+    private int freeHead;
+    private int freeTail;
+    // Playing voices, oldest note first.
+    private int busyHead;
+    private int busyTail;
+    private long freeMask;
+    // Voice after the last one given a note, for ROUND_ROBIN.
+    private int cursor;
+    // Voice playing each input channel * 128 + note, or NONE.
+    private int[] keyVoices;
+    // Distinct voice channels, for messages that go to all of them.
+    private int[] channels;
+
+    public VoiceFilter(JsonObject settings) {
+        super(settings);
+    }
+
+    @Override
+    public synchronized void onSettings(JsonObject settings) {
+        final JsonElement voicesJson = settings.get(KEY_VOICES);
+        final int[] voices = new int[MAX_VOICES];
+        int count = 0;
+        if (null != voicesJson && voicesJson.isJsonArray()) {
+            for (final JsonElement item : voicesJson.getAsJsonArray()) {
+                try {
+                    final int channel = item.getAsInt();
+                    if (channel < 1 || channel > CHANNEL_COUNT) {
+                        Log.w(TAG, "Skipping voice on invalid channel " + channel);
+                    } else if (count == MAX_VOICES) {
+                        Log.w(TAG, "Only " + MAX_VOICES + " voices are supported.");
+                        break;
+                    } else {
+                        voices[count++] = channel - 1;
+                    }
+                } catch (ClassCastException | IllegalStateException | NumberFormatException e) {
+                    Log.e(TAG, "Encountered an error reading the voice list.", e);
+                }
+            }
+        }
+        final JsonElement policyJson = settings.get(KEY_POLICY);
+        final String policyName = (null != policyJson && policyJson.isJsonPrimitive())
+                ? policyJson.getAsString().toUpperCase(Locale.US)
+                : POLICY_ROUND_ROBIN;
+        switch (policyName) {
+            case POLICY_LRU:
+                policy = LRU;
+                break;
+            case POLICY_LOWEST:
+                policy = LOWEST;
+                break;
+            default:
+                policy = ROUND_ROBIN;
+        }
+        steal = JsonUtils.getBoolean(settings, KEY_STEAL, true);
+        setVoices(Arrays.copyOf(voices, count));
+    }
+
+    @Override
+    public synchronized JsonObject getSettings() {
+        final JsonObject json = new JsonObject();
+        final JsonArray voices = new JsonArray(voiceCount);
+        for (int i = 0; i < voiceCount; i++) {
+            voices.add(voiceChannels[i] + 1);
+        }
+        json.add(KEY_VOICES, voices);
+        switch (policy) {
+            case LRU:
+                json.addProperty(KEY_POLICY, POLICY_LRU);
+                break;
+            case LOWEST:
+                json.addProperty(KEY_POLICY, POLICY_LOWEST);
+                break;
+            default:
+                json.addProperty(KEY_POLICY, POLICY_ROUND_ROBIN);
+        }
+        json.addProperty(KEY_STEAL, steal);
+        return json;
+    }
+
+    /**
+     * @param voices - Output channel (0 - 15) of each voice.
+     */
+    private void setVoices(final int[] voices) {
+        voiceCount = voices.length;
+        voiceChannels = voices;
+        voiceKeys = new int[voiceCount];
+        prev = new int[voiceCount];
+        next = new int[voiceCount];
+        keyVoices = new int[CHANNEL_COUNT * NOTE_COUNT];
+        Arrays.fill(keyVoices, NONE);
+        freeHead = freeTail = busyHead = busyTail = NONE;
+        freeMask = 0;
+        cursor = 0;
+        for (int voice = 0; voice < voiceCount; voice++) {
+            voiceKeys[voice] = NONE;
+            release(voice);
+        }
+        final boolean[] seen = new boolean[CHANNEL_COUNT];
+        final int[] distinct = new int[CHANNEL_COUNT];
+        int count = 0;
+        for (final int channel : voices) {
+            if (!seen[channel]) {
+                seen[channel] = true;
+                distinct[count++] = channel;
+            }
+        }
+        channels = Arrays.copyOf(distinct, count);
+    }
+
+    @Override
+    synchronized RouterResult onProcess(MidiMessage message) {
+        if (voiceCount == 0 || message.getType().set != MidiMessage.MessageType.Set.BASIC) {
+            return new RouterResult(message);
+        }
+        switch (message.getType()) {
+            case NOTEON:
+                if (message.getProperty(MidiMessage.PROPERTY_NAME_VELOCITY) > 0) {
+                    return noteOn(message);
+                }
+                // Velocity 0 is a note-off.
+            case NOTEOFF:
+                return noteOff(message);
+            case POLY_AFTERTOUCH:
+                final int voice = keyVoices[keyOf(message)];
+                if (voice == NONE) {
+                    return RouterResult.failed();
+                }
+                message.setChannel(voiceChannels[voice] + 1);
+                return new RouterResult(message);
+            default:
+                return toAllChannels(message);
+        }
+    }
+
+    private RouterResult noteOn(final MidiMessage message) {
+        final int key = keyOf(message);
+        int voice = keyVoices[key];
+        MidiMessage stolen = null;
+        if (voice != NONE) {
+            // Retriggered while still held; keep it on the same voice.
+            unlink(voice);
+        } else if (freeMask != 0) {
+            voice = takeFree();
+        } else if (steal) {
+            voice = busyHead;
+            unlink(voice);
+            stolen = noteOffFor(voice, message.getTimestamp());
+            keyVoices[voiceKeys[voice]] = NONE;
+        } else {
+            return RouterResult.failed();
+        }
+        voiceKeys[voice] = key;
+        keyVoices[key] = voice;
+        append(voice, false);
+        message.setChannel(voiceChannels[voice] + 1);
+        return (null == stolen)
+                ? new RouterResult(message)
+                : new RouterResult(new MidiMessage[]{ stolen, message });
+    }
+
+    private RouterResult noteOff(final MidiMessage message) {
+        final int key = keyOf(message);
+        final int voice = keyVoices[key];
+        if (voice == NONE) {
+            // Never given a voice, or its voice was stolen and the note-off already sent.
+            return RouterResult.failed();
+        }
+        keyVoices[key] = NONE;
+        voiceKeys[voice] = NONE;
+        unlink(voice);
+        release(voice);
+        message.setChannel(voiceChannels[voice] + 1);
+        return new RouterResult(message);
+    }
+
+    private RouterResult toAllChannels(final MidiMessage message) {
+        if (channels.length == 1) {
+            message.setChannel(channels[0] + 1);
+            return new RouterResult(message);
+        }
+        final MidiMessage[] result = new MidiMessage[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            final MidiMessage _message = (i == 0) ? message : message.copy();
+            _message.setChannel(channels[i] + 1);
+            result[i] = _message;
+        }
+        return new RouterResult(result);
+    }
+
+    private MidiMessage noteOffFor(final int voice, final long timestamp) {
+        final int note = voiceKeys[voice] % NOTE_COUNT;
+        final byte[] bytes = { (byte) (0x80 | voiceChannels[voice]), (byte) note, 0 };
+        return new MidiMessage(bytes, 0, bytes.length, timestamp);
+    }
+
+    private static int keyOf(final MidiMessage message) {
+        return (message.getChannel() - 1) * NOTE_COUNT
+                + message.getProperty(MidiMessage.PROPERTY_NAME_NOTE);
+    }
+
+    private int takeFree() {
+        final int voice;
+        switch (policy) {
+            case LRU:
+                voice = freeHead;
+                break;
+            case LOWEST:
+                voice = Long.numberOfTrailingZeros(freeMask);
+                break;
+            default:
+                final long after = (cursor < MAX_VOICES) ? freeMask & (-1L << cursor) : 0;
+                voice = Long.numberOfTrailingZeros((after != 0) ? after : freeMask);
+                cursor = voice + 1;
+        }
+        unlink(voice);
+        return voice;
+    }
+
+    private void release(final int voice) {
+        append(voice, true);
+    }
+
+    /**
+     * Add a voice to the tail of the free or playing list.
+     */
+    private void append(final int voice, final boolean free) {
+        final int tail = free ? freeTail : busyTail;
+        prev[voice] = tail;
+        next[voice] = NONE;
+        if (tail != NONE) {
+            next[tail] = voice;
+        }
+        if (free) {
+            if (freeHead == NONE) {
+                freeHead = voice;
+            }
+            freeTail = voice;
+            freeMask |= 1L << voice;
+        } else {
+            if (busyHead == NONE) {
+                busyHead = voice;
+            }
+            busyTail = voice;
+        }
+    }
+
+    /**
+     * Take a voice out of whichever list it is in.
+     */
+    private void unlink(final int voice) {
+        final boolean free = (freeMask & (1L << voice)) != 0;
+        final int before = prev[voice];
+        final int after = next[voice];
+        if (before != NONE) {
+            next[before] = after;
+        } else if (free) {
+            freeHead = after;
+        } else {
+            busyHead = after;
+        }
+        if (after != NONE) {
+            prev[after] = before;
+        } else if (free) {
+            freeTail = before;
+        } else {
+            busyTail = before;
+        }
+        freeMask &= ~(1L << voice);
+    }
+
+}
@@ -0,0 +1,349 @@
+package com.radicalninja.pimidithing.midi.smf;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only view of a Standard MIDI File (format 0 or 1).
+ *
+ * The file is memory-mapped rather than read into the heap. Opening a file only walks the chunk
+ * headers; track data is decoded lazily through {@link Track} cursors, so memory usage stays flat
+ * regardless of the file's size.
+ */
+public class MidiFile implements Closeable {
+
+    public static final int FORMAT_SINGLE_TRACK = 0;
+    public static final int FORMAT_MULTI_TRACK = 1;
+
+    static final int CHUNK_HEADER = 0x4D546864;   // "MThd"
+    static final int CHUNK_TRACK = 0x4D54726B;    // "MTrk"
+    static final int HEADER_LENGTH = 6;
+
+    public static final int META_END_OF_TRACK = 0x2F;
+    public static final int META_TEMPO = 0x51;
+
+    public static final byte STATUS_META = (byte) 0xFF;
+    public static final byte STATUS_SYSEX = (byte) 0xF0;
+    public static final byte STATUS_ESCAPE = (byte) 0xF7;
+
+    public static final int DEFAULT_TEMPO = 500000;   // Microseconds per quarter note (120 bpm)
+
+    public static MidiFile open(@NonNull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            return new MidiFile(file.getPath(), raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private final String path;
+    private final RandomAccessFile raf;
+    private final ByteBuffer buffer;
+    private final int format;
+    private final int division;
+    private final int[] trackOffsets;
+    private final int[] trackLengths;
+
+    private MidiFile(final String path, final RandomAccessFile raf, final ByteBuffer buffer)
+            throws IOException {
+
+        this.path = path;
+        this.raf = raf;
+        this.buffer = buffer;
+        if (buffer.remaining() < 8 + HEADER_LENGTH || buffer.getInt(0) != CHUNK_HEADER) {
+            throw new MalformedMidiFileException(path, "missing MThd header");
+        }
+        final int headerLength = buffer.getInt(4);
+        if (headerLength < HEADER_LENGTH) {
+            throw new MalformedMidiFileException(path, "header chunk is too short");
+        }
+        format = buffer.getShort(8) & 0xFFFF;
+        if (format != FORMAT_SINGLE_TRACK && format != FORMAT_MULTI_TRACK) {
+            throw new MalformedMidiFileException(path,
+                    String.format(Locale.US, "unsupported format %d", format));
+        }
+        final int declaredTracks = buffer.getShort(10) & 0xFFFF;
+        division = buffer.getShort(12);
+        if (division == 0) {
+            throw new MalformedMidiFileException(path, "time division is zero");
+        }
+        // Walk the chunk headers only; unknown chunk types are skipped as the spec requires.
+        final List<int[]> tracks = new ArrayList<>(declaredTracks);
+        int position = 8 + headerLength;
+        final int limit = buffer.limit();
+        while (position + 8 <= limit && tracks.size() < declaredTracks) {
+            final int type = buffer.getInt(position);
+            final int length = buffer.getInt(position + 4);
+            final int dataStart = position + 8;
+            if (length < 0 || dataStart + length > limit) {
+                throw new MalformedMidiFileException(path, "chunk runs past the end of the file");
+            }
+            if (type == CHUNK_TRACK) {
+                tracks.add(new int[]{ dataStart, length });
+            }
+            position = dataStart + length;
+        }
+        if (tracks.isEmpty()) {
+            throw new MalformedMidiFileException(path, "no MTrk chunks found");
+        }
+        trackOffsets = new int[tracks.size()];
+        trackLengths = new int[tracks.size()];
+        for (int i = 0; i < tracks.size(); i++) {
+            trackOffsets[i] = tracks.get(i)[0];
+            trackLengths[i] = tracks.get(i)[1];
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getTrackCount() {
+        return trackOffsets.length;
+    }
+
+    /**
+     * @return the raw time division field. Positive values are ticks per quarter note, negative
+     *      values are SMPTE based (see {@link #isSmpteDivision()}).
+     */
+    public int getDivision() {
+        return division;
+    }
+
+    public boolean isSmpteDivision() {
+        return division < 0;
+    }
+
+    /**
+     * @return Ticks per quarter note. Only meaningful when {@link #isSmpteDivision()} is false.
+     */
+    public int getTicksPerQuarterNote() {
+        return division & 0x7FFF;
+    }
+
+    /**
+     * @return Length of a single tick in nanoseconds for SMPTE based files.
+     */
+    public double getSmpteTickNanos() {
+        final int fps = -(division >> 8);
+        final int ticksPerFrame = division & 0xFF;
+        // 29 denotes 30-drop, which runs at 29.97 frames per second.
+        final double frameRate = (fps == 29) ? 29.97 : fps;
+        return 1000000000d / (frameRate * ticksPerFrame);
+    }
+
+    /**
+     * Create a new cursor positioned at the start of the given track.
+     * @param index - Track index, between 0 and getTrackCount() - 1.
+     */
+    public Track openTrack(final int index) {
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(trackOffsets[index] + trackLengths[index]);
+        view.position(trackOffsets[index]);
+        return new Track(index, view.slice());
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Streaming cursor over the events of a single track chunk.
+     */
+    public static class Track {
+
+        private static final int DEFAULT_SCRATCH_SIZE = 64;
+
+        private final int index;
+        private final ByteBuffer data;
+
+        private byte[] scratch = new byte[DEFAULT_SCRATCH_SIZE];
+        private long tick;
+        private int runningStatus;
+        private int length;
+        private int metaType;
+        private boolean meta;
+        private boolean ended;
+
+        Track(final int index, final ByteBuffer data) {
+            this.index = index;
+            this.data = data;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return Absolute tick of the current event.
+         */
+        public long getTick() {
+            return tick;
+        }
+
+        public boolean isEnded() {
+            return ended;
+        }
+
+        public boolean isMeta() {
+            return meta;
+        }
+
+        public int getMetaType() {
+            return metaType;
+        }
+
+        /**
+         * @return The current event's bytes. For MIDI events this includes the status byte; for
+         *      meta events it holds only the meta payload. Valid until the next call to next().
+         */
+        public byte[] getData() {
+            return scratch;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Rewind the cursor to the first event of the track.
+         */
+        public void rewind() {
+            data.rewind();
+            tick = 0;
+            runningStatus = 0;
+            length = 0;
+            meta = false;
+            ended = false;
+        }
+
+        /**
+         * Advance to the next event in the track.
+         * @return false when the track is exhausted.
+         * @throws MalformedMidiFileException if the track data is corrupt.
+         */
+        public boolean next() throws MalformedMidiFileException {
+            if (ended || !data.hasRemaining()) {
+                ended = true;
+                return false;
+            }
+            tick += readVariableLength();
+            int status = data.get() & 0xFF;
+            meta = false;
+            if (status < 0x80) {
+                if (runningStatus == 0) {
+                    throw new MalformedMidiFileException(null, "data byte without running status");
+                }
+                // Running status; the byte we read was the first data byte.
+                data.position(data.position() - 1);
+                status = runningStatus;
+            }
+            if (status < 0xF0) {
+                runningStatus = status;
+                final int dataLength = ((status & 0xE0) == 0xC0) ? 1 : 2;
+                ensureScratch(dataLength + 1);
+                scratch[0] = (byte) status;
+                read(1, dataLength);
+                length = dataLength + 1;
+            } else if (status == (STATUS_META & 0xFF)) {
+                runningStatus = 0;
+                meta = true;
+                if (!data.hasRemaining()) {
+                    throw new MalformedMidiFileException(null, "truncated meta event");
+                }
+                metaType = data.get() & 0xFF;
+                length = readVariableLength();
+                ensureScratch(length);
+                read(0, length);
+                if (metaType == META_END_OF_TRACK) {
+                    ended = true;
+                }
+            } else if (status == (STATUS_SYSEX & 0xFF)) {
+                runningStatus = 0;
+                final int dataLength = readVariableLength();
+                ensureScratch(dataLength + 1);
+                scratch[0] = STATUS_SYSEX;
+                read(1, dataLength);
+                length = dataLength + 1;
+            } else if (status == (STATUS_ESCAPE & 0xFF)) {
+                runningStatus = 0;
+                length = readVariableLength();
+                ensureScratch(length);
+                read(0, length);
+            } else {
+                throw new MalformedMidiFileException(null,
+                        String.format(Locale.US, "unexpected status byte 0x%02X", status));
+            }
+            return true;
+        }
+
+        /**
+         * @return The tempo carried by the current event if it is a tempo meta event,
+         *      otherwise -1.
+         */
+        public int getTempo() {
+            if (!meta || metaType != META_TEMPO || length < 3) {
+                return -1;
+            }
+            return ((scratch[0] & 0xFF) << 16) | ((scratch[1] & 0xFF) << 8) | (scratch[2] & 0xFF);
+        }
+
+        private int readVariableLength() throws MalformedMidiFileException {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                if (!data.hasRemaining()) {
+                    throw new MalformedMidiFileException(null, "truncated variable length value");
+                }
+                final int b = data.get() & 0xFF;
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new MalformedMidiFileException(null, "variable length value is too long");
+        }
+
+        private void read(final int offset, final int count) throws MalformedMidiFileException {
+            if (data.remaining() < count) {
+                throw new MalformedMidiFileException(null, "event runs past the end of the track");
+            }
+            data.get(scratch, offset, count);
+        }
+
+        private void ensureScratch(final int size) {
+            if (scratch.length < size) {
+                scratch = new byte[Math.max(size, scratch.length * 2)];
+            }
+        }
+
+    }
+
+    public static class MalformedMidiFileException extends IOException {
+        public MalformedMidiFileException(final String path, final String reason) {
+            super(String.format(Locale.US,
+                    "File (%s) is not a valid Standard MIDI File: %s.", path, reason));
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+package com.radicalninja.pimidithing.midi.smf;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.router.clock.Transport;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams a Standard MIDI File into the router as if it were another MIDI input.
+ *
+ * Tracks are decoded on the fly and merged with a k-way heap ordered by absolute tick, so only one
+ * pending event per track is ever held in memory. Playback follows tempo meta events, or, when
+ * clock sync is enabled, advances with MIDI clock received from the inputs it is attached to.
+ */
+public class MidiFilePlayer implements Closeable {
+
+    public interface MessageListener {
+        boolean onMessage(final MidiFilePlayer player, final MidiMessage message);
+    }
+
+    private static final String TAG = MidiFilePlayer.class.getCanonicalName();
+
+    private static final int CLOCKS_PER_QUARTER_NOTE = 24;
+    private static final int CHANNELS = 16;
+    private static final int NOTES = 128;
+
+    private static final Comparator<MidiFile.Track> TRACK_ORDER = new Comparator<MidiFile.Track>() {
+        @Override
+        public int compare(MidiFile.Track a, MidiFile.Track b) {
+            final int byTick = Long.compare(a.getTick(), b.getTick());
+            // Ties go to the lower track so tempo changes in track 0 apply first.
+            return (byTick != 0) ? byTick : Integer.compare(a.getIndex(), b.getIndex());
+        }
+    };
+
+    private final List<MessageListener> listeners = new ArrayList<>();
+    private final File file;
+    private final boolean loop;
+    private final boolean clockSync;
+
+    // Notes currently sounding, one bit per channel/note, so stopping never leaves hung notes.
+    private final long[] activeNotes = new long[CHANNELS * NOTES / 64];
+
+    private volatile boolean playing = false;
+    private volatile boolean rewind = false;
+    private volatile boolean releaseRequested = false;
+    private volatile Thread playbackThread;
+
+    // Clock sync state, written by the input's callback thread.
+    private volatile long clockCount = 0;
+    private volatile long lastClockNanos = 0;
+    private volatile long clockPeriodNanos = 0;
+
+    // Where the current pass over the file starts; advanced by each pass so loops are seamless.
+    private long passStartNanos;
+    private long passStartClock;
+
+    private final Transport.Listener transportListener = new Transport.Listener() {
+        @Override
+        public void onTransportChanged(final Transport transport,
+                                       final Transport.State state,
+                                       final int beats,
+                                       final long timestamp) {
+
+            if (state != Transport.State.PLAYING) {
+                // Keep our place in the file; playback resumes when clock does.
+                releaseRequested = true;
+                wake();
+            } else if (beats == 0) {
+                onStart();
+            } else {
+                start();
+            }
+        }
+
+        @Override
+        public void onTransportLocated(final Transport transport,
+                                       final int beats,
+                                       final long timestamp) {
+            // Playback follows clocks from wherever it was started.
+        }
+
+        @Override
+        public void onTransportClock(final Transport transport, final long timestamp) {
+            onClock(timestamp);
+        }
+    };
+
+    public MidiFilePlayer(@NonNull final File file, final boolean loop, final boolean clockSync) {
+        this.file = file;
+        this.loop = loop;
+        this.clockSync = clockSync;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isClockSync() {
+        return clockSync;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * @return A listener to add to the router's Transport when its clock should drive playback.
+     */
+    public Transport.Listener getTransportListener() {
+        return transportListener;
+    }
+
+    public boolean addMessageListener(final MessageListener listener) {
+        synchronized (listeners) {
+            if (listeners.contains(listener)) {
+                Log.d(TAG, "Attempted to add a duplicate MessageListener. Skipping.");
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+    }
+
+    public boolean removeMessageListener(final MessageListener listener) {
+        synchronized (listeners) {
+            return listeners.remove(listener);
+        }
+    }
+
+    public synchronized void start() {
+        if (playing) {
+            return;
+        }
+        playing = true;
+        rewind = false;
+        final Thread thread = new Thread(playbackRunnable, "MidiFilePlayer:" + file.getName());
+        thread.setPriority(Thread.MAX_PRIORITY);
+        playbackThread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!playing) {
+            return;
+        }
+        playing = false;
+        wake();
+        playbackThread = null;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        synchronized (listeners) {
+            listeners.clear();
+        }
+    }
+
+    /* package */
+    void onClock(final long timestamp) {
+        final long now = (timestamp > 0) ? timestamp : System.nanoTime();
+        final long last = lastClockNanos;
+        if (last > 0) {
+            clockPeriodNanos = now - last;
+        }
+        lastClockNanos = now;
+        clockCount++;
+        wake();
+    }
+
+    private synchronized void onStart() {
+        clockCount = 0;
+        lastClockNanos = 0;
+        clockPeriodNanos = 0;
+        if (playing) {
+            rewind = true;
+            wake();
+        } else {
+            start();
+        }
+    }
+
+    private void wake() {
+        final Thread thread = playbackThread;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return true while the calling thread is the one that owns playback. A thread replaced by
+     *      a stop() / start() pair sees false and winds down on its own.
+     */
+    private boolean isActive() {
+        return playing && playbackThread == Thread.currentThread();
+    }
+
+    private final Runnable playbackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MidiFile midiFile = null;
+            try {
+                midiFile = MidiFile.open(file);
+                passStartNanos = System.nanoTime();
+                passStartClock = clockCount;
+                do {
+                    if (rewind) {
+                        rewind = false;
+                        releaseActiveNotes();
+                        passStartNanos = System.nanoTime();
+                        passStartClock = 0;
+                    }
+                    play(midiFile);
+                } while (isActive() && (loop || rewind));
+            } catch (IOException e) {
+                Log.e(TAG, "Playback of " + file.getPath() + " failed.", e);
+            } finally {
+                releaseActiveNotes();
+                synchronized (MidiFilePlayer.this) {
+                    if (playbackThread == Thread.currentThread()) {
+                        playing = false;
+                        playbackThread = null;
+                    }
+                }
+                if (null != midiFile) {
+                    try {
+                        midiFile.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing " + file.getPath(), e);
+                    }
+                }
+            }
+        }
+    };
+
+    private void play(final MidiFile midiFile) throws IOException {
+        final int trackCount = midiFile.getTrackCount();
+        final PriorityQueue<MidiFile.Track> heap = new PriorityQueue<>(trackCount, TRACK_ORDER);
+        for (int i = 0; i < trackCount; i++) {
+            final MidiFile.Track track = midiFile.openTrack(i);
+            if (track.next()) {
+                heap.add(track);
+            }
+        }
+        final boolean smpte = midiFile.isSmpteDivision();
+        final boolean followClock = clockSync && !smpte;
+        final int ticksPerQuarter = midiFile.getTicksPerQuarterNote();
+        double tickNanos = smpte
+                ? midiFile.getSmpteTickNanos()
+                : (MidiFile.DEFAULT_TEMPO * 1000d) / ticksPerQuarter;
+        // Deadlines are computed from an anchor that only moves on tempo changes, so rounding
+        // never accumulates across events.
+        long anchorNanos = passStartNanos;
+        long anchorTick = 0;
+        long lastTick = 0;
+
+        MidiFile.Track track;
+        while (!rewind && null != (track = heap.poll())) {
+            final long tick = track.getTick();
+            final boolean due = followClock
+                    ? awaitClock(tick, ticksPerQuarter)
+                    : awaitDeadline(anchorNanos + (long) ((tick - anchorTick) * tickNanos));
+            if (!due) {
+                return;
+            }
+            lastTick = tick;
+            if (track.isMeta()) {
+                final int tempo = track.getTempo();
+                if (tempo > 0 && !smpte) {
+                    anchorNanos += (long) ((tick - anchorTick) * tickNanos);
+                    anchorTick = tick;
+                    tickNanos = (tempo * 1000d) / ticksPerQuarter;
+                }
+            } else {
+                dispatch(track.getData(), track.getLength());
+            }
+            if (!track.isEnded() && track.next()) {
+                heap.add(track);
+            }
+        }
+        // The next pass begins where this one's last event (normally End of Track) fell.
+        passStartNanos = anchorNanos + (long) ((lastTick - anchorTick) * tickNanos);
+        passStartClock += ((lastTick * CLOCKS_PER_QUARTER_NOTE) + ticksPerQuarter - 1) / ticksPerQuarter;
+    }
+
+    private boolean awaitDeadline(final long deadline) {
+        long remaining;
+        while (isActive() && !rewind && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        return isActive() && !rewind;
+    }
+
+    /**
+     * Wait until incoming MIDI clock reaches the given tick. Events that fall between two clocks
+     * are placed by interpolating with the last measured clock period.
+     */
+    private boolean awaitClock(final long tick, final int ticksPerQuarter) {
+        // Positions are compared in units of (clocks * ticksPerQuarter) to stay in integer math.
+        final long target = tick * CLOCKS_PER_QUARTER_NOTE;
+        while (isActive() && !rewind) {
+            if (releaseRequested) {
+                releaseRequested = false;
+                releaseActiveNotes();
+            }
+            final long clocks = clockCount - passStartClock;
+            final long reached = clocks * ticksPerQuarter;
+            if (target <= reached) {
+                return true;
+            }
+            final long period = clockPeriodNanos;
+            if (period > 0 && target < reached + ticksPerQuarter) {
+                final double fraction = (target - reached) / (double) ticksPerQuarter;
+                final long deadline = lastClockNanos + (long) (fraction * period);
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return true;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return false;
+    }
+
+    private void dispatch(final byte[] data, final int length) {
+        if (length < 1 || null == MidiMessage.MessageType.fromValue(data[0])) {
+            // System real-time bytes not defined by MessageType, or escaped packets without a
+            // status byte, cannot be represented as a MidiMessage.
+            return;
+        }
+        trackNote(data, length);
+        final MidiMessage message = new MidiMessage(data, 0, length, System.nanoTime());
+        synchronized (listeners) {
+            for (final MessageListener listener : listeners) {
+                if (listener.onMessage(this, message)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void trackNote(final byte[] data, final int length) {
+        if (length < 3) {
+            return;
+        }
+        final int command = data[0] & 0xF0;
+        if (command != 0x80 && command != 0x90) {
+            return;
+        }
+        final int bit = ((data[0] & 0x0F) * NOTES) + (data[1] & 0x7F);
+        final boolean noteOn = command == 0x90 && data[2] != 0;
+        if (noteOn) {
+            activeNotes[bit >>> 6] |= 1L << (bit & 63);
+        } else {
+            activeNotes[bit >>> 6] &= ~(1L << (bit & 63));
+        }
+    }
+
+    private void releaseActiveNotes() {
+        final byte[] noteOff = new byte[3];
+        for (int word = 0; word < activeNotes.length; word++) {
+            long bits = activeNotes[word];
+            while (bits != 0) {
+                final int bit = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                noteOff[0] = (byte) (0x80 | (bit / NOTES));
+                noteOff[1] = (byte) (bit % NOTES);
+                noteOff[2] = 0;
+                dispatch(noteOff, noteOff.length);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,371 @@
+package com.radicalninja.pimidithing.midi.smf;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures a stream of MidiMessages into a format 0 Standard MIDI File.
+ *
+ * record() never blocks the router: messages are handed to a bounded queue and written by a
+ * background thread through a small reusable buffer, so memory use does not grow with the length
+ * of the recording. The MTrk length is unknown until the recording ends and is patched in when each
+ * file is closed. Recordings can optionally be split into fixed-length segments.
+ */
+public class MidiFileRecorder implements Closeable {
+
+    private static final String TAG = MidiFileRecorder.class.getCanonicalName();
+
+    private static final int DIVISION = 960;                        // Ticks per quarter note
+    private static final int TEMPO = MidiFile.DEFAULT_TEMPO;        // 120 bpm
+    private static final double NANOS_PER_TICK = (TEMPO * 1000d) / DIVISION;
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final int TRACK_LENGTH_OFFSET = 18;
+    private static final String SEGMENT_TEMPLATE = "%s-%03d%s";
+
+    private static final int CHANNELS = 16;
+    private static final int NOTES = 128;
+
+    private static class Event {
+        final long timestamp;
+        final byte[] bytes;
+
+        Event(final long timestamp, final byte[] bytes) {
+            this.timestamp = timestamp;
+            this.bytes = bytes;
+        }
+    }
+
+    // Enqueued by close() to tell the writer thread to finish up.
+    private static final Event END_OF_RECORDING = new Event(0, new byte[0]);
+
+    private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // Notes held at a segment boundary are released so every segment stands on its own.
+    private final long[] activeNotes = new long[CHANNELS * NOTES / 64];
+    private final File file;
+    private final long segmentNanos;
+
+    private volatile boolean recording = false;
+    private Thread writerThread;
+
+    private RandomAccessFile output;
+    private FileChannel channel;
+    private int segment = 0;
+    private long segmentStart;
+    private long lastTick;
+
+    /**
+     * @param file - Destination file. When segmenting, a counter is added to the file name.
+     * @param segmentNanos - Maximum length of each file in nanoseconds, or 0 for a single file.
+     */
+    public MidiFileRecorder(@NonNull final File file, final long segmentNanos) {
+        this.file = file;
+        this.segmentNanos = segmentNanos;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return Number of messages discarded because the writer could not keep up.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public synchronized void start() {
+        if (recording) {
+            return;
+        }
+        recording = true;
+        queue.clear();
+        writerThread = new Thread(writerRunnable, "MidiFileRecorder:" + file.getName());
+        writerThread.start();
+    }
+
+    /**
+     * Queue a message to be written. Safe to call from any thread; never blocks.
+     */
+    public void record(final MidiMessage message) {
+        if (!recording) {
+            return;
+        }
+        final long timestamp = (message.getTimestamp() > 0)
+                ? message.getTimestamp()
+                : System.nanoTime();
+        if (!queue.offer(new Event(timestamp, message.getBytes()))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            if (!recording) {
+                return;
+            }
+            recording = false;
+            thread = writerThread;
+            writerThread = null;
+        }
+        // The writer drains everything queued before this marker, then finalizes the file.
+        try {
+            queue.put(END_OF_RECORDING);
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while finishing " + file.getPath(), e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Runnable writerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Event event = queue.take();
+                if (event == END_OF_RECORDING) {
+                    return;
+                }
+                openSegment(event.timestamp);
+                do {
+                    if (segmentNanos > 0 && event.timestamp - segmentStart >= segmentNanos) {
+                        // Keep segments on a fixed grid even if nothing was played for a while.
+                        final long elapsed = (event.timestamp - segmentStart) / segmentNanos;
+                        closeSegment(segmentStart + segmentNanos);
+                        openSegment(segmentStart + (elapsed * segmentNanos));
+                    }
+                    writeEvent(event.timestamp, event.bytes);
+                    event = queue.take();
+                } while (event != END_OF_RECORDING);
+                closeSegment(System.nanoTime());
+            } catch (IOException e) {
+                Log.e(TAG, "Recording to " + file.getPath() + " failed.", e);
+                recording = false;
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Recording to " + file.getPath() + " was interrupted.", e);
+            } finally {
+                closeQuietly();
+            }
+        }
+    };
+
+    private File segmentFile() {
+        if (segmentNanos <= 0) {
+            return file;
+        }
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String base = (dot > 0) ? name.substring(0, dot) : name;
+        final String extension = (dot > 0) ? name.substring(dot) : "";
+        return new File(file.getParentFile(),
+                String.format(Locale.US, SEGMENT_TEMPLATE, base, ++segment, extension));
+    }
+
+    private void openSegment(final long startTimestamp) throws IOException {
+        final File segmentFile = segmentFile();
+        output = new RandomAccessFile(segmentFile, "rw");
+        output.setLength(0);
+        channel = output.getChannel();
+        segmentStart = startTimestamp;
+        lastTick = 0;
+        writeBuffer.clear();
+        // Header chunk
+        writeBuffer.putInt(MidiFile.CHUNK_HEADER);
+        writeBuffer.putInt(MidiFile.HEADER_LENGTH);
+        writeBuffer.putShort((short) MidiFile.FORMAT_SINGLE_TRACK);
+        writeBuffer.putShort((short) 1);
+        writeBuffer.putShort((short) DIVISION);
+        // Track chunk, length is patched in closeSegment()
+        writeBuffer.putInt(MidiFile.CHUNK_TRACK);
+        writeBuffer.putInt(0);
+        // Tempo, so players reproduce our tick length.
+        writeBuffer.put((byte) 0);
+        writeBuffer.put(MidiFile.STATUS_META);
+        writeBuffer.put((byte) MidiFile.META_TEMPO);
+        writeBuffer.put((byte) 3);
+        writeBuffer.put((byte) (TEMPO >> 16));
+        writeBuffer.put((byte) (TEMPO >> 8));
+        writeBuffer.put((byte) TEMPO);
+        Log.d(TAG, "Recording to " + segmentFile.getPath());
+    }
+
+    private void writeEvent(final long timestamp, final byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            return;
+        }
+        final long tick = Math.max(lastTick, (long) ((timestamp - segmentStart) / NANOS_PER_TICK));
+        final int delta = (int) Math.min(tick - lastTick, 0x0FFFFFFF);
+        lastTick += delta;
+        if (bytes[0] == MidiFile.STATUS_SYSEX) {
+            // F0 <length> <data after F0>
+            ensureCapacity(4 + 1 + 4);
+            putVariableLength(delta);
+            writeBuffer.put(MidiFile.STATUS_SYSEX);
+            putVariableLength(bytes.length - 1);
+            putBytes(bytes, 1, bytes.length - 1);
+        } else if ((bytes[0] & 0xFF) >= 0xF1) {
+            // System common / real-time messages have no status of their own in an SMF track;
+            // they are stored as escaped packets.
+            ensureCapacity(4 + 1 + 4);
+            putVariableLength(delta);
+            writeBuffer.put(MidiFile.STATUS_ESCAPE);
+            putVariableLength(bytes.length);
+            putBytes(bytes, 0, bytes.length);
+        } else {
+            // A ParameterMessage carries several channel messages; each is an event of its own,
+            // all at the same tick.
+            int offset = 0;
+            int eventDelta = delta;
+            while (offset < bytes.length) {
+                final int length =
+                        Math.min(bytes.length - offset, channelMessageLength(bytes[offset]));
+                ensureCapacity(4 + length);
+                putVariableLength(eventDelta);
+                writeBuffer.put(bytes, offset, length);
+                offset += length;
+                eventDelta = 0;
+            }
+            trackNote(bytes);
+        }
+    }
+
+    private static int channelMessageLength(final byte status) {
+        switch (status & 0xF0) {
+            case 0xC0:
+            case 0xD0:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private void closeSegment(final long endTimestamp) throws IOException {
+        final byte[] noteOff = new byte[3];
+        for (int word = 0; word < activeNotes.length; word++) {
+            long bits = activeNotes[word];
+            while (bits != 0) {
+                final int bit = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                noteOff[0] = (byte) (0x80 | (bit / NOTES));
+                noteOff[1] = (byte) (bit % NOTES);
+                noteOff[2] = 0;
+                writeEvent(endTimestamp, noteOff);
+            }
+        }
+        ensureCapacity(4 + 3);
+        putVariableLength(0);
+        writeBuffer.put(MidiFile.STATUS_META);
+        writeBuffer.put((byte) MidiFile.META_END_OF_TRACK);
+        writeBuffer.put((byte) 0);
+        flush();
+        // Patch the track length now that it is known.
+        final long trackLength = channel.size() - (TRACK_LENGTH_OFFSET + 4);
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(0, (int) trackLength);
+        channel.write(length, TRACK_LENGTH_OFFSET);
+        channel.force(true);
+        output.close();
+        output = null;
+        channel = null;
+    }
+
+    private void closeQuietly() {
+        if (null != output) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing " + file.getPath(), e);
+            }
+            output = null;
+            channel = null;
+        }
+    }
+
+    private void trackNote(final byte[] bytes) {
+        if (bytes.length < 3) {
+            return;
+        }
+        final int command = bytes[0] & 0xF0;
+        if (command != 0x80 && command != 0x90) {
+            return;
+        }
+        final int bit = ((bytes[0] & 0x0F) * NOTES) + (bytes[1] & 0x7F);
+        if (command == 0x90 && bytes[2] != 0) {
+            activeNotes[bit >>> 6] |= 1L << (bit & 63);
+        } else {
+            activeNotes[bit >>> 6] &= ~(1L << (bit & 63));
+        }
+    }
+
+    private void ensureCapacity(final int bytes) throws IOException {
+        if (writeBuffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void putBytes(final byte[] bytes, final int offset, final int length)
+            throws IOException {
+
+        if (length <= WRITE_BUFFER_SIZE) {
+            ensureCapacity(length);
+            writeBuffer.put(bytes, offset, length);
+        } else {
+            // Larger than the whole buffer (e.g. a big SysEx dump); write it through directly.
+            flush();
+            final ByteBuffer large = ByteBuffer.wrap(bytes, offset, length);
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void putVariableLength(final int value) {
+        long buffer = value & 0x7F;
+        int remaining = value >>> 7;
+        while (remaining != 0) {
+            buffer <<= 8;
+            buffer |= (remaining & 0x7F) | 0x80;
+            remaining >>>= 7;
+        }
+        while (true) {
+            writeBuffer.put((byte) buffer);
+            if ((buffer & 0x80) != 0) {
+                buffer >>>= 8;
+            } else {
+                break;
+            }
+        }
+    }
+
+}
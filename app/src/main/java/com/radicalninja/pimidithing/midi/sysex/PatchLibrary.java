@@ -0,0 +1,487 @@
+package com.radicalninja.pimidithing.midi.sysex;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An on-disk library of SysEx dumps (patches), kept in a directory.
+ *
+ * Each dump is stored once, in patches/ under the hex SHA-1 of its bytes, however many times it
+ * is added. The index file holds one fixed-size record per patch (hash, manufacturer, device id,
+ * model, length, when it was captured and where from), sorted by hash. It is memory-mapped when
+ * the library is opened, so nothing is parsed at boot: a lookup by hash is a binary search over
+ * the mapped records, and other lookups scan them. Adding a patch writes a new index beside the
+ * old one and swaps it in, so a crash never leaves a half-written index.
+ *
+ * If the index is missing or damaged, it is rebuilt from the patch files.
+ */
+public class PatchLibrary {
+
+    private static final String TAG = PatchLibrary.class.getCanonicalName();
+
+    public static final int ANY = -1;
+
+    private static final String INDEX_FILE = "index.bin";
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    private static final String PATCH_DIR = "patches";
+    private static final String PATCH_EXTENSION = ".syx";
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private static final int MAGIC = 0x504D504C;   // "PMPL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int HASH_SIZE = 20;
+    private static final int SOURCE_SIZE = 20;
+    private static final int RECORD_SIZE = 64;
+    private static final int OFFSET_MANUFACTURER = 20;
+    private static final int OFFSET_DEVICE = 24;
+    private static final int OFFSET_MODEL = 28;
+    private static final int OFFSET_LENGTH = 32;
+    private static final int OFFSET_CAPTURED_AT = 36;
+    private static final int OFFSET_SOURCE = 44;
+
+    public static class Patch {
+        private final byte[] hash;
+        private final int manufacturerId;
+        private final int deviceId;
+        private final int model;
+        private final int length;
+        private final long capturedAt;
+        private final String source;
+
+        private Patch(final byte[] hash, final int manufacturerId, final int deviceId,
+                      final int model, final int length, final long capturedAt,
+                      final String source) {
+
+            this.hash = hash;
+            this.manufacturerId = manufacturerId;
+            this.deviceId = deviceId;
+            this.model = model;
+            this.length = length;
+            this.capturedAt = capturedAt;
+            this.source = source;
+        }
+
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        public String getHashString() {
+            return toHex(hash);
+        }
+
+        /**
+         * @return The manufacturer id as sent: a one-byte id shifted into the top byte
+         *      (0x410000 for 0x41), or a three-byte id as is (0x002029 for 00 20 29).
+         */
+        public int getManufacturerId() {
+            return manufacturerId;
+        }
+
+        /**
+         * @return The byte after the manufacturer id, usually the device id, or ANY.
+         */
+        public int getDeviceId() {
+            return deviceId;
+        }
+
+        /**
+         * @return The two bytes after the device id, where most manufacturers put the model
+         *      (and universal messages their sub-ids), or ANY. A dump too short for both
+         *      holds the one byte there is.
+         */
+        public int getModel() {
+            return model;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return When the patch was first added, in milliseconds since the epoch.
+         */
+        public long getCapturedAt() {
+            return capturedAt;
+        }
+
+        /**
+         * @return Nickname of the device the patch first came from, or an empty string.
+         */
+        public String getSource() {
+            return source;
+        }
+    }
+
+    private static final Comparator<Patch> HASH_ORDER = new Comparator<Patch>() {
+        @Override
+        public int compare(Patch a, Patch b) {
+            for (int i = 0; i < HASH_SIZE; i++) {
+                final int compared = (a.hash[i] & 0xFF) - (b.hash[i] & 0xFF);
+                if (compared != 0) {
+                    return compared;
+                }
+            }
+            return 0;
+        }
+    };
+
+    private static class Index {
+        final ByteBuffer buffer;
+        final int count;
+
+        Index(final ByteBuffer buffer, final int count) {
+            this.buffer = buffer;
+            this.count = count;
+        }
+    }
+
+    public static PatchLibrary open(@NonNull final File directory) throws IOException {
+        final PatchLibrary library = new PatchLibrary(directory);
+        if (!library.patchDir.isDirectory() && !library.patchDir.mkdirs()) {
+            throw new IOException("Could not create " + library.patchDir.getPath());
+        }
+        try {
+            library.index = mapIndex(library.indexFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Rebuilding patch index for " + directory.getPath(), e);
+            library.rebuildIndex();
+        }
+        return library;
+    }
+
+    private final File directory;
+    private final File indexFile;
+    private final File patchDir;
+    private final MessageDigest digest;
+
+    private volatile Index index;
+
+    private PatchLibrary(final File directory) throws IOException {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE);
+        this.patchDir = new File(directory, PATCH_DIR);
+        try {
+            this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int size() {
+        return index.count;
+    }
+
+    /**
+     * Add a dump, unless the library already has it.
+     * @param data - One whole SysEx message, F0 to F7.
+     * @param source - Nickname of the device it came from.
+     * @return The new patch, or the one already stored with the same bytes.
+     */
+    public synchronized Patch add(final byte[] data, final int offset, final int length,
+                                  @Nullable final String source) throws IOException {
+
+        digest.reset();
+        digest.update(data, offset, length);
+        final byte[] hash = digest.digest();
+        final Index current = index;
+        final int position = search(current, hash);
+        if (position >= 0) {
+            return readRecord(current.buffer, position);
+        }
+        final File patchFile = getPatchFile(hash);
+        final File tempFile = new File(patchDir, patchFile.getName() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data, offset, length);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(patchFile)) {
+            throw new IOException("Could not write " + patchFile.getPath());
+        }
+        final Patch patch = describe(hash, data, offset, length, System.currentTimeMillis(),
+                (null != source) ? source : "");
+        final int insertAt = -position - 1;
+        writeIndex(current.count + 1, records(current, 0, insertAt), toRecord(patch),
+                records(current, insertAt, current.count));
+        return patch;
+    }
+
+    @Nullable
+    public Patch find(final byte[] hash) {
+        final Index current = index;
+        final int position = search(current, hash);
+        return (position >= 0) ? readRecord(current.buffer, position) : null;
+    }
+
+    public boolean contains(final byte[] hash) {
+        return search(index, hash) >= 0;
+    }
+
+    /**
+     * @return Every patch matching the given ids, in hash order. Pass ANY to match any value.
+     */
+    public List<Patch> find(final int manufacturerId, final int deviceId, final int model) {
+        final Index current = index;
+        final List<Patch> result = new ArrayList<>();
+        for (int i = 0; i < current.count; i++) {
+            final int record = HEADER_SIZE + i * RECORD_SIZE;
+            if (matches(current.buffer.getInt(record + OFFSET_MANUFACTURER), manufacturerId)
+                    && matches(current.buffer.getInt(record + OFFSET_DEVICE), deviceId)
+                    && matches(current.buffer.getInt(record + OFFSET_MODEL), model)) {
+                result.add(readRecord(current.buffer, i));
+            }
+        }
+        return result;
+    }
+
+    public List<Patch> getAll() {
+        return find(ANY, ANY, ANY);
+    }
+
+    public File getPatchFile(@NonNull final Patch patch) {
+        return getPatchFile(patch.hash);
+    }
+
+    /**
+     * Index every patch file from scratch, e.g. after files were copied in by hand.
+     */
+    public synchronized void rebuildIndex() throws IOException {
+        final File[] files = patchDir.listFiles();
+        final List<Patch> patches = new ArrayList<>();
+        if (null != files) {
+            for (final File file : files) {
+                if (!file.getName().endsWith(PATCH_EXTENSION)) {
+                    continue;
+                }
+                final Patch patch = describeFile(file);
+                if (null != patch) {
+                    patches.add(patch);
+                }
+            }
+        }
+        Collections.sort(patches, HASH_ORDER);
+        final List<ByteBuffer> records = new ArrayList<>(patches.size());
+        for (int i = 0; i < patches.size(); i++) {
+            if (i == 0 || HASH_ORDER.compare(patches.get(i - 1), patches.get(i)) != 0) {
+                records.add(toRecord(patches.get(i)));
+            }
+        }
+        writeIndex(records.size(), records.toArray(new ByteBuffer[records.size()]));
+        Log.i(TAG, String.format(Locale.US, "Indexed %d patches in %s",
+                index.count, directory.getPath()));
+    }
+
+    /**
+     * Write a new index from the given records, in order, and swap it in.
+     */
+    private void writeIndex(final int count, final ByteBuffer... records) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+        header.flip();
+        final File tempFile = new File(directory, INDEX_TEMP_FILE);
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            final FileChannel channel = out.getChannel();
+            channel.write(header);
+            for (final ByteBuffer record : records) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Could not write " + indexFile.getPath());
+        }
+        index = mapIndex(indexFile);
+    }
+
+    private File getPatchFile(final byte[] hash) {
+        return new File(patchDir, toHex(hash) + PATCH_EXTENSION);
+    }
+
+    @Nullable
+    private Patch describeFile(final File file) {
+        try {
+            final SysexFile sysexFile = SysexFile.open(file);
+            try {
+                // Patch files hold exactly one message.
+                final int length = sysexFile.getMessageLength(0);
+                final byte[] data = new byte[length];
+                sysexFile.read(0, 0, data, 0, length);
+                digest.reset();
+                digest.update(data);
+                return describe(digest.digest(), data, 0, length, file.lastModified(), "");
+            } finally {
+                sysexFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Skipping unreadable patch " + file.getPath(), e);
+            return null;
+        }
+    }
+
+    private static Index mapIndex(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Index is truncated.");
+            }
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a patch index, or an unknown version.");
+            }
+            final int count = buffer.getInt(8);
+            if (count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > size) {
+                throw new IOException("Index is truncated.");
+            }
+            return new Index(buffer, count);
+        } finally {
+            // The mapping stays valid once the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The record's position, or -(insertion point) - 1 if it isn't there.
+     */
+    private static int search(final Index index, final byte[] hash) {
+        int low = 0;
+        int high = index.count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int compared = compareHash(index.buffer, HEADER_SIZE + middle * RECORD_SIZE, hash);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int compareHash(final ByteBuffer buffer, final int record, final byte[] hash) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            final int compared = (buffer.get(record + i) & 0xFF) - (hash[i] & 0xFF);
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return 0;
+    }
+
+    private static ByteBuffer records(final Index index, final int from, final int to) {
+        final ByteBuffer slice = index.buffer.duplicate();
+        slice.position(HEADER_SIZE + from * RECORD_SIZE);
+        slice.limit(HEADER_SIZE + to * RECORD_SIZE);
+        return slice;
+    }
+
+    private static Patch readRecord(final ByteBuffer buffer, final int position) {
+        final int record = HEADER_SIZE + position * RECORD_SIZE;
+        final byte[] hash = new byte[HASH_SIZE];
+        for (int i = 0; i < HASH_SIZE; i++) {
+            hash[i] = buffer.get(record + i);
+        }
+        final byte[] source = new byte[SOURCE_SIZE];
+        int sourceLength = 0;
+        while (sourceLength < SOURCE_SIZE && buffer.get(record + OFFSET_SOURCE + sourceLength) != 0) {
+            source[sourceLength] = buffer.get(record + OFFSET_SOURCE + sourceLength);
+            sourceLength++;
+        }
+        return new Patch(hash,
+                buffer.getInt(record + OFFSET_MANUFACTURER),
+                buffer.getInt(record + OFFSET_DEVICE),
+                buffer.getInt(record + OFFSET_MODEL),
+                buffer.getInt(record + OFFSET_LENGTH),
+                buffer.getLong(record + OFFSET_CAPTURED_AT),
+                new String(source, 0, sourceLength, StandardCharsets.US_ASCII));
+    }
+
+    private static ByteBuffer toRecord(final Patch patch) {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        record.put(patch.hash);
+        record.putInt(patch.manufacturerId);
+        record.putInt(patch.deviceId);
+        record.putInt(patch.model);
+        record.putInt(patch.length);
+        record.putLong(patch.capturedAt);
+        final byte[] source = patch.source.getBytes(StandardCharsets.US_ASCII);
+        record.put(source, 0, Math.min(SOURCE_SIZE, source.length));
+        record.position(0);
+        return record;
+    }
+
+    private static Patch describe(final byte[] hash, final byte[] data, final int offset,
+                                  final int length, final long capturedAt, final String source) {
+
+        // data[offset] is F0 and the last byte F7; the ids are in between.
+        final int end = offset + length - 1;
+        int index = offset + 1;
+        final int manufacturerId;
+        if (index + 2 < end && data[index] == 0) {
+            manufacturerId = ((data[index + 1] & 0x7F) << 8) | (data[index + 2] & 0x7F);
+            index += 3;
+        } else if (index < end) {
+            manufacturerId = (data[index] & 0x7F) << 16;
+            index += 1;
+        } else {
+            manufacturerId = ANY;
+        }
+        final int deviceId = (index < end) ? data[index] & 0x7F : ANY;
+        index++;
+        final int model;
+        if (index + 1 < end) {
+            model = ((data[index] & 0x7F) << 8) | (data[index + 1] & 0x7F);
+        } else if (index < end) {
+            model = data[index] & 0x7F;
+        } else {
+            model = ANY;
+        }
+        return new Patch(hash, manufacturerId, deviceId, model, length, capturedAt, source);
+    }
+
+    private static boolean matches(final int value, final int wanted) {
+        return wanted == ANY || value == wanted;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            builder.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return builder.toString();
+    }
+
+}
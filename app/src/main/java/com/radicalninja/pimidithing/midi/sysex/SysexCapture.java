@@ -0,0 +1,231 @@
+package com.radicalninja.pimidithing.midi.sysex;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiInputController;
+import com.radicalninja.pimidithing.midi.MidiMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Records the SysEx dumps that inputs send into a PatchLibrary.
+ *
+ * A dump may arrive in any number of pieces, mixed with real-time bytes; each input's pieces are
+ * put back together until its F7. Finished dumps are handed to a thread of its own to be stored,
+ * so the input's callback thread never waits on the disk. A dump that is cut short by another
+ * status byte, or that grows past MAX_DUMP_BYTES, is thrown away.
+ */
+public class SysexCapture {
+
+    private static final String TAG = SysexCapture.class.getCanonicalName();
+    private static final String THREAD_NAME = "SysexCapture";
+
+    public static final int MAX_DUMP_BYTES = 1024 * 1024;
+    private static final int INITIAL_DUMP_BYTES = 256;
+
+    /**
+     * A dump being put back together. Only touched by its input's callback thread.
+     */
+    private static class Assembly {
+        byte[] data = new byte[INITIAL_DUMP_BYTES];
+        int length = 0;
+        boolean active = false;
+        boolean overflowed = false;
+    }
+
+    private static class Dump {
+        final byte[] data;
+        final String source;
+
+        Dump(final byte[] data, final String source) {
+            this.data = data;
+            this.source = source;
+        }
+    }
+
+    // Queued by stop(); the store thread ends once it reaches it.
+    private static final Dump STOP = new Dump(null, null);
+
+    private final PatchLibrary library;
+    private final Map<MidiInputController, Assembly> assemblies = new ConcurrentHashMap<>();
+
+    // Each run has a queue of its own, so a stopped thread can't take a new run's dumps.
+    private volatile LinkedBlockingQueue<Dump> dumps = new LinkedBlockingQueue<>();
+    private volatile boolean running = false;
+    private volatile long capturedCount = 0;
+    private volatile long duplicateCount = 0;
+    private volatile long discardedCount = 0;
+
+    // Raw bytes, since the pieces after the first of a dump don't start with a status byte.
+    private final MidiInputController.RawListener rawListener =
+            new MidiInputController.RawListener() {
+                @Override
+                public void onBytes(final MidiInputController input,
+                                    final byte[] data,
+                                    final int offset,
+                                    final int count,
+                                    final long timestamp) {
+
+                    if (running) {
+                        SysexCapture.this.onBytes(input, data, offset, count);
+                    }
+                }
+            };
+
+    public SysexCapture(@NonNull final PatchLibrary library) {
+        this.library = library;
+    }
+
+    public PatchLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * @return A listener to attach to the inputs whose dumps should be captured.
+     */
+    public MidiInputController.RawListener getRawListener() {
+        return rawListener;
+    }
+
+    /**
+     * @return Dumps added to the library.
+     */
+    public long getCapturedCount() {
+        return capturedCount;
+    }
+
+    /**
+     * @return Dumps the library already had.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return Dumps thrown away because they were cut short or too large.
+     */
+    public long getDiscardedCount() {
+        return discardedCount;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        final LinkedBlockingQueue<Dump> queue = new LinkedBlockingQueue<>();
+        dumps = queue;
+        running = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storeAll(queue);
+            }
+        }, THREAD_NAME).start();
+    }
+
+    /**
+     * Stop capturing. Dumps already finished are still stored.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // Not interrupted: that would close the library's files in the middle of a write.
+        dumps.add(STOP);
+        assemblies.clear();
+    }
+
+    private void onBytes(final MidiInputController input, final byte[] bytes,
+                         final int offset, final int count) {
+
+        Assembly assembly = assemblies.get(input);
+        if (null == assembly) {
+            assembly = new Assembly();
+            assemblies.put(input, assembly);
+        }
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            final byte b = bytes[i];
+            if ((b & 0xFF) >= 0xF8) {
+                // Real-time bytes may turn up anywhere; they aren't part of the dump.
+                continue;
+            }
+            if (b == MidiMessage.BYTE_SYSEX_START) {
+                if (assembly.active) {
+                    discardedCount++;
+                }
+                assembly.active = true;
+                assembly.overflowed = false;
+                assembly.length = 0;
+            } else if (!assembly.active) {
+                continue;
+            } else if ((b & 0x80) != 0 && b != MidiMessage.BYTE_SYSEX_END) {
+                discardedCount++;
+                assembly.active = false;
+                continue;
+            }
+            if (assembly.overflowed) {
+                if (b == MidiMessage.BYTE_SYSEX_END) {
+                    assembly.active = false;
+                }
+                continue;
+            }
+            if (assembly.length == MAX_DUMP_BYTES) {
+                Log.w(TAG, "Discarding a SysEx dump larger than " + MAX_DUMP_BYTES + " bytes.");
+                discardedCount++;
+                assembly.overflowed = true;
+                continue;
+            }
+            if (assembly.length == assembly.data.length) {
+                assembly.data = Arrays.copyOf(assembly.data,
+                        Math.min(MAX_DUMP_BYTES, assembly.data.length * 2));
+            }
+            assembly.data[assembly.length++] = b;
+            if (b == MidiMessage.BYTE_SYSEX_END) {
+                assembly.active = false;
+                dumps.add(new Dump(Arrays.copyOf(assembly.data, assembly.length),
+                        input.getPortRecord().getNickname()));
+            }
+        }
+    }
+
+    private void storeAll(final LinkedBlockingQueue<Dump> queue) {
+        while (true) {
+            final Dump dump;
+            try {
+                dump = queue.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for SysEx dumps.", e);
+                return;
+            }
+            if (dump == STOP) {
+                return;
+            }
+            store(dump);
+        }
+    }
+
+    private void store(final Dump dump) {
+        try {
+            final int before = library.size();
+            final PatchLibrary.Patch patch = library.add(dump.data, 0, dump.data.length, dump.source);
+            if (library.size() > before) {
+                capturedCount++;
+                Log.i(TAG, String.format(Locale.US, "Captured %d byte patch %s from %s",
+                        patch.getLength(), patch.getHashString(), dump.source));
+            } else {
+                duplicateCount++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not store a SysEx dump from " + dump.source, e);
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.radicalninja.pimidithing.midi.sysex;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Read-only view of a .syx file, which may hold any number of SysEx messages back to back.
+ *
+ * The file is memory-mapped rather than read into the heap. Opening it walks the bytes once to
+ * find where each message starts and ends; message data is only copied out as it is read.
+ * Anything outside an F0 ... F7 pair, and any message that is cut short, is left out.
+ */
+public class SysexFile implements Closeable {
+
+    private static final String TAG = SysexFile.class.getCanonicalName();
+
+    private static final int INITIAL_INDEX_SIZE = 16;
+
+    public static SysexFile open(@NonNull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File is too large: " + file.getPath());
+            }
+            final ByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SysexFile(file.getPath(), raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private final String path;
+    private final RandomAccessFile raf;
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int messageCount;
+    private final long byteCount;
+
+    private SysexFile(final String path, final RandomAccessFile raf, final ByteBuffer buffer)
+            throws IOException {
+
+        this.path = path;
+        this.raf = raf;
+        this.buffer = buffer;
+        int[] offsets = new int[INITIAL_INDEX_SIZE];
+        int[] lengths = new int[INITIAL_INDEX_SIZE];
+        int count = 0;
+        long bytes = 0;
+        int start = -1;
+        int skipped = 0;
+        final int size = buffer.limit();
+        for (int i = 0; i < size; i++) {
+            final byte b = buffer.get(i);
+            if (b == MidiMessage.BYTE_SYSEX_START) {
+                if (start >= 0) {
+                    skipped++;
+                }
+                start = i;
+            } else if (b == MidiMessage.BYTE_SYSEX_END && start >= 0) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                offsets[count] = start;
+                lengths[count] = i - start + 1;
+                bytes += lengths[count];
+                count++;
+                start = -1;
+            } else if ((b & 0x80) != 0 && (b & 0xFF) < 0xF8 && start >= 0) {
+                // Any other status byte ends a SysEx without finishing it.
+                skipped++;
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            skipped++;
+        }
+        if (count == 0) {
+            throw new MidiMessage.MalformedSysexBytesException(path, size);
+        }
+        if (skipped > 0) {
+            Log.w(TAG, String.format(Locale.US,
+                    "Skipped %d unfinished SysEx message(s) in %s", skipped, path));
+        }
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.messageCount = count;
+        this.byteCount = bytes;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return Length of a message, including its F0 and F7.
+     */
+    public int getMessageLength(final int message) {
+        return lengths[message];
+    }
+
+    /**
+     * @return Total length of every message in the file.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Copy part of a message.
+     * @param message - Index of the message.
+     * @param offset - Where in the message to start.
+     * @param dest - Where to copy the bytes to.
+     * @param destOffset - Where in dest to start.
+     * @param length - How many bytes to copy.
+     */
+    public void read(final int message, final int offset,
+                     final byte[] dest, final int destOffset, final int length) {
+
+        if (offset < 0 || length < 0 || offset + length > lengths[message]) {
+            throw new IndexOutOfBoundsException(String.format(Locale.US,
+                    "%d bytes at %d, message length %d", length, offset, lengths[message]));
+        }
+        // Absolute reads leave the buffer's position alone, so readers don't disturb each other.
+        final int start = offsets[message] + offset;
+        for (int i = 0; i < length; i++) {
+            dest[destOffset + i] = buffer.get(start + i);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+}
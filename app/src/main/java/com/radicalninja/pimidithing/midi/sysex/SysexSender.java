@@ -0,0 +1,290 @@
+package com.radicalninja.pimidithing.midi.sysex;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.MidiOutputController;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends .syx files to outputs, one file at a time, on a thread of its own.
+ *
+ * Older synths often can't take SysEx as fast as USB delivers it and lose data, so each job may
+ * be paced: a gap after every message, and a byte rate that the data inside a message is spread
+ * out to. Messages are sent in packets of up to 10ms worth of data at that rate.
+ *
+ * Listeners hear about each message sent and when a job is finished, on the sender's thread.
+ */
+public class SysexSender {
+
+    private static final String TAG = SysexSender.class.getCanonicalName();
+    private static final String THREAD_NAME = "SysexSender";
+
+    public static final int MAX_PACKET_BYTES = 256;
+    private static final int PACKETS_PER_SECOND = 100;
+
+    private static final byte[] SYSEX_END = { MidiMessage.BYTE_SYSEX_END };
+
+    public interface ProgressListener {
+        void onProgress(final Job job);
+        /**
+         * @param error - Why the job failed, or null if every message was sent.
+         */
+        void onFinished(final Job job, @Nullable final IOException error);
+    }
+
+    public static class Job {
+        private final File file;
+        private final MidiOutputController output;
+        private final long delayNanos;
+        private final int bytesPerSecond;
+
+        private volatile int messageCount = 0;
+        private volatile int messagesSent = 0;
+        private volatile long byteCount = 0;
+        private volatile long bytesSent = 0;
+        private volatile boolean cancelled = false;
+        private volatile boolean finished = false;
+
+        /**
+         * @param delayNanos - Gap to leave after each message.
+         * @param bytesPerSecond - Fastest rate to send at, or 0 for no limit.
+         */
+        public Job(@NonNull final File file, @NonNull final MidiOutputController output,
+                   final long delayNanos, final int bytesPerSecond) {
+
+            this.file = file;
+            this.output = output;
+            this.delayNanos = Math.max(0, delayNanos);
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public MidiOutputController getOutput() {
+            return output;
+        }
+
+        /**
+         * @return Messages in the file, once sending has started.
+         */
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        public int getMessagesSent() {
+            return messagesSent;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * @return How much of the file has been sent, from 0 to 1.
+         */
+        public float getProgress() {
+            final long total = byteCount;
+            return (total > 0) ? (float) bytesSent / total : 0;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Stop sending. A message that was partly sent is ended so the device isn't left
+         * waiting for the rest of it.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+    private final List<ProgressListener> listeners = new ArrayList<>();
+    private final byte[] packet = new byte[MAX_PACKET_BYTES];
+
+    private volatile boolean running = false;
+    private volatile Job current;
+    private volatile Thread thread;
+
+    public boolean addProgressListener(final ProgressListener listener) {
+        synchronized (listeners) {
+            if (listeners.contains(listener)) {
+                Log.d(TAG, "Attempted to add a duplicate ProgressListener. Skipping.");
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+    }
+
+    public boolean removeProgressListener(final ProgressListener listener) {
+        synchronized (listeners) {
+            return listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Queue a file to be sent once the jobs ahead of it are finished.
+     */
+    public Job send(@NonNull final File file, @NonNull final MidiOutputController output,
+                    final long delayNanos, final int bytesPerSecond) {
+
+        final Job job = new Job(file, output, delayNanos, bytesPerSecond);
+        jobs.add(job);
+        start();
+        return job;
+    }
+
+    /**
+     * @return The job being sent, or null if the sender is idle.
+     */
+    @Nullable
+    public Job getCurrentJob() {
+        return current;
+    }
+
+    public int getQueuedCount() {
+        return jobs.size();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(senderRunnable, THREAD_NAME);
+        thread.start();
+    }
+
+    /**
+     * Stop the sender thread. The job being sent is cancelled; queued jobs are dropped.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        final Job job = current;
+        if (null != job) {
+            job.cancel();
+        }
+        jobs.clear();
+        thread.interrupt();
+        thread = null;
+    }
+
+    private final Runnable senderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // A thread replaced by a stop() / start() pair winds down on its own.
+            while (running && thread == Thread.currentThread()) {
+                final Job job;
+                try {
+                    job = jobs.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                current = job;
+                IOException error = null;
+                try {
+                    sendJob(job);
+                } catch (IOException e) {
+                    Log.e(TAG, "Sending " + job.file.getPath() + " failed.", e);
+                    error = e;
+                }
+                job.finished = true;
+                current = null;
+                notifyFinished(job, error);
+            }
+        }
+    };
+
+    private void sendJob(final Job job) throws IOException {
+        final SysexFile sysexFile = SysexFile.open(job.file);
+        try {
+            job.messageCount = sysexFile.getMessageCount();
+            job.byteCount = sysexFile.getByteCount();
+            final double nanosPerByte = (job.bytesPerSecond > 0) ? 1e9 / job.bytesPerSecond : 0;
+            final int packetBytes = (job.bytesPerSecond > 0)
+                    ? Math.max(1, Math.min(MAX_PACKET_BYTES, job.bytesPerSecond / PACKETS_PER_SECOND))
+                    : MAX_PACKET_BYTES;
+            long next = System.nanoTime();
+            for (int message = 0; message < job.messageCount; message++) {
+                final int length = sysexFile.getMessageLength(message);
+                int offset = 0;
+                while (offset < length) {
+                    if (!waitUntil(next, job)) {
+                        if (offset > 0) {
+                            job.output.send(SYSEX_END, 0, 1, 0);
+                        }
+                        throw new IOException("Cancelled.");
+                    }
+                    if (!job.output.isOpen()) {
+                        throw new IOException("Output closed: "
+                                + job.output.getPortRecord().getNickname());
+                    }
+                    final int count = Math.min(packetBytes, length - offset);
+                    sysexFile.read(message, offset, packet, 0, count);
+                    job.output.send(packet, 0, count, 0);
+                    offset += count;
+                    job.bytesSent += count;
+                    next = Math.max(next, System.nanoTime()) + (long) (count * nanosPerByte);
+                }
+                next += job.delayNanos;
+                job.messagesSent++;
+                notifyProgress(job);
+            }
+            Log.i(TAG, String.format(Locale.US, "Sent %d message(s), %d bytes from %s to %s",
+                    job.messagesSent, job.bytesSent, job.file.getName(),
+                    job.output.getPortRecord().getNickname()));
+        } finally {
+            sysexFile.close();
+        }
+    }
+
+    /**
+     * @return false if the job was cancelled while waiting.
+     */
+    private boolean waitUntil(final long deadline, final Job job) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !job.cancelled) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        return !job.cancelled;
+    }
+
+    private void notifyProgress(final Job job) {
+        synchronized (listeners) {
+            for (final ProgressListener listener : listeners) {
+                listener.onProgress(job);
+            }
+        }
+    }
+
+    private void notifyFinished(final Job job, @Nullable final IOException error) {
+        synchronized (listeners) {
+            for (final ProgressListener listener : listeners) {
+                listener.onFinished(job, error);
+            }
+        }
+    }
+
+}
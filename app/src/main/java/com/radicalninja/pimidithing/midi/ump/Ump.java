@@ -0,0 +1,230 @@
+package com.radicalninja.pimidithing.midi.ump;
+
+/**
+ * Reading, writing and scaling MIDI 2.0 Universal MIDI Packets held in int arrays.
+ *
+ * A packet is one to four 32-bit words, the first of which holds its message type (top 4 bits)
+ * and group. Channel voice packets (MIDI 1.0 or MIDI 2.0) keep the opcode, channel and two index
+ * bytes in the rest of the first word:
+ * <pre>
+ *   mt:4 group:4 opcode:4 channel:4 index1:8 index2:8   [data:32]
+ * </pre>
+ * Everything here works on the words in place, so a packet can be inspected and changed without
+ * allocating anything.
+ */
+public class Ump {
+
+    public static final int MT_UTILITY = 0x0;
+    public static final int MT_SYSTEM = 0x1;
+    public static final int MT_MIDI1_CHANNEL_VOICE = 0x2;
+    public static final int MT_DATA_64 = 0x3;
+    public static final int MT_MIDI2_CHANNEL_VOICE = 0x4;
+    public static final int MT_DATA_128 = 0x5;
+
+    // MIDI 2.0 channel voice opcodes. 0x8 - 0xE match their MIDI 1.0 status nibbles.
+    public static final int REGISTERED_PER_NOTE = 0x0;
+    public static final int ASSIGNABLE_PER_NOTE = 0x1;
+    public static final int REGISTERED_CONTROLLER = 0x2;
+    public static final int ASSIGNABLE_CONTROLLER = 0x3;
+    public static final int RELATIVE_REGISTERED_CONTROLLER = 0x4;
+    public static final int RELATIVE_ASSIGNABLE_CONTROLLER = 0x5;
+    public static final int PER_NOTE_PITCH_BEND = 0x6;
+    public static final int NOTE_OFF = 0x8;
+    public static final int NOTE_ON = 0x9;
+    public static final int POLY_PRESSURE = 0xA;
+    public static final int CONTROL_CHANGE = 0xB;
+    public static final int PROGRAM_CHANGE = 0xC;
+    public static final int CHANNEL_PRESSURE = 0xD;
+    public static final int PITCH_BEND = 0xE;
+    public static final int PER_NOTE_MANAGEMENT = 0xF;
+
+    // Program change option flag: the bank in the data word is to be selected too.
+    public static final int PROGRAM_BANK_VALID = 0x01;
+
+    /**
+     * Longest packet, in words.
+     */
+    public static final int MAX_WORDS = 4;
+
+    private Ump() {}
+
+    /**
+     * @return Words in a packet of the given message type.
+     */
+    public static int getWordCount(final int messageType) {
+        switch (messageType & 0xF) {
+            case 0x0:
+            case 0x1:
+            case 0x2:
+            case 0x6:
+            case 0x7:
+                return 1;
+            case 0x3:
+            case 0x4:
+            case 0x8:
+            case 0x9:
+            case 0xA:
+                return 2;
+            case 0xB:
+            case 0xC:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    public static int getMessageType(final int word) {
+        return word >>> 28;
+    }
+
+    public static int getGroup(final int word) {
+        return (word >>> 24) & 0xF;
+    }
+
+    /**
+     * @return Opcode of a channel voice packet, or the status byte of a system packet.
+     */
+    public static int getStatus(final int word) {
+        return (getMessageType(word) == MT_SYSTEM)
+                ? (word >>> 16) & 0xFF
+                : (word >>> 20) & 0xF;
+    }
+
+    /**
+     * @return Channel of a channel voice packet, 0 - 15.
+     */
+    public static int getChannel(final int word) {
+        return (word >>> 16) & 0xF;
+    }
+
+    public static int setChannel(final int word, final int channel) {
+        return (word & ~0x000F0000) | ((channel & 0xF) << 16);
+    }
+
+    /**
+     * @return The first index byte: the note or controller number of a channel voice packet.
+     */
+    public static int getIndex1(final int word) {
+        return (word >>> 8) & 0xFF;
+    }
+
+    public static int setIndex1(final int word, final int value) {
+        return (word & ~0x0000FF00) | ((value & 0xFF) << 8);
+    }
+
+    public static int getIndex2(final int word) {
+        return word & 0xFF;
+    }
+
+    public static int setIndex2(final int word, final int value) {
+        return (word & ~0x000000FF) | (value & 0xFF);
+    }
+
+    /**
+     * @return true for channel voice packets, in either protocol.
+     */
+    public static boolean isChannelVoice(final int word) {
+        final int messageType = getMessageType(word);
+        return messageType == MT_MIDI1_CHANNEL_VOICE || messageType == MT_MIDI2_CHANNEL_VOICE;
+    }
+
+    /**
+     * @return true if index1 of the packet is a note number.
+     */
+    public static boolean hasNote(final int word) {
+        final int messageType = getMessageType(word);
+        switch (getStatus(word)) {
+            case NOTE_OFF:
+            case NOTE_ON:
+            case POLY_PRESSURE:
+                return messageType == MT_MIDI1_CHANNEL_VOICE
+                        || messageType == MT_MIDI2_CHANNEL_VOICE;
+            case REGISTERED_PER_NOTE:
+            case ASSIGNABLE_PER_NOTE:
+            case PER_NOTE_PITCH_BEND:
+            case PER_NOTE_MANAGEMENT:
+                return messageType == MT_MIDI2_CHANNEL_VOICE;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The MidiMessage.MessageType value the packet would have as MIDI 1.0, or -1 if it
+     * has no MIDI 1.0 form. RPN and NRPN controllers count as control changes.
+     */
+    public static int getMidi1Type(final int word) {
+        final int status = getStatus(word);
+        switch (getMessageType(word)) {
+            case MT_SYSTEM:
+                return status;
+            case MT_MIDI1_CHANNEL_VOICE:
+                return (status >= NOTE_OFF) ? status : -1;
+            case MT_MIDI2_CHANNEL_VOICE:
+                if (status >= NOTE_OFF && status <= PITCH_BEND) {
+                    return status;
+                }
+                return (status >= REGISTERED_CONTROLLER && status <= RELATIVE_ASSIGNABLE_CONTROLLER)
+                        ? CONTROL_CHANGE
+                        : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Build the first word of a channel voice packet.
+     */
+    public static int channelVoice(final int messageType, final int group, final int opcode,
+                                   final int channel, final int index1, final int index2) {
+
+        return ((messageType & 0xF) << 28) | ((group & 0xF) << 24) | ((opcode & 0xF) << 20)
+                | ((channel & 0xF) << 16) | ((index1 & 0xFF) << 8) | (index2 & 0xFF);
+    }
+
+    /**
+     * Build a system common / real-time packet.
+     */
+    public static int system(final int group, final int status, final int data1, final int data2) {
+        return (MT_SYSTEM << 28) | ((group & 0xF) << 24) | ((status & 0xFF) << 16)
+                | ((data1 & 0x7F) << 8) | (data2 & 0x7F);
+    }
+
+    /**
+     * Scale a value up to a higher resolution the way the MIDI 2.0 translation rules do: the
+     * lowest, center and highest values stay the lowest, center and highest, and the bits below
+     * the center are filled by repeating the value's own bits so the top of the range is reached.
+     * @param value - Value to scale, as an unsigned number of sourceBits.
+     * @param sourceBits - Resolution of value, 2 - 31.
+     * @param targetBits - Resolution to scale to, up to 32.
+     * @return The scaled value; a 32-bit result is returned as its unsigned bit pattern.
+     */
+    public static int scaleUp(final int value, final int sourceBits, final int targetBits) {
+        final int scaleBits = targetBits - sourceBits;
+        final long source = value & ((1L << sourceBits) - 1);
+        long result = source << scaleBits;
+        if (source <= (1L << (sourceBits - 1))) {
+            return (int) result;
+        }
+        final int repeatBits = sourceBits - 1;
+        long repeat = source & ((1L << repeatBits) - 1);
+        repeat = (scaleBits > repeatBits)
+                ? repeat << (scaleBits - repeatBits)
+                : repeat >> (repeatBits - scaleBits);
+        while (repeat != 0) {
+            result |= repeat;
+            repeat >>= repeatBits;
+        }
+        return (int) result;
+    }
+
+    /**
+     * Scale a value down to a lower resolution by keeping its top bits.
+     * @param value - Unsigned value of sourceBits, e.g. a 32-bit controller.
+     */
+    public static int scaleDown(final int value, final int sourceBits, final int targetBits) {
+        final long source = value & ((1L << sourceBits) - 1);
+        return (int) (source >>> (sourceBits - targetBits));
+    }
+
+}
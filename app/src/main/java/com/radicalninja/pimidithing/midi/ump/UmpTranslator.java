@@ -0,0 +1,341 @@
+package com.radicalninja.pimidithing.midi.ump;
+
+import android.support.annotation.Nullable;
+
+import com.radicalninja.pimidithing.midi.MidiMessage;
+import com.radicalninja.pimidithing.midi.ParameterMessage;
+
+/**
+ * Translates between MIDI 1.0 byte streams and Universal MIDI Packets.
+ *
+ * MIDI 1.0 channel messages become MIDI 2.0 channel voice packets: velocities are scaled up to
+ * 16 bits, and controllers, pressure and pitch bend to 32 bits, keeping the lowest, center and
+ * highest values in place (see Ump.scaleUp()). A ParameterMessage becomes a single packet: a
+ * 14-bit controller keeps its low bits, RPN and NRPN values become registered and assignable
+ * controllers, and increment / decrement become relative controllers. System common and
+ * real-time messages become system packets. SysEx is not translated.
+ *
+ * Going back, values are cut down to their top bits. A note-on can't have a velocity of 0 in
+ * MIDI 1.0, so one whose velocity rounds down to 0 is sent with 1. Program changes that select a
+ * bank are sent with their bank select control changes first. Per-note controllers, per-note
+ * pitch bend and per-note management have no MIDI 1.0 form and are left out.
+ *
+ * Nothing here allocates, apart from the MidiMessage made by toMessage().
+ */
+public class UmpTranslator {
+
+    private static final int CC_BANK_MSB = 0;
+    private static final int CC_BANK_LSB = 32;
+    private static final int CC_DATA_ENTRY = 6;
+    private static final int CC_INCREMENT = 96;
+    private static final int CC_RPN_MSB = 101;
+    private static final int CC_NRPN_MSB = 99;
+
+    private static final int LENGTH_PAIR = 6;
+    private static final int LENGTH_STEP = 9;
+    private static final int LENGTH_DATA = 12;
+
+    private UmpTranslator() {}
+
+    /**
+     * Translate one MIDI 1.0 message, or the run of control changes of a ParameterMessage.
+     * @param bytes - The message.
+     * @param group - UMP group to put the packet in, 0 - 15.
+     * @param words - Where to write the packet; needs room for Ump.MAX_WORDS from wordOffset.
+     * @return Words written, or 0 if the message has no UMP form here.
+     */
+    public static int fromMidi1(final byte[] bytes, final int offset, final int count,
+                                final int group, final int[] words, final int wordOffset) {
+
+        if (count < 1) {
+            return 0;
+        }
+        final int status = bytes[offset] & 0xFF;
+        final int data1 = (count > 1) ? bytes[offset + 1] & 0x7F : 0;
+        final int data2 = (count > 2) ? bytes[offset + 2] & 0x7F : 0;
+        if (status >= 0xF0) {
+            if (status == 0xF0 || status == 0xF7) {
+                return 0;
+            }
+            words[wordOffset] = Ump.system(group, status, data1, data2);
+            return 1;
+        }
+        if (status < 0x80) {
+            return 0;
+        }
+        final int channel = status & 0x0F;
+        int opcode = status >> 4;
+        int index1 = data1;
+        final int data;
+        switch (opcode) {
+            case Ump.NOTE_ON:
+                if (data2 == 0) {
+                    // Velocity 0 is a note-off.
+                    opcode = Ump.NOTE_OFF;
+                }
+                // Fall through.
+            case Ump.NOTE_OFF:
+                data = Ump.scaleUp(data2, 7, 16) << 16;
+                break;
+            case Ump.POLY_PRESSURE:
+                data = Ump.scaleUp(data2, 7, 32);
+                break;
+            case Ump.CONTROL_CHANGE:
+                if (count == LENGTH_PAIR) {
+                    if (data1 >= ParameterMessage.CONTROLLER_COUNT) {
+                        // The RPN / NRPN null parameter; it has no packet of its own.
+                        return 0;
+                    }
+                    data = Ump.scaleUp((data2 << 7) | (bytes[offset + 5] & 0x7F), 14, 32);
+                    break;
+                } else if (count == LENGTH_DATA || count == LENGTH_STEP) {
+                    return fromParameter(bytes, offset, count, group, words, wordOffset);
+                } else if (count != 3) {
+                    return 0;
+                }
+                data = Ump.scaleUp(data2, 7, 32);
+                break;
+            case Ump.PROGRAM_CHANGE:
+                index1 = 0;
+                data = data1 << 24;
+                break;
+            case Ump.CHANNEL_PRESSURE:
+                index1 = 0;
+                data = Ump.scaleUp(data1, 7, 32);
+                break;
+            case Ump.PITCH_BEND:
+                index1 = 0;
+                data = Ump.scaleUp(data1 | (data2 << 7), 14, 32);
+                break;
+            default:
+                return 0;
+        }
+        words[wordOffset] = Ump.channelVoice(
+                Ump.MT_MIDI2_CHANNEL_VOICE, group, opcode, channel, index1, 0);
+        words[wordOffset + 1] = data;
+        return 2;
+    }
+
+    /**
+     * Translate one packet to MIDI 1.0.
+     * @param bytes - Where to write the message; needs room for 12 bytes from offset.
+     * @return Bytes written, or 0 if the packet has no MIDI 1.0 form.
+     */
+    public static int toMidi1(final int[] words, final int wordOffset, final byte[] bytes,
+                              final int offset) {
+
+        final int word = words[wordOffset];
+        switch (Ump.getMessageType(word)) {
+            case Ump.MT_SYSTEM:
+                final int status = Ump.getStatus(word);
+                final int length = systemLength(status);
+                bytes[offset] = (byte) status;
+                if (length > 1) {
+                    bytes[offset + 1] = (byte) (Ump.getIndex1(word) & 0x7F);
+                }
+                if (length > 2) {
+                    bytes[offset + 2] = (byte) (Ump.getIndex2(word) & 0x7F);
+                }
+                return length;
+            case Ump.MT_MIDI1_CHANNEL_VOICE:
+                final int opcode = Ump.getStatus(word);
+                if (opcode < Ump.NOTE_OFF) {
+                    return 0;
+                }
+                return write(bytes, offset, opcode, Ump.getChannel(word),
+                        Ump.getIndex1(word), Ump.getIndex2(word));
+            case Ump.MT_MIDI2_CHANNEL_VOICE:
+                return fromMidi2(word, words[wordOffset + 1], bytes, offset);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Translate one packet to a MidiMessage, as a ParameterMessage where it takes more than one
+     * control change.
+     * @param highResolution - true to send a control change on controllers 0 - 31 as a 14-bit
+     *                       pair, false to send it as a plain 7-bit control change.
+     * @param scratch - Room for 12 bytes to translate plain messages through.
+     * @return The message, or null if the packet has no MIDI 1.0 form.
+     */
+    @Nullable
+    public static MidiMessage toMessage(final int[] words, final int wordOffset,
+                                        final boolean highResolution, final byte[] scratch,
+                                        final long timestamp) {
+
+        final int word = words[wordOffset];
+        if (Ump.getMessageType(word) == Ump.MT_MIDI2_CHANNEL_VOICE) {
+            final int channel = Ump.getChannel(word);
+            final int data = words[wordOffset + 1];
+            switch (Ump.getStatus(word)) {
+                case Ump.CONTROL_CHANGE:
+                    final int controller = Ump.getIndex1(word) & 0x7F;
+                    if (highResolution && controller < ParameterMessage.CONTROLLER_COUNT) {
+                        return ParameterMessage.controller(
+                                channel, controller, Ump.scaleDown(data, 32, 14), timestamp);
+                    }
+                    break;
+                case Ump.REGISTERED_CONTROLLER:
+                case Ump.ASSIGNABLE_CONTROLLER:
+                    return ParameterMessage.data(kindOf(word), channel, parameterOf(word),
+                            Ump.scaleDown(data, 32, 14), timestamp);
+                case Ump.RELATIVE_REGISTERED_CONTROLLER:
+                case Ump.RELATIVE_ASSIGNABLE_CONTROLLER:
+                    if (data == 0) {
+                        return null;
+                    }
+                    return ParameterMessage.step(kindOf(word), channel, parameterOf(word),
+                            data > 0, stepsOf(data), timestamp);
+            }
+        }
+        final int count = toMidi1(words, wordOffset, scratch, 0);
+        return (count > 0) ? new MidiMessage(scratch, 0, count, timestamp) : null;
+    }
+
+    private static int fromParameter(final byte[] bytes, final int offset, final int count,
+                                     final int group, final int[] words, final int wordOffset) {
+
+        final int channel = bytes[offset] & 0x0F;
+        final int select = bytes[offset + 1] & 0x7F;
+        if (select != CC_RPN_MSB && select != CC_NRPN_MSB) {
+            return 0;
+        }
+        final boolean registered = select == CC_RPN_MSB;
+        final int bank = bytes[offset + 2] & 0x7F;
+        final int index = bytes[offset + 5] & 0x7F;
+        final int opcode;
+        final int data;
+        if (count == LENGTH_DATA) {
+            opcode = registered ? Ump.REGISTERED_CONTROLLER : Ump.ASSIGNABLE_CONTROLLER;
+            data = Ump.scaleUp(
+                    ((bytes[offset + 8] & 0x7F) << 7) | (bytes[offset + 11] & 0x7F), 14, 32);
+        } else {
+            opcode = registered
+                    ? Ump.RELATIVE_REGISTERED_CONTROLLER
+                    : Ump.RELATIVE_ASSIGNABLE_CONTROLLER;
+            final int steps = bytes[offset + 8] & 0x7F;
+            data = ((bytes[offset + 7] & 0x7F) == CC_INCREMENT) ? steps : -steps;
+        }
+        words[wordOffset] = Ump.channelVoice(
+                Ump.MT_MIDI2_CHANNEL_VOICE, group, opcode, channel, bank, index);
+        words[wordOffset + 1] = data;
+        return 2;
+    }
+
+    private static int fromMidi2(final int word, final int data, final byte[] bytes,
+                                 final int offset) {
+
+        final int opcode = Ump.getStatus(word);
+        final int channel = Ump.getChannel(word);
+        final int index1 = Ump.getIndex1(word) & 0x7F;
+        switch (opcode) {
+            case Ump.NOTE_ON:
+                final int velocity = Ump.scaleDown(data >>> 16, 16, 7);
+                return write(bytes, offset, opcode, channel, index1, Math.max(1, velocity));
+            case Ump.NOTE_OFF:
+                return write(bytes, offset, opcode, channel, index1,
+                        Ump.scaleDown(data >>> 16, 16, 7));
+            case Ump.POLY_PRESSURE:
+            case Ump.CONTROL_CHANGE:
+                return write(bytes, offset, opcode, channel, index1, Ump.scaleDown(data, 32, 7));
+            case Ump.PROGRAM_CHANGE:
+                int length = 0;
+                if ((Ump.getIndex2(word) & Ump.PROGRAM_BANK_VALID) != 0) {
+                    length += write(bytes, offset, Ump.CONTROL_CHANGE, channel,
+                            CC_BANK_MSB, (data >>> 8) & 0x7F);
+                    length += write(bytes, offset + length, Ump.CONTROL_CHANGE, channel,
+                            CC_BANK_LSB, data & 0x7F);
+                }
+                return length + write(bytes, offset + length, opcode, channel,
+                        (data >>> 24) & 0x7F, 0);
+            case Ump.CHANNEL_PRESSURE:
+                return write(bytes, offset, opcode, channel, Ump.scaleDown(data, 32, 7), 0);
+            case Ump.PITCH_BEND:
+                final int bend = Ump.scaleDown(data, 32, 14);
+                return write(bytes, offset, opcode, channel, bend & 0x7F, bend >> 7);
+            case Ump.REGISTERED_CONTROLLER:
+            case Ump.ASSIGNABLE_CONTROLLER:
+                final int value = Ump.scaleDown(data, 32, 14);
+                int written = writeSelect(bytes, offset, word);
+                written += write(bytes, offset + written, Ump.CONTROL_CHANGE, channel,
+                        CC_DATA_ENTRY, value >> 7);
+                return written + write(bytes, offset + written, Ump.CONTROL_CHANGE, channel,
+                        CC_DATA_ENTRY + ParameterMessage.CONTROLLER_LSB_OFFSET, value & 0x7F);
+            case Ump.RELATIVE_REGISTERED_CONTROLLER:
+            case Ump.RELATIVE_ASSIGNABLE_CONTROLLER:
+                if (data == 0) {
+                    return 0;
+                }
+                final int selected = writeSelect(bytes, offset, word);
+                return selected + write(bytes, offset + selected, Ump.CONTROL_CHANGE, channel,
+                        (data > 0) ? CC_INCREMENT : CC_INCREMENT + 1, stepsOf(data));
+            default:
+                // Per-note messages.
+                return 0;
+        }
+    }
+
+    /**
+     * Write the RPN / NRPN number of a (relative) registered or assignable controller packet.
+     */
+    private static int writeSelect(final byte[] bytes, final int offset, final int word) {
+        final boolean registered = kindOf(word) == ParameterMessage.Kind.RPN;
+        final int channel = Ump.getChannel(word);
+        final int msb = registered ? CC_RPN_MSB : CC_NRPN_MSB;
+        final int written = write(bytes, offset, Ump.CONTROL_CHANGE, channel, msb,
+                Ump.getIndex1(word) & 0x7F);
+        return written + write(bytes, offset + written, Ump.CONTROL_CHANGE, channel, msb - 1,
+                Ump.getIndex2(word) & 0x7F);
+    }
+
+    private static ParameterMessage.Kind kindOf(final int word) {
+        switch (Ump.getStatus(word)) {
+            case Ump.REGISTERED_CONTROLLER:
+            case Ump.RELATIVE_REGISTERED_CONTROLLER:
+                return ParameterMessage.Kind.RPN;
+            default:
+                return ParameterMessage.Kind.NRPN;
+        }
+    }
+
+    /**
+     * @return Step count of a relative controller, as far as one data byte can hold it.
+     */
+    private static int stepsOf(final int data) {
+        return (int) Math.min(0x7F, Math.abs((long) data));
+    }
+
+    private static int parameterOf(final int word) {
+        return ((Ump.getIndex1(word) & 0x7F) << 7) | (Ump.getIndex2(word) & 0x7F);
+    }
+
+    /**
+     * Write a MIDI 1.0 channel message.
+     * @return Bytes written.
+     */
+    private static int write(final byte[] bytes, final int offset, final int opcode,
+                             final int channel, final int data1, final int data2) {
+
+        bytes[offset] = (byte) ((opcode << 4) | channel);
+        bytes[offset + 1] = (byte) (data1 & 0x7F);
+        if (opcode == Ump.PROGRAM_CHANGE || opcode == Ump.CHANNEL_PRESSURE) {
+            return 2;
+        }
+        bytes[offset + 2] = (byte) (data2 & 0x7F);
+        return 3;
+    }
+
+    private static int systemLength(final int status) {
+        switch (status) {
+            case 0xF1:
+            case 0xF3:
+                return 2;
+            case 0xF2:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+}
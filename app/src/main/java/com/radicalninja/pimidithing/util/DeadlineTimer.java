@@ -0,0 +1,97 @@
+package com.radicalninja.pimidithing.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for absolute System.nanoTime() deadlines with better precision than parkNanos() alone.
+ *
+ * The thread parks until it is close to the deadline, then busy-waits for the remainder. The spin
+ * window adapts to how late parkNanos() has been waking up on this device, so we only burn CPU
+ * for as long as the scheduler actually needs.
+ *
+ * A timer belongs to the single thread that calls awaitDeadline(); any thread may wake() it.
+ */
+public class DeadlineTimer {
+
+    public static final long DEFAULT_MIN_SPIN_NANOS = 50000L;     // 50us
+    public static final long DEFAULT_MAX_SPIN_NANOS = 2000000L;   // 2ms
+
+    private final long minSpinNanos;
+    private final long maxSpinNanos;
+
+    private volatile Thread owner;
+    private volatile boolean woken = false;
+    private long spinNanos;
+
+    public DeadlineTimer() {
+        this(DEFAULT_MIN_SPIN_NANOS, DEFAULT_MAX_SPIN_NANOS);
+    }
+
+    public DeadlineTimer(final long minSpinNanos, final long maxSpinNanos) {
+        if (minSpinNanos < 0) {
+            throw new ValueException.BelowMinimumValueException("minSpinNanos", 0L);
+        }
+        this.minSpinNanos = minSpinNanos;
+        this.maxSpinNanos = Math.max(minSpinNanos, maxSpinNanos);
+        this.spinNanos = this.maxSpinNanos;
+    }
+
+    /**
+     * Block until the given deadline has passed, or until wake() is called.
+     * @param deadline - Absolute deadline, on the System.nanoTime() time base.
+     * @return true if the deadline was reached, false if the wait was cut short by wake().
+     */
+    public boolean awaitDeadline(final long deadline) {
+        owner = Thread.currentThread();
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > spinNanos) {
+            if (consumeWake()) {
+                return false;
+            }
+            final long parkFor = remaining - spinNanos;
+            final long parkStart = System.nanoTime();
+            LockSupport.parkNanos(this, parkFor);
+            final long oversleep = (System.nanoTime() - parkStart) - parkFor;
+            if (oversleep >= 0) {
+                adaptSpin(oversleep);
+            }
+        }
+        while (System.nanoTime() - deadline < 0) {
+            if (consumeWake()) {
+                return false;
+            }
+        }
+        return !consumeWake();
+    }
+
+    /**
+     * Interrupt the owner's current (or next) wait so it can re-evaluate its deadline.
+     */
+    public void wake() {
+        woken = true;
+        final Thread thread = owner;
+        if (null != thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    private boolean consumeWake() {
+        if (woken) {
+            woken = false;
+            return true;
+        }
+        return false;
+    }
+
+    private void adaptSpin(final long oversleep) {
+        // Grow straight away when parking overshoots the window, shrink slowly otherwise.
+        final long target = oversleep * 2;
+        spinNanos = (target > spinNanos) ? target : spinNanos - ((spinNanos - target) >> 4);
+        spinNanos = Math.max(minSpinNanos, Math.min(maxSpinNanos, spinNanos));
+    }
+
+}
@@ -117,6 +117,57 @@ public class JsonUtils {
         return defaultValue;
     }
 
+    /**
+     * Retrieve an Integer value from a JsonElement. If a valid numeric value does not exist,
+     * null will be returned.
+     * @param json the parent JsonElement of the targeted Integer value.
+     * @param key the key at which the numeric JSON value is stored.
+     * @return the Integer value of the JSON key. Returns null in the cases of...
+     *      * if `json` is null.
+     *      * if `json` is not a valid JsonObject.
+     *      * if `key` is null or empty.
+     *      * if `json`.`key` does not exist.
+     *      * if `json`.`key` is not a numeric value.
+     */
+    public static Integer getInteger(final JsonElement json, final String key) {
+        final JsonObject jsonObject = (null != json && json.isJsonObject())
+                ? json.getAsJsonObject()
+                : null;
+        if (null != jsonObject && !TextUtils.isEmpty(key)) {
+            final JsonElement targetJson = jsonObject.get(key);
+            if (null != targetJson && targetJson.isJsonPrimitive()) {
+                final JsonPrimitive targetJsonPrimitive = targetJson.getAsJsonPrimitive();
+                if (targetJsonPrimitive.isNumber()) {
+                    return targetJsonPrimitive.getAsInt();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve a Double value from a JsonElement. If a valid numeric value does not exist,
+     * null will be returned.
+     * @param json the parent JsonElement of the targeted Double value.
+     * @param key the key at which the numeric JSON value is stored.
+     * @return the Double value of the JSON key. Returns null in the same cases as getInteger().
+     */
+    public static Double getDouble(final JsonElement json, final String key) {
+        final JsonObject jsonObject = (null != json && json.isJsonObject())
+                ? json.getAsJsonObject()
+                : null;
+        if (null != jsonObject && !TextUtils.isEmpty(key)) {
+            final JsonElement targetJson = jsonObject.get(key);
+            if (null != targetJson && targetJson.isJsonPrimitive()) {
+                final JsonPrimitive targetJsonPrimitive = targetJson.getAsJsonPrimitive();
+                if (targetJsonPrimitive.isNumber()) {
+                    return targetJsonPrimitive.getAsDouble();
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      *
      * @param json
@@ -0,0 +1,126 @@
+package com.radicalninja.pimidithing.midi.router.clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds ClockTempoTracker synthetic 24 ppqn clock streams with Gaussian timing jitter.
+ */
+public class ClockTempoTrackerTest {
+
+    private static final int PPQN = 24;
+    private static final long JITTER_NANOS = 1000000L;      // 1ms standard deviation
+    private static final long START_NANOS = 1000000000L;
+
+    private ClockTempoTracker tracker;
+    private Random random;
+    private long time;
+
+    @Before
+    public void setUp() {
+        tracker = new ClockTempoTracker(PPQN);
+        random = new Random(1234);
+        time = START_NANOS;
+    }
+
+    private static double period(final double bpm) {
+        return 60000000000d / (bpm * PPQN);
+    }
+
+    /**
+     * Send pulses at the given tempo. Jitter is applied to each timestamp around the ideal grid,
+     * as it would be by a USB transport, rather than accumulating.
+     */
+    private void feed(final double bpm, final int pulses, final long jitter) {
+        final double period = period(bpm);
+        final long base = time;
+        for (int i = 1; i <= pulses; i++) {
+            final long ideal = base + (long) (i * period);
+            tracker.onClock(ideal + (long) (random.nextGaussian() * jitter));
+        }
+        time = base + (long) (pulses * period);
+    }
+
+    @Test
+    public void noEstimateBeforeClock() {
+        assertEquals(0, tracker.getBpm(time), 0);
+        assertFalse(tracker.isClockPresent(time));
+    }
+
+    @Test
+    public void steadyTempo_isAccurateDespiteJitter() {
+        for (final double bpm : new double[] { 60, 98.5, 120, 174, 240 }) {
+            setUp();
+            feed(bpm, PPQN * 4, JITTER_NANOS);
+            assertEquals("bpm " + bpm, bpm, tracker.getBpm(time), bpm * 0.005);
+        }
+    }
+
+    @Test
+    public void firstEstimate_isAvailableQuickly() {
+        feed(120, 6, 0);
+        assertEquals(120, tracker.getBpm(time), 0.01);
+    }
+
+    @Test
+    public void singleLatePulse_isRejected() {
+        feed(120, PPQN * 2, JITTER_NANOS);
+        final double before = tracker.getBpm(time);
+        // One pulse delivered 8ms late, e.g. behind a burst of other USB traffic.
+        final double period = period(120);
+        tracker.onClock(time + (long) period + 8000000L);
+        time += (long) period;
+        feed(120, 2, JITTER_NANOS);
+        assertEquals(before, tracker.getBpm(time), 0.3);
+    }
+
+    @Test
+    public void tempoChange_isDetectedWithinABeat() {
+        feed(120, PPQN * 4, JITTER_NANOS);
+        feed(140, PPQN, JITTER_NANOS);
+        assertEquals(140, tracker.getBpm(time), 1);
+        feed(140, PPQN * 2, JITTER_NANOS);
+        assertEquals(140, tracker.getBpm(time), 0.5);
+
+        feed(140, 0, 0);
+        feed(90, PPQN, JITTER_NANOS);
+        assertEquals(90, tracker.getBpm(time), 1);
+    }
+
+    @Test
+    public void clockTimeout_clearsEstimate() {
+        feed(120, PPQN * 2, JITTER_NANOS);
+        assertTrue(tracker.isClockPresent(time));
+        final long later = time + 1000000000L;
+        assertFalse(tracker.isClockPresent(later));
+        assertEquals(0, tracker.getBpm(later), 0);
+    }
+
+    @Test
+    public void clockResumingAtNewTempo_afterDropout() {
+        feed(120, PPQN * 2, JITTER_NANOS);
+        time += 2000000000L;
+        feed(100, PPQN, JITTER_NANOS);
+        assertEquals(100, tracker.getBpm(time), 1);
+    }
+
+    @Test
+    public void transport_followsStartStopContinue() {
+        assertFalse(tracker.isRunning());
+        tracker.onStart(time);
+        assertTrue(tracker.isRunning());
+        feed(120, PPQN, JITTER_NANOS);
+        tracker.onStop(time);
+        assertFalse(tracker.isRunning());
+        // Many devices keep sending clock while stopped; the estimate stays valid.
+        feed(120, PPQN, JITTER_NANOS);
+        assertEquals(120, tracker.getBpm(time), 1);
+        tracker.onContinue(time);
+        assertTrue(tracker.isRunning());
+    }
+
+}
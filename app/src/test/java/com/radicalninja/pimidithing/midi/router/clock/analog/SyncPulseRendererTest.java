@@ -0,0 +1,140 @@
+package com.radicalninja.pimidithing.midi.router.clock.analog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders a steady tempo through SyncPulseRenderer into a WAV file, and checks the pulses found
+ * in it by SyncPulseAnalyzer against the timeline that drove it.
+ */
+public class SyncPulseRendererTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int PPQN = 24;
+    private static final long ORIGIN_NANOS = 1000000000L;
+    private static final long PULSE_WIDTH_NANOS = 5000000L;     // 5ms
+    private static final double AMPLITUDE = 0.8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Pulses on a fixed grid, starting a little after frame 0.
+     */
+    private static class GridTimeline implements SyncPulseRenderer.Timeline {
+
+        final long startNanos;
+        final double periodNanos;
+
+        GridTimeline(final long startNanos, final double bpm) {
+            this.startNanos = startNanos;
+            this.periodNanos = 60000000000d / (bpm * PPQN);
+        }
+
+        long pulseNanos(final long index) {
+            return startNanos + Math.round(index * periodNanos);
+        }
+
+        @Override
+        public long nextPulseNanos(final long after) {
+            if (after < startNanos) {
+                return startNanos;
+            }
+            long index = (long) Math.floor((after - startNanos) / periodNanos);
+            while (pulseNanos(index) <= after) {
+                index++;
+            }
+            return pulseNanos(index);
+        }
+    }
+
+    /**
+     * Render the timeline to a WAV file in blocks of the given size.
+     */
+    private File render(final GridTimeline timeline, final int blockFrames, final int blocks)
+            throws IOException {
+
+        final File file = folder.newFile("pulses.wav");
+        final SyncPulseRenderer renderer = new SyncPulseRenderer(SAMPLE_RATE, 1,
+                PULSE_WIDTH_NANOS, AMPLITUDE, SyncPulseRenderer.POLARITY_POSITIVE);
+        renderer.setOrigin(ORIGIN_NANOS);
+        final WavFileSink sink = new WavFileSink(file, SAMPLE_RATE, 1, ORIGIN_NANOS);
+        final short[] buffer = new short[blockFrames];
+        for (int i = 0; i < blocks; i++) {
+            renderer.render(buffer, blockFrames, timeline);
+            sink.write(buffer, 0, blockFrames);
+        }
+        sink.close();
+        assertEquals(0, renderer.getLatePulses());
+        return file;
+    }
+
+    /**
+     * @return How many pulses of the timeline start within the rendered frames.
+     */
+    private static int countPulses(final GridTimeline timeline, final long frames) {
+        int pulses = 0;
+        while (Math.round((timeline.pulseNanos(pulses) - ORIGIN_NANOS) * SAMPLE_RATE / 1e9)
+                < frames) {
+            pulses++;
+        }
+        return pulses;
+    }
+
+    private SyncPulseAnalyzer.Report analyze(final File file,
+                                             final GridTimeline timeline,
+                                             final int pulses) throws IOException {
+
+        final SyncPulseAnalyzer.Wav wav = SyncPulseAnalyzer.readWav(file);
+        assertEquals(SAMPLE_RATE, wav.sampleRate);
+        assertEquals(1, wav.channelCount);
+        final int level = (int) Math.round(AMPLITUDE * Short.MAX_VALUE);
+        final long[] found = SyncPulseAnalyzer.findPulses(wav.samples, wav.channelCount, level);
+        final long[] expected = new long[pulses];
+        for (int i = 0; i < pulses; i++) {
+            expected[i] = timeline.pulseNanos(i);
+        }
+        return SyncPulseAnalyzer.measure(found, wav.sampleRate, ORIGIN_NANOS, expected);
+    }
+
+    private static void assertWithinHalfSample(final SyncPulseAnalyzer.Report report,
+                                               final int pulses) {
+
+        // Frame times are rounded to whole nanoseconds by the analyzer.
+        final long halfSample = (long) Math.ceil(1e9 / SAMPLE_RATE / 2);
+        assertEquals(report.toString(), pulses, report.found);
+        assertEquals(report.toString(), 0, report.missed);
+        assertEquals(report.toString(), 0, report.extra);
+        assertTrue(report.toString(), report.maxErrorNanos <= halfSample);
+    }
+
+    @Test
+    public void steadyTempo_pulsesWithinHalfSample() throws IOException {
+        // 123.4 bpm gives a pulse period that is not a whole number of samples.
+        final GridTimeline timeline = new GridTimeline(ORIGIN_NANOS + 3456789L, 123.4);
+        // 2 seconds of audio, split so pulses regularly cross block boundaries.
+        final int blockFrames = 256;
+        final int blocks = (SAMPLE_RATE * 2) / blockFrames;
+        final File file = render(timeline, blockFrames, blocks);
+        final int pulses = countPulses(timeline, blocks * blockFrames);
+        assertTrue(pulses > 90);
+        assertWithinHalfSample(analyze(file, timeline, pulses), pulses);
+    }
+
+    @Test
+    public void oddBlockSize_doesNotMovePulses() throws IOException {
+        final GridTimeline timeline = new GridTimeline(ORIGIN_NANOS, 120);
+        final int blockFrames = 37;
+        final int blocks = SAMPLE_RATE / blockFrames;
+        final File file = render(timeline, blockFrames, blocks);
+        final int pulses = countPulses(timeline, blocks * blockFrames);
+        assertWithinHalfSample(analyze(file, timeline, pulses), pulses);
+    }
+
+}